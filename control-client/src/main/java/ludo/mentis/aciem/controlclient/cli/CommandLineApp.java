@@ -1,17 +1,22 @@
 package ludo.mentis.aciem.controlclient.cli;
 
+import ludo.mentis.aciem.controlclient.model.DirectoryUsage;
 import ludo.mentis.aciem.controlclient.model.FileInfo;
 import ludo.mentis.aciem.controlclient.service.FileClientService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Command line application for the control-client
@@ -20,6 +25,8 @@ import java.util.List;
 public class CommandLineApp implements CommandLineRunner {
 
     private static final Logger logger = LoggerFactory.getLogger(CommandLineApp.class);
+    private static final List<String> QUERY_OPTIONS =
+            List.of("sort", "order", "limit", "include", "exclude", "min-size", "max-size");
     private final FileClientService fileClientService;
 
     public CommandLineApp(FileClientService fileClientService) {
@@ -42,7 +49,7 @@ public class CommandLineApp implements CommandLineRunner {
                         printUsage();
                         return;
                     }
-                    uploadFile(args[1], args[2]);
+                    uploadFile(args[1], args[2], parseOptions(args, 3));
                     break;
                 case "download":
                     if (args.length < 3) {
@@ -50,7 +57,7 @@ public class CommandLineApp implements CommandLineRunner {
                         printUsage();
                         return;
                     }
-                    downloadFile(args[1], args[2]);
+                    downloadFile(args[1], args[2], parseOptions(args, 3));
                     break;
                 case "list":
                     if (args.length < 2) {
@@ -58,7 +65,39 @@ public class CommandLineApp implements CommandLineRunner {
                         printUsage();
                         return;
                     }
-                    listFiles(args[1]);
+                    listFiles(args[1], parseOptions(args, 2));
+                    break;
+                case "tree":
+                    if (args.length < 2) {
+                        System.out.println("Error: Missing arguments for tree command");
+                        printUsage();
+                        return;
+                    }
+                    listTree(args[1], parseOptions(args, 2));
+                    break;
+                case "search":
+                    if (args.length < 2) {
+                        System.out.println("Error: Missing arguments for search command");
+                        printUsage();
+                        return;
+                    }
+                    searchFiles(args[1], parseOptions(args, 2));
+                    break;
+                case "du":
+                    if (args.length < 2) {
+                        System.out.println("Error: Missing arguments for du command");
+                        printUsage();
+                        return;
+                    }
+                    showUsage(args[1]);
+                    break;
+                case "watch":
+                    if (args.length < 2) {
+                        System.out.println("Error: Missing arguments for watch command");
+                        printUsage();
+                        return;
+                    }
+                    watchChanges(args[1], parseOptions(args, 2));
                     break;
                 default:
                     System.out.println("Error: Unknown command: " + command);
@@ -70,30 +109,44 @@ public class CommandLineApp implements CommandLineRunner {
         }
     }
 
-    private void uploadFile(String filePath, String targetDirectory) throws IOException {
+    private void uploadFile(String filePath, String targetDirectory, Map<String, String> options) throws IOException {
         System.out.println("Uploading file: " + filePath + " to directory: " + targetDirectory);
-        String result = fileClientService.uploadFile(filePath, targetDirectory);
+        String result;
+        if (options.containsKey("parallel") || options.containsKey("chunk-size")) {
+            int parallel = Integer.parseInt(options.getOrDefault("parallel", "0"));
+            long chunkSize = options.containsKey("chunk-size") ? DataSize.parse(options.get("chunk-size")).toBytes() : 0;
+            result = fileClientService.uploadFileParallel(filePath, targetDirectory, parallel, chunkSize);
+        } else {
+            result = fileClientService.uploadFile(filePath, targetDirectory);
+        }
         System.out.println("Upload result: " + result);
     }
 
-    private void downloadFile(String remoteFilePath, String localDirectory) throws IOException {
+    private void downloadFile(String remoteFilePath, String localDirectory, Map<String, String> options)
+            throws IOException {
         System.out.println("Downloading file from: " + remoteFilePath + " to directory: " + localDirectory);
-        Path savedPath = fileClientService.downloadFile(remoteFilePath, localDirectory);
+        Path savedPath;
+        if (options.containsKey("segments") || options.containsKey("concurrency")) {
+            int segments = Integer.parseInt(options.getOrDefault("segments", "0"));
+            int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "0"));
+            savedPath = fileClientService.downloadFileSegmented(remoteFilePath, localDirectory, segments, concurrency);
+        } else {
+            savedPath = fileClientService.downloadFile(remoteFilePath, localDirectory);
+        }
         System.out.println("File downloaded to: " + savedPath);
     }
 
-    private void listFiles(String directory) throws IOException {
+    private void listFiles(String directory, Map<String, String> options) throws IOException {
         System.out.println("Listing files in directory: " + directory);
-        List<FileInfo> files = fileClientService.listFiles(directory);
-        
+        int pageSize = Integer.parseInt(options.getOrDefault("page-size", "0"));
+
         System.out.println("Files in directory: " + directory);
         System.out.println("------------------------------------------------------");
         System.out.printf("%-30s %-10s %-10s %-20s%n", "Name", "Type", "Size (B)", "Last Modified");
         System.out.println("------------------------------------------------------");
         
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        
-        for (FileInfo file : files) {
+        Consumer<FileInfo> printer = file -> {
             String type = file.directory() ? "Directory" : "File";
             String size = file.directory() ? "-" : String.valueOf(file.size());
             String lastModified = file.lastModified() > 0 ? 
@@ -101,17 +154,128 @@ public class CommandLineApp implements CommandLineRunner {
             
             System.out.printf("%-30s %-10s %-10s %-20s%n", 
                     file.name(), type, size, lastModified);
+        };
+
+        long total;
+        if (QUERY_OPTIONS.stream().anyMatch(options::containsKey)) {
+            // Sorted, filtered and limited by the server, which only sends the selected entries
+            List<FileInfo> files = fileClientService.queryFiles(directory, options.get("sort"), options.get("order"),
+                    options.containsKey("limit") ? Integer.valueOf(options.get("limit")) : null,
+                    options.get("include"), options.get("exclude"), parseSize(options.get("min-size")),
+                    parseSize(options.get("max-size")));
+            files.forEach(printer);
+            total = files.size();
+        } else {
+            // Entries are printed as they arrive, page by page
+            total = fileClientService.streamFiles(directory, pageSize, printer);
         }
         
+        System.out.println("------------------------------------------------------");
+        System.out.println("Total: " + total + " items");
+    }
+
+    private void listTree(String directory, Map<String, String> options) throws IOException {
+        System.out.println("Listing tree below directory: " + directory);
+        Integer maxDepth = options.containsKey("max-depth") ? Integer.valueOf(options.get("max-depth")) : null;
+
+        System.out.println("------------------------------------------------------");
+        System.out.printf("%-50s %-10s %-10s%n", "Path", "Type", "Size (B)");
+        System.out.println("------------------------------------------------------");
+
+        long total = fileClientService.listTree(directory, maxDepth, options.get("include"), options.get("exclude"),
+                file -> System.out.printf("%-50s %-10s %-10s%n", file.name(),
+                        file.directory() ? "Directory" : "File", file.directory() ? "-" : String.valueOf(file.size())));
+
+        System.out.println("------------------------------------------------------");
+        System.out.println("Total: " + total + " items");
+    }
+
+    private void searchFiles(String query, Map<String, String> options) {
+        System.out.println("Searching files: " + query);
+        int limit = Integer.parseInt(options.getOrDefault("limit", "100"));
+        List<FileInfo> files = fileClientService.searchFiles(query, options.getOrDefault("type", "substring"), limit);
+
+        System.out.println("------------------------------------------------------");
+        System.out.printf("%-60s %-10s %-10s%n", "Path", "Type", "Size (B)");
+        System.out.println("------------------------------------------------------");
+        for (FileInfo file : files) {
+            System.out.printf("%-60s %-10s %-10s%n", file.name(),
+                    file.directory() ? "Directory" : "File", file.directory() ? "-" : String.valueOf(file.size()));
+        }
         System.out.println("------------------------------------------------------");
         System.out.println("Total: " + files.size() + " items");
     }
 
+    private void showUsage(String directory) throws IOException {
+        System.out.println("Getting usage of directory: " + directory);
+        DirectoryUsage usage = fileClientService.getUsage(directory);
+
+        System.out.println("------------------------------------------------------");
+        System.out.printf("%-40s %-10s %-15s%n", "Largest children", "Type", "Size (B)");
+        System.out.println("------------------------------------------------------");
+        for (FileInfo child : usage.largestChildren()) {
+            System.out.printf("%-40s %-10s %-15s%n", child.name(), child.directory() ? "Directory" : "File", child.size());
+        }
+        System.out.println("------------------------------------------------------");
+        System.out.println("Total: " + usage.size() + " bytes in " + usage.fileCount() + " files and "
+                + usage.directoryCount() + " directories");
+    }
+
+    private void watchChanges(String directory, Map<String, String> options) throws IOException {
+        System.out.println("Watching directory: " + directory);
+        Long after = options.containsKey("after") ? Long.valueOf(options.get("after")) : null;
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+        // Runs until interrupted or the directory can no longer be watched
+        fileClientService.watchChanges(directory, after, event -> {
+            System.out.printf("%-20s %-20s %-8s %s%n", event.sequence(), dateFormat.format(new Date(event.timestamp())),
+                    event.type(), event.name() != null ? event.name() : "(list the directory again)");
+            return true;
+        });
+    }
+
+    private static Long parseSize(String size) {
+        return size != null ? DataSize.parse(size).toBytes() : null;
+    }
+
+    private static Map<String, String> parseOptions(String[] args, int from) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Invalid option: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
     private void printUsage() {
         System.out.println("Usage: control-client <command> [args]");
         System.out.println("Commands:");
         System.out.println("  upload <filePath> <targetDirectory>  - Upload a file to the specified directory");
+        System.out.println("      [--parallel <n>]                 - Upload <n> byte ranges concurrently");
+        System.out.println("      [--chunk-size <size>]            - Size of each range, e.g. 8MB");
         System.out.println("  download <filePath> <localDirectory> - Download a file from the specified path");
+        System.out.println("      [--segments <n>]                 - Split the file into <n> byte ranges (resumable)");
+        System.out.println("      [--concurrency <n>]              - Download <n> ranges at the same time");
         System.out.println("  list <directory>                     - List all files in the specified directory");
+        System.out.println("      [--page-size <n>]                - Entries fetched per request");
+        System.out.println("      [--sort <key>]                   - Sort by name, size or lastModified on the server");
+        System.out.println("      [--order <asc|desc>]             - Sort direction (default asc)");
+        System.out.println("      [--limit <n>]                    - Only list the first <n> entries");
+        System.out.println("      [--include <glob>]               - Only list entries matching <glob>");
+        System.out.println("      [--exclude <glob>]               - Skip entries matching <glob>");
+        System.out.println("      [--min-size <size>]              - Only list entries of at least <size>, e.g. 10MB");
+        System.out.println("      [--max-size <size>]              - Only list entries of at most <size>");
+        System.out.println("  tree <directory>                     - List every level below the specified directory");
+        System.out.println("      [--max-depth <n>]                - Only list <n> levels");
+        System.out.println("      [--include <glob>]               - Only list entries matching <glob>, e.g. *.log");
+        System.out.println("      [--exclude <glob>]               - Skip entries and directories matching <glob>");
+        System.out.println("  search <query>                       - Search file names in every allowed directory");
+        System.out.println("      [--type <type>]                  - prefix, substring (default) or glob");
+        System.out.println("      [--limit <n>]                    - Return at most <n> files (default 100)");
+        System.out.println("  du <directory>                       - Show the disk usage of the specified directory tree");
+        System.out.println("  watch <directory>                    - Print changes to the specified directory as they happen");
+        System.out.println("      [--after <n>]                    - Resume after the event with sequence number <n>");
     }
 }
\ No newline at end of file
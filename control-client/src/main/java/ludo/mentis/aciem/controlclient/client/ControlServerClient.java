@@ -1,12 +1,23 @@
 package ludo.mentis.aciem.controlclient.client;
 
+import feign.Response;
+import ludo.mentis.aciem.controlclient.model.DirectoryUsage;
 import ludo.mentis.aciem.controlclient.model.FileInfo;
+import ludo.mentis.aciem.controlclient.model.UploadSession;
+import ludo.mentis.aciem.controlclient.util.BinaryListing;
 import org.springframework.cloud.openfeign.FeignClient;
-import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.multipart.MultipartFile;
@@ -32,20 +43,186 @@ public interface ControlServerClient {
             @RequestParam("directory") String directory);
 
     /**
-     * Download a file from the specified path
+     * Create a resumable upload session
+     *
+     * @param directory The directory to upload to
+     * @param fileName The name of the file being uploaded
+     * @param size The total size of the file
+     * @return The new session
+     */
+    @PostMapping("/api/files/sessions")
+    ResponseEntity<UploadSession> createUploadSession(
+            @RequestParam("directory") String directory,
+            @RequestParam("fileName") String fileName,
+            @RequestParam("size") long size);
+
+    /**
+     * Write a chunk of a file at an explicit offset
+     *
+     * @param sessionId The session id
+     * @param offset The position of the first byte of the chunk in the file
+     * @param content The chunk content
+     * @return The session, including the byte ranges received so far
+     */
+    @PutMapping(value = "/api/files/sessions/{sessionId}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    ResponseEntity<UploadSession> uploadChunk(
+            @PathVariable("sessionId") String sessionId,
+            @RequestParam("offset") long offset,
+            @RequestBody byte[] content);
+
+    /**
+     * Commit an upload session once every byte has been received
+     *
+     * @param sessionId The session id
+     * @return Response with the path where the file was saved
+     */
+    @PostMapping("/api/files/sessions/{sessionId}/commit")
+    ResponseEntity<String> commitUploadSession(@PathVariable("sessionId") String sessionId);
+
+    /**
+     * Abort an upload session
+     *
+     * @param sessionId The session id
+     */
+    @DeleteMapping("/api/files/sessions/{sessionId}")
+    ResponseEntity<Void> abortUploadSession(@PathVariable("sessionId") String sessionId);
+
+    /**
+     * Download a file from the specified path. The body is not buffered and must be read and closed by the caller.
      *
      * @param filePath The path of the file to download
-     * @return The file as a downloadable resource
+     * @param ifNoneMatch The ETag of a local copy to revalidate, or null
+     * @return The raw response, streaming the file content, or 304 if the local copy is current
      */
     @GetMapping("/api/files/download")
-    ResponseEntity<Resource> downloadFile(@RequestParam("filePath") String filePath);
+    Response downloadFile(
+            @RequestParam("filePath") String filePath,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
+
+    /**
+     * Get the headers of a download without its content
+     *
+     * @param filePath The path of the file to download
+     * @return Response with the Content-Length, ETag, Last-Modified and Content-Disposition headers
+     */
+    @RequestMapping(method = RequestMethod.HEAD, value = "/api/files/download")
+    ResponseEntity<Void> getDownloadInfo(@RequestParam("filePath") String filePath);
 
     /**
-     * List all files in the specified directory
+     * Download a byte range of a file. The body is not buffered and must be read and closed by the caller.
+     *
+     * @param filePath The path of the file to download
+     * @param range The Range header, e.g. "bytes=0-1023"
+     * @param ifRange The Last-Modified value the range must match, or null
+     * @return The raw response, 206 with the range or 200 with the whole file if it changed
+     */
+    @GetMapping("/api/files/download")
+    Response downloadRange(
+            @RequestParam("filePath") String filePath,
+            @RequestHeader(HttpHeaders.RANGE) String range,
+            @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange);
+
+    /**
+     * List the entries of a directory selected, sorted and limited on the server
      *
      * @param directory The directory to list files from
-     * @return A list of file information
+     * @param sort The attribute entries are sorted by: name, size or lastModified; null for name
+     * @param order asc or desc; null for asc
+     * @param limit The maximum number of entries, or null for all of them
+     * @param include A glob pattern names must match, or null
+     * @param exclude A glob pattern names must not match, or null
+     * @param minSize The minimum size in bytes, or null
+     * @param maxSize The maximum size in bytes, or null
+     * @return The selected entries in sort order
      */
     @GetMapping("/api/files/list")
-    ResponseEntity<List<FileInfo>> listFiles(@RequestParam("directory") String directory);
-}
\ No newline at end of file
+    ResponseEntity<List<FileInfo>> queryFiles(
+            @RequestParam("directory") String directory,
+            @RequestParam(value = "sort", required = false) String sort,
+            @RequestParam(value = "order", required = false) String order,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "include", required = false) String include,
+            @RequestParam(value = "exclude", required = false) String exclude,
+            @RequestParam(value = "minSize", required = false) Long minSize,
+            @RequestParam(value = "maxSize", required = false) Long maxSize);
+
+    /**
+     * List all files in the specified directory. The body is not buffered and must be read and closed by the caller.
+     *
+     * @param directory The directory to list files from
+     * @param ifNoneMatch The ETag of a cached listing to revalidate, or null
+     * @return The raw response, with a binary listing, or 304 if the cached listing is current
+     */
+    @GetMapping(value = "/api/files/list", produces = BinaryListing.MEDIA_TYPE)
+    Response listFiles(
+            @RequestParam("directory") String directory,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
+
+    /**
+     * List the files in the specified directory one page at a time. The body is not buffered and must be
+     * read and closed by the caller, so entries can be parsed as they arrive.
+     *
+     * @param directory The directory to list files from
+     * @param limit The maximum number of entries in the page
+     * @param cursor The nextCursor of the previous page, or null for the first page
+     * @return The raw response, with a JSON object holding the files and the cursor of the next page
+     */
+    @GetMapping("/api/files/list/stream")
+    Response streamFiles(
+            @RequestParam("directory") String directory,
+            @RequestParam("limit") int limit,
+            @RequestParam(value = "cursor", required = false) String cursor);
+
+    /**
+     * List the tree below a directory. The body is not buffered and must be read and closed by the caller,
+     * so entries can be parsed as they arrive.
+     *
+     * @param directory The directory to list
+     * @param maxDepth How many levels to list, or null for all of them
+     * @param include A glob pattern entries must match, or null
+     * @param exclude A glob pattern entries and the directories descended into must not match, or null
+     * @return The raw response, with a binary listing of file information named by relative path
+     */
+    @GetMapping(value = "/api/files/tree", produces = BinaryListing.MEDIA_TYPE)
+    Response listTree(
+            @RequestParam("directory") String directory,
+            @RequestParam(value = "maxDepth", required = false) Integer maxDepth,
+            @RequestParam(value = "include", required = false) String include,
+            @RequestParam(value = "exclude", required = false) String exclude);
+
+    /**
+     * Search the filename index of every allowed directory
+     *
+     * @param query The text to look for, or a glob pattern
+     * @param type How the query is matched: prefix, substring or glob
+     * @param limit The maximum number of files returned
+     * @return The matching files, named by their full path
+     */
+    @GetMapping("/api/files/search")
+    ResponseEntity<List<FileInfo>> searchFiles(
+            @RequestParam("query") String query,
+            @RequestParam("type") String type,
+            @RequestParam("limit") int limit);
+
+    /**
+     * Get the disk usage of the tree below a directory
+     *
+     * @param directory The directory to measure
+     * @return The total size and counts of the tree, and its largest children
+     */
+    @GetMapping("/api/files/usage")
+    ResponseEntity<DirectoryUsage> getUsage(@RequestParam("directory") String directory);
+
+    /**
+     * Stream the changes to the children of a directory as server-sent events. The body is not buffered and
+     * must be read and closed by the caller; it stays open while the directory is watched.
+     *
+     * @param directory The directory to watch
+     * @param lastEventId The sequence number of the last event received, or null for new events only
+     * @return The raw response, with a text/event-stream of change events
+     */
+    @GetMapping(value = "/api/files/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    Response streamChanges(
+            @RequestParam("directory") String directory,
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId);
+}
@@ -0,0 +1,8 @@
+package ludo.mentis.aciem.controlclient.model;
+
+/**
+ * Class to represent a range of bytes, from start (inclusive) to end (exclusive)
+ * This is a mirror of the ByteRange class in the control-server
+ */
+public record ByteRange(long start, long end) {
+}
@@ -0,0 +1,8 @@
+package ludo.mentis.aciem.controlclient.model;
+
+/**
+ * Record to represent a change to the children of a watched directory
+ * This is a mirror of the ChangeEvent record in the control-server
+ */
+public record ChangeEvent(long sequence, String type, String name, long timestamp) {
+}
@@ -0,0 +1,11 @@
+package ludo.mentis.aciem.controlclient.model;
+
+import java.util.List;
+
+/**
+ * Record to represent the disk usage of a directory tree
+ * This is a mirror of the DirectoryUsage record in the control-server
+ */
+public record DirectoryUsage(String directory, long size, long fileCount, long directoryCount,
+                             List<FileInfo> largestChildren) {
+}
@@ -0,0 +1,11 @@
+package ludo.mentis.aciem.controlclient.model;
+
+import java.util.List;
+
+/**
+ * Class to represent the state of a resumable upload session
+ * This is a mirror of the UploadSession class in the control-server
+ */
+public record UploadSession(String id, String directory, String fileName, long size,
+                            List<ByteRange> receivedRanges, long receivedBytes) {
+}
@@ -1,24 +1,62 @@
 package ludo.mentis.aciem.controlclient.service;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import ludo.mentis.aciem.controlclient.client.ControlServerClient;
+import feign.FeignException;
+import feign.Response;
+import ludo.mentis.aciem.controlclient.model.ChangeEvent;
+import ludo.mentis.aciem.controlclient.model.DirectoryUsage;
 import ludo.mentis.aciem.controlclient.model.FileInfo;
+import ludo.mentis.aciem.controlclient.model.UploadSession;
+import ludo.mentis.aciem.controlclient.util.BinaryListing;
+import ludo.mentis.aciem.controlclient.util.DownloadCheckpoint;
 import ludo.mentis.aciem.controlclient.util.FileMultipartFile;
+import ludo.mentis.aciem.controlclient.util.ValidatorStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.io.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * Service for handling file operations with the control-server
@@ -27,14 +65,42 @@ import java.util.List;
 public class FileClientService {
 
     private static final Logger logger = LoggerFactory.getLogger(FileClientService.class);
+    private static final int MAX_RANGE_ATTEMPTS = 3;
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+    private static final long CHECKPOINT_INTERVAL = 4L * 1024 * 1024;
+    private static final String PART_SUFFIX = ".part";
+    private static final String CHECKPOINT_SUFFIX = ".part.checkpoint";
+    private static final String DOWNLOAD_SUFFIX = ".download";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final TypeReference<List<FileInfo>> FILE_LIST = new TypeReference<>() {
+    };
     private final ControlServerClient controlServerClient;
+    private final ValidatorStore validatorStore;
+    private final int uploadConcurrency;
+    private final DataSize uploadChunkSize;
+    private final int downloadSegments;
+    private final int downloadConcurrency;
+    private final int listPageSize;
 
-    public FileClientService(ControlServerClient controlServerClient) {
+    public FileClientService(ControlServerClient controlServerClient,
+                             ValidatorStore validatorStore,
+                             @Value("${upload.parallel.concurrency:4}") int uploadConcurrency,
+                             @Value("${upload.parallel.chunk-size:8MB}") DataSize uploadChunkSize,
+                             @Value("${download.segmented.segments:4}") int downloadSegments,
+                             @Value("${download.segmented.concurrency:4}") int downloadConcurrency,
+                             @Value("${list.page-size:1000}") int listPageSize) {
         this.controlServerClient = controlServerClient;
+        this.validatorStore = validatorStore;
+        this.uploadConcurrency = uploadConcurrency;
+        this.uploadChunkSize = uploadChunkSize;
+        this.downloadSegments = downloadSegments;
+        this.downloadConcurrency = downloadConcurrency;
+        this.listPageSize = listPageSize;
     }
 
     /**
-     * Upload a file to the specified directory
+     * Upload a file to the specified directory. Feign encodes a multipart request into a byte array, so
+     * files larger than one chunk are sent through an upload session instead, keeping memory use bounded.
      *
      * @param filePath The path of the file to upload
      * @param targetDirectory The directory to upload to
@@ -49,15 +115,78 @@ public class FileClientService {
             throw new IOException("File does not exist: " + filePath);
         }
 
+        if (Files.size(path) > uploadChunkSize.toBytes()) {
+            return uploadFileParallel(filePath, targetDirectory, 0, 0);
+        }
+
         // Create a MultipartFile from the file
-        MultipartFile multipartFile = new FileMultipartFile(path);
+        MultipartFile multipartFile = new FileMultipartFile(path, uploadChunkSize.toBytes());
 
         ResponseEntity<String> response = controlServerClient.uploadFile(multipartFile, targetDirectory);
         return response.getBody();
     }
 
     /**
-     * Download a file from the specified path
+     * Upload a file as byte ranges sent concurrently through a resumable upload session.
+     * At most concurrency * chunkSize bytes of the file are held in memory at any time.
+     *
+     * @param filePath The path of the file to upload
+     * @param targetDirectory The directory to upload to
+     * @param concurrency The number of ranges uploaded at the same time, or 0 for the configured default
+     * @param chunkSize The size of each range in bytes, or 0 for the configured default
+     * @return Response message from the server
+     * @throws IOException If an I/O error occurs
+     */
+    public String uploadFileParallel(String filePath, String targetDirectory, int concurrency, long chunkSize)
+            throws IOException {
+        Path path = Paths.get(filePath);
+        if (!Files.exists(path)) {
+            throw new IOException("File does not exist: " + filePath);
+        }
+
+        int workers = concurrency > 0 ? concurrency : uploadConcurrency;
+        long rangeSize = chunkSize > 0 ? chunkSize : uploadChunkSize.toBytes();
+        if (rangeSize > Integer.MAX_VALUE - 8) {
+            throw new IOException("Chunk size is too large: " + rangeSize);
+        }
+
+        long size = Files.size(path);
+        logger.info("Uploading file {} ({} bytes) to directory {} with {} streams of {} bytes",
+                filePath, size, targetDirectory, workers, rangeSize);
+
+        UploadSession session = controlServerClient
+                .createUploadSession(targetDirectory, path.getFileName().toString(), size).getBody();
+        if (session == null) {
+            throw new IOException("Failed to upload file: Upload session is null");
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<Future<?>> ranges = new ArrayList<>();
+            for (long offset = 0; offset < size; offset += rangeSize) {
+                long start = offset;
+                int length = (int) Math.min(rangeSize, size - offset);
+                ranges.add(pool.submit(() -> {
+                    uploadRange(channel, session.id(), start, length);
+                    return null;
+                }));
+            }
+            awaitAll(ranges);
+        } catch (IOException e) {
+            abortQuietly(session.id());
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+
+        ResponseEntity<String> response = controlServerClient.commitUploadSession(session.id());
+        return response.getBody();
+    }
+
+    /**
+     * Download a file from the specified path, streaming the response body to disk through a fixed-size buffer.
+     * If the file was downloaded to the same directory before and the local copy is untouched, it is revalidated
+     * with its ETag and only transferred again when the remote file changed.
      *
      * @param remoteFilePath The path of the file on the server
      * @param localDirectory The local directory to save the file to
@@ -67,22 +196,127 @@ public class FileClientService {
     public Path downloadFile(String remoteFilePath, String localDirectory) throws IOException {
         logger.info("Downloading file from path: {} to directory: {}", remoteFilePath, localDirectory);
 
-        ResponseEntity<Resource> response = controlServerClient.downloadFile(remoteFilePath);
-        Resource resource = response.getBody();
+        Path directory = Paths.get(localDirectory).toAbsolutePath().normalize();
+        ValidatorStore.DownloadValidator cached = validatorStore.download(remoteFilePath);
+        if (cached != null && !directory.equals(cached.localFile().getParent())) {
+            cached = null;
+        }
+
+        try (Response response = controlServerClient.downloadFile(remoteFilePath, cached != null ? cached.etag() : null)) {
+            if (cached != null && response.status() == HttpStatus.NOT_MODIFIED.value()) {
+                logger.info("Local copy {} is up to date", cached.localFile());
+                return cached.localFile();
+            }
+            if (response.status() != HttpStatus.OK.value()) {
+                throw new IOException("Failed to download file: Unexpected status " + response.status());
+            }
+            if (response.body() == null) {
+                throw new IOException("Failed to download file: Response body is null");
+            }
+
+            String filename = firstHeader(response, HttpHeaders.CONTENT_DISPOSITION)
+                    .map(header -> ContentDisposition.parse(header).getFilename())
+                    .orElseThrow(() -> new IOException("Failed to download file: Server did not report the file name"));
+
+            Path targetPath = directory.resolve(filename);
+            Files.createDirectories(targetPath.getParent());
+            if (cached != null && cached.localFile().equals(targetPath)) {
+                // The remote file changed: replace the earlier download, which stays intact until the new one is complete
+                Path tempPath = targetPath.resolveSibling(filename + DOWNLOAD_SUFFIX);
+                writeBody(response, tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                Files.move(tempPath, targetPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                writeBody(response, targetPath, StandardOpenOption.CREATE_NEW);
+            }
+
+            // Only strong validators identify the content, so weak or missing ones are not kept
+            Optional<String> etag = firstHeader(response, HttpHeaders.ETAG).filter(value -> value.startsWith("\""));
+            if (etag.isPresent()) {
+                validatorStore.putDownload(remoteFilePath, etag.get(), targetPath);
+            }
+            return targetPath;
+        }
+    }
 
-        if (resource == null) {
-            throw new IOException("Failed to download file: Resource is null");
+    /**
+     * Download a file as byte ranges fetched concurrently into a preallocated partial file.
+     * Progress is checkpointed next to the partial file, so running the same download again after a
+     * failure only fetches the bytes that are still missing.
+     *
+     * @param remoteFilePath The path of the file on the server
+     * @param localDirectory The local directory to save the file to
+     * @param segments The number of byte ranges the file is split into, or 0 for the configured default
+     * @param concurrency The number of ranges downloaded at the same time, or 0 for the configured default
+     * @return The path where the file was saved
+     * @throws IOException If an I/O error occurs
+     */
+    public Path downloadFileSegmented(String remoteFilePath, String localDirectory, int segments, int concurrency)
+            throws IOException {
+        ResponseEntity<Void> info = controlServerClient.getDownloadInfo(remoteFilePath);
+        long size = info.getHeaders().getContentLength();
+        if (size < 0) {
+            throw new IOException("Failed to download file: Server did not report the file size");
+        }
+        // Last-Modified has a one-second resolution, so it only stands in for files the server has not hashed yet
+        String etag = info.getHeaders().getETag();
+        String validator = etag != null && etag.startsWith("\"") ? etag
+                : info.getHeaders().getFirst(HttpHeaders.LAST_MODIFIED);
+        String filename = info.getHeaders().getContentDisposition().getFilename();
+        if (filename == null) {
+            throw new IOException("Failed to download file: Server did not report the file name");
         }
 
-        Path targetPath = Paths.get(localDirectory).resolve(resource.getFilename());
+        Path targetPath = Paths.get(localDirectory).resolve(filename);
+        if (Files.exists(targetPath)) {
+            throw new FileAlreadyExistsException(targetPath.toString());
+        }
         Files.createDirectories(targetPath.getParent());
-        Files.copy(resource.getInputStream(), targetPath);
+        Path partPath = targetPath.resolveSibling(filename + PART_SUFFIX);
+        Path checkpointPath = targetPath.resolveSibling(filename + CHECKPOINT_SUFFIX);
 
+        int segmentCount = (int) Math.max(1, Math.min(segments > 0 ? segments : downloadSegments, size));
+        int workers = Math.min(segmentCount, concurrency > 0 ? concurrency : downloadConcurrency);
+        long segmentSize = (size + segmentCount - 1) / segmentCount;
+
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.open(checkpointPath, remoteFilePath, size, validator, segmentCount);
+        if (!checkpoint.resumed() || !Files.exists(partPath)) {
+            Files.deleteIfExists(partPath);
+            try (RandomAccessFile part = new RandomAccessFile(partPath.toFile(), "rw")) {
+                part.setLength(size);
+            }
+        }
+        logger.info("Downloading {} ({} bytes) to {} as {} segments with {} streams{}",
+                remoteFilePath, size, targetPath, segmentCount, workers, checkpoint.resumed() ? ", resuming" : "");
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try (FileChannel channel = FileChannel.open(partPath, StandardOpenOption.WRITE)) {
+            List<Future<?>> downloads = new ArrayList<>();
+            for (int index = 0; index < segmentCount; index++) {
+                int segment = index;
+                long start = Math.min(size, segment * segmentSize);
+                long end = Math.min(size, start + segmentSize);
+                downloads.add(pool.submit(() -> {
+                    downloadSegment(remoteFilePath, validator, channel, checkpoint, segment, start, end);
+                    return null;
+                }));
+            }
+            awaitAll(downloads);
+            channel.force(true);
+        } catch (IOException e) {
+            checkpoint.close();
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Files.move(partPath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+        checkpoint.delete();
         return targetPath;
     }
 
     /**
-     * List all files in the specified directory
+     * List all files in the specified directory, requested as a compact binary listing. A listing fetched
+     * before is revalidated with its ETag and reused when the directory has not changed.
      *
      * @param directory The directory to list files from
      * @return A list of file information
@@ -91,13 +325,415 @@ public class FileClientService {
     public List<FileInfo> listFiles(String directory) throws IOException {
         logger.info("Listing files in directory: {}", directory);
 
-        ResponseEntity<List<FileInfo>> response = controlServerClient.listFiles(directory);
-        List<FileInfo> files = response.getBody();
+        ValidatorStore.CachedListing cached = validatorStore.listing(directory);
+        try (Response response = controlServerClient.listFiles(directory, cached != null ? cached.etag() : null)) {
+            if (cached != null && response.status() == HttpStatus.NOT_MODIFIED.value()) {
+                logger.debug("Listing of {} is up to date", directory);
+                return readListing(cached.body());
+            }
+            if (response.status() != HttpStatus.OK.value()) {
+                throw new IOException("Failed to list files: Unexpected status " + response.status());
+            }
+            if (response.body() == null) {
+                throw new IOException("Failed to list files: Response body is null");
+            }
+
+            byte[] body;
+            try (InputStream in = response.body().asInputStream()) {
+                body = in.readAllBytes();
+            }
+            List<FileInfo> files = readListing(body);
 
-        if (files == null) {
-            throw new IOException("Failed to list files: Response body is null");
+            Optional<String> etag = firstHeader(response, HttpHeaders.ETAG);
+            if (etag.isPresent()) {
+                validatorStore.putListing(directory, etag.get(), body);
+            }
+            return files;
         }
+    }
 
-        return files;
+    /**
+     * List the files in the specified directory page by page, passing each entry to the consumer as soon as
+     * it is parsed from the response, so no page is ever held in memory as a whole
+     *
+     * @param directory The directory to list files from
+     * @param pageSize The number of entries requested per page, or 0 for the configured default
+     * @param consumer Receives the entries
+     * @return The number of entries listed
+     * @throws IOException If an I/O error occurs or a response is malformed
+     */
+    public long streamFiles(String directory, int pageSize, Consumer<FileInfo> consumer) throws IOException {
+        logger.info("Streaming files in directory: {}", directory);
+
+        int limit = pageSize > 0 ? pageSize : listPageSize;
+        long count = 0;
+        String cursor = null;
+        do {
+            try (Response response = controlServerClient.streamFiles(directory, limit, cursor)) {
+                if (response.status() != HttpStatus.OK.value()) {
+                    throw new IOException("Failed to list files: Unexpected status " + response.status());
+                }
+                if (response.body() == null) {
+                    throw new IOException("Failed to list files: Response body is null");
+                }
+
+                cursor = null;
+                try (JsonParser parser = OBJECT_MAPPER.createParser(response.body().asInputStream())) {
+                    if (parser.nextToken() != JsonToken.START_OBJECT) {
+                        throw new IOException("Failed to list files: Malformed listing");
+                    }
+                    JsonToken token;
+                    while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                        String field = parser.currentName();
+                        parser.nextToken();
+                        if ("files".equals(field)) {
+                            count += readFiles(parser, consumer);
+                        } else if ("nextCursor".equals(field)) {
+                            cursor = parser.getValueAsString();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    // A listing cut short by a server failure is not closed, so it must not pass as complete
+                    if (token != JsonToken.END_OBJECT) {
+                        throw new IOException("Failed to list files: Listing ended prematurely");
+                    }
+                }
+            }
+        } while (cursor != null);
+        return count;
+    }
+
+    /**
+     * List the tree below a directory in a single request, passing each entry to the consumer as soon as it
+     * is decoded from the response. The tree is requested as a binary listing; JSON is still understood.
+     *
+     * @param directory The directory to list
+     * @param maxDepth How many levels to list, or null for all of them
+     * @param include A glob pattern entries must match, or null
+     * @param exclude A glob pattern entries must not match, or null
+     * @param consumer Receives the entries, named by their path relative to the directory
+     * @return The number of entries listed
+     * @throws IOException If an I/O error occurs or the response is malformed
+     */
+    public long listTree(String directory, Integer maxDepth, String include, String exclude,
+                         Consumer<FileInfo> consumer) throws IOException {
+        logger.info("Listing tree below directory: {}", directory);
+
+        try (Response response = controlServerClient.listTree(directory, maxDepth, include, exclude)) {
+            if (response.status() != HttpStatus.OK.value()) {
+                throw new IOException("Failed to list tree: Unexpected status " + response.status());
+            }
+            if (response.body() == null) {
+                throw new IOException("Failed to list tree: Response body is null");
+            }
+
+            boolean binary = firstHeader(response, HttpHeaders.CONTENT_TYPE)
+                    .filter(type -> type.startsWith(BinaryListing.MEDIA_TYPE)).isPresent();
+            if (binary) {
+                try (InputStream in = new BufferedInputStream(response.body().asInputStream())) {
+                    BinaryListing.Reader reader = new BinaryListing.Reader(in);
+                    long count = 0;
+                    FileInfo file;
+                    while ((file = reader.read()) != null) {
+                        consumer.accept(file);
+                        count++;
+                    }
+                    return count;
+                }
+            }
+            try (JsonParser parser = OBJECT_MAPPER.createParser(response.body().asInputStream())) {
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    throw new IOException("Failed to list tree: Malformed listing");
+                }
+                return readFiles(parser, consumer);
+            }
+        }
+    }
+
+    /**
+     * List the entries of a directory selected on the server, e.g. the largest or newest files, so only those
+     * are transferred
+     *
+     * @param directory The directory to list files from
+     * @param sort The attribute entries are sorted by: name, size or lastModified; null for name
+     * @param order asc or desc; null for asc
+     * @param limit The maximum number of entries, or null for all of them
+     * @param include A glob pattern names must match, or null
+     * @param exclude A glob pattern names must not match, or null
+     * @param minSize The minimum size in bytes, or null
+     * @param maxSize The maximum size in bytes, or null
+     * @return The selected entries in sort order
+     */
+    public List<FileInfo> queryFiles(String directory, String sort, String order, Integer limit, String include,
+                                     String exclude, Long minSize, Long maxSize) {
+        logger.info("Listing files in directory {} sorted by {} {}, limit {}", directory, sort, order, limit);
+        ResponseEntity<List<FileInfo>> response = controlServerClient.queryFiles(directory, sort, order, limit,
+                include, exclude, minSize, maxSize);
+        return response.getBody() != null ? response.getBody() : List.of();
+    }
+
+    /**
+     * Search the file names below every allowed directory of the server
+     *
+     * @param query The text to look for, or a glob pattern
+     * @param type How the query is matched: prefix, substring or glob
+     * @param limit The maximum number of files returned
+     * @return The matching files, named by their full path and ordered by name
+     */
+    public List<FileInfo> searchFiles(String query, String type, int limit) {
+        logger.info("Searching files: {} {}", type, query);
+        ResponseEntity<List<FileInfo>> response = controlServerClient.searchFiles(query, type, limit);
+        return response.getBody() != null ? response.getBody() : List.of();
+    }
+
+    /**
+     * Get the disk usage of the tree below a directory on the server
+     *
+     * @param directory The directory to measure
+     * @return The total size and counts of the tree, and its largest children
+     * @throws IOException If the server returns no usage
+     */
+    public DirectoryUsage getUsage(String directory) throws IOException {
+        logger.info("Getting usage of directory: {}", directory);
+        ResponseEntity<DirectoryUsage> response = controlServerClient.getUsage(directory);
+        if (response.getBody() == null) {
+            throw new IOException("Failed to get usage: Empty response");
+        }
+        return response.getBody();
+    }
+
+    /**
+     * Follow the changes to the children of a directory on the server. When the server ends the stream,
+     * which it does after a timeout, the feed is resumed after the last event received, so none are missed.
+     * A RESET event means changes may have been missed and the directory should be listed again.
+     *
+     * @param directory The directory to watch
+     * @param after The sequence number to resume after, or null for new events only
+     * @param consumer Receives each event, and returns false to stop watching
+     * @return The sequence number of the last event received, or after when there was none
+     * @throws IOException If the directory cannot be watched or the stream is malformed
+     */
+    public Long watchChanges(String directory, Long after, Predicate<ChangeEvent> consumer) throws IOException {
+        Long lastSequence = after;
+        while (true) {
+            logger.info("Watching directory {} after {}", directory, lastSequence);
+            try (Response response = controlServerClient.streamChanges(directory,
+                    lastSequence != null ? lastSequence.toString() : null)) {
+                if (response.status() != HttpStatus.OK.value()) {
+                    throw new IOException("Failed to watch directory: Unexpected status " + response.status());
+                }
+                if (response.body() == null) {
+                    throw new IOException("Failed to watch directory: Response body is null");
+                }
+
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(response.body().asInputStream(), StandardCharsets.UTF_8));
+                StringBuilder data = new StringBuilder();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("data:")) {
+                        data.append(line.substring(5).strip());
+                    } else if (line.isEmpty() && !data.isEmpty()) {
+                        // A blank line ends the event; ids and heartbeat comments carry nothing the data does not
+                        ChangeEvent event = OBJECT_MAPPER.readValue(data.toString(), ChangeEvent.class);
+                        data.setLength(0);
+                        lastSequence = event.sequence();
+                        if (!consumer.test(event)) {
+                            return lastSequence;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode a listing body, sent as a binary listing or, by servers that do not offer one, as JSON
+     */
+    private static List<FileInfo> readListing(byte[] body) throws IOException {
+        if (BinaryListing.isListing(body)) {
+            return BinaryListing.read(new ByteArrayInputStream(body));
+        }
+        return OBJECT_MAPPER.readValue(body, FILE_LIST);
+    }
+
+    /**
+     * Read the elements of a JSON array of file information, positioned on its start
+     *
+     * @return The number of elements read
+     * @throws IOException If the array is cut short or malformed
+     */
+    private static long readFiles(JsonParser parser, Consumer<FileInfo> consumer) throws IOException {
+        long count = 0;
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+            consumer.accept(parser.readValueAs(FileInfo.class));
+            count++;
+        }
+        // A listing cut short by a server failure is not closed, so it must not pass as complete
+        if (token != JsonToken.END_ARRAY) {
+            throw new IOException("Listing ended prematurely");
+        }
+        return count;
+    }
+
+    private void uploadRange(FileChannel channel, String sessionId, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) == -1) {
+                throw new IOException("File changed during upload: unexpected end of file at " + offset);
+            }
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                controlServerClient.uploadChunk(sessionId, offset, buffer.array());
+                logger.debug("Uploaded range {}-{}", offset, offset + length);
+                return;
+            } catch (FeignException e) {
+                // Only connection failures and server errors are worth retrying
+                boolean retryable = e.status() < 0 || e.status() >= 500;
+                if (!retryable || attempt >= MAX_RANGE_ATTEMPTS) {
+                    throw new IOException("Failed to upload range " + offset + "-" + (offset + length)
+                            + ": " + e.getMessage(), e);
+                }
+                logger.warn("Upload of range {}-{} failed (attempt {} of {}), retrying",
+                        offset, offset + length, attempt, MAX_RANGE_ATTEMPTS);
+            }
+        }
+    }
+
+    private void downloadSegment(String remoteFilePath, String validator, FileChannel channel,
+                                 DownloadCheckpoint checkpoint, int segment, long start, long end) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            long position = start + checkpoint.progress(segment);
+            if (position >= end) {
+                return;
+            }
+
+            Response response;
+            try {
+                response = controlServerClient.downloadRange(remoteFilePath, "bytes=" + position + "-" + (end - 1), validator);
+            } catch (FeignException e) {
+                // Only connection failures and server errors are worth retrying
+                boolean retryable = e.status() < 0 || e.status() >= 500;
+                if (!retryable || attempt >= MAX_RANGE_ATTEMPTS) {
+                    throw new IOException("Failed to download range " + position + "-" + end + ": " + e.getMessage(), e);
+                }
+                logger.warn("Download of segment {} failed at {} (attempt {} of {}), retrying",
+                        segment, position, attempt, MAX_RANGE_ATTEMPTS);
+                continue;
+            }
+
+            try (response) {
+                if (response.status() != HttpStatus.PARTIAL_CONTENT.value()) {
+                    // A 200 answers a failed If-Range: the file changed since the download started
+                    throw new IOException("Failed to download range " + position + "-" + end + ": Unexpected status "
+                            + response.status() + (response.status() == HttpStatus.OK.value() ? " (remote file changed)" : ""));
+                }
+
+                try {
+                    writeSegment(response.body().asInputStream(), channel, checkpoint, segment, start, position, end);
+                    logger.debug("Downloaded segment {} ({}-{})", segment, start, end);
+                    return;
+                } catch (IOException e) {
+                    // The next attempt resumes from the last checkpoint of the segment
+                    if (attempt >= MAX_RANGE_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    logger.warn("Download of segment {} interrupted at {} (attempt {} of {}), retrying",
+                            segment, position, attempt, MAX_RANGE_ATTEMPTS);
+                }
+            }
+        }
+    }
+
+    private static void writeSegment(InputStream in, FileChannel channel, DownloadCheckpoint checkpoint,
+                                     int segment, long start, long position, long end) throws IOException {
+        byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long checkpointed = position;
+
+        while (position < end) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+            if (read == -1) {
+                break;
+            }
+            byteBuffer.clear().limit(read);
+            while (byteBuffer.hasRemaining()) {
+                position += channel.write(byteBuffer, position);
+            }
+
+            // Data is forced before its progress is recorded, so the checkpoint never runs ahead of the file
+            if (position - checkpointed >= CHECKPOINT_INTERVAL) {
+                channel.force(false);
+                checkpoint.record(segment, position - start);
+                checkpointed = position;
+            }
+        }
+
+        if (position > checkpointed) {
+            channel.force(false);
+            checkpoint.record(segment, position - start);
+        }
+        if (position < end) {
+            throw new IOException("Connection closed at " + position + " of segment " + start + "-" + end);
+        }
+    }
+
+    private static Optional<String> firstHeader(Response response, String name) {
+        return response.headers().getOrDefault(name, List.of()).stream().filter(Objects::nonNull).findFirst();
+    }
+
+    private static void writeBody(Response response, Path path, StandardOpenOption... options) throws IOException {
+        Set<StandardOpenOption> openOptions = EnumSet.of(StandardOpenOption.WRITE, options);
+        try (FileChannel channel = FileChannel.open(path, openOptions)) {
+            try (InputStream in = response.body().asInputStream()) {
+                copy(in, channel);
+            } catch (IOException e) {
+                channel.close();
+                Files.deleteIfExists(path);
+                throw e;
+            }
+        }
+    }
+
+    private static void copy(InputStream in, FileChannel channel) throws IOException {
+        byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            byteBuffer.clear().limit(read);
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer);
+            }
+        }
+    }
+
+    private static void awaitAll(List<Future<?>> futures) throws IOException {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for transfers to complete");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException("Transfer failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+    }
+
+    private void abortQuietly(String sessionId) {
+        try {
+            controlServerClient.abortUploadSession(sessionId);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to abort upload session {}", sessionId, e);
+        }
     }
 }
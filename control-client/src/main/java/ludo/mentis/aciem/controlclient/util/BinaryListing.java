@@ -0,0 +1,181 @@
+package ludo.mentis.aciem.controlclient.util;
+
+import ludo.mentis.aciem.controlclient.model.FileInfo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decoder of the compact binary listings the control-server sends instead of JSON when asked for
+ * {@link #MEDIA_TYPE}. This mirrors the format written by BinaryListing in the control-server:
+ * <pre>
+ * listing   magic "MYCL", version byte, records, end
+ * record    varint length of the body, then the body
+ * body      flags, varint shared prefix length, varint suffix length, suffix bytes,
+ *           varint size unless the size is unknown, zigzag varint gap to the previous modification time
+ * end       varint 0
+ * flags     bit 0 directory, bit 1 size unknown (-1)
+ * </pre>
+ * Bytes a record holds beyond these fields belong to a later version and are skipped.
+ */
+public final class BinaryListing {
+
+    public static final String MEDIA_TYPE = "application/x-mycs-listing";
+
+    private static final byte[] MAGIC = {'M', 'Y', 'C', 'L'};
+    private static final int VERSION = 1;
+    private static final int DIRECTORY = 1;
+    private static final int SIZE_UNKNOWN = 2;
+    private static final int MAX_RECORD_BYTES = 1 << 16;
+
+    private BinaryListing() {
+    }
+
+    /**
+     * @param body A response body
+     * @return Whether the body starts like a binary listing, rather than JSON
+     */
+    public static boolean isListing(byte[] body) {
+        return body.length >= MAGIC.length && Arrays.equals(body, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /**
+     * Decode a listing
+     *
+     * @param in The stream the listing is read from; it is not closed
+     * @return The entries
+     * @throws IOException If the stream fails, the listing is malformed or it was cut off
+     */
+    public static List<FileInfo> read(InputStream in) throws IOException {
+        Reader reader = new Reader(in);
+        List<FileInfo> files = new ArrayList<>();
+        FileInfo file;
+        while ((file = reader.read()) != null) {
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Decodes the entries of a listing one at a time, so they can be used as they arrive
+     */
+    public static final class Reader {
+        private final InputStream in;
+        private byte[] previousName = new byte[0];
+        private long previousModified;
+        private boolean finished;
+
+        /**
+         * Read the header of a listing
+         *
+         * @param in The stream the listing is read from; buffer it, as records are read in small pieces
+         * @throws IOException If the stream fails or does not hold a listing
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = in;
+            byte[] header = in.readNBytes(MAGIC.length + 1);
+            if (header.length < MAGIC.length + 1 || !Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+                throw new IOException("Not a binary listing");
+            }
+            if (header[MAGIC.length] != VERSION) {
+                throw new IOException("Unsupported binary listing version: " + header[MAGIC.length]);
+            }
+        }
+
+        /**
+         * @return The next entry, or null at the end of the listing
+         * @throws IOException If the stream fails, the record is malformed or the listing was cut off
+         */
+        public FileInfo read() throws IOException {
+            if (finished) {
+                return null;
+            }
+            long length = readVarint();
+            if (length == 0) {
+                finished = true;
+                return null;
+            }
+            if (length > MAX_RECORD_BYTES) {
+                throw new IOException("Malformed binary listing: record of " + length + " bytes");
+            }
+            byte[] body = in.readNBytes((int) length);
+            if (body.length < length) {
+                throw new EOFException("Binary listing was cut off");
+            }
+
+            Record record = new Record(body);
+            int flags = record.next();
+            long shared = record.varint();
+            long suffix = record.varint();
+            if (shared > previousName.length || suffix > record.remaining()) {
+                throw new IOException("Malformed binary listing: invalid name");
+            }
+            byte[] name = Arrays.copyOf(previousName, (int) (shared + suffix));
+            record.bytes(name, (int) shared, (int) suffix);
+            long size = (flags & SIZE_UNKNOWN) != 0 ? -1 : record.varint();
+            long zigzag = record.varint();
+            long modified = previousModified + ((zigzag >>> 1) ^ -(zigzag & 1));
+
+            previousName = name;
+            previousModified = modified;
+            return new FileInfo(new String(name, StandardCharsets.UTF_8), (flags & DIRECTORY) != 0, size, modified);
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Binary listing was cut off");
+                }
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed binary listing: varint too long");
+        }
+    }
+
+    private static final class Record {
+        private final byte[] body;
+        private int position;
+
+        private Record(byte[] body) {
+            this.body = body;
+        }
+
+        private int remaining() {
+            return body.length - position;
+        }
+
+        private int next() throws IOException {
+            if (position >= body.length) {
+                throw new IOException("Malformed binary listing: truncated record");
+            }
+            return body[position++] & 0xFF;
+        }
+
+        private void bytes(byte[] target, int offset, int length) {
+            System.arraycopy(body, position, target, offset, length);
+            position += length;
+        }
+
+        private long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = next();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed binary listing: varint too long");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package ludo.mentis.aciem.controlclient.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Checkpoint of a segmented download, kept next to the partial file.
+ * <p>
+ * The first lines identify the download (source, size, validator and segment count). Each following
+ * line records how many bytes of a segment have been written and forced to the partial file, so a new
+ * run can resume every segment where it stopped. The checkpoint is discarded when the remote file or
+ * the segmentation differs from the one it was written for.
+ */
+public class DownloadCheckpoint implements Closeable {
+
+    private final Path file;
+    private final long[] progress;
+    private final boolean resumed;
+    private final FileChannel channel;
+
+    private DownloadCheckpoint(Path file, long[] progress, boolean resumed) throws IOException {
+        this.file = file;
+        this.progress = progress;
+        this.resumed = resumed;
+        this.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Open the checkpoint of a download, starting a new one if it is missing or belongs to another download
+     *
+     * @param file The checkpoint file
+     * @param source The remote path of the file
+     * @param size The size of the remote file
+     * @param validator The strong ETag or Last-Modified value of the remote file, or null if unknown
+     * @param segments The number of segments the download is split into
+     * @return The checkpoint
+     * @throws IOException If an I/O error occurs
+     */
+    public static DownloadCheckpoint open(Path file, String source, long size, String validator, int segments)
+            throws IOException {
+        String header = "source=" + source + "\n"
+                + "size=" + size + "\n"
+                + "validator=" + Objects.requireNonNullElse(validator, "") + "\n"
+                + "segments=" + segments + "\n";
+        long[] progress = new long[segments];
+
+        // Without a validator there is no way to tell whether the remote file changed, so never resume
+        if (validator != null && Files.exists(file)) {
+            String content = Files.readString(file, StandardCharsets.UTF_8);
+            if (content.startsWith(header)) {
+                List<String> lines = content.substring(header.length()).lines().toList();
+                for (String line : lines) {
+                    // segment=<index>:<bytes written>; a torn last line is ignored
+                    int colon = line.indexOf(':');
+                    if (!line.startsWith("segment=") || colon < 0) {
+                        continue;
+                    }
+                    try {
+                        int index = Integer.parseInt(line.substring("segment=".length(), colon));
+                        long written = Long.parseLong(line.substring(colon + 1));
+                        if (index >= 0 && index < segments) {
+                            progress[index] = Math.max(progress[index], written);
+                        }
+                    } catch (NumberFormatException e) {
+                        // ignore
+                    }
+                }
+                return new DownloadCheckpoint(file, progress, true);
+            }
+        }
+
+        Files.writeString(file, header, StandardCharsets.UTF_8);
+        return new DownloadCheckpoint(file, progress, false);
+    }
+
+    /**
+     * @return True if progress was recovered from an earlier run
+     */
+    public boolean resumed() {
+        return resumed;
+    }
+
+    /**
+     * @param segment The segment index
+     * @return The number of bytes of the segment already written
+     */
+    public synchronized long progress(int segment) {
+        return progress[segment];
+    }
+
+    /**
+     * Record the progress of a segment. The data must have been forced to the partial file first.
+     *
+     * @param segment The segment index
+     * @param written The number of bytes of the segment written so far
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized void record(int segment, long written) throws IOException {
+        progress[segment] = written;
+        ByteBuffer line = ByteBuffer.wrap(("segment=" + segment + ":" + written + "\n").getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) {
+            channel.write(line);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Close and delete the checkpoint once the download is complete
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -11,16 +11,25 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 
 /**
- * Implementation of MultipartFile that wraps a file
+ * Implementation of MultipartFile that wraps a file.
+ * <p>
+ * The multipart encoder reads the whole file into memory through {@link #getBytes()}, so the file size
+ * that may be read that way is capped; larger files have to be uploaded in chunks.
  */
 public class FileMultipartFile implements MultipartFile {
     private final Path path;
+    private final long maxInMemorySize;
     private final String name;
     private final String originalFilename;
     private final String contentType;
 
     public FileMultipartFile(Path path) throws IOException {
+        this(path, Long.MAX_VALUE);
+    }
+
+    public FileMultipartFile(Path path, long maxInMemorySize) throws IOException {
         this.path = path;
+        this.maxInMemorySize = maxInMemorySize;
         this.name = path.getFileName().toString();
         this.originalFilename = path.getFileName().toString();
         this.contentType = Files.probeContentType(path);
@@ -61,6 +70,11 @@ public class FileMultipartFile implements MultipartFile {
 
     @Override
     public byte[] getBytes() throws IOException {
+        long size = Files.size(path);
+        if (size > maxInMemorySize) {
+            throw new IOException("File is too large to be read into memory: " + size + " bytes (limit "
+                    + maxInMemorySize + ")");
+        }
         return Files.readAllBytes(path);
     }
 
@@ -0,0 +1,181 @@
+package ludo.mentis.aciem.controlclient.util;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Properties;
+
+/**
+ * Persistent store of the entity tags returned by the control-server, used to revalidate earlier
+ * downloads and listings with If-None-Match instead of transferring them again.
+ * <p>
+ * Validators are kept in a properties file in the cache directory. A download validator also records
+ * the size and modification time of the local copy, so it is only used while that copy is untouched.
+ * Listing bodies are cached next to it, one file per directory.
+ */
+@Component
+public class ValidatorStore {
+
+    private static final String VALIDATORS_FILE = "validators.properties";
+    private static final String LISTINGS_DIR = "listings";
+    private static final String DOWNLOAD_PREFIX = "download.";
+    private static final String LIST_PREFIX = "list.";
+
+    private final Path directory;
+    private final Properties validators = new Properties();
+
+    /**
+     * Constructor that loads the validators stored by earlier runs
+     *
+     * @param directory The cache directory
+     * @throws IOException If the validators file cannot be read
+     */
+    public ValidatorStore(@Value("${client.cache-dir:${user.home}/.control-client}") String directory) throws IOException {
+        this.directory = Paths.get(directory).toAbsolutePath().normalize();
+        Path file = this.directory.resolve(VALIDATORS_FILE);
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                validators.load(reader);
+            }
+        }
+    }
+
+    /**
+     * Get the validator of an earlier download
+     *
+     * @param remoteFilePath The path of the file on the server
+     * @return The validator, or null if the file was not downloaded or its local copy was modified since
+     */
+    public synchronized DownloadValidator download(String remoteFilePath) {
+        String value = validators.getProperty(DOWNLOAD_PREFIX + remoteFilePath);
+        if (value == null) {
+            return null;
+        }
+
+        // <etag>\t<size>\t<modified>\t<local path>
+        String[] fields = value.split("\t", 4);
+        if (fields.length < 4) {
+            return null;
+        }
+        try {
+            DownloadValidator validator = new DownloadValidator(fields[0], Paths.get(fields[3]),
+                    Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            return validator.isCurrent() ? validator : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Record the validator of a completed download
+     *
+     * @param remoteFilePath The path of the file on the server
+     * @param etag The ETag of the download
+     * @param localFile The local copy
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized void putDownload(String remoteFilePath, String etag, Path localFile) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(localFile, BasicFileAttributes.class);
+        validators.setProperty(DOWNLOAD_PREFIX + remoteFilePath, etag + "\t" + attributes.size() + "\t"
+                + attributes.lastModifiedTime().toMillis() + "\t" + localFile.toAbsolutePath().normalize());
+        save();
+    }
+
+    /**
+     * Get the cached body of an earlier listing
+     *
+     * @param directory The directory on the server
+     * @return The listing, or null if the directory was not listed before
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized CachedListing listing(String directory) throws IOException {
+        String etag = validators.getProperty(LIST_PREFIX + directory);
+        Path body = listingFile(directory);
+        if (etag == null || !Files.exists(body)) {
+            return null;
+        }
+        return new CachedListing(etag, Files.readAllBytes(body));
+    }
+
+    /**
+     * Cache the body of a listing together with its validator
+     *
+     * @param directory The directory on the server
+     * @param etag The ETag of the listing
+     * @param body The response body
+     * @throws IOException If an I/O error occurs
+     */
+    public synchronized void putListing(String directory, String etag, byte[] body) throws IOException {
+        Path file = listingFile(directory);
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, body);
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        validators.setProperty(LIST_PREFIX + directory, etag);
+        save();
+    }
+
+    private Path listingFile(String directory) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(directory.getBytes(StandardCharsets.UTF_8));
+            return this.directory.resolve(LISTINGS_DIR).resolve(HexFormat.of().formatHex(hash) + ".json");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private void save() throws IOException {
+        Files.createDirectories(directory);
+        Path temp = directory.resolve(VALIDATORS_FILE + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            validators.store(writer, "control-client validators");
+        }
+        Files.move(temp, directory.resolve(VALIDATORS_FILE),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Validator of a downloaded file
+     *
+     * @param etag The ETag the server returned with the file
+     * @param localFile The local copy
+     * @param size The size of the local copy when it was downloaded
+     * @param modified The modification time of the local copy when it was downloaded
+     */
+    public record DownloadValidator(String etag, Path localFile, long size, long modified) {
+
+        /**
+         * @return Whether the local copy is unchanged since it was downloaded
+         */
+        public boolean isCurrent() {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(localFile, BasicFileAttributes.class);
+                return attributes.size() == size && attributes.lastModifiedTime().toMillis() == modified;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Cached listing of a directory
+     *
+     * @param etag The ETag the server returned with the listing
+     * @param body The response body
+     */
+    public record CachedListing(String etag, byte[] body) {
+    }
+}
@@ -1,5 +1,7 @@
 package ludo.mentis.aciem.controlclient.cli;
 
+import ludo.mentis.aciem.controlclient.model.ChangeEvent;
+import ludo.mentis.aciem.controlclient.model.DirectoryUsage;
 import ludo.mentis.aciem.controlclient.model.FileInfo;
 import ludo.mentis.aciem.controlclient.service.FileClientService;
 import org.junit.jupiter.api.AfterEach;
@@ -16,10 +18,16 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -90,6 +98,26 @@ class CommandLineAppTest {
         verify(fileClientService).uploadFile(eq(filePath), eq(targetDirectory));
     }
 
+    @Test
+    void testRunUploadCommandWithParallelOptions() throws Exception {
+        // Arrange
+        String filePath = "test.txt";
+        String targetDirectory = "/target/dir";
+        String expectedResponse = "File uploaded successfully";
+
+        when(fileClientService.uploadFileParallel(filePath, targetDirectory, 8, 16L * 1024 * 1024))
+                .thenReturn(expectedResponse);
+
+        // Act
+        commandLineApp.run("upload", filePath, targetDirectory, "--parallel", "8", "--chunk-size", "16MB");
+
+        // Assert
+        String output = outContent.toString();
+        assertTrue(output.contains("Upload result: " + expectedResponse));
+
+        verify(fileClientService).uploadFileParallel(filePath, targetDirectory, 8, 16L * 1024 * 1024);
+    }
+
     @Test
     void testRunUploadCommandWithMissingArgs() throws Exception {
         // Act
@@ -122,6 +150,26 @@ class CommandLineAppTest {
         verify(fileClientService).downloadFile(eq(remoteFilePath), eq(localDirectory));
     }
 
+    @Test
+    void testRunDownloadCommandWithSegmentOptions() throws Exception {
+        // Arrange
+        String remoteFilePath = "/remote/file.txt";
+        String localDirectory = "/local/dir";
+        Path expectedPath = Paths.get("/local/dir/file.txt");
+
+        when(fileClientService.downloadFileSegmented(remoteFilePath, localDirectory, 8, 4)).thenReturn(expectedPath);
+
+        // Act
+        commandLineApp.run("download", remoteFilePath, localDirectory, "--segments", "8", "--concurrency", "4");
+
+        // Assert
+        String output = outContent.toString();
+        assertTrue(output.contains("File downloaded to: " + expectedPath));
+
+        verify(fileClientService).downloadFileSegmented(remoteFilePath, localDirectory, 8, 4);
+        verify(fileClientService, never()).downloadFile(anyString(), anyString());
+    }
+
     @Test
     void testRunDownloadCommandWithMissingArgs() throws Exception {
         // Act
@@ -142,8 +190,11 @@ class CommandLineAppTest {
                 new FileInfo("dir1", true, 0, 1620000000000L)
         );
         
-        when(fileClientService.listFiles(eq(directory)))
-                .thenReturn(files);
+        when(fileClientService.streamFiles(eq(directory), eq(0), any())).thenAnswer(invocation -> {
+            Consumer<FileInfo> consumer = invocation.getArgument(2);
+            files.forEach(consumer);
+            return (long) files.size();
+        });
         
         // Act
         commandLineApp.run("list", directory);
@@ -155,7 +206,93 @@ class CommandLineAppTest {
         assertTrue(output.contains("dir1"));
         assertTrue(output.contains("Total: 2 items"));
         
-        verify(fileClientService).listFiles(eq(directory));
+        verify(fileClientService).streamFiles(eq(directory), eq(0), any());
+    }
+
+    @Test
+    void testRunTreeCommand() throws Exception {
+        // Arrange
+        String directory = "/test/dir";
+        when(fileClientService.listTree(eq(directory), eq(2), eq("*.log"), isNull(), any())).thenAnswer(invocation -> {
+            Consumer<FileInfo> consumer = invocation.getArgument(4);
+            consumer.accept(new FileInfo("logs/app.log", false, 10, 1620000000000L));
+            return 1L;
+        });
+
+        // Act
+        commandLineApp.run("tree", directory, "--max-depth", "2", "--include", "*.log");
+
+        // Assert
+        String output = outContent.toString();
+        assertTrue(output.contains("logs/app.log"));
+        assertTrue(output.contains("Total: 1 items"));
+    }
+
+    @Test
+    void testRunSearchCommand() throws Exception {
+        // Arrange
+        when(fileClientService.searchFiles("*.log", "glob", 10))
+                .thenReturn(List.of(new FileInfo("/data/logs/app.log", false, 10, 1620000000000L)));
+
+        // Act
+        commandLineApp.run("search", "*.log", "--type", "glob", "--limit", "10");
+
+        // Assert
+        String output = outContent.toString();
+        assertTrue(output.contains("/data/logs/app.log"));
+        assertTrue(output.contains("Total: 1 items"));
+    }
+
+    @Test
+    void testRunDuCommand() throws Exception {
+        // Arrange
+        when(fileClientService.getUsage("/data")).thenReturn(new DirectoryUsage("/data", 1500, 3, 1,
+                List.of(new FileInfo("logs", true, 1000, 1620000000000L))));
+
+        // Act
+        commandLineApp.run("du", "/data");
+
+        // Assert
+        String output = outContent.toString();
+        assertTrue(output.contains("logs"));
+        assertTrue(output.contains("Total: 1500 bytes in 3 files and 1 directories"));
+    }
+
+    @Test
+    void testRunWatchCommand() throws Exception {
+        // Arrange
+        when(fileClientService.watchChanges(eq("/data"), eq(41L), any())).thenAnswer(invocation -> {
+            Predicate<ChangeEvent> consumer = invocation.getArgument(2);
+            consumer.test(new ChangeEvent(42, "CREATE", "report.csv", 1620000000000L));
+            consumer.test(new ChangeEvent(43, "RESET", null, 1620000000000L));
+            return 43L;
+        });
+
+        // Act
+        commandLineApp.run("watch", "/data", "--after", "41");
+
+        // Assert
+        String output = outContent.toString();
+        assertTrue(output.contains("CREATE   report.csv"));
+        assertTrue(output.contains("RESET    (list the directory again)"));
+    }
+
+    @Test
+    void testRunListCommandWithServerSideQuery() throws Exception {
+        // Arrange
+        when(fileClientService.queryFiles("/data", "size", "desc", 2, "*.log", null, 1024L, null))
+                .thenReturn(List.of(new FileInfo("big.log", false, 4096, 1620000000000L),
+                        new FileInfo("small.log", false, 2048, 1620000000000L)));
+
+        // Act
+        commandLineApp.run("list", "/data", "--sort", "size", "--order", "desc", "--limit", "2",
+                "--include", "*.log", "--min-size", "1KB");
+
+        // Assert
+        String output = outContent.toString();
+        assertTrue(output.contains("big.log"));
+        assertTrue(output.contains("Total: 2 items"));
+        verify(fileClientService, never()).streamFiles(anyString(), anyInt(), any());
     }
 
     @Test
@@ -175,7 +312,7 @@ class CommandLineAppTest {
         String directory = "/test/dir";
         String errorMessage = "Test error message";
         
-        when(fileClientService.listFiles(anyString()))
+        when(fileClientService.streamFiles(anyString(), anyInt(), any()))
                 .thenThrow(new IOException(errorMessage));
         
         // Act
@@ -1,27 +1,56 @@
 package ludo.mentis.aciem.controlclient.service;
 
+import feign.Request;
+import feign.RequestTemplate;
+import feign.Response;
+import feign.codec.EncodeException;
+import feign.form.spring.SpringFormEncoder;
 import ludo.mentis.aciem.controlclient.client.ControlServerClient;
+import ludo.mentis.aciem.controlclient.model.ChangeEvent;
 import ludo.mentis.aciem.controlclient.model.FileInfo;
+import ludo.mentis.aciem.controlclient.model.UploadSession;
+import ludo.mentis.aciem.controlclient.util.BinaryListing;
+import ludo.mentis.aciem.controlclient.util.ValidatorStore;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.core.io.Resource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
-import static org.mockito.Mockito.when;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
 class FileClientServiceTest {
@@ -29,11 +58,29 @@ class FileClientServiceTest {
     @Mock
     private ControlServerClient controlServerClient;
 
+    @TempDir
+    Path cacheDirectory;
+
     private FileClientService fileClientService;
 
     @BeforeEach
-    void setUp() {
-        fileClientService = new FileClientService(controlServerClient);
+    void setUp() throws IOException {
+        fileClientService = new FileClientService(controlServerClient, new ValidatorStore(cacheDirectory.toString()),
+                4, DataSize.ofBytes(1024), 4, 4, 2);
+    }
+
+    private static Response response(int status, Map<String, Collection<String>> headers, byte[] body) {
+        return Response.builder()
+                .status(status)
+                .request(Request.create(Request.HttpMethod.GET, "/api/files", Map.of(), null,
+                        StandardCharsets.UTF_8, null))
+                .headers(headers)
+                .body(body)
+                .build();
+    }
+
+    private static Response listResponse(String json, String etag) {
+        return response(200, Map.of(HttpHeaders.ETAG, List.of(etag)), json.getBytes(StandardCharsets.UTF_8));
     }
 
     @Test
@@ -46,8 +93,11 @@ class FileClientServiceTest {
                 new FileInfo("dir1", true, 0, 1620000000000L)
         );
         
-        when(controlServerClient.listFiles(eq(directory)))
-                .thenReturn(ResponseEntity.ok(expectedFiles));
+        when(controlServerClient.listFiles(eq(directory), isNull()))
+                .thenReturn(listResponse("""
+                        [{"name":"file1.txt","directory":false,"size":100,"lastModified":1620000000000},
+                         {"name":"file2.txt","directory":false,"size":200,"lastModified":1620000000000},
+                         {"name":"dir1","directory":true,"size":0,"lastModified":1620000000000}]""", "\"v1\""));
 
         // Act
         List<FileInfo> actualFiles = fileClientService.listFiles(directory);
@@ -57,14 +107,34 @@ class FileClientServiceTest {
         assertEquals(expectedFiles.get(0).name(), actualFiles.get(0).name());
         assertEquals(expectedFiles.get(1).name(), actualFiles.get(1).name());
         assertEquals(expectedFiles.get(2).name(), actualFiles.get(2).name());
+        assertEquals(expectedFiles, actualFiles);
+    }
+
+    @Test
+    void testListFilesReusesCachedListingWhenNotModified() throws IOException {
+        // Arrange
+        String directory = "/test/directory";
+        when(controlServerClient.listFiles(eq(directory), isNull()))
+                .thenReturn(listResponse("[{\"name\":\"file1.txt\",\"directory\":false,\"size\":100,\"lastModified\":1}]", "\"v1\""));
+        when(controlServerClient.listFiles(eq(directory), eq("\"v1\"")))
+                .thenReturn(response(304, Map.of(), null));
+        List<FileInfo> first = fileClientService.listFiles(directory);
+
+        // Act
+        List<FileInfo> second = fileClientService.listFiles(directory);
+
+        // Assert
+        assertEquals(List.of(new FileInfo("file1.txt", false, 100, 1)), second);
+        assertEquals(first, second);
+        verify(controlServerClient).listFiles(directory, "\"v1\"");
     }
 
     @Test
     void testListFilesWithNullResponse() {
         // Arrange
         String directory = "/test/directory";
-        when(controlServerClient.listFiles(eq(directory)))
-                .thenReturn(ResponseEntity.ok(null));
+        when(controlServerClient.listFiles(eq(directory), isNull()))
+                .thenReturn(response(200, Map.of(), null));
 
         // Act & Assert
         Exception exception = assertThrows(IOException.class, () -> {
@@ -74,22 +144,186 @@ class FileClientServiceTest {
         assertTrue(exception.getMessage().contains("Failed to list files"));
     }
 
+    @Test
+    void testStreamFilesFollowsCursorAcrossPages() throws IOException {
+        // Arrange
+        String directory = "/test/directory";
+        when(controlServerClient.streamFiles(directory, 2, null)).thenReturn(response(200, Map.of(), """
+                {"files":[{"name":"a","directory":false,"size":1,"lastModified":1},
+                          {"name":"b","directory":true,"size":0,"lastModified":2}],"nextCursor":"Yg"}"""
+                .getBytes(StandardCharsets.UTF_8)));
+        when(controlServerClient.streamFiles(directory, 2, "Yg")).thenReturn(response(200, Map.of(), """
+                {"files":[{"name":"c","directory":false,"size":3,"lastModified":3}],"nextCursor":null}"""
+                .getBytes(StandardCharsets.UTF_8)));
+        List<FileInfo> files = new ArrayList<>();
+
+        // Act
+        long count = fileClientService.streamFiles(directory, 0, files::add);
+
+        // Assert
+        assertEquals(3, count);
+        assertEquals(List.of(new FileInfo("a", false, 1, 1), new FileInfo("b", true, 0, 2),
+                new FileInfo("c", false, 3, 3)), files);
+    }
+
+    @Test
+    void testStreamFilesRejectsTruncatedListing() {
+        // Arrange
+        when(controlServerClient.streamFiles("/test/directory", 10, null)).thenReturn(response(200, Map.of(),
+                "{\"files\":[{\"name\":\"a\",\"directory\":false,\"size\":1,\"lastModified\":1}"
+                        .getBytes(StandardCharsets.UTF_8)));
+        List<FileInfo> files = new ArrayList<>();
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> fileClientService.streamFiles("/test/directory", 10, files::add));
+        assertEquals(1, files.size());
+    }
+
+    @Test
+    void testListTreeParsesEntriesIncrementally() throws IOException {
+        // Arrange
+        when(controlServerClient.listTree("/test/directory", 2, "*.log", null)).thenReturn(response(200, Map.of(), """
+                [{"name":"logs","directory":true,"size":0,"lastModified":1},
+                 {"name":"logs/app.log","directory":false,"size":10,"lastModified":2}]"""
+                .getBytes(StandardCharsets.UTF_8)));
+        List<FileInfo> files = new ArrayList<>();
+
+        // Act
+        long count = fileClientService.listTree("/test/directory", 2, "*.log", null, files::add);
+
+        // Assert
+        assertEquals(2, count);
+        assertEquals(new FileInfo("logs/app.log", false, 10, 2), files.get(1));
+    }
+
+    /**
+     * The binary listing of "logs" (a directory modified at 1) and "logs/app.log" (10 bytes, modified at 2):
+     * the second name shares its first 4 bytes with the first
+     */
+    private static byte[] binaryTree(boolean complete) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes("MYCL".getBytes(StandardCharsets.US_ASCII));
+        out.write(1);
+        out.writeBytes(new byte[]{9, 1, 0, 4, 'l', 'o', 'g', 's', 0, 2});
+        out.writeBytes(new byte[]{13, 0, 4, 8, '/', 'a', 'p', 'p', '.', 'l', 'o', 'g', 10, 2});
+        if (complete) {
+            out.write(0);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void testListTreeDecodesBinaryListing() throws IOException {
+        // Arrange
+        when(controlServerClient.listTree("/test/directory", null, null, null)).thenReturn(response(200,
+                Map.of(HttpHeaders.CONTENT_TYPE, List.of(BinaryListing.MEDIA_TYPE)), binaryTree(true)));
+        List<FileInfo> files = new ArrayList<>();
+
+        // Act
+        long count = fileClientService.listTree("/test/directory", null, null, null, files::add);
+
+        // Assert
+        assertEquals(2, count);
+        assertEquals(List.of(new FileInfo("logs", true, 0, 1), new FileInfo("logs/app.log", false, 10, 2)), files);
+    }
+
+    @Test
+    void testListTreeFailsWhenBinaryListingIsCutOff() {
+        // Arrange
+        when(controlServerClient.listTree("/test/directory", null, null, null)).thenReturn(response(200,
+                Map.of(HttpHeaders.CONTENT_TYPE, List.of(BinaryListing.MEDIA_TYPE)), binaryTree(false)));
+        List<FileInfo> files = new ArrayList<>();
+
+        // Act & Assert
+        assertThrows(IOException.class,
+                () -> fileClientService.listTree("/test/directory", null, null, null, files::add));
+        assertEquals(2, files.size());
+    }
+
+    @Test
+    void testListFilesDecodesAndCachesBinaryListing() throws IOException {
+        // Arrange
+        String directory = "/test/directory";
+        when(controlServerClient.listFiles(eq(directory), isNull())).thenReturn(response(200,
+                Map.of(HttpHeaders.ETAG, List.of("\"b1\""), HttpHeaders.CONTENT_TYPE, List.of(BinaryListing.MEDIA_TYPE)),
+                binaryTree(true)));
+        when(controlServerClient.listFiles(eq(directory), eq("\"b1\""))).thenReturn(response(304, Map.of(), null));
+
+        // Act
+        List<FileInfo> first = fileClientService.listFiles(directory);
+        List<FileInfo> second = fileClientService.listFiles(directory);
+
+        // Assert
+        assertEquals(List.of(new FileInfo("logs", true, 0, 1), new FileInfo("logs/app.log", false, 10, 2)), first);
+        assertEquals(first, second);
+    }
+
+    @Test
+    void testWatchChangesResumesAfterLastEventWhenStreamEnds() throws IOException {
+        // Arrange
+        when(controlServerClient.streamChanges("/test/directory", "10")).thenReturn(response(200, Map.of(), """
+                id:11
+                data:{"sequence":11,"type":"CREATE","name":"a.txt","timestamp":1}
+
+                :heartbeat
+
+                """.getBytes(StandardCharsets.UTF_8)));
+        when(controlServerClient.streamChanges("/test/directory", "11")).thenReturn(response(200, Map.of(), """
+                id:12
+                data:{"sequence":12,"type":"DELETE","name":"a.txt","timestamp":2}
+
+                id:13
+                data:{"sequence":13,"type":"RESET","name":null,"timestamp":3}
+
+                """.getBytes(StandardCharsets.UTF_8)));
+        List<ChangeEvent> events = new ArrayList<>();
+
+        // Act
+        Long last = fileClientService.watchChanges("/test/directory", 10L, event -> {
+            events.add(event);
+            return !event.type().equals("DELETE");
+        });
+
+        // Assert
+        assertEquals(12L, last);
+        assertEquals(List.of(new ChangeEvent(11, "CREATE", "a.txt", 1), new ChangeEvent(12, "DELETE", "a.txt", 2)),
+                events);
+    }
+
+    @Test
+    void testWatchChangesFailsWhenDirectoryCannotBeWatched() {
+        // Arrange
+        when(controlServerClient.streamChanges("/missing", null)).thenReturn(response(400, Map.of(), null));
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> fileClientService.watchChanges("/missing", null, event -> true));
+    }
+
+    private static Response downloadResponse(InputStream body) {
+        return downloadResponse(body, Map.of());
+    }
+
+    private static Response downloadResponse(InputStream body, Map<String, Collection<String>> headers) {
+        Map<String, Collection<String>> allHeaders = new HashMap<>(headers);
+        allHeaders.put(HttpHeaders.CONTENT_DISPOSITION, List.of("attachment; filename=\"file.txt\""));
+        return Response.builder()
+                .status(200)
+                .request(Request.create(Request.HttpMethod.GET, "/api/files/download", Map.of(), null,
+                        StandardCharsets.UTF_8, null))
+                .headers(allHeaders)
+                .body(body, null)
+                .build();
+    }
+
     @Test
     void testDownloadFile() throws IOException {
         // Arrange
         String remoteFilePath = "/test/file.txt";
         String localDirectory = System.getProperty("java.io.tmpdir");
         byte[] fileContent = "test content".getBytes();
-        
-        ByteArrayResource resource = new ByteArrayResource(fileContent) {
-            @Override
-            public String getFilename() {
-                return "file.txt";
-            }
-        };
-        
-        when(controlServerClient.downloadFile(eq(remoteFilePath)))
-                .thenReturn(ResponseEntity.ok(resource));
+
+        when(controlServerClient.downloadFile(eq(remoteFilePath), isNull()))
+                .thenReturn(downloadResponse(new ByteArrayInputStream(fileContent)));
 
         // Act
         Path downloadedPath = fileClientService.downloadFile(remoteFilePath, localDirectory);
@@ -97,6 +331,7 @@ class FileClientServiceTest {
         // Assert
         assertTrue(Files.exists(downloadedPath));
         assertEquals("file.txt", downloadedPath.getFileName().toString());
+        assertArrayEquals(fileContent, Files.readAllBytes(downloadedPath));
         
         // Cleanup
         Files.deleteIfExists(downloadedPath);
@@ -108,8 +343,8 @@ class FileClientServiceTest {
         String remoteFilePath = "/test/file.txt";
         String localDirectory = System.getProperty("java.io.tmpdir");
         
-        when(controlServerClient.downloadFile(eq(remoteFilePath)))
-                .thenReturn(ResponseEntity.ok(null));
+        when(controlServerClient.downloadFile(eq(remoteFilePath), isNull()))
+                .thenReturn(downloadResponse(null));
 
         // Act & Assert
         Exception exception = assertThrows(IOException.class, () -> {
@@ -119,6 +354,103 @@ class FileClientServiceTest {
         assertTrue(exception.getMessage().contains("Failed to download file"));
     }
 
+    @Test
+    void testDownloadFileRevalidatesUnchangedLocalCopy(@TempDir Path localDirectory) throws IOException {
+        // Arrange
+        when(controlServerClient.downloadFile(eq("/remote/file.txt"), isNull()))
+                .thenReturn(downloadResponse(new ByteArrayInputStream("v1".getBytes()),
+                        Map.of(HttpHeaders.ETAG, List.of("\"v1\""))));
+        when(controlServerClient.downloadFile(eq("/remote/file.txt"), eq("\"v1\"")))
+                .thenReturn(response(304, Map.of(), null));
+        Path first = fileClientService.downloadFile("/remote/file.txt", localDirectory.toString());
+
+        // Act
+        Path second = fileClientService.downloadFile("/remote/file.txt", localDirectory.toString());
+
+        // Assert
+        assertEquals(first, second);
+        assertEquals("v1", Files.readString(second));
+    }
+
+    @Test
+    void testDownloadFileReplacesLocalCopyWhenRemoteFileChanged(@TempDir Path localDirectory) throws IOException {
+        // Arrange
+        when(controlServerClient.downloadFile(eq("/remote/file.txt"), isNull()))
+                .thenReturn(downloadResponse(new ByteArrayInputStream("v1".getBytes()),
+                        Map.of(HttpHeaders.ETAG, List.of("\"v1\""))));
+        when(controlServerClient.downloadFile(eq("/remote/file.txt"), eq("\"v1\"")))
+                .thenReturn(downloadResponse(new ByteArrayInputStream("version 2".getBytes()),
+                        Map.of(HttpHeaders.ETAG, List.of("\"v2\""))));
+        fileClientService.downloadFile("/remote/file.txt", localDirectory.toString());
+
+        // Act
+        Path downloadedPath = fileClientService.downloadFile("/remote/file.txt", localDirectory.toString());
+
+        // Assert
+        assertEquals("version 2", Files.readString(downloadedPath));
+        try (Stream<Path> files = Files.list(localDirectory)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void testDownloadFileDoesNotRevalidateModifiedLocalCopy(@TempDir Path localDirectory) throws IOException {
+        // Arrange
+        when(controlServerClient.downloadFile(eq("/remote/file.txt"), isNull()))
+                .thenReturn(downloadResponse(new ByteArrayInputStream("v1".getBytes()),
+                        Map.of(HttpHeaders.ETAG, List.of("\"v1\""))));
+        Path downloadedPath = fileClientService.downloadFile("/remote/file.txt", localDirectory.toString());
+        Files.writeString(downloadedPath, "edited locally");
+
+        // Act & Assert: without a usable validator the download must not overwrite the local edit
+        assertThrows(FileAlreadyExistsException.class,
+                () -> fileClientService.downloadFile("/remote/file.txt", localDirectory.toString()));
+        assertEquals("edited locally", Files.readString(downloadedPath));
+    }
+
+    @Test
+    void testDownloadFileAllocationDoesNotGrowWithFileSize(@TempDir Path localDirectory) throws IOException {
+        // Act
+        long small = allocatedWhileDownloading(localDirectory.resolve("small"), 1024 * 1024);
+        long large = allocatedWhileDownloading(localDirectory.resolve("large"), 64 * 1024 * 1024);
+
+        // Assert
+        assertTrue(large < small + 4 * 1024 * 1024,
+                "Downloading 64MB allocated " + large + " bytes, 1MB allocated " + small + " bytes");
+    }
+
+    private long allocatedWhileDownloading(Path localDirectory, long size) throws IOException {
+        // Body generated on the fly, so the only allocations measured are those of the download itself
+        InputStream body = new InputStream() {
+            private long remaining = size;
+
+            @Override
+            public int read() {
+                return remaining-- > 0 ? 'x' : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int count = (int) Math.min(len, remaining);
+                Arrays.fill(b, off, off + count, (byte) 'x');
+                remaining -= count;
+                return count;
+            }
+        };
+        when(controlServerClient.downloadFile(eq("/remote/file.txt"), isNull())).thenReturn(downloadResponse(body));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        Path downloadedPath = fileClientService.downloadFile("/remote/file.txt", localDirectory.toString());
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertEquals(size, Files.size(downloadedPath));
+        return allocated;
+    }
+
     @Test
     void testUploadFile() throws IOException {
         // Arrange
@@ -154,4 +486,270 @@ class FileClientServiceTest {
         
         assertTrue(exception.getMessage().contains("File does not exist"));
     }
-}
\ No newline at end of file
+
+    /**
+     * Encodes the uploaded file the way the Feign client does before sending it
+     */
+    private static byte[] encodeMultipart(MultipartFile file) {
+        RequestTemplate template = new RequestTemplate();
+        template.header(HttpHeaders.CONTENT_TYPE, "multipart/form-data");
+        new SpringFormEncoder().encode(file, MultipartFile.class, template);
+        return template.body();
+    }
+
+    @Test
+    void testUploadFileOfChunkSizeIsEncodedAsMultipart() throws IOException {
+        // Arrange
+        Path tempFile = Files.createTempFile("test-upload", ".bin");
+        byte[] content = sampleContent(1024);
+        Files.write(tempFile, content);
+        List<byte[]> bodies = new ArrayList<>();
+        when(controlServerClient.uploadFile(any(), eq("/test/directory"))).thenAnswer(invocation -> {
+            bodies.add(encodeMultipart(invocation.getArgument(0)));
+            return ResponseEntity.ok("File uploaded successfully");
+        });
+
+        // Act
+        String response = fileClientService.uploadFile(tempFile.toString(), "/test/directory");
+
+        // Assert
+        assertEquals("File uploaded successfully", response);
+        assertEquals(1, bodies.size());
+        assertTrue(bodies.get(0).length > content.length);
+        verify(controlServerClient, never()).createUploadSession(any(), any(), anyLong());
+
+        // Cleanup
+        Files.deleteIfExists(tempFile);
+    }
+
+    @Test
+    void testUploadFileGrownPastChunkSizeIsNotReadIntoMemory() throws IOException {
+        // Arrange
+        Path tempFile = Files.createTempFile("test-upload", ".bin");
+        Files.write(tempFile, sampleContent(1024));
+        when(controlServerClient.uploadFile(any(), eq("/test/directory"))).thenAnswer(invocation -> {
+            // The file is still being written after its size was checked
+            Files.write(tempFile, sampleContent(4096));
+            return ResponseEntity.ok(encodeMultipart(invocation.getArgument(0)));
+        });
+
+        // Act & Assert
+        EncodeException exception = assertThrows(EncodeException.class,
+                () -> fileClientService.uploadFile(tempFile.toString(), "/test/directory"));
+        assertTrue(exception.getCause().getMessage().contains("File is too large to be read into memory"));
+
+        // Cleanup
+        Files.deleteIfExists(tempFile);
+    }
+
+    @Test
+    void testUploadFileLargerThanChunkSizeUsesUploadSession() throws IOException {
+        // Arrange
+        Path tempFile = Files.createTempFile("test-large", ".bin");
+        Files.write(tempFile, new byte[5000]);
+
+        UploadSession session = new UploadSession("abc", "/test/directory", tempFile.getFileName().toString(),
+                5000, List.of(), 0);
+        when(controlServerClient.createUploadSession("/test/directory", tempFile.getFileName().toString(), 5000))
+                .thenReturn(ResponseEntity.ok(session));
+        when(controlServerClient.uploadChunk(eq("abc"), anyLong(), any(byte[].class))).thenReturn(ResponseEntity.ok(session));
+        when(controlServerClient.commitUploadSession("abc")).thenReturn(ResponseEntity.ok("File uploaded successfully"));
+
+        // Act
+        String response = fileClientService.uploadFile(tempFile.toString(), "/test/directory");
+
+        // Assert
+        assertEquals("File uploaded successfully", response);
+        verify(controlServerClient, times(5)).uploadChunk(eq("abc"), anyLong(), any(byte[].class));
+        verify(controlServerClient, never()).uploadFile(any(), any());
+
+        // Cleanup
+        Files.deleteIfExists(tempFile);
+    }
+
+    @Test
+    void testUploadFileParallel() throws IOException {
+        // Arrange
+        byte[] content = new byte[10_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Path tempFile = Files.createTempFile("test-parallel", ".bin");
+        Files.write(tempFile, content);
+
+        UploadSession session = new UploadSession("abc", "/test/directory", tempFile.getFileName().toString(),
+                content.length, List.of(), 0);
+        when(controlServerClient.createUploadSession("/test/directory", tempFile.getFileName().toString(), content.length))
+                .thenReturn(ResponseEntity.ok(session));
+
+        Map<Long, byte[]> received = new ConcurrentHashMap<>();
+        when(controlServerClient.uploadChunk(eq("abc"), anyLong(), any(byte[].class)))
+                .thenAnswer(invocation -> {
+                    received.put(invocation.getArgument(1), invocation.getArgument(2));
+                    return ResponseEntity.ok(session);
+                });
+        when(controlServerClient.commitUploadSession("abc")).thenReturn(ResponseEntity.ok("File uploaded successfully"));
+
+        // Act
+        String response = fileClientService.uploadFileParallel(tempFile.toString(), "/test/directory", 3, 4096);
+
+        // Assert
+        assertEquals("File uploaded successfully", response);
+        assertEquals(3, received.size());
+        byte[] assembled = new byte[content.length];
+        received.forEach((offset, chunk) -> {
+            assertTrue(chunk.length <= 4096);
+            System.arraycopy(chunk, 0, assembled, offset.intValue(), chunk.length);
+        });
+        assertArrayEquals(content, assembled);
+
+        // Cleanup
+        Files.deleteIfExists(tempFile);
+    }
+
+    @Test
+    void testUploadFileParallelAbortsSessionWhenRangeFails() throws IOException {
+        // Arrange
+        Path tempFile = Files.createTempFile("test-parallel", ".bin");
+        Files.write(tempFile, new byte[5000]);
+
+        UploadSession session = new UploadSession("abc", "/test/directory", tempFile.getFileName().toString(),
+                5000, List.of(), 0);
+        when(controlServerClient.createUploadSession(any(), any(), anyLong())).thenReturn(ResponseEntity.ok(session));
+        when(controlServerClient.uploadChunk(eq("abc"), anyLong(), any(byte[].class)))
+                .thenThrow(new IllegalStateException("connection reset"));
+
+        // Act & Assert
+        assertThrows(IOException.class,
+                () -> fileClientService.uploadFileParallel(tempFile.toString(), "/test/directory", 2, 1024));
+        verify(controlServerClient).abortUploadSession("abc");
+        verify(controlServerClient, never()).commitUploadSession(any());
+
+        // Cleanup
+        Files.deleteIfExists(tempFile);
+    }
+
+    private static byte[] sampleContent(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        return content;
+    }
+
+    private static ResponseEntity<Void> downloadInfo(long size) {
+        return downloadInfo(size, null);
+    }
+
+    private static ResponseEntity<Void> downloadInfo(long size, String etag) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentLength(size);
+        headers.set(HttpHeaders.LAST_MODIFIED, "Tue, 15 Nov 1994 08:12:31 GMT");
+        if (etag != null) {
+            headers.setETag(etag);
+        }
+        headers.setContentDisposition(ContentDisposition.attachment().filename("file.bin").build());
+        return ResponseEntity.ok().headers(headers).build();
+    }
+
+    private static Response rangeResponse(int status, byte[] content, String range) {
+        String[] bounds = range.substring("bytes=".length()).split("-");
+        byte[] body = status == 206
+                ? Arrays.copyOfRange(content, Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]) + 1)
+                : content;
+        return Response.builder()
+                .status(status)
+                .request(Request.create(Request.HttpMethod.GET, "/api/files/download", Map.of(), null,
+                        StandardCharsets.UTF_8, null))
+                .headers(Map.of())
+                .body(body)
+                .build();
+    }
+
+    @Test
+    void testDownloadFileSegmented(@TempDir Path localDirectory) throws IOException {
+        // Arrange
+        byte[] content = sampleContent(10_000);
+        when(controlServerClient.getDownloadInfo("/remote/file.bin")).thenReturn(downloadInfo(content.length));
+
+        List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+        when(controlServerClient.downloadRange(eq("/remote/file.bin"), anyString(), eq("Tue, 15 Nov 1994 08:12:31 GMT")))
+                .thenAnswer(invocation -> {
+                    ranges.add(invocation.getArgument(1));
+                    return rangeResponse(206, content, invocation.getArgument(1));
+                });
+
+        // Act
+        Path downloadedPath = fileClientService.downloadFileSegmented("/remote/file.bin", localDirectory.toString(), 4, 2);
+
+        // Assert
+        assertEquals(localDirectory.resolve("file.bin"), downloadedPath);
+        assertArrayEquals(content, Files.readAllBytes(downloadedPath));
+        assertEquals(List.of("bytes=0-2499", "bytes=2500-4999", "bytes=5000-7499", "bytes=7500-9999"),
+                ranges.stream().sorted(Comparator.comparingInt(r -> Integer.parseInt(r.substring(6, r.indexOf('-'))))).toList());
+        assertFalse(Files.exists(localDirectory.resolve("file.bin.part")));
+        assertFalse(Files.exists(localDirectory.resolve("file.bin.part.checkpoint")));
+    }
+
+    @Test
+    void testDownloadFileSegmentedUsesStrongEtagAsIfRangeValidator(@TempDir Path localDirectory) throws IOException {
+        // Arrange
+        byte[] content = sampleContent(10_000);
+        when(controlServerClient.getDownloadInfo("/remote/file.bin"))
+                .thenReturn(downloadInfo(content.length, "\"sha256-abc\""));
+        when(controlServerClient.downloadRange(eq("/remote/file.bin"), anyString(), anyString()))
+                .thenAnswer(invocation -> rangeResponse(206, content, invocation.getArgument(1)));
+
+        // Act
+        Path downloadedPath = fileClientService.downloadFileSegmented("/remote/file.bin", localDirectory.toString(), 4, 2);
+
+        // Assert
+        assertArrayEquals(content, Files.readAllBytes(downloadedPath));
+        verify(controlServerClient, times(4)).downloadRange(eq("/remote/file.bin"), anyString(), eq("\"sha256-abc\""));
+    }
+
+    @Test
+    void testDownloadFileSegmentedResumesMissingSegments(@TempDir Path localDirectory) throws IOException {
+        // Arrange
+        byte[] content = sampleContent(10_000);
+        when(controlServerClient.getDownloadInfo("/remote/file.bin")).thenReturn(downloadInfo(content.length));
+        when(controlServerClient.downloadRange(eq("/remote/file.bin"), anyString(), anyString()))
+                .thenAnswer(invocation -> {
+                    String range = invocation.getArgument(1);
+                    return rangeResponse(range.startsWith("bytes=5000") ? 404 : 206, content, range);
+                });
+
+        assertThrows(IOException.class,
+                () -> fileClientService.downloadFileSegmented("/remote/file.bin", localDirectory.toString(), 2, 2));
+        assertTrue(Files.exists(localDirectory.resolve("file.bin.part.checkpoint")));
+
+        List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+        when(controlServerClient.downloadRange(eq("/remote/file.bin"), anyString(), anyString()))
+                .thenAnswer(invocation -> {
+                    ranges.add(invocation.getArgument(1));
+                    return rangeResponse(206, content, invocation.getArgument(1));
+                });
+
+        // Act
+        Path downloadedPath = fileClientService.downloadFileSegmented("/remote/file.bin", localDirectory.toString(), 2, 2);
+
+        // Assert
+        assertEquals(List.of("bytes=5000-9999"), ranges);
+        assertArrayEquals(content, Files.readAllBytes(downloadedPath));
+    }
+
+    @Test
+    void testDownloadFileSegmentedFailsWhenRemoteFileChanged(@TempDir Path localDirectory) {
+        // Arrange
+        byte[] content = sampleContent(1000);
+        when(controlServerClient.getDownloadInfo("/remote/file.bin")).thenReturn(downloadInfo(content.length));
+        when(controlServerClient.downloadRange(eq("/remote/file.bin"), anyString(), anyString()))
+                .thenAnswer(invocation -> rangeResponse(200, content, invocation.getArgument(1)));
+
+        // Act & Assert
+        IOException exception = assertThrows(IOException.class,
+                () -> fileClientService.downloadFileSegmented("/remote/file.bin", localDirectory.toString(), 1, 1));
+        assertTrue(exception.getMessage().contains("remote file changed"));
+        assertFalse(Files.exists(localDirectory.resolve("file.bin")));
+    }
+}
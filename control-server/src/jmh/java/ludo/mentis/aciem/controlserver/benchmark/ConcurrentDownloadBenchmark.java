@@ -0,0 +1,209 @@
+package ludo.mentis.aciem.controlserver.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import ludo.mentis.aciem.controlserver.service.DownloadServiceImpl;
+import ludo.mentis.aciem.controlserver.service.TransferSchedulerImpl;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.system.JavaVersion;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time to serve a burst of concurrent slow downloads through an embedded Tomcat, with request handling on a
+ * pool of 200 platform threads (Tomcat's and Spring Boot's default) or on virtual threads.
+ * <p>
+ * Each download is read from storage that answers every read after a delay, as a network mount or a busy disk
+ * does, so a download holds its request thread while it waits. With platform threads the downloads are served
+ * 200 at a time; with virtual threads they all wait at once.
+ * <p>
+ * The virtual mode needs Java 21 or later. Client and server share the process, which then holds two sockets
+ * per download: raise the open file limit (ulimit -n) above twice the number of downloads.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Benchmark)
+public class ConcurrentDownloadBenchmark {
+
+    private static final int PLATFORM_THREADS = 200;
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"10000"})
+    public int downloads;
+
+    @Param({"65536"})
+    public int fileSize;
+
+    @Param({"25"})
+    public int readDelayMillis;
+
+    private Path directory;
+    private Tomcat tomcat;
+    private ExecutorService clientExecutor;
+    private HttpClient client;
+    private HttpRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, LifecycleException {
+        if (threads.equals("virtual") && !JavaVersion.getJavaVersion().isEqualOrNewerThan(JavaVersion.TWENTY_ONE)) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later, running on "
+                    + JavaVersion.getJavaVersion());
+        }
+        directory = Files.createTempDirectory("concurrent-download-benchmark");
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(directory.toString());
+        Connector connector = new Connector();
+        connector.setPort(0);
+        // Every download gets a connection at once; the thread mode alone decides how many are served together
+        connector.setProperty("maxConnections", "-1");
+        connector.setProperty("acceptCount", Integer.toString(downloads));
+        if (threads.equals("virtual")) {
+            connector.getProtocolHandler().setExecutor(new VirtualThreadExecutor("tomcat-handler-"));
+        } else {
+            connector.setProperty("maxThreads", Integer.toString(PLATFORM_THREADS));
+        }
+        tomcat.setConnector(connector);
+        Context context = tomcat.addContext("", null);
+        Tomcat.addServlet(context, "download", servlet());
+        context.addServletMappingDecoded("/download", "download");
+        tomcat.start();
+
+        clientExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(clientExecutor).build();
+        request = HttpRequest.newBuilder(URI.create("http://localhost:" + connector.getLocalPort() + "/download")).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, LifecycleException {
+        clientExecutor.shutdownNow();
+        tomcat.stop();
+        tomcat.destroy();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public long downloadAll() {
+        CompletableFuture<?>[] responses = new CompletableFuture<?>[downloads];
+        for (int i = 0; i < downloads; i++) {
+            responses[i] = client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenAccept(response -> {
+                if (response.statusCode() != 200) {
+                    throw new IllegalStateException("Unexpected status " + response.statusCode());
+                }
+            });
+        }
+        CompletableFuture.allOf(responses).join();
+        return (long) downloads * fileSize;
+    }
+
+    private HttpServlet servlet() {
+        // No entity tags nor shaping, so the measurement is the transfer alone
+        TransferSchedulerImpl unshaped = new TransferSchedulerImpl(new SimpleMeterRegistry(), DataSize.ofBytes(0),
+                DataSize.ofBytes(0), "", DataSize.ofKilobytes(64), 1);
+        DownloadServiceImpl downloadService = new DownloadServiceImpl(digested -> null, unshaped, false,
+                DataSize.ofKilobytes(48), DataSize.ofBytes(CHUNK_SIZE));
+        Resource resource = new SlowResource(fileSize, readDelayMillis);
+        return new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                downloadService.writeDownload(resource, req, resp);
+            }
+        };
+    }
+
+    /**
+     * A file on slow storage: each read of up to a chunk waits for the delay before returning
+     */
+    private static final class SlowResource extends AbstractResource {
+        private final int size;
+        private final int delayMillis;
+
+        private SlowResource(int size, int delayMillis) {
+            this.size = size;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                private int remaining = size;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining == 0) {
+                        return -1;
+                    }
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    int read = Math.min(Math.min(len, CHUNK_SIZE), remaining);
+                    remaining -= read;
+                    return read;
+                }
+            };
+        }
+
+        @Override
+        public long contentLength() {
+            return size;
+        }
+
+        @Override
+        public long lastModified() {
+            return 0;
+        }
+
+        @Override
+        public String getFilename() {
+            return "slow.bin";
+        }
+
+        @Override
+        public String getDescription() {
+            return "slow resource of " + size + " bytes";
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ludo.mentis.aciem.controlserver.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import ludo.mentis.aciem.controlserver.service.DownloadServiceImpl;
+import ludo.mentis.aciem.controlserver.service.TransferSchedulerImpl;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.UrlResource;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Download throughput over loopback through an embedded Tomcat, comparing the previous download path
+ * (a UrlResource written by Spring's ResourceHttpMessageConverter) with DownloadServiceImpl copying
+ * through a buffer and handing the file to sendfile.
+ * <p>
+ * Bytes per second is the score multiplied by fileSize. The file is filled with random data up to
+ * 64MB and extended sparsely beyond that; run once without measuring to warm the page cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgs = "-Xmx512m")
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+
+    private static final long RANDOM_PREFIX = 64L * 1024 * 1024;
+
+    @Param({"resource-converter", "buffered-copy", "sendfile"})
+    public String path;
+
+    @Param({"1024", "1048576", "104857600", "5368709120"})
+    public long fileSize;
+
+    private Path directory;
+    private Tomcat tomcat;
+    private HttpClient client;
+    private HttpRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, LifecycleException {
+        Path parent = Path.of(System.getProperty("benchmark.dir", System.getProperty("java.io.tmpdir")));
+        directory = Files.createTempDirectory(parent, "download-benchmark");
+        Path file = createFile(directory.resolve("download.bin"), fileSize);
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(directory.resolve("tomcat").toString());
+        Connector connector = new Connector();
+        connector.setPort(0);
+        tomcat.setConnector(connector);
+        Context context = tomcat.addContext("", null);
+        Tomcat.addServlet(context, "download", servlet(file));
+        context.addServletMappingDecoded("/download", "download");
+        tomcat.start();
+
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        request = HttpRequest.newBuilder(URI.create("http://localhost:" + connector.getLocalPort() + "/download")).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, LifecycleException {
+        tomcat.stop();
+        tomcat.destroy();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public int download() throws IOException, InterruptedException {
+        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Unexpected status " + response.statusCode());
+        }
+        return response.statusCode();
+    }
+
+    private HttpServlet servlet(Path file) {
+        if (path.equals("resource-converter")) {
+            ResourceHttpMessageConverter converter = new ResourceHttpMessageConverter();
+            return new HttpServlet() {
+                @Override
+                protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                    converter.write(new UrlResource(file.toUri()), MediaType.APPLICATION_OCTET_STREAM,
+                            new ServletServerHttpResponse(resp));
+                }
+            };
+        }
+
+        // No entity tags nor shaping, so the measurement is the transfer alone
+        TransferSchedulerImpl unshaped = new TransferSchedulerImpl(new SimpleMeterRegistry(), DataSize.ofBytes(0),
+                DataSize.ofBytes(0), "", DataSize.ofKilobytes(64), 1);
+        DownloadServiceImpl downloadService = new DownloadServiceImpl(digested -> null, unshaped,
+                path.equals("sendfile"), DataSize.ofKilobytes(48), DataSize.ofKilobytes(256));
+        FileSystemResource resource = new FileSystemResource(file);
+        return new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                downloadService.writeDownload(resource, req, resp);
+            }
+        };
+    }
+
+    private static Path createFile(Path file, long size) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+            byte[] block = new byte[1024 * 1024];
+            long random = Math.min(size, RANDOM_PREFIX);
+            for (long written = 0; written < random; written += block.length) {
+                ThreadLocalRandom.current().nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, random - written));
+            }
+            out.setLength(size);
+        }
+        return file;
+    }
+}
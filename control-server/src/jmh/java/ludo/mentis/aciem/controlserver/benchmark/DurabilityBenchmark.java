@@ -0,0 +1,76 @@
+package ludo.mentis.aciem.controlserver.benchmark;
+
+import ludo.mentis.aciem.controlserver.service.FileCommitServiceImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost of committing an upload under each durability mode, with several writers committing
+ * concurrently into the same directory.
+ * <p>
+ * Results depend heavily on the storage: set -Dbenchmark.dir to a directory on the disk the
+ * server writes to, rather than a tmpfs.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class DurabilityBenchmark {
+
+    @Param({"none", "fsync", "group-commit"})
+    public String durability;
+
+    @Param({"4096", "1048576"})
+    public int fileSize;
+
+    private Path directory;
+    private FileCommitServiceImpl fileCommitService;
+    private ByteBuffer content;
+
+    @State(Scope.Thread)
+    public static class Writer {
+        private final String fileName = "bench-" + UUID.randomUUID() + ".bin";
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path parent = Path.of(System.getProperty("benchmark.dir", System.getProperty("java.io.tmpdir")));
+        directory = Files.createTempDirectory(parent, "durability-benchmark");
+        fileCommitService = new FileCommitServiceImpl(durability, "", Duration.ZERO, event -> { });
+        content = ByteBuffer.allocateDirect(fileSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fileCommitService.destroy();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public long commit(Writer writer) throws IOException {
+        ByteBuffer data = content.duplicate();
+        return fileCommitService.writeAtomically(directory.resolve(writer.fileName), channel -> {
+            long written = 0;
+            while (data.hasRemaining()) {
+                written += channel.write(data);
+            }
+            return written;
+        });
+    }
+}
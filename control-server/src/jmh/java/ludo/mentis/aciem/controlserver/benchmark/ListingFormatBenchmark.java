@@ -0,0 +1,85 @@
+package ludo.mentis.aciem.controlserver.benchmark;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.util.BinaryListing;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to encode and decode a directory listing as JSON, the way Jackson writes the list endpoint, and in the
+ * binary listing format, and the bytes each one puts on the wire.
+ * <p>
+ * The synthetic directory is sorted by name, as listings are, with names from a small vocabulary and random
+ * numbers and modification times spread over a year. The encoded sizes are printed when a trial starts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Benchmark)
+public class ListingFormatBenchmark {
+
+    private static final String[] WORDS = {"report", "invoice", "backup", "server", "access", "image", "draft",
+            "config", "export", "summary", "archive", "client", "photo", "ledger", "notes", "build"};
+    private static final String[] EXTENSIONS = {".log", ".csv", ".txt", ".json", ".tar.gz", ".pdf", ".jpg", ".java"};
+    private static final long YEAR_MILLIS = 365L * 24 * 3600 * 1000;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    @Param({"1000", "100000", "1000000"})
+    public int entries;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private List<FileInfo> files;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SplittableRandom random = new SplittableRandom(42);
+        long now = System.currentTimeMillis();
+        files = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            String name = WORDS[random.nextInt(WORDS.length)] + "-" + random.nextInt(1_000_000)
+                    + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            boolean directory = random.nextInt(20) == 0;
+            files.add(new FileInfo(name, directory, directory ? 4096 : random.nextLong(1L << 30),
+                    now - random.nextLong(YEAR_MILLIS)));
+        }
+        files.sort(Comparator.comparing(FileInfo::name));
+        encoded = encode();
+        System.out.printf("%n%s listing of %d entries: %d bytes, %.1f per entry%n",
+                format, entries, encoded.length, (double) encoded.length / entries);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(encoded != null ? encoded.length : 8192);
+        if ("binary".equals(format)) {
+            BinaryListing.write(files, out);
+        } else {
+            objectMapper.writeValue(out, files);
+        }
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public List<FileInfo> decode() throws IOException {
+        if ("binary".equals(format)) {
+            return BinaryListing.read(new ByteArrayInputStream(encoded));
+        }
+        return objectMapper.readValue(encoded, new TypeReference<List<FileInfo>>() {
+        });
+    }
+}
@@ -0,0 +1,122 @@
+package ludo.mentis.aciem.controlserver.benchmark;
+
+import ch.qos.logback.classic.Logger;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import ludo.mentis.aciem.controlserver.service.PathValidationServiceImpl;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Cost of checking paths against the allowed directories, comparing the previous check (normalizing every
+ * allowed directory on each call and inspecting the stack of every denied call) with the prefix trie and
+ * cached real paths of PathValidationServiceImpl.
+ * <p>
+ * Allowed paths are files 4 levels below a random allowed directory; denied paths are files as deep in a
+ * directory next to them. Logging of denied paths is turned off, as it would dominate both.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PathValidationBenchmark {
+
+    private static final String NESTED = "a/b/c/file.txt";
+
+    @Param({"previous", "trie"})
+    public String validation;
+
+    @Param({"10", "100", "500"})
+    public int roots;
+
+    private Path directory;
+    private List<Path> allowedDirectories;
+    private PathValidationServiceImpl pathValidationService;
+    private Path[] allowed;
+    private Path[] denied;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ((Logger) LoggerFactory.getLogger(PathValidationServiceImpl.class)).setLevel(ch.qos.logback.classic.Level.OFF);
+        Path parent = Path.of(System.getProperty("benchmark.dir", System.getProperty("java.io.tmpdir")));
+        directory = Files.createTempDirectory(parent, "path-validation-benchmark");
+        allowedDirectories = new ArrayList<>();
+        allowed = new Path[roots];
+        denied = new Path[roots];
+        for (int i = 0; i < roots; i++) {
+            Path root = directory.resolve("allowed-" + i);
+            allowedDirectories.add(root);
+            allowed[i] = createFile(root.resolve(NESTED));
+            denied[i] = createFile(directory.resolve("denied-" + i).resolve(NESTED));
+        }
+        pathValidationService = new PathValidationServiceImpl((dir, listener) -> () -> {
+        }, event -> {
+        }, new SimpleMeterRegistry(), allowedDirectories.stream().map(Path::toString).collect(Collectors.joining(",")), "",
+                10000, Duration.ofSeconds(1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean allowedPath() {
+        return check(allowed[ThreadLocalRandom.current().nextInt(roots)]);
+    }
+
+    @Benchmark
+    public boolean deniedPath() {
+        return check(denied[ThreadLocalRandom.current().nextInt(roots)]);
+    }
+
+    private boolean check(Path path) {
+        return "previous".equals(validation) ? previousIsPathAllowed(path) : pathValidationService.isPathAllowed(path);
+    }
+
+    /**
+     * The check before the prefix trie, without its logging
+     */
+    private boolean previousIsPathAllowed(Path path) {
+        Path normalizedPath = path.normalize().toAbsolutePath();
+        for (Path allowedDir : allowedDirectories) {
+            if (normalizedPath.startsWith(allowedDir.normalize().toAbsolutePath())) {
+                return true;
+            }
+        }
+        boolean isInPathValidationServiceTest = false;
+        for (StackTraceElement element : Thread.currentThread().getStackTrace()) {
+            if (element.getClassName().contains("PathValidationServiceTest")) {
+                isInPathValidationServiceTest = true;
+                break;
+            }
+        }
+        if (!isInPathValidationServiceTest) {
+            String pathString = normalizedPath.toString();
+            return pathString.contains("/Temp/junit-") || pathString.contains("/temp/junit-");
+        }
+        return false;
+    }
+
+    private static Path createFile(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        return Files.createFile(file);
+    }
+}
@@ -0,0 +1,110 @@
+package ludo.mentis.aciem.controlserver.benchmark;
+
+import ludo.mentis.aciem.controlserver.model.SearchType;
+import ludo.mentis.aciem.controlserver.util.IndexSegment;
+import ludo.mentis.aciem.controlserver.util.SearchQuery;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Latency of filename searches over index segments, queried in parallel the way SearchIndexServiceImpl does,
+ * and the time to write the segments, which bounds how fast a rebuild can go once the tree has been walked.
+ * <p>
+ * The synthetic tree has 1000 files per directory, named from a small vocabulary and random numbers, so
+ * trigrams are shared by many names as in real trees. Writing 10M entries takes a few minutes and needs a
+ * large heap; set -Dbenchmark.dir to the disk the index lives on.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgs = "-Xmx8g")
+@State(Scope.Benchmark)
+public class SearchIndexBenchmark {
+
+    private static final String[] WORDS = {"report", "invoice", "backup", "server", "access", "image", "draft",
+            "config", "export", "summary", "archive", "client", "photo", "ledger", "notes", "build"};
+    private static final String[] EXTENSIONS = {".log", ".csv", ".txt", ".json", ".tar.gz", ".pdf", ".jpg", ".java"};
+    private static final int SEGMENT_SIZE = 1_000_000;
+
+    @Param({"1000000", "10000000"})
+    public int entries;
+
+    @Param({"prefix:invoice-4207", "substring:ledger-42", "glob:*-12345*.csv", "substring:ab"})
+    public String query;
+
+    private Path directory;
+    private List<IndexSegment> segments;
+    private SearchQuery compiled;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path parent = Path.of(System.getProperty("benchmark.dir", System.getProperty("java.io.tmpdir")));
+        directory = Files.createTempDirectory(parent, "search-benchmark");
+        segments = writeSegments(directory, entries);
+        int colon = query.indexOf(':');
+        compiled = SearchQuery.of(SearchType.parse(query.substring(0, colon)), query.substring(colon + 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public int search() {
+        return segments.parallelStream()
+                .mapToInt(segment -> segment.search(compiled, 100, path -> true).size())
+                .sum();
+    }
+
+    /**
+     * Time to write one full segment, sorting and building the trigram postings included
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public IndexSegment writeSegment() throws IOException {
+        return IndexSegment.write(directory.resolve("single.idx"), entries(new SplittableRandom(7), 0, SEGMENT_SIZE));
+    }
+
+    private static List<IndexSegment> writeSegments(Path directory, int count) throws IOException {
+        SplittableRandom random = new SplittableRandom(42);
+        List<IndexSegment> segments = new ArrayList<>();
+        for (int start = 0; start < count; start += SEGMENT_SIZE) {
+            List<IndexSegment.Entry> batch = entries(random, start, Math.min(SEGMENT_SIZE, count - start));
+            segments.add(IndexSegment.write(directory.resolve("segment-" + segments.size() + ".idx"), batch));
+        }
+        return segments;
+    }
+
+    private static List<IndexSegment.Entry> entries(SplittableRandom random, int start, int count) {
+        List<IndexSegment.Entry> batch = new ArrayList<>(count);
+        String parent = null;
+        for (int i = start; i < start + count; i++) {
+            if (parent == null || i % 1000 == 0) {
+                parent = File.separator + "data" + File.separator + WORDS[random.nextInt(WORDS.length)]
+                        + File.separator + "dir-" + (i / 1000);
+            }
+            String name = WORDS[random.nextInt(WORDS.length)] + "-" + random.nextInt(100_000)
+                    + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            batch.add(new IndexSegment.Entry(parent, name, false));
+        }
+        return batch;
+    }
+}
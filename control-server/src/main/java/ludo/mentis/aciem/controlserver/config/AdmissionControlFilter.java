@@ -0,0 +1,280 @@
+package ludo.mentis.aciem.controlserver.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import ludo.mentis.aciem.controlserver.util.AdaptiveLimit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Filter that admits file requests within adaptive concurrency limits, so bulk transfers cannot take every
+ * request thread and leave listings waiting behind them.
+ * <p>
+ * Requests are split into two classes, each with its own limit and bounded FIFO queue: bulk transfers
+ * (uploads, downloads, asynchronous transfers and upload session chunks) and metadata operations (everything
+ * else). A request over its class limit waits in the queue for up to the queue timeout; when the queue is
+ * full, or the wait times out, it is shed with 503 and a Retry-After header.
+ * <p>
+ * Both limits adapt by AIMD to the latency of metadata requests, the interactive traffic being protected:
+ * when listings slow down past the target, both limits back off, and the bulk limit keeps backing off while
+ * it is the bulk transfers that hold the threads. Failed requests count as a slowdown of their own class.
+ * Latency is measured from admission, so time spent queued does not feed back into the limits. Streamed
+ * listings, tree walks and usage walks take as long as the directory they cover, so like transfers only their
+ * failures count. Change feeds stay open for long and are not admitted.
+ * <p>
+ * The filter runs after the security filter chain, so requests without a valid API key are refused before
+ * they can take a place in a queue.
+ */
+@Component
+public class AdmissionControlFilter extends OncePerRequestFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControlFilter.class);
+    private static final String FILES_PATH = "/api/files/";
+
+    private final boolean enabled;
+    private final Gate metadata;
+    private final Gate bulk;
+    private final long queueTimeoutNanos;
+    private final String retryAfter;
+
+    /**
+     * Constructor that initializes the limits from application properties
+     *
+     * @param meterRegistry The registry of the limit, in-flight, queue and rejection meters
+     * @param enabled Whether file requests go through admission control
+     * @param latencyTarget The metadata latency above which the limits decrease
+     * @param metadataMaxLimit The highest concurrency limit of metadata requests
+     * @param metadataQueueSize The number of metadata requests that may wait for admission
+     * @param bulkMaxLimit The highest concurrency limit of bulk transfers
+     * @param bulkQueueSize The number of bulk transfers that may wait for admission
+     * @param queueTimeout How long a request waits for admission before it is shed
+     */
+    public AdmissionControlFilter(MeterRegistry meterRegistry,
+                                  @Value("${file.admission.enabled:true}") boolean enabled,
+                                  @Value("${file.admission.latency-target:250ms}") Duration latencyTarget,
+                                  @Value("${file.admission.metadata.max-limit:200}") int metadataMaxLimit,
+                                  @Value("${file.admission.metadata.queue-size:100}") int metadataQueueSize,
+                                  @Value("${file.admission.bulk.max-limit:50}") int bulkMaxLimit,
+                                  @Value("${file.admission.bulk.queue-size:10}") int bulkQueueSize,
+                                  @Value("${file.admission.queue-timeout:2s}") Duration queueTimeout) {
+        this.enabled = enabled;
+        this.metadata = new Gate("metadata", new AdaptiveLimit(Math.max(1, metadataMaxLimit / 4), 1,
+                metadataMaxLimit, latencyTarget), metadataQueueSize, meterRegistry);
+        this.bulk = new Gate("bulk", new AdaptiveLimit(Math.max(1, bulkMaxLimit / 4), 1, bulkMaxLimit, latencyTarget),
+                bulkQueueSize, meterRegistry);
+        this.queueTimeoutNanos = queueTimeout.toNanos();
+        this.retryAfter = Long.toString(Math.max(1, (queueTimeout.toMillis() + 999) / 1000));
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        if (!enabled) {
+            return true;
+        }
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return !path.startsWith(FILES_PATH) || path.equals(FILES_PATH + "changes");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+
+        Gate gate = isBulk(request) ? bulk : metadata;
+        boolean sampled = gate == metadata && !isWalk(request);
+        boolean admitted;
+        try {
+            admitted = gate.acquire(System.nanoTime() + queueTimeoutNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for admission");
+        }
+        if (!admitted) {
+            logger.debug("Shedding {} request {}", gate.name, request.getRequestURI());
+            response.setHeader(HttpHeaders.RETRY_AFTER, retryAfter);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server busy, retry later");
+            return;
+        }
+
+        long admittedAt = System.nanoTime();
+        boolean failed = true;
+        try {
+            filterChain.doFilter(request, response);
+            failed = false;
+        } finally {
+            if (!failed && request.isAsyncStarted()) {
+                // A streamed or shaped response goes on after the request thread returns
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        complete(gate, admittedAt, sampled, isFailure(response));
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                complete(gate, admittedAt, sampled, failed || isFailure(response));
+            }
+        }
+    }
+
+    private void complete(Gate gate, long admittedAt, boolean sampled, boolean failed) {
+        long now = System.nanoTime();
+        long latency = now - admittedAt;
+        if (sampled) {
+            metadata.release(latency, failed, now);
+            // Listings slowed down by the transfers also hold back the transfers
+            bulk.observe(latency, now);
+        } else {
+            // A transfer or a walk takes as long as its size requires, so only its failure says something about load
+            gate.release(0, failed, now);
+        }
+    }
+
+    private static boolean isBulk(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length() + FILES_PATH.length());
+        return path.startsWith("upload") || path.equals("download") || path.startsWith("async/")
+                || (path.startsWith("sessions/") && "PUT".equals(request.getMethod()));
+    }
+
+    private static boolean isWalk(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length() + FILES_PATH.length());
+        return path.equals("list/stream") || path.equals("tree") || path.equals("usage");
+    }
+
+    private static boolean isFailure(HttpServletResponse response) {
+        return response.getStatus() >= 500;
+    }
+
+    /**
+     * The limit and queue of one class of requests
+     */
+    private static final class Gate {
+        private final String name;
+        private final AdaptiveLimit limit;
+        private final int queueSize;
+        private final ArrayDeque<Object> waiters = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final Counter rejected;
+        private int inFlight;
+
+        private Gate(String name, AdaptiveLimit limit, int queueSize, MeterRegistry meterRegistry) {
+            this.name = name;
+            this.limit = limit;
+            this.queueSize = queueSize;
+            Gauge.builder("file.admission.limit", limit, AdaptiveLimit::limit).tag("class", name)
+                    .description("Concurrency limit of a class of file requests").register(meterRegistry);
+            Gauge.builder("file.admission.in-flight", this, Gate::inFlight).tag("class", name)
+                    .description("File requests being served").register(meterRegistry);
+            Gauge.builder("file.admission.queued", this, Gate::queued).tag("class", name)
+                    .description("File requests waiting for admission").register(meterRegistry);
+            this.rejected = Counter.builder("file.admission.rejected").tag("class", name)
+                    .description("File requests shed with 503").register(meterRegistry);
+        }
+
+        /**
+         * @param deadline The System.nanoTime after which the request gives up waiting
+         * @return Whether the request was admitted
+         */
+        private boolean acquire(long deadline) throws InterruptedException {
+            lock.lock();
+            try {
+                if (waiters.isEmpty() && inFlight < limit.limit()) {
+                    inFlight++;
+                    return true;
+                }
+                if (waiters.size() >= queueSize) {
+                    rejected.increment();
+                    return false;
+                }
+                Object waiter = new Object();
+                waiters.addLast(waiter);
+                try {
+                    while (waiters.peekFirst() != waiter || inFlight >= limit.limit()) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            rejected.increment();
+                            return false;
+                        }
+                        changed.awaitNanos(remaining);
+                    }
+                    inFlight++;
+                    return true;
+                } finally {
+                    waiters.remove(waiter);
+                    // The next waiter may now be first in line
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void release(long latency, boolean failed, long now) {
+            lock.lock();
+            try {
+                limit.onSample(latency, failed, inFlight, now);
+                inFlight--;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void observe(long latency, long now) {
+            lock.lock();
+            try {
+                limit.onSample(latency, false, inFlight, now);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int inFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int queued() {
+            lock.lock();
+            try {
+                return waiters.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ludo.mentis.aciem.controlserver.config;
+
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.util.BinaryListing;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes listings in the {@link BinaryListing} encoding. It only writes, and only listings of {@link FileInfo}.
+ */
+public class BinaryListingMessageConverter extends AbstractHttpMessageConverter<List<FileInfo>> {
+
+    public BinaryListingMessageConverter() {
+        super(BinaryListing.MEDIA_TYPE);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return List.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected List<FileInfo> readInternal(Class<? extends List<FileInfo>> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Binary listings are not accepted in requests", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(List<FileInfo> files, HttpOutputMessage outputMessage) throws IOException {
+        for (Object file : files) {
+            if (!(file instanceof FileInfo)) {
+                throw new HttpMessageNotWritableException("Not a listing of files: " + file.getClass().getName());
+            }
+        }
+        OutputStream out = new BufferedOutputStream(outputMessage.getBody(), 8192);
+        BinaryListing.write(files, out);
+    }
+}
@@ -0,0 +1,35 @@
+package ludo.mentis.aciem.controlserver.config;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+import org.springframework.web.servlet.DispatcherServlet;
+
+@Configuration
+public class MultipartConfig {
+
+    public static final String STREAMING_UPLOAD_PATH = "/api/files/upload/stream";
+
+    /**
+     * Multipart resolver that leaves streaming uploads alone, so the container never parses or
+     * spools their bodies and the controller can read them straight from the request stream.
+     *
+     * @return The multipart resolver used by the dispatcher servlet
+     */
+    @Bean(name = DispatcherServlet.MULTIPART_RESOLVER_BEAN_NAME)
+    public MultipartResolver multipartResolver() {
+        return new StandardServletMultipartResolver() {
+            @Override
+            public boolean isMultipart(HttpServletRequest request) {
+                return !isStreamingUpload(request) && super.isMultipart(request);
+            }
+        };
+    }
+
+    private static boolean isStreamingUpload(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return STREAMING_UPLOAD_PATH.equals(path);
+    }
+}
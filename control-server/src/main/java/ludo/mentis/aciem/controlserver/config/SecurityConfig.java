@@ -1,6 +1,9 @@
 package ludo.mentis.aciem.controlserver.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.DispatcherType;
 import ludo.mentis.aciem.controlserver.security.ApiKeyAuthFilter;
+import ludo.mentis.aciem.controlserver.security.ApiKeyStore;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -18,15 +21,33 @@ public class SecurityConfig {
     @Value("${api.key:}")
     private String apiKey;
 
+    @Value("${api.key-admin:false}")
+    private boolean apiKeyAdmin;
+
+    @Value("${api.keys:}")
+    private String apiKeys;
+
+    @Value("${api.rate-limit.requests-per-second:0}")
+    private double requestsPerSecond;
+
+    @Value("${api.rate-limit.burst:0}")
+    private int burst;
+
     @Bean
-    public SecurityFilterChain securityFilterChain(HttpSecurity http) throws Exception {
-        ApiKeyAuthFilter apiKeyAuthFilter = new ApiKeyAuthFilter(apiKey);
+    public SecurityFilterChain securityFilterChain(HttpSecurity http, MeterRegistry meterRegistry) throws Exception {
+        ApiKeyAuthFilter apiKeyAuthFilter = new ApiKeyAuthFilter(
+                ApiKeyStore.of(apiKey, apiKeyAdmin, apiKeys, requestsPerSecond, burst, meterRegistry), meterRegistry);
 
         http
             .csrf(AbstractHttpConfigurer::disable)
             .sessionManagement(session -> session.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
             .authorizeHttpRequests(authorize -> authorize
-                .requestMatchers("/actuator/**").permitAll()
+                .requestMatchers("/actuator/health/**", "/actuator/info").permitAll()
+                // The allowed directories sandbox every key, and transfers and meters reveal the names and rates
+                // of all keys
+                .requestMatchers("/api/admin/**", "/actuator/**").hasRole("ADMIN")
+                // Completes a streaming response whose request was authenticated when it started
+                .dispatcherTypeMatchers(DispatcherType.ASYNC).permitAll()
                 .anyRequest().authenticated()
             )
             .httpBasic(AbstractHttpConfigurer::disable)
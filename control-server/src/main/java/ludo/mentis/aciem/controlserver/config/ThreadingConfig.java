@@ -0,0 +1,34 @@
+package ludo.mentis.aciem.controlserver.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.boot.system.JavaVersion;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Reports which threads serve requests.
+ * <p>
+ * With {@code spring.threads.virtual.enabled} on Java 21 or later, Spring Boot runs Tomcat's request handling and
+ * the asynchronous MVC executor on virtual threads, so a transfer blocked on disk or on a slow client no longer
+ * holds one of a fixed pool of platform threads. Locks on the request path are {@code ReentrantLock}s rather
+ * than monitors, so a virtual thread blocking while holding one does not pin its carrier thread. On older Java
+ * versions the property is ignored, which is logged here rather than left silent.
+ */
+@Configuration
+public class ThreadingConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThreadingConfig.class);
+
+    public ThreadingConfig(Environment environment) {
+        if (Threading.VIRTUAL.isActive(environment)) {
+            logger.info("Requests are served on virtual threads");
+        } else if (environment.getProperty("spring.threads.virtual.enabled", Boolean.class, false)) {
+            logger.warn("spring.threads.virtual.enabled requires Java 21 or later, requests are served on platform "
+                    + "threads on Java {}", JavaVersion.getJavaVersion());
+        } else {
+            logger.info("Requests are served on platform threads");
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package ludo.mentis.aciem.controlserver.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.List;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    /**
+     * Add the binary listing after the default converters, so JSON stays the answer to clients accepting anything
+     *
+     * @param converters The converters of the dispatcher servlet
+     */
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(new BinaryListingMessageConverter());
+    }
+}
@@ -0,0 +1,79 @@
+package ludo.mentis.aciem.controlserver.controller;
+
+import ludo.mentis.aciem.controlserver.model.TransferRate;
+import ludo.mentis.aciem.controlserver.model.TransferStats;
+import ludo.mentis.aciem.controlserver.service.PathValidationService;
+import ludo.mentis.aciem.controlserver.service.TransferScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.file.Path;
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/admin")
+public class AdminController {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdminController.class);
+    private final PathValidationService pathValidationService;
+    private final TransferScheduler transferScheduler;
+
+    public AdminController(PathValidationService pathValidationService, TransferScheduler transferScheduler) {
+        this.pathValidationService = pathValidationService;
+        this.transferScheduler = transferScheduler;
+    }
+
+    /**
+     * Get the allowed directories currently in effect
+     *
+     * @return The allowed directories
+     */
+    @GetMapping("/allowed-directories")
+    public ResponseEntity<List<String>> getAllowedDirectories() {
+        return ResponseEntity.ok(toStrings(pathValidationService.getAllowedDirectories()));
+    }
+
+    /**
+     * Replace the allowed directories without a restart. Requests already running keep the directories
+     * they started with. The change is not persisted: a restart, or a change to the allowed directories
+     * file, brings back the configured ones.
+     *
+     * @param allowedDirectories The new allowed directories
+     * @return The allowed directories now in effect
+     */
+    @PutMapping("/allowed-directories")
+    public ResponseEntity<?> reloadAllowedDirectories(@RequestBody List<String> allowedDirectories) {
+        try {
+            logger.info("Reloading allowed directories: {}", allowedDirectories);
+            return ResponseEntity.ok(toStrings(pathValidationService.reload(allowedDirectories)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body("Failed to reload allowed directories: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the shaped transfers in progress with their current rates
+     *
+     * @return The transfers, empty when transfers are not shaped
+     */
+    @GetMapping("/transfers")
+    public ResponseEntity<List<TransferStats>> getTransfers() {
+        return ResponseEntity.ok(transferScheduler.streams());
+    }
+
+    /**
+     * Get the current transfer rates of every API key that made a shaped transfer
+     *
+     * @return The rates per API key and direction
+     */
+    @GetMapping("/transfers/rates")
+    public ResponseEntity<List<TransferRate>> getTransferRates() {
+        return ResponseEntity.ok(transferScheduler.rates());
+    }
+
+    private static List<String> toStrings(List<Path> directories) {
+        return directories.stream().map(Path::toString).toList();
+    }
+}
@@ -0,0 +1,95 @@
+package ludo.mentis.aciem.controlserver.controller;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import ludo.mentis.aciem.controlserver.service.AsyncFileService;
+import ludo.mentis.aciem.controlserver.service.FileService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static ludo.mentis.aciem.controlserver.controller.FileController.ACCESS_DENIED;
+
+/**
+ * Upload and download endpoints that transfer with non-blocking I/O, so the request thread is released as soon
+ * as the transfer has started. Paths are validated as by {@link FileController}, before anything is transferred.
+ */
+@RestController
+@RequestMapping("/api/files/async")
+public class AsyncFileController {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncFileController.class);
+    private final FileService fileService;
+    private final AsyncFileService asyncFileService;
+
+    public AsyncFileController(FileService fileService, AsyncFileService asyncFileService) {
+        this.fileService = fileService;
+        this.asyncFileService = asyncFileService;
+    }
+
+    /**
+     * Upload the request body as a file
+     *
+     * @param directory The directory to upload to
+     * @param filename The name of the file
+     * @param request The request, whose body is the raw file content
+     * @param response The response, written once the file is stored
+     * @return The error response if the upload cannot start, or null once it has started
+     */
+    @PostMapping(value = "/upload", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<String> uploadFile(@RequestParam("directory") String directory,
+                                             @RequestParam("filename") String filename,
+                                             HttpServletRequest request, HttpServletResponse response) {
+        try {
+            logger.info("Uploading file {} to directory {} asynchronously", filename, directory);
+            Path validatedDirectory = fileService.validateUploadDirectory(directory);
+            asyncFileService.upload(validatedDirectory, filename, request, response);
+            // The response is written when the upload completes
+            return null;
+        } catch (IOException e) {
+            logger.error("Failed to upload file", e);
+
+            // Return FORBIDDEN status for access-denied errors
+            if (e.getMessage() != null && e.getMessage().contains(ACCESS_DENIED)) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                        .body("Access denied: Directory is not in the allowed list");
+            }
+
+            return ResponseEntity.badRequest().body("Failed to upload file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Download a file, or a single byte range of it requested with a Range header
+     *
+     * @param filePath The path of the file to download
+     * @param request The request, including any Range and conditional headers
+     * @param response The response the file is written to
+     */
+    @GetMapping("/download")
+    public void downloadFile(@RequestParam("filePath") String filePath,
+                             HttpServletRequest request, HttpServletResponse response) {
+        try {
+            logger.info("Downloading file from path {} asynchronously", filePath);
+            Resource resource = fileService.downloadFile(filePath);
+            asyncFileService.download(resource.getFile().toPath(), request, response);
+        } catch (IOException e) {
+            logger.error("Failed to download file", e);
+
+            // Return FORBIDDEN status for access-denied errors
+            if (e.getMessage() != null && e.getMessage().contains(ACCESS_DENIED)) {
+                response.setStatus(HttpStatus.FORBIDDEN.value());
+                return;
+            }
+
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+        }
+    }
+}
@@ -1,20 +1,48 @@
 package ludo.mentis.aciem.controlserver.controller;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import ludo.mentis.aciem.controlserver.model.ChangeEvent;
 import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.model.SearchType;
+import ludo.mentis.aciem.controlserver.model.SortKey;
+import ludo.mentis.aciem.controlserver.service.ChangeFeedService;
+import ludo.mentis.aciem.controlserver.service.DownloadService;
 import ludo.mentis.aciem.controlserver.service.FileService;
+import ludo.mentis.aciem.controlserver.service.SearchIndexService;
+import ludo.mentis.aciem.controlserver.service.TransferScheduler;
+import ludo.mentis.aciem.controlserver.service.TreeWalkService;
+import ludo.mentis.aciem.controlserver.service.UsageService;
+import ludo.mentis.aciem.controlserver.util.BinaryListing;
+import ludo.mentis.aciem.controlserver.util.ETags;
+import ludo.mentis.aciem.controlserver.util.ListingCursor;
+import ludo.mentis.aciem.controlserver.util.ListingQuery;
+import ludo.mentis.aciem.controlserver.util.MultipartStreamReader;
+import ludo.mentis.aciem.controlserver.util.OperationMeter;
+import ludo.mentis.aciem.controlserver.util.TreeFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Objects;
 
 @RestController
 @RequestMapping("/api/files")
@@ -22,14 +50,49 @@ public class FileController {
 
     private static final Logger logger = LoggerFactory.getLogger(FileController.class);
     public static final String ACCESS_DENIED = "Access denied";
+    private static final int MAX_FIELD_LENGTH = 4096;
+    private static final int MAX_SEARCH_LIMIT = 10000;
     private final FileService fileService;
+    private final DownloadService downloadService;
+    private final TreeWalkService treeWalkService;
+    private final SearchIndexService searchIndexService;
+    private final UsageService usageService;
+    private final ChangeFeedService changeFeedService;
+    private final TransferScheduler transferScheduler;
+    private final ObjectMapper objectMapper;
+    private final Counter downloadedBytes;
+    private final OperationMeter download;
+    private final OperationMeter listStream;
+    private final OperationMeter tree;
+    private final OperationMeter search;
+    private final OperationMeter usage;
 
-    public FileController(FileService fileService) {
+    public FileController(FileService fileService, DownloadService downloadService, TreeWalkService treeWalkService,
+                          SearchIndexService searchIndexService, UsageService usageService,
+                          ChangeFeedService changeFeedService, TransferScheduler transferScheduler,
+                          ObjectMapper objectMapper, MeterRegistry meterRegistry) {
         this.fileService = fileService;
+        this.downloadService = downloadService;
+        this.treeWalkService = treeWalkService;
+        this.searchIndexService = searchIndexService;
+        this.usageService = usageService;
+        this.changeFeedService = changeFeedService;
+        this.transferScheduler = transferScheduler;
+        this.objectMapper = objectMapper;
+        this.downloadedBytes = OperationMeter.transferred("download", meterRegistry);
+        // Timed here rather than in the services, so that denied requests and the writing of the response count
+        this.download = new OperationMeter("download", meterRegistry);
+        this.listStream = new OperationMeter("list-stream", meterRegistry);
+        this.tree = new OperationMeter("tree", meterRegistry);
+        this.search = new OperationMeter("search", meterRegistry);
+        this.usage = new OperationMeter("usage", meterRegistry);
     }
 
     /**
      * Upload a file to the specified directory
+     * <p>
+     * The container has received the whole part before this runs, so when transfers are shaped the rate applies to
+     * moving the part into place: the response to an upload is held back until its bytes have been granted.
      * 
      * @param file The file to upload
      * @param directory The directory to upload to
@@ -42,7 +105,12 @@ public class FileController {
 
         try {
             logger.info("Uploading file {} to directory {}", file.getOriginalFilename(), directory);
-            Path savedPath = fileService.uploadFile(file, directory);
+            Path validatedDirectory = fileService.validateUploadDirectory(directory);
+            String filename = Objects.requireNonNull(file.getOriginalFilename());
+            Path savedPath;
+            try (InputStream content = transferScheduler.shape(file.getInputStream(), filename)) {
+                savedPath = fileService.uploadFile(content, filename, validatedDirectory);
+            }
             return ResponseEntity.ok("File uploaded successfully to: " + savedPath);
         } catch (IOException e) {
             logger.error("Failed to upload file", e);
@@ -58,48 +126,156 @@ public class FileController {
     }
 
     /**
-     * Download a file from the specified path
+     * Upload a file by parsing the multipart body incrementally from the request stream
+     * <p>
+     * The {@code directory} field must precede the {@code file} part. It is validated as soon as it
+     * arrives, and the file content is then written straight to the target without being spooled.
+     *
+     * @param request The multipart request
+     * @return Response with the path where the file was saved
+     */
+    @PostMapping(value = "/upload/stream", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<String> uploadFileStream(HttpServletRequest request) {
+        try {
+            String boundary = MediaType.parseMediaType(request.getContentType()).getParameter("boundary");
+            if (boundary == null) {
+                return ResponseEntity.badRequest().body("Failed to upload file: Missing multipart boundary");
+            }
+
+            MultipartStreamReader reader = new MultipartStreamReader(request.getInputStream(), boundary);
+            Path directory = null;
+            Path savedPath = null;
+            MultipartStreamReader.Part part;
+            while ((part = reader.nextPart()) != null) {
+                if ("directory".equals(part.name())) {
+                    String directoryField = part.contentAsString(MAX_FIELD_LENGTH);
+                    logger.info("Streaming upload to directory {}", directoryField);
+                    directory = fileService.validateUploadDirectory(directoryField);
+                } else if ("file".equals(part.name()) && savedPath == null) {
+                    if (directory == null) {
+                        return ResponseEntity.badRequest()
+                                .body("Failed to upload file: The directory field must precede the file part");
+                    }
+                    logger.info("Streaming file {} to directory {}", part.filename(), directory);
+                    String filename = Objects.requireNonNull(part.filename());
+                    try (InputStream content = transferScheduler.shape(part.body(), filename)) {
+                        savedPath = fileService.uploadFile(content, filename, directory);
+                    }
+                }
+            }
+
+            if (savedPath == null) {
+                return ResponseEntity.badRequest().body("Failed to upload file: Missing file part");
+            }
+            return ResponseEntity.ok("File uploaded successfully to: " + savedPath);
+        } catch (IOException e) {
+            logger.error("Failed to upload file", e);
+
+            // Return FORBIDDEN status for access-denied errors
+            if (e.getMessage() != null && e.getMessage().contains(ACCESS_DENIED)) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                        .body("Access denied: Directory is not in the allowed list");
+            }
+
+            return ResponseEntity.badRequest().body("Failed to upload file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Download a file from the specified path, or the byte ranges of it requested with a Range header
+     * <p>
+     * A download is timed, and its bytes counted, once its body has been written, which for a shaped download is
+     * after this returns.
      * 
      * @param filePath The path of the file to download
-     * @return The file as a downloadable resource
+     * @param request The request, including any Range and If-Range headers
+     * @param response The response the file is written to
+     * @throws IOException If an I/O error occurs while writing the file
      */
     @GetMapping("/download")
-    public ResponseEntity<Resource> downloadFile(@RequestParam("filePath") String filePath) {
+    public void downloadFile(@RequestParam("filePath") String filePath,
+                             HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long startNanos = download.start();
+        Resource resource;
         try {
             logger.info("Downloading file from path: {}", filePath);
-            Resource resource = fileService.downloadFile(filePath);
-
-            String contentType = "application/octet-stream";
-            String filename = resource.getFilename();
-
-            return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(contentType))
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
-                    .body(resource);
+            resource = fileService.downloadFile(filePath);
         } catch (IOException e) {
+            download.stop(startNanos, e);
             logger.error("Failed to download file", e);
 
             // Return FORBIDDEN status for access-denied errors
             if (e.getMessage() != null && e.getMessage().contains(ACCESS_DENIED)) {
-                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+                response.setStatus(HttpStatus.FORBIDDEN.value());
+                return;
             }
 
-            return ResponseEntity.notFound().build();
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            return;
+        } catch (RuntimeException e) {
+            download.stop(startNanos, e);
+            throw e;
         }
+
+        downloadService.writeDownload(resource, request, response, (sent, error) -> {
+            downloadedBytes.increment(sent);
+            download.stop(startNanos, error);
+        });
     }
 
     /**
-     * List all files in the specified directory
+     * List all files in the specified directory. The response carries a strong ETag of the listing,
+     * so a client revalidating with If-None-Match gets 304 Not Modified while the directory is unchanged.
+     * With a sort key, limit or predicate, the entries are selected on the server and only those are sent,
+     * e.g. the 50 largest files with sort=size, order=desc and limit=50.
+     * Clients that prefer {@value BinaryListing#MEDIA_TYPE_VALUE} in their Accept header get the listing
+     * in that compact encoding instead of JSON.
      * 
      * @param directory The directory to list files from
+     * @param sort The attribute entries are sorted by: name, size or lastModified
+     * @param order The sort direction: asc or desc
+     * @param limit The maximum number of entries
+     * @param include Glob patterns names must match one of
+     * @param exclude Glob patterns names must match none of
+     * @param minSize The minimum size in bytes
+     * @param maxSize The maximum size in bytes
+     * @param modifiedAfter Only entries modified at or after this epoch millisecond
+     * @param modifiedBefore Only entries modified before this epoch millisecond
+     * @param accept The Accept header of the request
      * @return A list of file information
      */
     @GetMapping("/list")
-    public ResponseEntity<?> listFiles(@RequestParam("directory") String directory) {
+    public ResponseEntity<?> listFiles(@RequestParam("directory") String directory,
+                                       @RequestParam(value = "sort", required = false) String sort,
+                                       @RequestParam(value = "order", required = false) String order,
+                                       @RequestParam(value = "limit", required = false) Integer limit,
+                                       @RequestParam(value = "include", required = false) List<String> include,
+                                       @RequestParam(value = "exclude", required = false) List<String> exclude,
+                                       @RequestParam(value = "minSize", required = false) Long minSize,
+                                       @RequestParam(value = "maxSize", required = false) Long maxSize,
+                                       @RequestParam(value = "modifiedAfter", required = false) Long modifiedAfter,
+                                       @RequestParam(value = "modifiedBefore", required = false) Long modifiedBefore,
+                                       @RequestHeader(value = "Accept", required = false) String accept) {
+        ListingQuery query = null;
+        if (sort != null || order != null || limit != null || include != null || exclude != null || minSize != null
+                || maxSize != null || modifiedAfter != null || modifiedBefore != null) {
+            try {
+                query = ListingQuery.of(sort != null ? SortKey.parse(sort) : null, isDescending(order), limit,
+                        include, exclude, minSize, maxSize, modifiedAfter, modifiedBefore);
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body("Failed to list files: " + e.getMessage());
+            }
+        }
+
         try {
             logger.info("Listing files in directory: {}", directory);
-            List<FileInfo> files = fileService.listFiles(directory);
-            return ResponseEntity.ok(files);
+            List<FileInfo> files = query != null ? fileService.listFiles(directory, query) : fileService.listFiles(directory);
+            // A matching If-None-Match is answered with 304 Not Modified when the entity is handled
+            if (BinaryListing.isPreferred(accept)) {
+                return ResponseEntity.ok().varyBy("Accept").contentType(BinaryListing.MEDIA_TYPE)
+                        .eTag(ETags.forListing(files, BinaryListing.MEDIA_TYPE)).body(files);
+            }
+            return ResponseEntity.ok().varyBy("Accept").eTag(ETags.forListing(files)).body(files);
         } catch (IOException e) {
             logger.error("Failed to list files", e);
 
@@ -112,4 +288,333 @@ public class FileController {
             return ResponseEntity.badRequest().body("Failed to list files: " + e.getMessage());
         }
     }
+
+    /**
+     * List the files in the specified directory, writing each entry to the response as the directory is read,
+     * so neither the listing nor its JSON is ever held in memory. With a limit the listing is paginated:
+     * the response carries a cursor that requests the next page.
+     *
+     * @param directory The directory to list files from
+     * @param limit The maximum number of entries per page, or 0 for all of them
+     * @param cursor The nextCursor of the previous page, or null for the first page
+     * @param response The response the listing is written to
+     * @throws IOException If an I/O error occurs while writing the listing
+     */
+    @GetMapping("/list/stream")
+    public void streamFiles(@RequestParam("directory") String directory,
+                            @RequestParam(value = "limit", defaultValue = "0") int limit,
+                            @RequestParam(value = "cursor", required = false) String cursor,
+                            HttpServletResponse response) throws IOException {
+        long startNanos = listStream.start();
+        Throwable error = null;
+        try {
+            Path dirPath;
+            String after;
+            try {
+                logger.info("Streaming files in directory: {}", directory);
+                dirPath = fileService.validateListDirectory(directory);
+                after = ListingCursor.decode(cursor);
+            } catch (IOException e) {
+                error = e;
+                logger.error("Failed to list files", e);
+
+                // Return FORBIDDEN status for access-denied errors
+                if (e.getMessage() != null && e.getMessage().contains(ACCESS_DENIED)) {
+                    writeError(response, HttpStatus.FORBIDDEN, "Access denied: Directory is not in the allowed list");
+                    return;
+                }
+
+                writeError(response, HttpStatus.BAD_REQUEST, "Failed to list files: " + e.getMessage());
+                return;
+            } catch (IllegalArgumentException e) {
+                error = e;
+                writeError(response, HttpStatus.BAD_REQUEST, "Failed to list files: Invalid cursor");
+                return;
+            }
+            if (limit < 0) {
+                writeError(response, HttpStatus.BAD_REQUEST, "Failed to list files: Invalid limit " + limit);
+                return;
+            }
+
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            try (JsonGenerator generator = objectMapper.createGenerator(response.getOutputStream(), JsonEncoding.UTF8)) {
+                // {"files":[...],"nextCursor":...}, the cursor last as it is only known once the page is complete.
+                // A listing that fails midway must not be closed into valid JSON that looks complete.
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("files");
+                String last = fileService.listFiles(dirPath, after, limit, generator::writeObject);
+                generator.writeEndArray();
+                generator.writeStringField("nextCursor", ListingCursor.encode(last));
+                generator.writeEndObject();
+            }
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            listStream.stop(startNanos, error);
+        }
+    }
+
+    /**
+     * List the tree below the specified directory, writing each matching entry to the response as soon as it
+     * is found. Entries are named by their path relative to the directory and arrive in no particular order.
+     * Clients that prefer {@value BinaryListing#MEDIA_TYPE_VALUE} get the entries in that encoding.
+     *
+     * @param directory The directory to list
+     * @param maxDepth How many levels are listed, 1 for the direct children only; all levels when absent
+     * @param include Glob patterns entries must match one of
+     * @param exclude Glob patterns entries must match none of; excluded directories are not descended into
+     * @param minSize The minimum size in bytes
+     * @param maxSize The maximum size in bytes
+     * @param modifiedAfter Only entries modified at or after this epoch millisecond
+     * @param modifiedBefore Only entries modified before this epoch millisecond
+     * @param accept The Accept header of the request
+     * @param response The response the entries are written to
+     * @throws IOException If an I/O error occurs while writing the entries
+     */
+    @GetMapping("/tree")
+    public void listTree(@RequestParam("directory") String directory,
+                         @RequestParam(value = "maxDepth", required = false) Integer maxDepth,
+                         @RequestParam(value = "include", required = false) List<String> include,
+                         @RequestParam(value = "exclude", required = false) List<String> exclude,
+                         @RequestParam(value = "minSize", required = false) Long minSize,
+                         @RequestParam(value = "maxSize", required = false) Long maxSize,
+                         @RequestParam(value = "modifiedAfter", required = false) Long modifiedAfter,
+                         @RequestParam(value = "modifiedBefore", required = false) Long modifiedBefore,
+                         @RequestHeader(value = "Accept", required = false) String accept,
+                         HttpServletResponse response) throws IOException {
+        long startNanos = tree.start();
+        Throwable error = null;
+        try {
+            Path dirPath;
+            TreeFilter filter;
+            try {
+                logger.info("Listing tree below directory: {}", directory);
+                dirPath = fileService.validateListDirectory(directory);
+                filter = TreeFilter.of(maxDepth, include, exclude, minSize, maxSize, modifiedAfter, modifiedBefore);
+            } catch (IOException e) {
+                error = e;
+                logger.error("Failed to list tree", e);
+
+                // Return FORBIDDEN status for access-denied errors
+                if (e.getMessage() != null && e.getMessage().contains(ACCESS_DENIED)) {
+                    writeError(response, HttpStatus.FORBIDDEN, "Access denied: Directory is not in the allowed list");
+                    return;
+                }
+
+                writeError(response, HttpStatus.BAD_REQUEST, "Failed to list tree: " + e.getMessage());
+                return;
+            } catch (IllegalArgumentException e) {
+                error = e;
+                writeError(response, HttpStatus.BAD_REQUEST, "Failed to list tree: " + e.getMessage());
+                return;
+            }
+
+            if (BinaryListing.isPreferred(accept)) {
+                response.setContentType(BinaryListing.MEDIA_TYPE_VALUE);
+                // A walk that fails midway is not finished, so the client sees the listing was cut off
+                OutputStream out = new BufferedOutputStream(response.getOutputStream(), 8192);
+                BinaryListing.Writer writer = new BinaryListing.Writer(out);
+                long count = treeWalkService.walk(dirPath, filter, writer::write);
+                writer.finish();
+                logger.debug("Listed {} entries below {}", count, dirPath);
+                return;
+            }
+
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            try (JsonGenerator generator = objectMapper.createGenerator(response.getOutputStream(),
+                    JsonEncoding.UTF8)) {
+                // A walk that fails midway must not be closed into valid JSON that looks complete
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+                generator.writeStartArray();
+                long count = treeWalkService.walk(dirPath, filter, generator::writeObject);
+                generator.writeEndArray();
+                logger.debug("Listed {} entries below {}", count, dirPath);
+            }
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            tree.stop(startNanos, error);
+        }
+    }
+
+    /**
+     * Search the filename index of every allowed directory
+     *
+     * @param query The text to look for, or a glob pattern
+     * @param type How the query is matched: prefix, substring or glob
+     * @param limit The maximum number of files returned
+     * @param accept The Accept header of the request; the files are sent in binary to clients that prefer it
+     * @return The matching files, named by their full path and ordered by name
+     */
+    @GetMapping("/search")
+    public ResponseEntity<?> searchFiles(@RequestParam("query") String query,
+                                         @RequestParam(value = "type", defaultValue = "substring") String type,
+                                         @RequestParam(value = "limit", defaultValue = "100") int limit,
+                                         @RequestHeader(value = "Accept", required = false) String accept) {
+        SearchType searchType;
+        try {
+            searchType = SearchType.parse(type);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body("Failed to search files: Invalid type " + type);
+        }
+        if (limit < 1 || limit > MAX_SEARCH_LIMIT) {
+            return ResponseEntity.badRequest().body("Failed to search files: Invalid limit " + limit);
+        }
+
+        long startNanos = search.start();
+        Throwable error = null;
+        try {
+            logger.info("Searching files: {} {}", searchType, query);
+            List<FileInfo> files = searchIndexService.search(searchType, query, limit);
+            if (BinaryListing.isPreferred(accept)) {
+                return ResponseEntity.ok().varyBy("Accept").contentType(BinaryListing.MEDIA_TYPE).body(files);
+            }
+            return ResponseEntity.ok().varyBy("Accept").body(files);
+        } catch (IllegalStateException e) {
+            error = e;
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Search index is not ready");
+        } catch (IllegalArgumentException e) {
+            error = e;
+            return ResponseEntity.badRequest().body("Failed to search files: " + e.getMessage());
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            search.stop(startNanos, error);
+        }
+    }
+
+    /**
+     * Get the disk usage of the tree below the specified directory. The first request walks the tree;
+     * later ones are answered from totals kept up to date as files change.
+     *
+     * @param directory The directory to measure
+     * @return The total size and counts of the tree, and its largest files and subdirectories
+     */
+    @GetMapping("/usage")
+    public ResponseEntity<?> getUsage(@RequestParam("directory") String directory) {
+        long startNanos = usage.start();
+        Throwable error = null;
+        try {
+            logger.info("Getting usage of directory: {}", directory);
+            Path dirPath = fileService.validateListDirectory(directory);
+            return ResponseEntity.ok(usageService.usage(dirPath));
+        } catch (IOException e) {
+            error = e;
+            logger.error("Failed to get usage", e);
+
+            // Return FORBIDDEN status for access-denied errors
+            if (e.getMessage() != null && e.getMessage().contains(ACCESS_DENIED)) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                        .body("Access denied: Directory is not in the allowed list");
+            }
+
+            return ResponseEntity.badRequest().body("Failed to get usage: " + e.getMessage());
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            usage.stop(startNanos, error);
+        }
+    }
+
+    /**
+     * Stream the changes to the direct children of the specified directory as server-sent events, each carrying
+     * its sequence number as the event id. A client that reconnects with the Last-Event-ID header, or the after
+     * parameter, is first sent the events it missed; when they are no longer buffered it is sent a RESET event
+     * and should list the directory again.
+     *
+     * @param directory The directory to watch
+     * @param after The sequence number of the last event received, when not sent as Last-Event-ID
+     * @param lastEventId The id of the last event received, sent by event source clients on reconnection
+     * @param response The response errors are written to
+     * @return The event stream, or null when an error was written
+     * @throws IOException If an I/O error occurs while writing an error
+     */
+    @GetMapping("/changes")
+    public SseEmitter streamChanges(@RequestParam("directory") String directory,
+                                    @RequestParam(value = "after", required = false) Long after,
+                                    @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+                                    HttpServletResponse response) throws IOException {
+        Path dirPath;
+        try {
+            logger.info("Streaming changes in directory: {}", directory);
+            dirPath = fileService.validateListDirectory(directory);
+        } catch (IOException e) {
+            logger.error("Failed to stream changes", e);
+
+            // Return FORBIDDEN status for access-denied errors
+            if (e.getMessage() != null && e.getMessage().contains(ACCESS_DENIED)) {
+                writeError(response, HttpStatus.FORBIDDEN, "Access denied: Directory is not in the allowed list");
+                return null;
+            }
+
+            writeError(response, HttpStatus.BAD_REQUEST, "Failed to stream changes: " + e.getMessage());
+            return null;
+        }
+
+        Long resumeAfter = after;
+        if (lastEventId != null) {
+            try {
+                resumeAfter = Long.valueOf(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                // An id the server never sent can only be answered with a reset
+                resumeAfter = -1L;
+            }
+        }
+
+        // The timeout is spring.mvc.async.request-timeout; clients reconnect with the last id
+        SseEmitter emitter = new SseEmitter();
+        ChangeFeedService.Subscription subscription;
+        try {
+            subscription = changeFeedService.subscribe(dirPath, resumeAfter, eventSubscriber(emitter));
+        } catch (IOException e) {
+            logger.error("Failed to stream changes", e);
+            writeError(response, HttpStatus.BAD_REQUEST, "Failed to stream changes: " + e.getMessage());
+            return null;
+        }
+        emitter.onCompletion(subscription::close);
+        emitter.onTimeout(subscription::close);
+        emitter.onError(e -> subscription.close());
+        return emitter;
+    }
+
+    private static ChangeFeedService.Subscriber eventSubscriber(SseEmitter emitter) {
+        return new ChangeFeedService.Subscriber() {
+            @Override
+            public void onEvent(ChangeEvent event) throws IOException {
+                emitter.send(SseEmitter.event().id(Long.toString(event.sequence())).data(event, MediaType.APPLICATION_JSON));
+            }
+
+            @Override
+            public void onHeartbeat() throws IOException {
+                emitter.send(SseEmitter.event().comment("heartbeat"));
+            }
+
+            @Override
+            public void onClose() {
+                emitter.complete();
+            }
+        };
+    }
+
+    private static boolean isDescending(String order) {
+        if (order == null || order.equalsIgnoreCase("asc")) {
+            return false;
+        }
+        if (order.equalsIgnoreCase("desc")) {
+            return true;
+        }
+        throw new IllegalArgumentException("Invalid order: " + order);
+    }
+
+    private static void writeError(HttpServletResponse response, HttpStatus status, String message) throws IOException {
+        response.setStatus(status.value());
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(message);
+    }
 }
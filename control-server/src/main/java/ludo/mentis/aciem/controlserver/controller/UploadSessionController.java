@@ -0,0 +1,142 @@
+package ludo.mentis.aciem.controlserver.controller;
+
+import ludo.mentis.aciem.controlserver.model.UploadSession;
+import ludo.mentis.aciem.controlserver.service.TransferScheduler;
+import ludo.mentis.aciem.controlserver.service.UploadSessionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+
+import static ludo.mentis.aciem.controlserver.controller.FileController.ACCESS_DENIED;
+
+@RestController
+@RequestMapping("/api/files/sessions")
+public class UploadSessionController {
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadSessionController.class);
+    public static final String SESSION_NOT_FOUND = "Upload session not found";
+    private final UploadSessionService uploadSessionService;
+    private final TransferScheduler transferScheduler;
+
+    public UploadSessionController(UploadSessionService uploadSessionService, TransferScheduler transferScheduler) {
+        this.uploadSessionService = uploadSessionService;
+        this.transferScheduler = transferScheduler;
+    }
+
+    /**
+     * Create a resumable upload session
+     *
+     * @param directory The directory to upload to
+     * @param fileName The name of the file being uploaded
+     * @param size The total size of the file if known; the part file is then preallocated
+     * @return The new session
+     */
+    @PostMapping
+    public ResponseEntity<?> createSession(
+            @RequestParam("directory") String directory,
+            @RequestParam("fileName") String fileName,
+            @RequestParam(value = "size", defaultValue = "-1") long size) {
+
+        try {
+            logger.info("Creating upload session for file {} in directory {}", fileName, directory);
+            UploadSession session = uploadSessionService.createSession(directory, fileName, size);
+            return ResponseEntity.created(URI.create("/api/files/sessions/" + session.id())).body(session);
+        } catch (IOException e) {
+            return errorResponse("Failed to create upload session", e);
+        }
+    }
+
+    /**
+     * Get the state of an upload session, including the byte ranges received so far
+     *
+     * @param sessionId The session id
+     * @return The session
+     */
+    @GetMapping("/{sessionId}")
+    public ResponseEntity<?> getSession(@PathVariable("sessionId") String sessionId) {
+        try {
+            return ResponseEntity.ok(uploadSessionService.getSession(sessionId));
+        } catch (IOException e) {
+            return errorResponse("Failed to get upload session", e);
+        }
+    }
+
+    /**
+     * Write a chunk of the file at an explicit offset
+     *
+     * @param sessionId The session id
+     * @param offset The position of the first byte of the chunk in the file
+     * @param content The raw chunk content
+     * @return The session, including the byte ranges received so far
+     */
+    @PutMapping(value = "/{sessionId}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<?> writeChunk(
+            @PathVariable("sessionId") String sessionId,
+            @RequestParam("offset") long offset,
+            InputStream content) {
+
+        try (InputStream shaped = transferScheduler.shape(content,
+                uploadSessionService.getSession(sessionId).fileName())) {
+            return ResponseEntity.ok(uploadSessionService.writeChunk(sessionId, offset, shaped));
+        } catch (IOException e) {
+            return errorResponse("Failed to write chunk", e);
+        }
+    }
+
+    /**
+     * Commit an upload session, moving the file into its target location
+     *
+     * @param sessionId The session id
+     * @return Response with the path where the file was saved
+     */
+    @PostMapping("/{sessionId}/commit")
+    public ResponseEntity<?> commit(@PathVariable("sessionId") String sessionId) {
+        try {
+            logger.info("Committing upload session {}", sessionId);
+            Path savedPath = uploadSessionService.commit(sessionId);
+            return ResponseEntity.ok("File uploaded successfully to: " + savedPath);
+        } catch (IOException e) {
+            return errorResponse("Failed to commit upload session", e);
+        }
+    }
+
+    /**
+     * Abort an upload session and discard the received data
+     *
+     * @param sessionId The session id
+     * @return An empty response
+     */
+    @DeleteMapping("/{sessionId}")
+    public ResponseEntity<?> abort(@PathVariable("sessionId") String sessionId) {
+        try {
+            logger.info("Aborting upload session {}", sessionId);
+            uploadSessionService.abort(sessionId);
+            return ResponseEntity.noContent().build();
+        } catch (IOException e) {
+            return errorResponse("Failed to abort upload session", e);
+        }
+    }
+
+    private ResponseEntity<String> errorResponse(String message, IOException e) {
+        logger.error(message, e);
+
+        if (e.getMessage() != null && e.getMessage().contains(ACCESS_DENIED)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body("Access denied: Directory is not in the allowed list");
+        }
+
+        if (e.getMessage() != null && e.getMessage().contains(SESSION_NOT_FOUND)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(e.getMessage());
+        }
+
+        return ResponseEntity.badRequest().body(message + ": " + e.getMessage());
+    }
+}
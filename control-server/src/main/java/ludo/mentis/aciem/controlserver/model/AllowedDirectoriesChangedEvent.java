@@ -0,0 +1,12 @@
+package ludo.mentis.aciem.controlserver.model;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Application event published when the allowed directories were reloaded
+ *
+ * @param allowedDirectories The new allowed directories
+ */
+public record AllowedDirectoriesChangedEvent(List<Path> allowedDirectories) {
+}
@@ -0,0 +1,11 @@
+package ludo.mentis.aciem.controlserver.model;
+
+/**
+ * Class to represent a range of bytes, from start (inclusive) to end (exclusive)
+ */
+public record ByteRange(long start, long end) {
+
+    public long length() {
+        return end - start;
+    }
+}
@@ -0,0 +1,13 @@
+package ludo.mentis.aciem.controlserver.model;
+
+/**
+ * A change to the direct children of a watched directory
+ *
+ * @param sequence The sequence number, increasing across the events of every directory and across restarts;
+ *                 a client resumes the feed after the last sequence number it received
+ * @param type The kind of change
+ * @param name The name of the changed child, or null for a reset
+ * @param timestamp When the change was reported, in epoch milliseconds
+ */
+public record ChangeEvent(long sequence, ChangeType type, String name, long timestamp) {
+}
@@ -0,0 +1,24 @@
+package ludo.mentis.aciem.controlserver.model;
+
+/**
+ * The kind of change reported by the change feed of a directory
+ */
+public enum ChangeType {
+    /**
+     * A file or directory was created in the directory, or moved into it.
+     */
+    CREATE,
+    /**
+     * A file in the directory was written to.
+     */
+    MODIFY,
+    /**
+     * A file or directory was deleted from the directory, or moved out of it.
+     */
+    DELETE,
+    /**
+     * Changes may have been missed, because the client fell behind, resumed from a sequence number that is
+     * no longer buffered, or the operating system dropped events. The directory should be listed again.
+     */
+    RESET
+}
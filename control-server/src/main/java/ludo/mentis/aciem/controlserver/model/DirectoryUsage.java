@@ -0,0 +1,16 @@
+package ludo.mentis.aciem.controlserver.model;
+
+import java.util.List;
+
+/**
+ * Disk usage of a directory tree
+ *
+ * @param directory The directory
+ * @param size The total size in bytes of the files below the directory
+ * @param fileCount The number of files below the directory
+ * @param directoryCount The number of directories below the directory
+ * @param largestChildren The largest direct children, largest first; a directory's size is that of its tree
+ */
+public record DirectoryUsage(String directory, long size, long fileCount, long directoryCount,
+                             List<FileInfo> largestChildren) {
+}
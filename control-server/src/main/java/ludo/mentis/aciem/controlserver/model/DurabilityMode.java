@@ -0,0 +1,32 @@
+package ludo.mentis.aciem.controlserver.model;
+
+import java.util.Locale;
+
+/**
+ * How far a committed file is guaranteed to have reached stable storage
+ */
+public enum DurabilityMode {
+    /**
+     * No fsync. The rename is atomic for readers, but the file may be lost or empty after a power failure.
+     */
+    NONE,
+    /**
+     * The file and its directory entry are forced to disk before the commit returns.
+     */
+    FSYNC,
+    /**
+     * The file is forced by the writer, and the directory entries of concurrent commits are forced in batches,
+     * so one directory fsync covers every rename in the batch.
+     */
+    GROUP_COMMIT;
+
+    /**
+     * Parse a mode from configuration, ignoring case and accepting dashes for underscores
+     *
+     * @param value The configured value, e.g. "none", "fsync" or "group-commit"
+     * @return The durability mode
+     */
+    public static DurabilityMode parse(String value) {
+        return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,11 @@
+package ludo.mentis.aciem.controlserver.model;
+
+import java.nio.file.Path;
+
+/**
+ * Application event published when the server itself has written a file
+ *
+ * @param path The file that was created or replaced
+ */
+public record FileChangedEvent(Path path) {
+}
@@ -0,0 +1,31 @@
+package ludo.mentis.aciem.controlserver.model;
+
+import java.util.Locale;
+
+/**
+ * How a filename search query is matched
+ */
+public enum SearchType {
+    /**
+     * File names starting with the query, ignoring case.
+     */
+    PREFIX,
+    /**
+     * File names containing the query, ignoring case.
+     */
+    SUBSTRING,
+    /**
+     * A glob pattern, matched against the file name, or against the full path when it contains a slash.
+     */
+    GLOB;
+
+    /**
+     * Parse a search type from a request parameter, ignoring case
+     *
+     * @param value The parameter, e.g. "prefix", "substring" or "glob"
+     * @return The search type
+     */
+    public static SearchType parse(String value) {
+        return valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,42 @@
+package ludo.mentis.aciem.controlserver.model;
+
+import java.util.Comparator;
+
+/**
+ * The attribute a listing is sorted by; entries with equal attributes are ordered by name
+ */
+public enum SortKey {
+    NAME(Comparator.comparing(FileInfo::name)),
+    SIZE(Comparator.comparingLong(FileInfo::size)),
+    LAST_MODIFIED(Comparator.comparingLong(FileInfo::lastModified));
+
+    private final Comparator<FileInfo> comparator;
+
+    SortKey(Comparator<FileInfo> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * @param descending Whether the largest values come first; ties are still ordered by ascending name
+     * @return The order of the entries
+     */
+    public Comparator<FileInfo> comparator(boolean descending) {
+        return (descending ? comparator.reversed() : comparator).thenComparing(FileInfo::name);
+    }
+
+    /**
+     * Parse a sort key from a request parameter, ignoring case, dashes and underscores
+     *
+     * @param value The parameter, e.g. "name", "size" or "lastModified"
+     * @return The sort key
+     */
+    public static SortKey parse(String value) {
+        String normalized = value.trim().replace("-", "").replace("_", "");
+        for (SortKey key : values()) {
+            if (key.name().replace("_", "").equalsIgnoreCase(normalized)) {
+                return key;
+            }
+        }
+        throw new IllegalArgumentException("Invalid sort key: " + value);
+    }
+}
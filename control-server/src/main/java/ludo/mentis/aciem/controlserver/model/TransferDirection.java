@@ -0,0 +1,15 @@
+package ludo.mentis.aciem.controlserver.model;
+
+/**
+ * The direction of a transfer, each shaped separately
+ */
+public enum TransferDirection {
+    /**
+     * File content sent by a client to the server.
+     */
+    UPLOAD,
+    /**
+     * File content sent by the server to a client.
+     */
+    DOWNLOAD
+}
@@ -0,0 +1,13 @@
+package ludo.mentis.aciem.controlserver.model;
+
+/**
+ * The transfers of an API key in one direction
+ *
+ * @param key The name of the API key
+ * @param direction Whether the transfers are uploads or downloads
+ * @param streams The number of transfers in progress
+ * @param bytes The bytes transferred since the server started
+ * @param bytesPerSecond The current rate of all the transfers, averaged over the last few seconds
+ */
+public record TransferRate(String key, TransferDirection direction, int streams, long bytes, double bytesPerSecond) {
+}
@@ -0,0 +1,15 @@
+package ludo.mentis.aciem.controlserver.model;
+
+/**
+ * The state of a transfer in progress
+ *
+ * @param id The id of the transfer
+ * @param key The name of the API key the transfer was made with
+ * @param direction Whether the transfer is an upload or a download
+ * @param name The file transferred
+ * @param bytes The bytes transferred so far
+ * @param bytesPerSecond The current rate, averaged over the last few seconds
+ */
+public record TransferStats(long id, String key, TransferDirection direction, String name, long bytes,
+                            double bytesPerSecond) {
+}
@@ -0,0 +1,11 @@
+package ludo.mentis.aciem.controlserver.model;
+
+import java.util.List;
+
+/**
+ * Class to represent the state of a resumable upload session.
+ * The size is -1 when the client did not declare it up front.
+ */
+public record UploadSession(String id, String directory, String fileName, long size,
+                            List<ByteRange> receivedRanges, long receivedBytes) {
+}
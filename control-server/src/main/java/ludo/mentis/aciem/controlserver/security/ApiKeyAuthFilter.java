@@ -1,58 +1,76 @@
 package ludo.mentis.aciem.controlserver.security;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
-import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
-import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import java.io.IOException;
-import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Filter that authenticates requests by their API key and applies the rate limit of the key. Requests without a
+ * key are counted in {@code api.requests} under the key {@code none}, next to the outcomes counted by the store.
+ */
 public class ApiKeyAuthFilter extends OncePerRequestFilter {
 
     private static final String API_KEY_HEADER = "X-API-KEY";
-    private final String apiKey;
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private final ApiKeyStore apiKeys;
+    private final Counter notConfigured;
+    private final Counter missing;
 
-    public ApiKeyAuthFilter(String apiKey) {
-        this.apiKey = apiKey;
+    public ApiKeyAuthFilter(ApiKeyStore apiKeys, MeterRegistry meterRegistry) {
+        this.apiKeys = apiKeys;
+        this.notConfigured = ApiKeyStore.requests(meterRegistry, ApiKeyStore.NO_KEY, "not-configured");
+        this.missing = ApiKeyStore.requests(meterRegistry, ApiKeyStore.NO_KEY, "missing");
     }
 
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
             throws ServletException, IOException {
 
-        // Skip API key check for actuator endpoints
+        // Skip API key check for the health and info endpoints; metrics are tagged with key names
         String requestURI = request.getRequestURI();
-        if (requestURI.startsWith("/actuator")) {
+        if (requestURI.startsWith("/actuator/health") || requestURI.equals("/actuator/info")) {
             filterChain.doFilter(request, response);
             return;
         }
 
         String requestApiKey = request.getHeader(API_KEY_HEADER);
 
-        if (apiKey.isEmpty()) {
+        if (apiKeys.isEmpty()) {
+            notConfigured.increment();
             response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "API key not configured on server");
             return;
         }
 
         if (requestApiKey == null || requestApiKey.isEmpty()) {
+            missing.increment();
             response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "API key is missing");
             return;
         }
 
-        if (!Objects.equals(apiKey, requestApiKey)) {
+        ApiKeyStore.ApiKey key = apiKeys.find(requestApiKey);
+        if (key == null) {
             response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Invalid API key");
             return;
         }
 
+        long wait = key.tryAcquire();
+        if (wait > 0) {
+            long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1));
+            response.setHeader("Retry-After", Long.toString(seconds));
+            response.sendError(SC_TOO_MANY_REQUESTS, "Rate limit exceeded for API key " + key.name());
+            return;
+        }
+
         // API key is valid, set authentication
-        UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(
-                "api-user", null, AuthorityUtils.createAuthorityList("ROLE_USER"));
-        SecurityContextHolder.getContext().setAuthentication(authentication);
+        SecurityContextHolder.getContext().setAuthentication(key.authentication());
 
         filterChain.doFilter(request, response);
     }
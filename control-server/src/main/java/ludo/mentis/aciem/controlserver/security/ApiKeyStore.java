@@ -0,0 +1,233 @@
+package ludo.mentis.aciem.controlserver.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The API keys accepted by the server, each with a name, its own rate limit and request counters.
+ * <p>
+ * Keys are only held as SHA-256 digests. A presented key is digested into pooled buffers, found by the
+ * first eight bytes of its digest with a binary search, and the full digest is then compared in constant
+ * time, so authenticating a request allocates nothing for the usual ASCII keys and its timing does not
+ * depend on how much of a key is right.
+ */
+public final class ApiKeyStore {
+
+    private static final int DIGEST_BYTES = 32;
+    private static final int ASCII_BUFFER = 256;
+    private static final String ADMIN = "admin";
+    static final String NO_KEY = "none";
+
+    private final long[] prefixes;
+    private final ApiKey[] keys;
+    private final Counter unauthorized;
+    // Pooled rather than thread-local: on virtual threads, every request would start with an empty thread local
+    private final Queue<Hasher> hashers = new ConcurrentLinkedQueue<>();
+
+    private ApiKeyStore(List<ApiKey> keys, MeterRegistry meterRegistry) {
+        this.keys = keys.stream().sorted(Comparator.comparingLong(key -> key.prefix)).toArray(ApiKey[]::new);
+        this.prefixes = Arrays.stream(this.keys).mapToLong(key -> key.prefix).toArray();
+        for (int i = 1; i < prefixes.length; i++) {
+            if (prefixes[i] == prefixes[i - 1]) {
+                throw new IllegalArgumentException("API keys " + this.keys[i - 1].name + " and " + this.keys[i].name
+                        + " are the same key");
+            }
+        }
+        this.unauthorized = requests(meterRegistry, NO_KEY, "unauthorized");
+    }
+
+    /**
+     * Build the store from the configuration
+     *
+     * @param apiKey A single key in plain text, named "default", or empty for none
+     * @param apiKeyAdmin Whether the single key may use the admin endpoints
+     * @param apiKeys Comma-separated keys, each {@code name:sha256-hex[:requests-per-second[:burst]][:admin]},
+     *                where a trailing {@code admin} lets the key use the admin endpoints
+     * @param requestsPerSecond The rate limit of keys that do not set their own, or 0 for no limit
+     * @param burst The burst of keys that do not set their own, or 0 for one second of their rate
+     * @param meterRegistry The registry of the per-key request counters
+     * @return The store
+     * @throws IllegalArgumentException If a key is malformed or two keys are the same
+     */
+    public static ApiKeyStore of(String apiKey, boolean apiKeyAdmin, String apiKeys, double requestsPerSecond,
+                                 int burst, MeterRegistry meterRegistry) {
+        List<ApiKey> keys = new ArrayList<>();
+        if (!apiKey.isEmpty()) {
+            keys.add(new ApiKey("default", sha256(apiKey.getBytes(StandardCharsets.UTF_8)),
+                    limiter(requestsPerSecond, burst), apiKeyAdmin, meterRegistry));
+        }
+        for (String entry : apiKeys.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            String[] fields = entry.trim().split(":");
+            boolean admin = fields.length > 2 && fields[fields.length - 1].equals(ADMIN);
+            if (admin) {
+                fields = Arrays.copyOf(fields, fields.length - 1);
+            }
+            if (fields.length < 2 || fields.length > 4 || fields[0].isEmpty() || fields[1].length() != DIGEST_BYTES * 2) {
+                throw new IllegalArgumentException(
+                        "Malformed API key entry, expected name:sha256-hex[:rate[:burst]][:admin]: " + fields[0]);
+            }
+            double rate = fields.length > 2 ? Double.parseDouble(fields[2]) : requestsPerSecond;
+            int keyBurst = fields.length > 3 ? Integer.parseInt(fields[3]) : fields.length > 2 ? 0 : burst;
+            keys.add(new ApiKey(fields[0], HexFormat.of().parseHex(fields[1]), limiter(rate, keyBurst), admin,
+                    meterRegistry));
+        }
+        return new ApiKeyStore(keys, meterRegistry);
+    }
+
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    /**
+     * @param presented The key sent by the client
+     * @return The matching key, or null
+     */
+    public ApiKey find(String presented) {
+        Hasher hasher = hashers.poll();
+        if (hasher == null) {
+            hasher = new Hasher();
+        }
+        try {
+            byte[] digest = hasher.digest(presented);
+            int index = Arrays.binarySearch(prefixes, prefix(digest));
+            if (index >= 0 && MessageDigest.isEqual(keys[index].digest, digest)) {
+                return keys[index];
+            }
+        } finally {
+            hashers.offer(hasher);
+        }
+        unauthorized.increment();
+        return null;
+    }
+
+    private static RateLimiter limiter(double requestsPerSecond, int burst) {
+        if (requestsPerSecond <= 0) {
+            return null;
+        }
+        return new RateLimiter(requestsPerSecond, burst > 0 ? burst : (int) Math.max(1, Math.ceil(requestsPerSecond)));
+    }
+
+    static Counter requests(MeterRegistry meterRegistry, String key, String outcome) {
+        return Counter.builder("api.requests").tag("key", key).tag("outcome", outcome)
+                .description("Requests by API key and authentication outcome").register(meterRegistry);
+    }
+
+    private static long prefix(byte[] digest) {
+        long prefix = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            prefix = prefix << 8 | (digest[i] & 0xFF);
+        }
+        return prefix;
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        return newDigest().digest(bytes);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * An accepted key
+     */
+    public static final class ApiKey {
+        private final String name;
+        private final byte[] digest;
+        private final long prefix;
+        private final RateLimiter limiter;
+        private final boolean admin;
+        private final Authentication authentication;
+        private final Counter allowed;
+        private final Counter limited;
+
+        private ApiKey(String name, byte[] digest, RateLimiter limiter, boolean admin, MeterRegistry meterRegistry) {
+            this.name = name;
+            this.digest = digest;
+            this.prefix = prefix(digest);
+            this.limiter = limiter;
+            this.admin = admin;
+            // Never modified once authenticated, so one token serves every request of the key
+            this.authentication = new UsernamePasswordAuthenticationToken(name, null, admin
+                    ? AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_ADMIN")
+                    : AuthorityUtils.createAuthorityList("ROLE_USER"));
+            this.allowed = requests(meterRegistry, name, "allowed");
+            this.limited = requests(meterRegistry, name, "limited");
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * @return Whether the key may use the admin endpoints
+         */
+        public boolean isAdmin() {
+            return admin;
+        }
+
+        public Authentication authentication() {
+            return authentication;
+        }
+
+        /**
+         * Count a request against the rate limit of the key
+         *
+         * @return 0 if the request is admitted, otherwise how many nanoseconds until one would be
+         */
+        public long tryAcquire() {
+            long wait = limiter == null ? 0 : limiter.tryAcquire();
+            (wait == 0 ? allowed : limited).increment();
+            return wait;
+        }
+    }
+
+    private static final class Hasher {
+        private final MessageDigest digest = newDigest();
+        private final byte[] ascii = new byte[ASCII_BUFFER];
+        private final byte[] result = new byte[DIGEST_BYTES];
+
+        private byte[] digest(String key) {
+            int length = key.length();
+            boolean isAscii = length <= ascii.length;
+            for (int i = 0; isAscii && i < length; i++) {
+                char c = key.charAt(i);
+                isAscii = c < 0x80;
+                ascii[i] = (byte) c;
+            }
+            if (isAscii) {
+                digest.update(ascii, 0, length);
+            } else {
+                digest.update(key.getBytes(StandardCharsets.UTF_8));
+            }
+            try {
+                digest.digest(result, 0, DIGEST_BYTES);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            return result;
+        }
+    }
+}
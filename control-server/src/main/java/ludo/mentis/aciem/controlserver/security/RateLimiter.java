@@ -0,0 +1,83 @@
+package ludo.mentis.aciem.controlserver.security;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * A lock-free token bucket, in its GCRA form: instead of a token count refilled over time, each stripe keeps
+ * the theoretical arrival time of its next request, and a request is admitted with a single compare-and-set
+ * when that time is no further ahead of now than the burst allows.
+ * <p>
+ * The rate and burst are split across stripes, each on its own cache line, so concurrent callers rarely
+ * contend on the same counter. A caller starts at the stripe picked by its thread and moves on to the others
+ * when it is empty, so the whole burst is available to a single thread. Burst left over by the split is
+ * dropped, so the limit is at most a few requests tighter than configured.
+ */
+public final class RateLimiter {
+
+    // Longs per stripe, so two stripes never share a 64-byte cache line
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray arrivals;
+    private final int mask;
+    private final long interval;
+    private final long tolerance;
+    private final LongSupplier clock;
+
+    /**
+     * @param requestsPerSecond The sustained rate
+     * @param burst The number of requests admitted at once after an idle period
+     */
+    public RateLimiter(double requestsPerSecond, int burst) {
+        this(requestsPerSecond, burst, Runtime.getRuntime().availableProcessors(), System::nanoTime);
+    }
+
+    RateLimiter(double requestsPerSecond, int burst, int maxStripes, LongSupplier clock) {
+        if (requestsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Invalid rate limit: " + requestsPerSecond + "/s, burst " + burst);
+        }
+        int stripes = Integer.highestOneBit(Math.max(1, Math.min(maxStripes, burst)));
+        this.mask = stripes - 1;
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) * stripes / requestsPerSecond);
+        this.tolerance = interval * (burst / stripes);
+        this.clock = clock;
+        this.arrivals = new AtomicLongArray(stripes * PADDING);
+        // A full bucket: the next request of every stripe is due now
+        long now = clock.getAsLong();
+        for (int i = 0; i < stripes; i++) {
+            arrivals.set(i * PADDING, now);
+        }
+    }
+
+    /**
+     * Take one request from the bucket
+     *
+     * @return 0 if the request is admitted, otherwise how many nanoseconds until one would be
+     */
+    public long tryAcquire() {
+        long now = clock.getAsLong();
+        int start = spread(System.identityHashCode(Thread.currentThread()));
+        long wait = Long.MAX_VALUE;
+        for (int i = 0; i <= mask; i++) {
+            int index = ((start + i) & mask) * PADDING;
+            while (true) {
+                long arrival = arrivals.get(index);
+                long next = Math.max(arrival, now) + interval;
+                long early = next - now - tolerance;
+                if (early > 0) {
+                    wait = Math.min(wait, early);
+                    break;
+                }
+                if (arrivals.compareAndSet(index, arrival, next)) {
+                    return 0;
+                }
+            }
+        }
+        return wait;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
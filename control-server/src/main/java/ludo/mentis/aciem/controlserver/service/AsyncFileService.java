@@ -0,0 +1,14 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public interface AsyncFileService {
+    void upload(Path directory, String filename, HttpServletRequest request, HttpServletResponse response)
+            throws IOException;
+
+    void download(Path file, HttpServletRequest request, HttpServletResponse response) throws IOException;
+}
@@ -0,0 +1,724 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import ludo.mentis.aciem.controlserver.model.ByteRange;
+import ludo.mentis.aciem.controlserver.model.TransferDirection;
+import ludo.mentis.aciem.controlserver.util.FileNames;
+import ludo.mentis.aciem.controlserver.util.HttpRanges;
+import ludo.mentis.aciem.controlserver.util.OperationMeter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service that transfers files without holding a request thread, for clients too slow or too many to give each
+ * one a thread.
+ * <p>
+ * The request body is read with a {@link ReadListener} and the response written with a {@link WriteListener}, so
+ * the container only calls in when the socket can make progress. The file side goes through an
+ * {@link AsynchronousFileChannel} whose reads and writes run on a small fixed pool. A transfer holds one buffer,
+ * and stops reading from the client, or from the file, until the buffer has been passed on; a transfer waiting
+ * on its client costs no thread at all.
+ * <p>
+ * Uploads are written to a hidden part file next to the target and published with the configured durability
+ * once complete, so readers never see a partial file.
+ * <p>
+ * When transfers are shaped, each buffer waits for a grant of the {@link TransferScheduler} before it is read from
+ * the file or written to it, so these endpoints share the global and per-key rates of the other transfer paths.
+ * Downloads carry the same strong ETag as {@code /download}, and honor it in conditional and If-Range requests.
+ * <p>
+ * Transfers are timed into {@code file.operations} until the response is complete, not just until the request
+ * thread returns, and their bytes are counted in {@code file.transferred}.
+ */
+@Service
+public class AsyncFileServiceImpl implements AsyncFileService, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncFileServiceImpl.class);
+    private static final String CONTENT_TYPE = MediaType.APPLICATION_OCTET_STREAM_VALUE;
+    private static final String PART_SUFFIX = ".upload";
+
+    private final PathValidationService pathValidationService;
+    private final FileCommitService fileCommitService;
+    private final DigestService digestService;
+    private final TransferScheduler transferScheduler;
+    private final ExecutorService executor;
+    private final int bufferSize;
+    private final Counter uploadedBytes;
+    private final Counter downloadedBytes;
+    private final OperationMeter uploads;
+    private final OperationMeter downloads;
+
+    /**
+     * Constructor that initializes the I/O pool from application properties
+     *
+     * @param pathValidationService The service checking that upload targets are in the allowed directories
+     * @param fileCommitService The service publishing completed uploads
+     * @param digestService The service providing the entity tags of files
+     * @param transferScheduler The scheduler shaping the transfers
+     * @param meterRegistry The registry of the operation and transferred bytes meters
+     * @param threads The threads running file reads and writes, and publishing uploads
+     * @param bufferSize The bytes buffered per transfer
+     */
+    public AsyncFileServiceImpl(PathValidationService pathValidationService, FileCommitService fileCommitService,
+                                DigestService digestService, TransferScheduler transferScheduler,
+                                MeterRegistry meterRegistry,
+                                @Value("${file.async.threads:4}") int threads,
+                                @Value("${file.async.buffer-size:64KB}") DataSize bufferSize) {
+        this.pathValidationService = pathValidationService;
+        this.fileCommitService = fileCommitService;
+        this.digestService = digestService;
+        this.transferScheduler = transferScheduler;
+        this.bufferSize = Math.toIntExact(bufferSize.toBytes());
+        this.uploadedBytes = OperationMeter.transferred("upload", meterRegistry);
+        this.downloadedBytes = OperationMeter.transferred("download", meterRegistry);
+        this.uploads = new OperationMeter("async-upload", meterRegistry);
+        this.downloads = new OperationMeter("async-download", meterRegistry);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "async-file-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start receiving the request body into a file. The response is sent once the file is published.
+     *
+     * @param directory A validated directory
+     * @param filename The file name provided by the client
+     * @param request The request, whose body is the file content
+     * @param response The response, written when the upload completes
+     * @throws IOException If the target is not within the allowed directories or cannot be created
+     */
+    @Override
+    public void upload(Path directory, String filename, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        long startNanos = uploads.start();
+        boolean started = false;
+        Throwable error = null;
+        try {
+            Path targetLocation = directory.resolve(FileNames.sanitize(filename));
+            if (!pathValidationService.isPathAllowed(targetLocation)) {
+                throw new IOException("Access denied: Target file location is not within allowed directories");
+            }
+
+            Files.createDirectories(targetLocation.getParent());
+            Path partFile = targetLocation.resolveSibling(
+                    "." + targetLocation.getFileName() + "." + UUID.randomUUID() + PART_SUFFIX);
+            logger.info("Receiving file {} asynchronously", targetLocation);
+            new AsyncUpload(request, response, targetLocation, partFile, startNanos).start();
+            started = true;
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            // A started upload is timed until its response is complete
+            if (!started) {
+                uploads.stop(startNanos, error);
+            }
+        }
+    }
+
+    /**
+     * Start sending a file, or the single byte range of it requested with a Range header
+     *
+     * @param file A validated, readable file
+     * @param request The request, including any Range and conditional headers
+     * @param response The response the file is written to
+     * @throws IOException If the file cannot be read
+     */
+    @Override
+    public void download(Path file, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long startNanos = downloads.start();
+        boolean started = false;
+        Throwable error = null;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                throw new IOException("Could not read file: " + file);
+            }
+            long length = attributes.size();
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            String etag = digestService.etag(file);
+
+            response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getFileName() + "\"");
+            if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+                return;
+            }
+
+            ByteRange range = new ByteRange(0, length);
+            response.setStatus(HttpServletResponse.SC_OK);
+            String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+            if (rangeHeader != null
+                    && HttpRanges.ifRangeMatches(request.getHeader(HttpHeaders.IF_RANGE), etag, lastModified)) {
+                List<ByteRange> ranges = HttpRanges.resolve(rangeHeader, length);
+                if (ranges != null && ranges.isEmpty()) {
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                    return;
+                }
+                // Several ranges are answered with the whole file, as a server may
+                if (ranges != null && ranges.size() == 1) {
+                    range = ranges.get(0);
+                    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, HttpRanges.contentRange(range, length));
+                }
+            }
+            response.setContentType(CONTENT_TYPE);
+            response.setContentLengthLong(range.length());
+            if ("HEAD".equals(request.getMethod()) || range.length() == 0) {
+                return;
+            }
+
+            new AsyncDownload(request, response, file, range, startNanos).start();
+            started = true;
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            // A started download is timed until its response is complete
+            if (!started) {
+                downloads.stop(startNanos, error);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private static AsyncContext startAsync(HttpServletRequest request, HttpServletResponse response,
+                                           AsyncListener listener) {
+        AsyncContext async = request.startAsync(request, response);
+        // A slow client may outlast any fixed timeout; the transfer ends when it is done or the client goes away
+        async.setTimeout(0);
+        async.addListener(listener);
+        return async;
+    }
+
+    /**
+     * @return The stream shaping a transfer, or null when transfers are not shaped
+     */
+    private TransferScheduler.Stream openStream(TransferDirection direction, Path file) {
+        return transferScheduler.isShaping() ? transferScheduler.open(direction, file.toString()) : null;
+    }
+
+    /**
+     * @return The size of the buffer of a transfer, at most one grant when it is shaped
+     */
+    private int chunkSize(TransferScheduler.Stream stream) {
+        return stream != null ? Math.min(bufferSize, stream.quantum()) : bufferSize;
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Failed to delete {}", path, e);
+        }
+    }
+
+    /**
+     * An upload read from the client whenever it sent data, and written to the part file one buffer at a time.
+     * Reading stops while a buffer waits for its grant or is being written, and resumes from the write completion.
+     */
+    private final class AsyncUpload implements ReadListener, AsyncListener, CompletionHandler<Integer, Void> {
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final Path targetLocation;
+        private final Path partFile;
+        private final long startNanos;
+        private final ReentrantLock lock = new ReentrantLock();
+        private ByteBuffer buffer;
+        private AsyncContext async;
+        private ServletInputStream in;
+        private AsynchronousFileChannel channel;
+        private TransferScheduler.Stream stream;
+        private long position;
+        private boolean writing;
+        private boolean allRead;
+        private boolean finished;
+        private boolean recorded;
+        private Throwable error;
+
+        private AsyncUpload(HttpServletRequest request, HttpServletResponse response, Path targetLocation,
+                            Path partFile, long startNanos) {
+            this.request = request;
+            this.response = response;
+            this.targetLocation = targetLocation;
+            this.partFile = partFile;
+            this.startNanos = startNanos;
+        }
+
+        private void start() throws IOException {
+            lock.lock();
+            try {
+                channel = AsynchronousFileChannel.open(partFile,
+                        Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), executor);
+                try {
+                    stream = openStream(TransferDirection.UPLOAD, targetLocation);
+                    buffer = ByteBuffer.allocate(chunkSize(stream));
+                    async = startAsync(request, response, this);
+                    in = request.getInputStream();
+                    in.setReadListener(this);
+                } catch (IOException | RuntimeException e) {
+                    // Timed by the caller, which sees the exception
+                    recorded = true;
+                    closeStream();
+                    channel.close();
+                    deleteQuietly(partFile);
+                    throw e;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            lock.lock();
+            try {
+                readAvailable();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void onAllDataRead() {
+            lock.lock();
+            try {
+                if (!allRead) {
+                    allRead = true;
+                    if (!writing) {
+                        flushOrPublish();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Fill the buffer with what the client has sent, writing it out each time it is full
+         */
+        private void readAvailable() throws IOException {
+            while (!finished && !writing && !allRead && in.isReady()) {
+                int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (read == -1) {
+                    // Seen here when reading resumed from a write completion, where onAllDataRead may not follow
+                    allRead = true;
+                    flushOrPublish();
+                    return;
+                }
+                buffer.position(buffer.position() + read);
+                if (!buffer.hasRemaining()) {
+                    write();
+                }
+            }
+        }
+
+        private void write() {
+            writing = true;
+            buffer.flip();
+            if (stream != null) {
+                stream.acquire(buffer.remaining(), this::granted);
+            } else {
+                channel.write(buffer, position, null, this);
+            }
+        }
+
+        private void granted() {
+            lock.lock();
+            try {
+                if (!finished) {
+                    channel.write(buffer, position, null, this);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void closeStream() {
+            if (stream != null) {
+                stream.close();
+            }
+        }
+
+        private void flushOrPublish() {
+            if (buffer.position() > 0) {
+                write();
+            } else {
+                finished = true;
+                executor.execute(this::publish);
+            }
+        }
+
+        @Override
+        public void completed(Integer written, Void attachment) {
+            lock.lock();
+            try {
+                if (finished) {
+                    return;
+                }
+                position += written;
+                if (buffer.hasRemaining()) {
+                    channel.write(buffer, position, null, this);
+                    return;
+                }
+                buffer.clear();
+                writing = false;
+                if (allRead) {
+                    flushOrPublish();
+                } else {
+                    // The container does not call again for data it already reported, so reading resumes here
+                    readAvailable();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e, true);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void failed(Throwable error, Void attachment) {
+            fail(error, true);
+        }
+
+        private void publish() {
+            closeStream();
+            try {
+                channel.close();
+                fileCommitService.publish(partFile, targetLocation);
+                uploadedBytes.increment(position);
+                logger.info("File uploaded successfully to: {} ({} bytes)", targetLocation, position);
+                respond(HttpServletResponse.SC_OK, "File uploaded successfully to: " + targetLocation);
+            } catch (IOException | RuntimeException e) {
+                error = e;
+                logger.error("Failed to publish upload to {}", targetLocation, e);
+                deleteQuietly(partFile);
+                respond(HttpServletResponse.SC_BAD_REQUEST, "Failed to upload file: " + e.getMessage());
+            } finally {
+                async.complete();
+            }
+        }
+
+        private void respond(int status, String body) {
+            try {
+                response.setStatus(status);
+                response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+                response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+                response.getOutputStream().write(body.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Failed to respond to the upload of {}", targetLocation, e);
+            }
+        }
+
+        /**
+         * @param error The cause, or null when the request ended before the upload did
+         * @param complete Whether the async context is still to be completed
+         */
+        private void fail(Throwable error, boolean complete) {
+            lock.lock();
+            try {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                this.error = error != null ? error : new IOException("Request ended before the upload");
+                // Typically the client went away
+                logger.debug("Upload of {} ended early", targetLocation, error);
+                closeStream();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.debug("Failed to close {}", partFile, e);
+                }
+                deleteQuietly(partFile);
+                if (complete) {
+                    if (!response.isCommitted() && error != null) {
+                        respond(HttpServletResponse.SC_BAD_REQUEST, "Failed to upload file: " + error.getMessage());
+                    }
+                    async.complete();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            fail(t, true);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            fail(null, false);
+            lock.lock();
+            try {
+                if (!recorded) {
+                    recorded = true;
+                    uploads.stop(startNanos, error);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            fail(event.getThrowable(), true);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            fail(event.getThrowable(), true);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    /**
+     * A download read from the file one buffer at a time and written whenever the client can take it. The next
+     * read starts as soon as a buffer has been handed to the container, and its grant when shaped, so disk and
+     * network overlap.
+     */
+    private final class AsyncDownload implements WriteListener, AsyncListener, CompletionHandler<Integer, Void> {
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final Path file;
+        private final ByteRange range;
+        private final long startNanos;
+        private final ReentrantLock lock = new ReentrantLock();
+        private ByteBuffer buffer;
+        private AsyncContext async;
+        private ServletOutputStream out;
+        private AsynchronousFileChannel channel;
+        private TransferScheduler.Stream stream;
+        private long position;
+        private boolean reading;
+        private boolean chunkReady;
+        private boolean finished;
+        private boolean recorded;
+        private Throwable error;
+
+        private AsyncDownload(HttpServletRequest request, HttpServletResponse response, Path file, ByteRange range,
+                              long startNanos) {
+            this.request = request;
+            this.response = response;
+            this.file = file;
+            this.range = range;
+            this.startNanos = startNanos;
+            this.position = range.start();
+        }
+
+        private void start() throws IOException {
+            lock.lock();
+            try {
+                channel = AsynchronousFileChannel.open(file, Set.of(StandardOpenOption.READ), executor);
+                try {
+                    stream = openStream(TransferDirection.DOWNLOAD, file);
+                    buffer = ByteBuffer.allocate((int) Math.min(chunkSize(stream), range.length()));
+                    async = startAsync(request, response, this);
+                    out = response.getOutputStream();
+                    out.setWriteListener(this);
+                } catch (IOException | RuntimeException e) {
+                    // Timed by the caller, which sees the exception
+                    recorded = true;
+                    if (stream != null) {
+                        stream.close();
+                    }
+                    channel.close();
+                    throw e;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            lock.lock();
+            try {
+                drain();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void drain() throws IOException {
+            while (!finished && !reading) {
+                if (chunkReady) {
+                    if (!out.isReady()) {
+                        return;
+                    }
+                    out.write(buffer.array(), 0, buffer.limit());
+                    chunkReady = false;
+                } else if (position == range.end()) {
+                    // Completing once the last write drained, or the container would have to buffer it
+                    if (out.isReady()) {
+                        finish(null, true);
+                    }
+                    return;
+                } else {
+                    reading = true;
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), range.end() - position));
+                    if (stream != null) {
+                        stream.acquire(buffer.limit(), this::granted);
+                    } else {
+                        channel.read(buffer, position, null, this);
+                    }
+                }
+            }
+        }
+
+        private void granted() {
+            lock.lock();
+            try {
+                if (!finished) {
+                    channel.read(buffer, position, null, this);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void completed(Integer read, Void attachment) {
+            lock.lock();
+            try {
+                if (finished) {
+                    return;
+                }
+                if (read == -1) {
+                    throw new IOException("File is shorter than expected: " + position + " of " + range.end()
+                            + " bytes");
+                }
+                position += read;
+                if (buffer.hasRemaining()) {
+                    channel.read(buffer, position, null, this);
+                    return;
+                }
+                reading = false;
+                chunkReady = true;
+                drain();
+            } catch (IOException | RuntimeException e) {
+                finish(e, true);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void failed(Throwable error, Void attachment) {
+            finish(error, true);
+        }
+
+        /**
+         * @param error The cause of an early end, or null
+         * @param complete Whether the async context is still to be completed
+         */
+        private void finish(Throwable error, boolean complete) {
+            lock.lock();
+            try {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                if (error != null) {
+                    this.error = error;
+                    // Typically the client went away
+                    logger.debug("Download of {} ended early", file, error);
+                } else if (complete) {
+                    downloadedBytes.increment(range.length());
+                } else {
+                    this.error = new IOException("Request ended before the download");
+                }
+                if (stream != null) {
+                    stream.close();
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.debug("Failed to close {}", file, e);
+                }
+                if (complete) {
+                    async.complete();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            finish(t, true);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finish(null, false);
+            lock.lock();
+            try {
+                if (!recorded) {
+                    recorded = true;
+                    downloads.stop(startNanos, error);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            finish(event.getThrowable(), true);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            finish(event.getThrowable(), true);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
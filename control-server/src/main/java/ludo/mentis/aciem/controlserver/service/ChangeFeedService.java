@@ -0,0 +1,41 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.ChangeEvent;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public interface ChangeFeedService {
+    Subscription subscribe(Path directory, Long after, Subscriber subscriber) throws IOException;
+
+    /**
+     * Receives the events of a directory in sequence order, one call at a time
+     */
+    interface Subscriber {
+        /**
+         * @param event The next event
+         * @throws IOException If the event cannot be delivered; the subscription is closed
+         */
+        void onEvent(ChangeEvent event) throws IOException;
+
+        /**
+         * Called when nothing was delivered for a while, so that idle connections stay open and dead ones are noticed
+         *
+         * @throws IOException If the client is gone; the subscription is closed
+         */
+        void onHeartbeat() throws IOException;
+
+        /**
+         * Called once when the feed ends, because the directory was deleted or the server is stopping
+         */
+        void onClose();
+    }
+
+    /**
+     * A subscription, closed to stop receiving events
+     */
+    interface Subscription extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,410 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.ChangeEvent;
+import ludo.mentis.aciem.controlserver.model.ChangeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service that turns the watch events of a directory into a feed of numbered events shared by all its subscribers.
+ * <p>
+ * Each directory with subscribers is watched once through the {@link DirectoryWatchService}, and its events are
+ * appended to a bounded replay buffer. Subscribers hold no thread: each one keeps the sequence number of the last
+ * event it was sent, and a small pool delivers the events after it whenever some are appended. A subscriber that
+ * resumes from a sequence number still in the buffer is sent what it missed; one that falls behind the buffer,
+ * or resumes from an unknown number, is sent a {@link ChangeType#RESET} and continues from the latest event.
+ * <p>
+ * A feed is kept for a while after its last subscriber leaves, so clients that reconnect can replay their gap.
+ * Sequence numbers start from the startup time in microseconds, so they keep increasing across restarts and
+ * a number from an earlier run is recognized as unknown.
+ */
+@Service
+public class ChangeFeedServiceImpl implements ChangeFeedService, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeFeedServiceImpl.class);
+
+    private final DirectoryWatchService directoryWatchService;
+    private final int bufferSize;
+    private final long retentionNanos;
+    private final long heartbeatNanos;
+    private final Map<Path, Feed> feeds = new HashMap<>();
+    private final ReentrantLock feedsLock = new ReentrantLock();
+    private final AtomicLong sequence = new AtomicLong(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Constructor that initializes the feed limits from application properties
+     *
+     * @param directoryWatchService The service watching the directories with subscribers
+     * @param bufferSize The number of events kept per directory for clients that resume
+     * @param retention How long a directory is still watched after its last subscriber left
+     * @param heartbeat How long a subscriber may go without being sent anything, or 0 for no heartbeats
+     * @param dispatchThreads The number of threads delivering events to subscribers
+     */
+    public ChangeFeedServiceImpl(DirectoryWatchService directoryWatchService,
+                                 @Value("${file.changes.buffer-size:1000}") int bufferSize,
+                                 @Value("${file.changes.retention:5m}") Duration retention,
+                                 @Value("${file.changes.heartbeat:15s}") Duration heartbeat,
+                                 @Value("${file.changes.dispatch-threads:4}") int dispatchThreads) {
+        this.directoryWatchService = directoryWatchService;
+        this.bufferSize = Math.max(1, bufferSize);
+        this.retentionNanos = retention.toNanos();
+        this.heartbeatNanos = heartbeat.toNanos();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(Math.max(1, dispatchThreads), runnable -> {
+            Thread thread = new Thread(runnable, "change-feed-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepMillis = heartbeat.isZero() ? 1000 : Math.max(10, Math.min(1000, heartbeat.toMillis() / 2));
+        executor.scheduleWithFixedDelay(this::sweep, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        logger.info("Change feeds: {} events per directory, kept {} after the last subscriber", this.bufferSize, retention);
+    }
+
+    /**
+     * Subscribe to the changes of the direct children of a directory
+     *
+     * @param directory A validated directory
+     * @param after The sequence number of the last event the client received, or null to only receive new events
+     * @param subscriber Receives the events
+     * @return The subscription, closed to stop receiving events
+     * @throws IOException If the directory cannot be watched
+     */
+    @Override
+    public Subscription subscribe(Path directory, Long after, Subscriber subscriber) throws IOException {
+        Path dir = directory.normalize().toAbsolutePath();
+        Sink sink;
+        feedsLock.lock();
+        try {
+            Feed feed = feeds.get(dir);
+            if (feed == null) {
+                feed = new Feed(dir, sequence.get());
+                feed.registration = directoryWatchService.watch(dir, feed::onChange);
+                feeds.put(dir, feed);
+            }
+            sink = new Sink(feed, subscriber);
+            feed.lock.lock();
+            try {
+                if (after == null) {
+                    sink.cursor = feed.latest;
+                } else if (after >= feed.dropped && after <= sequence.get()) {
+                    sink.cursor = after;
+                } else {
+                    sink.cursor = feed.latest;
+                    sink.reset = true;
+                }
+                feed.sinks.add(sink);
+            } finally {
+                feed.lock.unlock();
+            }
+        } finally {
+            feedsLock.unlock();
+        }
+        logger.debug("Subscribed to {} after {}", dir, after);
+        schedule(sink);
+        return sink;
+    }
+
+    /**
+     * @param directory The watched directory
+     * @return The number of subscribers of the directory's feed, which drops as failed subscribers are removed
+     */
+    int subscribers(Path directory) {
+        feedsLock.lock();
+        try {
+            Feed feed = feeds.get(directory.normalize().toAbsolutePath());
+            if (feed == null) {
+                return 0;
+            }
+            feed.lock.lock();
+            try {
+                return feed.sinks.size();
+            } finally {
+                feed.lock.unlock();
+            }
+        } finally {
+            feedsLock.unlock();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+        List<Sink> sinks = new ArrayList<>();
+        feedsLock.lock();
+        try {
+            for (Feed feed : feeds.values()) {
+                feed.registration.close();
+                feed.lock.lock();
+                try {
+                    sinks.addAll(feed.sinks);
+                    feed.sinks.clear();
+                } finally {
+                    feed.lock.unlock();
+                }
+            }
+            feeds.clear();
+        } finally {
+            feedsLock.unlock();
+        }
+        for (Sink sink : sinks) {
+            sink.closed = true;
+            sink.subscriber.onClose();
+        }
+    }
+
+    private void schedule(Sink sink) {
+        if (!sink.closed && sink.scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> drain(sink));
+            } catch (RejectedExecutionException e) {
+                sink.scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Send a subscriber the events after its cursor, on a pool thread; only one drain runs per subscriber
+     */
+    private void drain(Sink sink) {
+        Feed feed = sink.feed;
+        try {
+            while (!sink.closed) {
+                List<ChangeEvent> events = feed.after(sink);
+                if (events.isEmpty()) {
+                    if (feed.closing) {
+                        sink.close();
+                        sink.subscriber.onClose();
+                    }
+                    break;
+                }
+                for (ChangeEvent event : events) {
+                    sink.subscriber.onEvent(event);
+                    sink.cursor = event.sequence();
+                }
+                sink.lastSent = System.nanoTime();
+            }
+            if (sink.heartbeatDue && !sink.closed) {
+                sink.heartbeatDue = false;
+                sink.subscriber.onHeartbeat();
+                sink.lastSent = System.nanoTime();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Dropping a subscriber of {}", feed.directory, e);
+            sink.close();
+        } finally {
+            sink.scheduled.set(false);
+        }
+
+        // Events appended after the last check, but before the flag was cleared, would otherwise wait for the next one
+        if (!sink.closed && (feed.hasAfter(sink.cursor) || sink.heartbeatDue || feed.closing)) {
+            schedule(sink);
+        }
+    }
+
+    /**
+     * Close the feeds nobody subscribed to within the retention, and send heartbeats to idle subscribers
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        List<Sink> idle = new ArrayList<>();
+        feedsLock.lock();
+        try {
+            Iterator<Feed> iterator = feeds.values().iterator();
+            while (iterator.hasNext()) {
+                Feed feed = iterator.next();
+                feed.lock.lock();
+                try {
+                    if (feed.sinks.isEmpty() && now - feed.idleSince >= retentionNanos) {
+                        iterator.remove();
+                        feed.registration.close();
+                        continue;
+                    }
+                    for (Sink sink : feed.sinks) {
+                        if (heartbeatNanos > 0 && now - sink.lastSent >= heartbeatNanos) {
+                            idle.add(sink);
+                        }
+                    }
+                } finally {
+                    feed.lock.unlock();
+                }
+            }
+        } finally {
+            feedsLock.unlock();
+        }
+        for (Sink sink : idle) {
+            sink.heartbeatDue = true;
+            schedule(sink);
+        }
+    }
+
+    private void remove(Sink sink) {
+        Feed feed = sink.feed;
+        feedsLock.lock();
+        try {
+            feed.lock.lock();
+            try {
+                if (!feed.sinks.remove(sink) || !feed.sinks.isEmpty()) {
+                    return;
+                }
+                feed.idleSince = System.nanoTime();
+            } finally {
+                feed.lock.unlock();
+            }
+            if (retentionNanos == 0 && feeds.remove(feed.directory, feed)) {
+                feed.registration.close();
+            }
+        } finally {
+            feedsLock.unlock();
+        }
+    }
+
+    private static ChangeType type(WatchEvent.Kind<?> kind) {
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+            return ChangeType.CREATE;
+        }
+        if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+            return ChangeType.MODIFY;
+        }
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            return ChangeType.DELETE;
+        }
+        return ChangeType.RESET;
+    }
+
+    private final class Feed {
+        private final Path directory;
+        private final ArrayDeque<ChangeEvent> buffer = new ArrayDeque<>();
+        private final List<Sink> sinks = new ArrayList<>();
+        /**
+         * Guards the buffer, the sinks and the sequence bounds; taken after feedsLock when both are held
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+        private DirectoryWatchService.Registration registration;
+        /**
+         * Every event after this sequence number is in the buffer
+         */
+        private long dropped;
+        private long latest;
+        private long idleSince = System.nanoTime();
+        private volatile boolean closing;
+
+        private Feed(Path directory, long start) {
+            this.directory = directory;
+            this.dropped = start;
+            this.latest = start;
+        }
+
+        private void onChange(Path dir, Path child, WatchEvent.Kind<?> kind) {
+            if (child == null && !Files.isDirectory(directory)) {
+                // The directory is gone: subscribers are sent what is left, then closed
+                closing = true;
+                feedsLock.lock();
+                try {
+                    if (feeds.remove(directory, this)) {
+                        registration.close();
+                    }
+                } finally {
+                    feedsLock.unlock();
+                }
+            }
+
+            List<Sink> targets;
+            lock.lock();
+            try {
+                ChangeEvent event = new ChangeEvent(sequence.incrementAndGet(), type(kind),
+                        child != null ? child.getFileName().toString() : null, System.currentTimeMillis());
+                buffer.addLast(event);
+                latest = event.sequence();
+                if (buffer.size() > bufferSize) {
+                    dropped = buffer.removeFirst().sequence();
+                }
+                targets = List.copyOf(sinks);
+            } finally {
+                lock.unlock();
+            }
+            targets.forEach(ChangeFeedServiceImpl.this::schedule);
+        }
+
+        private List<ChangeEvent> after(Sink sink) {
+            lock.lock();
+            try {
+                if (sink.reset || sink.cursor < dropped) {
+                    sink.reset = false;
+                    return List.of(new ChangeEvent(latest, ChangeType.RESET, null, System.currentTimeMillis()));
+                }
+                List<ChangeEvent> events = new ArrayList<>();
+                Iterator<ChangeEvent> newestFirst = buffer.descendingIterator();
+                while (newestFirst.hasNext()) {
+                    ChangeEvent event = newestFirst.next();
+                    if (event.sequence() <= sink.cursor) {
+                        break;
+                    }
+                    events.add(event);
+                }
+                Collections.reverse(events);
+                return events;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean hasAfter(long cursor) {
+            lock.lock();
+            try {
+                return latest > cursor;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final class Sink implements Subscription {
+        private final Feed feed;
+        private final Subscriber subscriber;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile long cursor;
+        private volatile boolean reset;
+        private volatile boolean heartbeatDue;
+        private volatile long lastSent = System.nanoTime();
+        private volatile boolean closed;
+
+        private Sink(Feed feed, Subscriber subscriber) {
+            this.feed = feed;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                remove(this);
+            }
+        }
+    }
+}
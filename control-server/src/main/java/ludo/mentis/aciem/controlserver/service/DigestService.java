@@ -0,0 +1,8 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public interface DigestService {
+    String etag(Path file) throws IOException;
+}
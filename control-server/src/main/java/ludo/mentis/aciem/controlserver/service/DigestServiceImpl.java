@@ -0,0 +1,275 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.util.ETags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service that provides strong entity tags for files from their SHA-256 digest.
+ * <p>
+ * Each digest is computed once and kept in a cache keyed by path, size and modification time, which is
+ * persisted as an append-only log so it survives restarts. Files larger than the synchronous limit, small
+ * enough to hash in a few milliseconds, are hashed in the background; until their digest is known they are
+ * served without an entity tag.
+ * <p>
+ * The cache keeps the most recently used digests up to a number of entries. The log is compacted to the
+ * cached entries whenever it has grown to twice their number, so superseded and evicted lines do not pile up
+ * while the server runs.
+ */
+@Service
+public class DigestServiceImpl implements DigestService, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(DigestServiceImpl.class);
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    // Files modified this recently may still change within the timestamp resolution, so they are not cached
+    private static final long RACY_WINDOW_MILLIS = 2000;
+    // Lines the log may hold beyond twice the cached entries before it is compacted
+    private static final int COMPACTION_SLACK = 1000;
+
+    private final Path cacheFile;
+    private final long syncLimit;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock entriesLock = new ReentrantLock();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "digest");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ReentrantLock logLock = new ReentrantLock();
+    private BufferedWriter log;
+    private int logLines;
+
+    /**
+     * Constructor that loads the digests persisted by a previous run
+     *
+     * @param cacheFile The file the digest cache is persisted to
+     * @param syncLimit Files larger than this are hashed in the background
+     * @param maxEntries The number of digests kept, least recently used first evicted
+     * @throws IOException If the cache file cannot be created
+     */
+    public DigestServiceImpl(@Value("${file.digest.cache-file:${java.io.tmpdir}/control-server/digests.cache}") String cacheFile,
+                             @Value("${file.digest.sync-limit:1MB}") DataSize syncLimit,
+                             @Value("${file.digest.max-entries:100000}") int maxEntries) throws IOException {
+        this.cacheFile = Paths.get(cacheFile).normalize().toAbsolutePath();
+        this.syncLimit = syncLimit.toBytes();
+        this.maxEntries = Math.max(1, maxEntries);
+
+        Files.createDirectories(this.cacheFile.getParent());
+        logLines = load();
+        if (needsCompaction()) {
+            compact();
+        }
+        this.log = openLog();
+        logger.info("Digest cache {} loaded with {} entries", this.cacheFile, size());
+    }
+
+    /**
+     * Get the strong entity tag of a file
+     *
+     * @param file The file
+     * @return The entity tag, or null if the digest of a large file is still being computed
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public String etag(Path file) throws IOException {
+        String key = file.normalize().toAbsolutePath().toString();
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        Entry entry;
+        entriesLock.lock();
+        try {
+            entry = entries.get(key);
+        } finally {
+            entriesLock.unlock();
+        }
+        if (entry != null && entry.size() == size && entry.modified() == modified) {
+            return ETags.strong(entry.digest());
+        }
+
+        if (size > syncLimit) {
+            if (pending.add(key)) {
+                background.execute(() -> {
+                    try {
+                        compute(file, key, size, modified);
+                    } catch (IOException e) {
+                        logger.warn("Failed to compute digest of {}", file, e);
+                    } finally {
+                        pending.remove(key);
+                    }
+                });
+            }
+            return null;
+        }
+
+        String digest = compute(file, key, size, modified);
+        return digest != null ? ETags.strong(digest) : null;
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        background.shutdownNow();
+        logLock.lock();
+        try {
+            log.close();
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    private String compute(Path file, String key, long size, long modified) throws IOException {
+        MessageDigest digest = ETags.sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer.clear()) != -1) {
+                digest.update(buffer.flip());
+            }
+        }
+        String encoded = ETags.encode(digest.digest());
+
+        // A file that changed while being hashed has no digest worth keeping
+        BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+        if (after.size() != size || after.lastModifiedTime().toMillis() != modified) {
+            logger.debug("File {} changed while its digest was computed", file);
+            return null;
+        }
+
+        if (System.currentTimeMillis() - modified >= RACY_WINDOW_MILLIS) {
+            Entry entry = new Entry(size, modified, encoded);
+            put(key, entry);
+            append(key, entry);
+        }
+        return encoded;
+    }
+
+    private void put(String key, Entry entry) {
+        entriesLock.lock();
+        try {
+            entries.put(key, entry);
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        } finally {
+            entriesLock.unlock();
+        }
+    }
+
+    private int size() {
+        entriesLock.lock();
+        try {
+            return entries.size();
+        } finally {
+            entriesLock.unlock();
+        }
+    }
+
+    private void append(String key, Entry entry) {
+        logLock.lock();
+        try {
+            log.write(format(key, entry));
+            log.flush();
+            logLines++;
+            if (needsCompaction()) {
+                log.close();
+                compact();
+                log = openLog();
+            }
+        } catch (IOException e) {
+            // The cache only saves work; losing an entry is harmless
+            logger.warn("Failed to persist digest of {}", key, e);
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    private boolean needsCompaction() {
+        return logLines > size() * 2 + Math.min(COMPACTION_SLACK, maxEntries);
+    }
+
+    private BufferedWriter openLog() throws IOException {
+        return Files.newBufferedWriter(cacheFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    private int load() throws IOException {
+        if (!Files.exists(cacheFile)) {
+            return 0;
+        }
+
+        // <digest> <size> <modified> <path>; later lines override earlier ones
+        List<String> lines = Files.readAllLines(cacheFile, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            String[] fields = line.split(" ", 4);
+            if (fields.length < 4) {
+                continue;
+            }
+            try {
+                put(fields[3], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+            } catch (NumberFormatException e) {
+                logger.debug("Ignoring malformed digest cache line: {}", line);
+            }
+        }
+        return lines.size();
+    }
+
+    /**
+     * Rewrite the log with the cached entries only, least recently used first so that a reload evicts the same
+     */
+    private void compact() throws IOException {
+        Map<String, Entry> cached;
+        entriesLock.lock();
+        try {
+            cached = new LinkedHashMap<>(entries);
+        } finally {
+            entriesLock.unlock();
+        }
+
+        Path temp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : cached.entrySet()) {
+                writer.write(format(entry.getKey(), entry.getValue()));
+            }
+        }
+        Files.move(temp, cacheFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        logLines = cached.size();
+        logger.debug("Digest cache {} compacted to {} entries", cacheFile, cached.size());
+    }
+
+    private static String format(String key, Entry entry) {
+        return entry.digest() + " " + entry.size() + " " + entry.modified() + " " + key + "\n";
+    }
+
+    private record Entry(long size, long modified, String digest) {
+    }
+}
@@ -0,0 +1,29 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+
+public interface DirectoryWatchService {
+    Registration watch(Path directory, DirectoryListener listener) throws IOException;
+
+    /**
+     * Receives the changes to the direct children of a watched directory
+     */
+    interface DirectoryListener {
+        /**
+         * @param directory The watched directory
+         * @param child The changed child, or null when events were lost or the directory can no longer be watched
+         * @param kind The kind of change; OVERFLOW when events were lost
+         */
+        void onChange(Path directory, Path child, WatchEvent.Kind<?> kind);
+    }
+
+    /**
+     * A listener registration, closed to stop receiving events
+     */
+    interface Registration extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,149 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service that shares a single {@link WatchService} among every component watching directories.
+ * <p>
+ * Each directory is registered with the watch service once, however many listeners it has, and one
+ * daemon thread dispatches the events to them. The key is cancelled when the last listener of a
+ * directory closes its registration. Listeners run on the dispatch thread and must return quickly.
+ */
+@Service
+public class DirectoryWatchServiceImpl implements DirectoryWatchService, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryWatchServiceImpl.class);
+
+    private final WatchService watchService;
+    private final Map<Path, Watched> watched = new HashMap<>();
+    private final ReentrantLock watchedLock = new ReentrantLock();
+    private final Thread dispatcher;
+
+    /**
+     * Constructor that starts the dispatch thread
+     *
+     * @throws IOException If the file system does not provide a watch service
+     */
+    public DirectoryWatchServiceImpl() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.dispatcher = new Thread(this::dispatch, "directory-watcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Watch the direct children of a directory
+     *
+     * @param directory The directory to watch
+     * @param listener Receives the changes
+     * @return The registration, closed to stop receiving events
+     * @throws IOException If the directory cannot be watched
+     */
+    @Override
+    public Registration watch(Path directory, DirectoryListener listener) throws IOException {
+        Path dir = directory.normalize().toAbsolutePath();
+        Watched entry;
+        watchedLock.lock();
+        try {
+            entry = watched.get(dir);
+            if (entry == null || !entry.key.isValid()) {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                entry = new Watched(key);
+                watched.put(dir, entry);
+            }
+            entry.listeners.add(listener);
+        } finally {
+            watchedLock.unlock();
+        }
+
+        Watched registered = entry;
+        return () -> unregister(dir, registered, listener);
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        watchService.close();
+        dispatcher.interrupt();
+    }
+
+    private void unregister(Path dir, Watched entry, DirectoryListener listener) {
+        watchedLock.lock();
+        try {
+            if (entry.listeners.remove(listener) && entry.listeners.isEmpty()) {
+                entry.key.cancel();
+                watched.remove(dir, entry);
+            }
+        } finally {
+            watchedLock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path dir = (Path) key.watchable();
+            List<DirectoryListener> listeners;
+            watchedLock.lock();
+            try {
+                Watched entry = watched.get(dir);
+                listeners = entry != null && entry.key == key ? List.copyOf(entry.listeners) : List.of();
+            } finally {
+                watchedLock.unlock();
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                Path child = event.kind() == StandardWatchEventKinds.OVERFLOW ? null : dir.resolve((Path) event.context());
+                notify(listeners, dir, child, event.kind());
+            }
+
+            if (!key.reset()) {
+                // The directory was deleted or became inaccessible: nothing more will be reported for it
+                logger.debug("Watch of {} is no longer valid", dir);
+                notify(listeners, dir, null, StandardWatchEventKinds.OVERFLOW);
+            }
+        }
+    }
+
+    private static void notify(List<DirectoryListener> listeners, Path dir, Path child, WatchEvent.Kind<?> kind) {
+        for (DirectoryListener listener : listeners) {
+            try {
+                listener.onChange(dir, child, kind);
+            } catch (RuntimeException e) {
+                logger.warn("Directory listener failed for {} in {}", child, dir, e);
+            }
+        }
+    }
+
+    private static final class Watched {
+        private final WatchKey key;
+        private final List<DirectoryListener> listeners = new CopyOnWriteArrayList<>();
+
+        private Watched(WatchKey key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+
+public interface DownloadService {
+    void writeDownload(Resource resource, HttpServletRequest request, HttpServletResponse response,
+                       Completion completion) throws IOException;
+
+    /**
+     * Told once a download has ended, which may be after writeDownload returned
+     */
+    @FunctionalInterface
+    interface Completion {
+        /**
+         * @param sent The number of body bytes written to the response
+         * @param error The error the download ended with, or null if it was sent
+         */
+        void complete(long sent, Throwable error);
+    }
+}
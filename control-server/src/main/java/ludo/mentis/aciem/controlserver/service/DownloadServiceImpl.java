@@ -0,0 +1,495 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import ludo.mentis.aciem.controlserver.model.ByteRange;
+import ludo.mentis.aciem.controlserver.model.TransferDirection;
+import ludo.mentis.aciem.controlserver.util.HttpRanges;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service that writes file downloads to the response, honoring Range and If-Range requests (RFC 7233).
+ * <p>
+ * A single satisfiable range is sent as a 206 response with a Content-Range header, several ranges as a
+ * multipart/byteranges body, and a Range header without any satisfiable range gets a 416 response.
+ * <p>
+ * When the container supports it (Tomcat's NIO connectors do), a whole file or a single range is handed to
+ * the container to be sent with sendfile, so the kernel copies the bytes straight from the page cache to the
+ * socket. Otherwise the file is copied through a large buffer with positional channel reads.
+ * <p>
+ * When transfers are shaped, a file is instead sent a grant of the {@link TransferScheduler} at a time, with
+ * non-blocking writes on an asynchronous request: a download waiting for its next grant, or for a slow client
+ * to drain the previous one, holds no thread.
+ * <p>
+ * The completion of a download is told once its last byte has been written, from the asynchronous request when it
+ * is shaped. A file handed to sendfile is complete once handed over: the container reports nothing further.
+ */
+@Service
+public class DownloadServiceImpl implements DownloadService {
+
+    private static final Logger logger = LoggerFactory.getLogger(DownloadServiceImpl.class);
+    private static final String CONTENT_TYPE = MediaType.APPLICATION_OCTET_STREAM_VALUE;
+
+    // Request attributes of Tomcat's sendfile support, as used by its DefaultServlet
+    static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private final DigestService digestService;
+    private final TransferScheduler transferScheduler;
+    private final boolean sendfileEnabled;
+    private final long sendfileMinSize;
+    private final int bufferSize;
+
+    /**
+     * Constructor that initializes the transfer settings from application properties
+     *
+     * @param digestService The service providing the entity tags of files
+     * @param transferScheduler The scheduler shaping the downloads
+     * @param sendfileEnabled Whether files may be sent with the container's sendfile support
+     * @param sendfileMinSize Responses smaller than this are copied, as sendfile does not pay off for them
+     * @param bufferSize The buffer size used when the file is copied
+     */
+    public DownloadServiceImpl(DigestService digestService,
+                               TransferScheduler transferScheduler,
+                               @Value("${file.download.sendfile:true}") boolean sendfileEnabled,
+                               @Value("${file.download.sendfile-min-size:48KB}") DataSize sendfileMinSize,
+                               @Value("${file.download.buffer-size:256KB}") DataSize bufferSize) {
+        this.digestService = digestService;
+        this.transferScheduler = transferScheduler;
+        this.sendfileEnabled = sendfileEnabled;
+        this.sendfileMinSize = sendfileMinSize.toBytes();
+        this.bufferSize = Math.toIntExact(bufferSize.toBytes());
+        logger.info("Download transfers: sendfile {} (min {} bytes), buffer {} bytes",
+                sendfileEnabled ? "enabled" : "disabled", this.sendfileMinSize, this.bufferSize);
+    }
+
+    /**
+     * Write a file, or the requested ranges of it, to the response
+     *
+     * @param resource The file to download
+     * @param request The request, including any Range and conditional headers
+     * @param response The response to write to
+     * @param completion Told exactly once when the download has ended, also when this throws
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public void writeDownload(Resource resource, HttpServletRequest request, HttpServletResponse response,
+                              Completion completion) throws IOException {
+        Transfer transfer = new Transfer(completion);
+        try {
+            if (writeResponse(resource, request, response, transfer)) {
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            transfer.complete(e);
+            throw e;
+        }
+        transfer.complete(null);
+    }
+
+    /**
+     * @return True if the body is being sent asynchronously, which completes the transfer once it ends
+     */
+    private boolean writeResponse(Resource resource, HttpServletRequest request, HttpServletResponse response,
+                                  Transfer transfer) throws IOException {
+        long length = resource.contentLength();
+        long lastModified = resource.lastModified();
+        String etag = resource.isFile() ? digestService.etag(resource.getFile().toPath()) : null;
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + resource.getFilename() + "\"");
+        if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+            return false;
+        }
+
+        List<ByteRange> ranges = null;
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null
+                && HttpRanges.ifRangeMatches(request.getHeader(HttpHeaders.IF_RANGE),
+                etag, lastModified)) {
+            ranges = HttpRanges.resolve(rangeHeader, length);
+        }
+
+        if (ranges == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(CONTENT_TYPE);
+            response.setContentLengthLong(length);
+            return writeBody(resource, request, response, List.of(new ByteRange(0, length)), null, null, transfer);
+        } else if (ranges.isEmpty()) {
+            logger.debug("Range {} not satisfiable for {} ({} bytes)", rangeHeader, resource.getFilename(), length);
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            return false;
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType(CONTENT_TYPE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, HttpRanges.contentRange(range, length));
+            response.setContentLengthLong(range.length());
+            return writeBody(resource, request, response, ranges, null, null, transfer);
+        } else {
+            String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+            List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+            long contentLength = closingDelimiter(boundary).length;
+            for (ByteRange range : ranges) {
+                byte[] header = partHeader(boundary, range, length);
+                partHeaders.add(header);
+                contentLength += header.length + range.length();
+            }
+
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType("multipart/byteranges; boundary=" + boundary);
+            response.setContentLengthLong(contentLength);
+            return writeBody(resource, request, response, ranges, partHeaders, closingDelimiter(boundary), transfer);
+        }
+    }
+
+    /**
+     * @return True if the body is being sent asynchronously
+     */
+    private boolean writeBody(Resource resource, HttpServletRequest request, HttpServletResponse response,
+                              List<ByteRange> ranges, List<byte[]> partHeaders, byte[] trailer, Transfer transfer)
+            throws IOException {
+        if (isHead(request)) {
+            return false;
+        }
+        if (transferScheduler.isShaping() && resource.isFile()) {
+            new ShapedDownload(request, response, resource, ranges, partHeaders, trailer, transfer).start();
+            return true;
+        }
+        if (partHeaders == null && sendfile(resource, request, ranges.get(0))) {
+            transfer.sent(ranges.get(0).length());
+            return false;
+        }
+
+        // Ranges are sorted and disjoint, so a single pass over the file serves all of them
+        ServletOutputStream out = response.getOutputStream();
+        byte[] buffer = new byte[bufferSize];
+        if (resource.isFile()) {
+            try (FileChannel channel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+                for (int i = 0; i < ranges.size(); i++) {
+                    if (partHeaders != null) {
+                        out.write(partHeaders.get(i));
+                        transfer.sent(partHeaders.get(i).length);
+                    }
+                    copy(channel, ranges.get(i), out, buffer, transfer);
+                }
+            }
+        } else {
+            try (InputStream in = resource.getInputStream()) {
+                long position = 0;
+                for (int i = 0; i < ranges.size(); i++) {
+                    ByteRange range = ranges.get(i);
+                    if (partHeaders != null) {
+                        out.write(partHeaders.get(i));
+                        transfer.sent(partHeaders.get(i).length);
+                    }
+                    in.skipNBytes(range.start() - position);
+                    copy(in, out, range.length(), buffer, transfer);
+                    position = range.end();
+                }
+            }
+        }
+        if (trailer != null) {
+            out.write(trailer);
+            transfer.sent(trailer.length);
+        }
+        return false;
+    }
+
+    /**
+     * Hand a range of the file to the container to be sent once the request returns
+     *
+     * @return True if the container is going to send the range, false if it has to be copied
+     */
+    private boolean sendfile(Resource resource, HttpServletRequest request, ByteRange range) throws IOException {
+        if (!sendfileEnabled || range.length() < sendfileMinSize
+                || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR)) || !resource.isFile()) {
+            return false;
+        }
+
+        request.setAttribute(SENDFILE_FILENAME_ATTR, resource.getFile().getAbsolutePath());
+        request.setAttribute(SENDFILE_START_ATTR, range.start());
+        request.setAttribute(SENDFILE_END_ATTR, range.end());
+        logger.debug("Sending {} bytes of {} with sendfile", range.length(), resource.getFilename());
+        return true;
+    }
+
+    private static void copy(FileChannel channel, ByteRange range, ServletOutputStream out, byte[] buffer,
+                             Transfer transfer) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long position = range.start();
+        while (position < range.end()) {
+            byteBuffer.clear().limit((int) Math.min(buffer.length, range.end() - position));
+            int read = channel.read(byteBuffer, position);
+            if (read == -1) {
+                throw new IOException("File is shorter than expected: " + position + " of " + range.end() + " bytes");
+            }
+            out.write(buffer, 0, read);
+            transfer.sent(read);
+            position += read;
+        }
+    }
+
+    private static void copy(InputStream in, ServletOutputStream out, long count, byte[] buffer,
+                             Transfer transfer) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("File is shorter than expected: " + (count - remaining) + " of " + count + " bytes");
+            }
+            out.write(buffer, 0, read);
+            transfer.sent(read);
+            remaining -= read;
+        }
+    }
+
+    /**
+     * The bytes written of a download, and the guard telling its completion only once
+     */
+    private static final class Transfer {
+        private final Completion completion;
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private Transfer(Completion completion) {
+            this.completion = completion;
+        }
+
+        private void sent(long bytes) {
+            sent.addAndGet(bytes);
+        }
+
+        private void complete(Throwable error) {
+            if (completed.compareAndSet(false, true)) {
+                completion.complete(sent.get(), error);
+            }
+        }
+    }
+
+    /**
+     * A download sent one grant at a time with non-blocking writes. The container calls onWritePossible
+     * whenever the previous write has drained, and the scheduler calls granted once the next chunk may be read;
+     * both run under the lock of the download.
+     */
+    private final class ShapedDownload implements WriteListener, AsyncListener {
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final Resource resource;
+        private final List<ByteRange> ranges;
+        private final List<byte[]> partHeaders;
+        private final byte[] trailer;
+        private final Transfer transfer;
+        private final ReentrantLock lock = new ReentrantLock();
+        private AsyncContext async;
+        private ServletOutputStream out;
+        private FileChannel channel;
+        private TransferScheduler.Stream stream;
+        private ByteBuffer chunk;
+        private int range;
+        private long position;
+        private boolean headerWritten;
+        private boolean trailerWritten;
+        private boolean chunkReady;
+        private boolean awaitingGrant;
+        private boolean finished;
+
+        private ShapedDownload(HttpServletRequest request, HttpServletResponse response, Resource resource,
+                               List<ByteRange> ranges, List<byte[]> partHeaders, byte[] trailer, Transfer transfer) {
+            this.request = request;
+            this.response = response;
+            this.resource = resource;
+            this.ranges = ranges;
+            this.partHeaders = partHeaders;
+            this.trailer = trailer;
+            this.transfer = transfer;
+            this.position = ranges.get(0).start();
+        }
+
+        private void start() throws IOException {
+            lock.lock();
+            try {
+                channel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ);
+                try {
+                    stream = transferScheduler.open(TransferDirection.DOWNLOAD, resource.getFile().getPath());
+                    chunk = ByteBuffer.allocate(stream.quantum());
+                    // A throttled download may outlast any fixed timeout; it ends when it is sent or the client
+                    // goes away
+                    async = request.startAsync(request, response);
+                    async.setTimeout(0);
+                    async.addListener(this);
+                } catch (RuntimeException e) {
+                    if (stream != null) {
+                        stream.close();
+                    }
+                    channel.close();
+                    throw e;
+                }
+                out = response.getOutputStream();
+                out.setWriteListener(this);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            lock.lock();
+            try {
+                drain();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void granted() {
+            lock.lock();
+            try {
+                awaitingGrant = false;
+                if (finished) {
+                    return;
+                }
+                try {
+                    while (chunk.hasRemaining()) {
+                        if (channel.read(chunk, position + chunk.position()) == -1) {
+                            throw new IOException("File is shorter than expected: " + (position + chunk.position())
+                                    + " of " + ranges.get(range).end() + " bytes");
+                        }
+                    }
+                    position += chunk.limit();
+                    chunkReady = true;
+                    drain();
+                } catch (IOException | RuntimeException e) {
+                    finish(e);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void drain() throws IOException {
+            while (!finished && !awaitingGrant && out.isReady()) {
+                if (chunkReady) {
+                    chunkReady = false;
+                    out.write(chunk.array(), 0, chunk.limit());
+                    transfer.sent(chunk.limit());
+                } else if (range == ranges.size()) {
+                    if (trailer != null && !trailerWritten) {
+                        trailerWritten = true;
+                        out.write(trailer);
+                        transfer.sent(trailer.length);
+                    } else {
+                        finish(null);
+                    }
+                } else if (partHeaders != null && !headerWritten) {
+                    headerWritten = true;
+                    out.write(partHeaders.get(range));
+                    transfer.sent(partHeaders.get(range).length);
+                } else if (position == ranges.get(range).end()) {
+                    range++;
+                    headerWritten = false;
+                    if (range < ranges.size()) {
+                        position = ranges.get(range).start();
+                    }
+                } else {
+                    int size = (int) Math.min(chunk.capacity(), ranges.get(range).end() - position);
+                    chunk.clear().limit(size);
+                    awaitingGrant = true;
+                    stream.acquire(size, this::granted);
+                }
+            }
+        }
+
+        private void finish(Throwable error) {
+            lock.lock();
+            try {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                if (error != null) {
+                    // Typically the client went away
+                    logger.debug("Download of {} ended early", resource.getFilename(), error);
+                }
+                stream.close();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.debug("Failed to close {}", resource.getFilename(), e);
+                }
+                async.complete();
+                transfer.complete(error);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            finish(t);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finish(null);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            finish(new IOException("Download timed out"));
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            finish(event.getThrowable());
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    private static byte[] partHeader(String boundary, ByteRange range, long length) {
+        return ("\r\n--" + boundary + "\r\n"
+                + HttpHeaders.CONTENT_TYPE + ": " + CONTENT_TYPE + "\r\n"
+                + HttpHeaders.CONTENT_RANGE + ": " + HttpRanges.contentRange(range, length) + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] closingDelimiter(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isHead(HttpServletRequest request) {
+        return "HEAD".equals(request.getMethod());
+    }
+}
@@ -0,0 +1,23 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.DurabilityMode;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+public interface FileCommitService {
+    long writeAtomically(Path target, ChannelWriter writer) throws IOException;
+
+    void publish(Path source, Path target) throws IOException;
+
+    DurabilityMode durabilityFor(Path target);
+
+    /**
+     * Writes the content of a file into a channel
+     */
+    @FunctionalInterface
+    interface ChannelWriter {
+        long write(FileChannel channel) throws IOException;
+    }
+}
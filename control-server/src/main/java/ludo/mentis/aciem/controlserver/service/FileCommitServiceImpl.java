@@ -0,0 +1,297 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.DurabilityMode;
+import ludo.mentis.aciem.controlserver.model.FileChangedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service that publishes files atomically: content is written to a temporary file in the target
+ * directory and then renamed over the target, so readers never see a partially written file.
+ * <p>
+ * How much of the commit is forced to disk depends on the {@link DurabilityMode} configured for the
+ * target, with optional overrides per directory.
+ */
+@Service
+public class FileCommitServiceImpl implements FileCommitService, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileCommitServiceImpl.class);
+
+    private final DurabilityMode defaultMode;
+    private final List<Map.Entry<Path, DurabilityMode>> overrides;
+    private final GroupCommitter groupCommitter;
+    private final ApplicationEventPublisher eventPublisher;
+
+    /**
+     * Constructor that initializes the durability modes from application properties
+     *
+     * @param defaultMode The durability mode used unless a directory override applies
+     * @param overridesConfig Comma-separated list of directory=mode overrides
+     * @param groupCommitWindow How long a group commit waits for more commits to join the batch
+     * @param eventPublisher Publishes a {@link FileChangedEvent} for every committed file
+     */
+    public FileCommitServiceImpl(
+            @Value("${file.upload.durability:none}") String defaultMode,
+            @Value("${file.upload.durability-overrides:}") String overridesConfig,
+            @Value("${file.upload.group-commit-window:0ms}") Duration groupCommitWindow,
+            ApplicationEventPublisher eventPublisher) {
+
+        this.defaultMode = DurabilityMode.parse(defaultMode);
+        this.overrides = parseOverrides(overridesConfig);
+        this.groupCommitter = new GroupCommitter(groupCommitWindow);
+        this.eventPublisher = eventPublisher;
+
+        logger.info("Upload durability: {} (overrides: {})", this.defaultMode, overrides);
+    }
+
+    /**
+     * Write a file through a temporary file and atomically rename it over the target
+     *
+     * @param target The final location of the file
+     * @param writer Writes the file content into the temporary file
+     * @return The number of bytes written
+     * @throws IOException If an I/O error occurs; the target is then left untouched
+     */
+    @Override
+    public long writeAtomically(Path target, ChannelWriter writer) throws IOException {
+        DurabilityMode mode = durabilityFor(target);
+        Path temp = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        long start = System.nanoTime();
+        long written;
+
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                written = writer.write(channel);
+                if (mode != DurabilityMode.NONE) {
+                    channel.force(true);
+                }
+            }
+            rename(temp, target, mode);
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(temp);
+            throw e;
+        }
+
+        logger.debug("Committed {} with durability {} in {} us", target, mode, (System.nanoTime() - start) / 1000);
+        return written;
+    }
+
+    /**
+     * Atomically rename a completely written file over the target
+     *
+     * @param source A file in the same directory as the target
+     * @param target The final location of the file
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public void publish(Path source, Path target) throws IOException {
+        DurabilityMode mode = durabilityFor(target);
+        if (mode != DurabilityMode.NONE) {
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+        rename(source, target, mode);
+    }
+
+    /**
+     * Get the durability mode that applies to a target file
+     *
+     * @param target The file location
+     * @return The mode of the most specific directory override, or the default mode
+     */
+    @Override
+    public DurabilityMode durabilityFor(Path target) {
+        Path normalized = target.normalize().toAbsolutePath();
+        for (Map.Entry<Path, DurabilityMode> override : overrides) {
+            if (normalized.startsWith(override.getKey())) {
+                return override.getValue();
+            }
+        }
+        return defaultMode;
+    }
+
+    @Override
+    public void destroy() {
+        groupCommitter.stop();
+    }
+
+    private void rename(Path source, Path target, DurabilityMode mode) throws IOException {
+        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // The rename itself is only durable once the directory entry has been forced
+        switch (mode) {
+            case FSYNC -> syncDirectory(target.getParent());
+            case GROUP_COMMIT -> groupCommitter.syncDirectory(target.getParent());
+            case NONE -> {
+                // Nothing to force
+            }
+        }
+        eventPublisher.publishEvent(new FileChangedEvent(target));
+    }
+
+    private static void syncDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Some platforms (e.g. Windows) cannot open a directory as a channel; their renames are journaled
+            if (Files.isDirectory(directory)) {
+                logger.debug("Directory sync is not supported for {}: {}", directory, e.getMessage());
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Failed to delete temporary file {}", path, e);
+        }
+    }
+
+    private static List<Map.Entry<Path, DurabilityMode>> parseOverrides(String overridesConfig) {
+        List<Map.Entry<Path, DurabilityMode>> result = new ArrayList<>();
+        for (String override : overridesConfig.split(",")) {
+            if (override.isBlank()) {
+                continue;
+            }
+            int separator = override.lastIndexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid durability override, expected <directory>=<mode>: " + override);
+            }
+            Path directory = Paths.get(override.substring(0, separator).trim()).normalize().toAbsolutePath();
+            result.add(Map.entry(directory, DurabilityMode.parse(override.substring(separator + 1))));
+        }
+        // Most specific directory first
+        result.sort(Comparator.comparingInt((Map.Entry<Path, DurabilityMode> e) -> e.getKey().getNameCount()).reversed());
+        return List.copyOf(result);
+    }
+
+    /**
+     * Forces directory entries on behalf of concurrent commits. Requests that queue up while a batch is
+     * being flushed form the next batch, and each directory is forced once per batch.
+     */
+    private static final class GroupCommitter implements Runnable {
+
+        private final BlockingQueue<SyncRequest> queue = new LinkedBlockingQueue<>();
+        private final long windowNanos;
+        private Thread thread;
+
+        private GroupCommitter(Duration window) {
+            this.windowNanos = window.toNanos();
+        }
+
+        void syncDirectory(Path directory) throws IOException {
+            ensureStarted();
+            SyncRequest request = new SyncRequest(directory, new CompletableFuture<>());
+            queue.add(request);
+            try {
+                request.done().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for group commit");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+            }
+        }
+
+        private synchronized void ensureStarted() {
+            if (thread == null) {
+                thread = new Thread(this, "group-commit");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        synchronized void stop() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<SyncRequest> batch = new ArrayList<>();
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    batch.add(queue.take());
+                    queue.drainTo(batch);
+                    long deadline = System.nanoTime() + windowNanos;
+                    long remaining;
+                    while ((remaining = deadline - System.nanoTime()) > 0) {
+                        SyncRequest next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                        queue.drainTo(batch);
+                    }
+                    flush(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    batch.clear();
+                }
+            }
+
+            // Flush whatever is still waiting so no writer hangs on shutdown
+            queue.drainTo(batch);
+            flush(batch);
+        }
+
+        private static void flush(List<SyncRequest> batch) {
+            Map<Path, IOException> results = new HashMap<>();
+            for (SyncRequest request : batch) {
+                if (!results.containsKey(request.directory())) {
+                    IOException failure = null;
+                    try {
+                        FileCommitServiceImpl.syncDirectory(request.directory());
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    results.put(request.directory(), failure);
+                }
+
+                IOException failure = results.get(request.directory());
+                if (failure == null) {
+                    request.done().complete(null);
+                } else {
+                    request.done().completeExceptionally(failure);
+                }
+            }
+            if (logger.isDebugEnabled() && !batch.isEmpty()) {
+                logger.debug("Group commit forced {} directories for {} commits", results.size(), batch.size());
+            }
+        }
+    }
+
+    private record SyncRequest(Path directory, CompletableFuture<Void> done) {
+    }
+}
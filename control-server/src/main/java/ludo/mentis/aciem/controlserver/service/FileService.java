@@ -1,17 +1,36 @@
 package ludo.mentis.aciem.controlserver.service;
 
 import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.util.ListingQuery;
 import org.springframework.core.io.Resource;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.List;
 
 public interface FileService {
     Path uploadFile(MultipartFile file, String directory) throws IOException;
 
+    Path validateUploadDirectory(String directory) throws IOException;
+
+    Path uploadFile(InputStream content, String originalFilename, Path directory) throws IOException;
+
     Resource downloadFile(String filePath) throws IOException;
 
     List<FileInfo> listFiles(String directory) throws IOException;
+
+    List<FileInfo> listFiles(String directory, ListingQuery query) throws IOException;
+
+    Path validateListDirectory(String directory) throws IOException;
+
+    String listFiles(Path directory, String after, int limit, ListingConsumer consumer) throws IOException;
+
+    /**
+     * Receives the entries of a listing as the directory is read
+     */
+    interface ListingConsumer {
+        void accept(FileInfo file) throws IOException;
+    }
 }
@@ -1,6 +1,11 @@
 package ludo.mentis.aciem.controlserver.service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.util.FileNames;
+import ludo.mentis.aciem.controlserver.util.ListingQuery;
+import ludo.mentis.aciem.controlserver.util.OperationMeter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
@@ -9,23 +14,48 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.PriorityQueue;
 
+/**
+ * Service for uploading, downloading and listing files within the allowed directories
+ * <p>
+ * Uploads and listings are timed by outcome into {@code file.operations}, and uploaded bytes are counted in
+ * {@code file.transferred}. Downloads are timed by the controller, as they last until the file is written.
+ */
 @Service
 public class FileServiceImpl implements FileService {
 
     private static final Logger logger = LoggerFactory.getLogger(FileServiceImpl.class);
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
 
     private final PathValidationService pathValidationService;
+    private final FileCommitService fileCommitService;
+    private final ListingCache listingCache;
+    private final OperationMeter upload;
+    private final OperationMeter list;
+    private final Counter uploadedBytes;
 
-    public FileServiceImpl(PathValidationService pathValidationService) {
+    public FileServiceImpl(PathValidationService pathValidationService, FileCommitService fileCommitService,
+                           ListingCache listingCache, MeterRegistry meterRegistry) {
         this.pathValidationService = pathValidationService;
+        this.fileCommitService = fileCommitService;
+        this.listingCache = listingCache;
+        this.upload = new OperationMeter("upload", meterRegistry);
+        this.list = new OperationMeter("list", meterRegistry);
+        this.uploadedBytes = OperationMeter.transferred("upload", meterRegistry);
         logger.info("FileService initialized with path validation");
     }
 
@@ -39,27 +69,62 @@ public class FileServiceImpl implements FileService {
      */
     @Override
     public Path uploadFile(MultipartFile file, String directory) throws IOException {
-        // Validate and sanitize the directory path
+        Path validatedDirPath = validateUploadDirectory(directory);
+        String originalFilename = Objects.requireNonNull(file.getOriginalFilename());
+
+        try (InputStream content = file.getInputStream()) {
+            return uploadFile(content, originalFilename, validatedDirPath);
+        }
+    }
+
+    /**
+     * Validate the directory an upload is going to be written to
+     *
+     * @param directory The directory to upload to
+     * @return The validated and sanitized directory path
+     * @throws IOException If the directory is not allowed
+     */
+    @Override
+    public Path validateUploadDirectory(String directory) throws IOException {
         Path validatedDirPath = pathValidationService.validateAndSanitizePath(directory);
         logger.debug("Validated upload directory: {}", validatedDirPath);
+        return validatedDirPath;
+    }
 
-        // Resolve the target file path and ensure the filename is safe
-        String originalFilename = Objects.requireNonNull(file.getOriginalFilename());
-        // Sanitize filename - remove path traversal sequences and dangerous characters
-        String safeFilename = originalFilename
-                .replaceAll("\\.\\.", "") // Remove path traversal sequences
-                .replaceAll("[^a-zA-Z0-9._-]", "_"); // Replace other dangerous chars with underscore
-        Path targetLocation = validatedDirPath.resolve(safeFilename);
-
-        // Ensure the target location is still within allowed directories
-        if (!pathValidationService.isPathAllowed(targetLocation)) {
-            throw new IOException("Access denied: Target file location is not within allowed directories");
-        }
+    /**
+     * Upload a file by writing the given stream straight into a channel. The content goes to a temporary
+     * file next to the target, which replaces the target only once the whole stream has been written.
+     *
+     * @param content The file content, read until the end of the stream
+     * @param originalFilename The file name provided by the client
+     * @param directory A directory previously returned by {@link #validateUploadDirectory(String)}
+     * @return The path where the file was saved
+     * @throws IOException If an I/O error occurs or if the target location is not allowed
+     */
+    @Override
+    public Path uploadFile(InputStream content, String originalFilename, Path directory) throws IOException {
+        long startNanos = upload.start();
+        Throwable error = null;
+        try {
+            // Resolve the target file path and ensure the filename is safe
+            Path targetLocation = directory.resolve(FileNames.sanitize(originalFilename));
 
-        Files.createDirectories(targetLocation.getParent());
-        Files.copy(file.getInputStream(), targetLocation, StandardCopyOption.REPLACE_EXISTING);
-        logger.info("File uploaded successfully to: {}", targetLocation);
-        return targetLocation;
+            // Ensure the target location is still within allowed directories
+            if (!pathValidationService.isPathAllowed(targetLocation)) {
+                throw new IOException("Access denied: Target file location is not within allowed directories");
+            }
+
+            Files.createDirectories(targetLocation.getParent());
+            long written = fileCommitService.writeAtomically(targetLocation, channel -> transfer(content, channel));
+            uploadedBytes.increment(written);
+            logger.info("File uploaded successfully to: {} ({} bytes)", targetLocation, written);
+            return targetLocation;
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            upload.stop(startNanos, error);
+        }
     }
 
     /**
@@ -87,7 +152,7 @@ public class FileServiceImpl implements FileService {
     }
 
     /**
-     * List all files in the specified directory
+     * List all files in the specified directory, from the listing cache when the directory has not changed
      * 
      * @param directory The directory to list files from
      * @return A list of file information
@@ -95,6 +160,65 @@ public class FileServiceImpl implements FileService {
      */
     @Override
     public List<FileInfo> listFiles(String directory) throws IOException {
+        long startNanos = list.start();
+        Throwable error = null;
+        try {
+            Path dirPath = validateListDirectory(directory);
+
+            return listingCache.get(dirPath, () -> {
+                List<FileInfo> files = new ArrayList<>();
+                listFiles(dirPath, null, 0, files::add);
+                return files;
+            });
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            list.stop(startNanos, error);
+        }
+    }
+
+    /**
+     * List the entries of the specified directory selected by a query. A cached listing is used when there is
+     * one; otherwise the directory is read with only the selected entries held in memory, so the first entries
+     * of a huge directory in size or modification order cost memory for the entries returned alone.
+     *
+     * @param directory The directory to list files from
+     * @param query The sort order, limit and predicates
+     * @return The selected entries in sort order
+     * @throws IOException If an I/O error occurs or if the directory is not allowed
+     */
+    @Override
+    public List<FileInfo> listFiles(String directory, ListingQuery query) throws IOException {
+        long startNanos = list.start();
+        Throwable error = null;
+        try {
+            Path dirPath = validateListDirectory(directory);
+
+            List<FileInfo> cached = listingCache.getIfPresent(dirPath);
+            if (cached != null) {
+                return query.select(cached);
+            }
+            ListingQuery.Selector selector = query.selector();
+            listFiles(dirPath, null, 0, selector::offer);
+            return selector.result();
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            list.stop(startNanos, error);
+        }
+    }
+
+    /**
+     * Validate a directory that is going to be listed
+     *
+     * @param directory The directory to list files from
+     * @return The validated and sanitized directory path
+     * @throws IOException If the directory is not allowed, does not exist or is not a directory
+     */
+    @Override
+    public Path validateListDirectory(String directory) throws IOException {
         // Validate and sanitize the directory path
         Path dirPath = pathValidationService.validateAndSanitizePath(directory);
         logger.debug("Validated list directory: {}", dirPath);
@@ -108,25 +232,130 @@ public class FileServiceImpl implements FileService {
             logger.warn("Path is not a directory: {}", dirPath);
             throw new IOException("Path is not a directory: " + directory);
         }
+        return dirPath;
+    }
+
+    /**
+     * List the files of a directory, passing each entry to the consumer as the directory is read.
+     * <p>
+     * Without a limit, every entry named after {@code after} is passed on in directory order, holding none of
+     * them in memory. With a limit, the page is the {@code limit} smallest names after {@code after}, passed on
+     * in name order. Only the entries of the page are stat'ed, and entries created or deleted between pages never
+     * shift the following pages.
+     * <p>
+     * Pages are found by binary search in the sorted snapshot of the directory's names kept by the listing cache,
+     * so paging through N entries reads the directory once, rather than once per page for O(N^2/limit) in all.
+     * The snapshot is dropped when the directory changes. A directory with more names than the cache keeps is
+     * read in full for every page, holding only the page in a bounded heap.
+     *
+     * @param directory A directory previously returned by {@link #validateListDirectory(String)}
+     * @param after Only entries named after this one are listed, or null to start from the beginning
+     * @param limit The maximum number of entries, or 0 for all of them
+     * @param consumer Receives the entries
+     * @return The name of the last entry if more entries follow it, or null if the listing is complete
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public String listFiles(Path directory, String after, int limit, ListingConsumer consumer) throws IOException {
+        if (limit > 0) {
+            String[] sorted = listingCache.getSortedNames(directory, maxNames -> readSortedNames(directory, maxNames));
+            if (sorted != null) {
+                int from = 0;
+                if (after != null) {
+                    int index = Arrays.binarySearch(sorted, after);
+                    from = index >= 0 ? index + 1 : -index - 1;
+                }
+                int to = Math.min(sorted.length, from + limit);
+                for (int i = from; i < to; i++) {
+                    consumer.accept(toFileInfo(directory.resolve(sorted[i])));
+                }
+                return to < sorted.length ? sorted[to - 1] : null;
+            }
+        }
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            if (limit <= 0) {
+                for (Path entry : entries) {
+                    if (after == null || entry.getFileName().toString().compareTo(after) > 0) {
+                        consumer.accept(toFileInfo(entry));
+                    }
+                }
+                return null;
+            }
+
+            // Max-heap of the smallest names seen so far
+            PriorityQueue<String> page = new PriorityQueue<>(Comparator.reverseOrder());
+            boolean more = false;
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (after != null && name.compareTo(after) <= 0) {
+                    continue;
+                }
+                if (page.size() < limit) {
+                    page.add(name);
+                } else {
+                    more = true;
+                    if (name.compareTo(page.peek()) < 0) {
+                        page.poll();
+                        page.add(name);
+                    }
+                }
+            }
+
+            String[] names = page.toArray(new String[0]);
+            Arrays.sort(names);
+            for (String name : names) {
+                consumer.accept(toFileInfo(directory.resolve(name)));
+            }
+            return more ? names[names.length - 1] : null;
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+    }
 
-        try (Stream<Path> paths = Files.list(dirPath)) {
-            return paths.map(path -> {
-                try {
-                    return new FileInfo(
-                        path.getFileName().toString(),
-                        Files.isDirectory(path),
-                        Files.size(path),
-                        Files.getLastModifiedTime(path).toMillis()
-                    );
-                } catch (IOException e) {
-                    return new FileInfo(
-                        path.getFileName().toString(),
-                        Files.isDirectory(path),
-                        -1,
-                        -1
-                    );
+    /**
+     * @return The names of the directory in natural order, or null if it has more than maxNames
+     */
+    private static String[] readSortedNames(Path directory, int maxNames) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (names.size() == maxNames) {
+                    return null;
                 }
-            }).collect(Collectors.toList());
+                names.add(entry.getFileName().toString());
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static FileInfo toFileInfo(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new FileInfo(name, attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            // Entries that vanish or cannot be read while listing are still reported
+            return new FileInfo(name, Files.isDirectory(path), -1, -1);
+        }
+    }
+
+    private static long transfer(InputStream content, FileChannel channel) throws IOException {
+        byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+        ByteBuffer chunk = ByteBuffer.wrap(buffer);
+        long total = 0;
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            chunk.clear().limit(read);
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+            total += read;
         }
+        return total;
     }
 }
@@ -0,0 +1,31 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+public interface ListingCache {
+    List<FileInfo> get(Path directory, Loader loader) throws IOException;
+
+    List<FileInfo> getIfPresent(Path directory);
+
+    String[] getSortedNames(Path directory, NamesLoader loader) throws IOException;
+
+    void invalidate(Path directory);
+
+    /**
+     * Reads a listing from the file system on a cache miss
+     */
+    interface Loader {
+        List<FileInfo> load() throws IOException;
+    }
+
+    /**
+     * Reads the names of a directory in sorted order on a cache miss, giving up on directories too large to keep
+     */
+    interface NamesLoader {
+        String[] load(int maxNames) throws IOException;
+    }
+}
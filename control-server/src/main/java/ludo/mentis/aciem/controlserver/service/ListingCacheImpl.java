@@ -0,0 +1,343 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import ludo.mentis.aciem.controlserver.model.FileChangedEvent;
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, least-recently-used cache of directory listings.
+ * <p>
+ * A cached directory is watched through the {@link DirectoryWatchService}, and any change to its children
+ * drops the listing. The watch is registered before the directory is read, so a change made while it is
+ * being read is never lost. Listings also expire after a TTL, which bounds their staleness on file systems
+ * that do not deliver watch events, such as network mounts. Files written by the server itself are
+ * invalidated synchronously through {@link FileChangedEvent}.
+ * <p>
+ * Next to its listing, a directory may have a sorted snapshot of its names, which paginated listings use to
+ * find each page by binary search instead of reading the whole directory again. Snapshots are dropped with the
+ * listing, and together hold at most a budget of names, beyond which the least recently used are dropped.
+ */
+@Service
+public class ListingCacheImpl implements ListingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ListingCacheImpl.class);
+
+    private final DirectoryWatchService directoryWatchService;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final int maxDirectorySize;
+    private final int maxSnapshotNames;
+    private long snapshotNames;
+    private final Counter hits;
+    private final Counter misses;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock entriesLock = new ReentrantLock();
+
+    /**
+     * Constructor that initializes the cache limits from application properties
+     *
+     * @param directoryWatchService The service watching cached directories
+     * @param meterRegistry The registry of the hit and miss counters
+     * @param maxEntries The maximum number of cached directories, or 0 to disable the cache
+     * @param ttl How long a listing is used without being read again
+     * @param maxDirectorySize Directories with more entries than this are never cached
+     * @param maxSnapshotNames The names kept in sorted snapshots of all directories, or 0 to keep none
+     */
+    public ListingCacheImpl(DirectoryWatchService directoryWatchService,
+                            MeterRegistry meterRegistry,
+                            @Value("${file.list.cache.max-entries:256}") int maxEntries,
+                            @Value("${file.list.cache.ttl:30s}") Duration ttl,
+                            @Value("${file.list.cache.max-directory-size:10000}") int maxDirectorySize,
+                            @Value("${file.list.cache.max-snapshot-names:1000000}") int maxSnapshotNames) {
+        this.directoryWatchService = directoryWatchService;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+        this.maxDirectorySize = maxDirectorySize;
+        this.maxSnapshotNames = maxSnapshotNames;
+        this.hits = Counter.builder("file.list.cache.requests").tag("result", "hit")
+                .description("Listings served from the cache").register(meterRegistry);
+        this.misses = Counter.builder("file.list.cache.requests").tag("result", "miss")
+                .description("Listings read from the file system").register(meterRegistry);
+        Gauge.builder("file.list.cache.size", this, ListingCacheImpl::size)
+                .description("Directories in the listing cache").register(meterRegistry);
+        logger.info("Listing cache: {} directories of up to {} entries, TTL {}", maxEntries, maxDirectorySize, ttl);
+    }
+
+    /**
+     * Get the listing of a directory from the cache, reading it on a miss
+     *
+     * @param directory A validated directory
+     * @param loader Reads the listing on a miss
+     * @return The listing
+     * @throws IOException If the listing cannot be read
+     */
+    @Override
+    public List<FileInfo> get(Path directory, Loader loader) throws IOException {
+        if (maxEntries <= 0) {
+            misses.increment();
+            return loader.load();
+        }
+
+        Path key = directory.normalize().toAbsolutePath();
+        Entry entry;
+        long generation;
+        entriesLock.lock();
+        try {
+            entry = entries.get(key);
+            if (entry != null && entry.files != null && System.nanoTime() - entry.loadedAt < ttlNanos) {
+                hits.increment();
+                return entry.files;
+            }
+            if (entry == null) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+                evictEldest();
+            }
+            generation = entry.generation;
+        } finally {
+            entriesLock.unlock();
+        }
+        misses.increment();
+
+        // The watch must be in place before reading, or a change during the read could go unnoticed
+        entry.watch(directoryWatchService, this::onChange);
+        List<FileInfo> files = List.copyOf(loader.load());
+
+        entriesLock.lock();
+        try {
+            // A change reported while the directory was read makes this listing stale already
+            if (entries.get(key) == entry && entry.generation == generation) {
+                if (files.size() > maxDirectorySize) {
+                    entries.remove(key);
+                    dropNames(entry);
+                    entry.close();
+                } else {
+                    entry.files = files;
+                    entry.loadedAt = System.nanoTime();
+                }
+            }
+        } finally {
+            entriesLock.unlock();
+        }
+        return files;
+    }
+
+    /**
+     * Get the listing of a directory if it is cached and current, without reading it on a miss
+     *
+     * @param directory A validated directory
+     * @return The listing, or null when it has to be read
+     */
+    @Override
+    public List<FileInfo> getIfPresent(Path directory) {
+        if (maxEntries <= 0) {
+            misses.increment();
+            return null;
+        }
+
+        Path key = directory.normalize().toAbsolutePath();
+        entriesLock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.files != null && System.nanoTime() - entry.loadedAt < ttlNanos) {
+                hits.increment();
+                return entry.files;
+            }
+        } finally {
+            entriesLock.unlock();
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Get the sorted names of a directory from the cache, reading them on a miss
+     *
+     * @param directory A validated directory
+     * @param loader Reads the names on a miss
+     * @return The names in natural order, or null if the directory has too many names to keep
+     * @throws IOException If the names cannot be read
+     */
+    @Override
+    public String[] getSortedNames(Path directory, NamesLoader loader) throws IOException {
+        if (maxEntries <= 0 || maxSnapshotNames <= 0) {
+            return null;
+        }
+
+        Path key = directory.normalize().toAbsolutePath();
+        Entry entry;
+        long generation;
+        entriesLock.lock();
+        try {
+            entry = entries.get(key);
+            if (entry != null && entry.names != null && System.nanoTime() - entry.namesLoadedAt < ttlNanos) {
+                return entry.names;
+            }
+            if (entry == null) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+                evictEldest();
+            }
+            generation = entry.generation;
+        } finally {
+            entriesLock.unlock();
+        }
+
+        // The watch must be in place before reading, or a change during the read could go unnoticed
+        entry.watch(directoryWatchService, this::onChange);
+        String[] names = loader.load(maxSnapshotNames);
+        if (names == null) {
+            return null;
+        }
+
+        entriesLock.lock();
+        try {
+            // A change reported while the directory was read makes this snapshot stale already
+            if (entries.get(key) == entry && entry.generation == generation) {
+                dropNames(entry);
+                entry.names = names;
+                entry.namesLoadedAt = System.nanoTime();
+                snapshotNames += names.length;
+                Iterator<Entry> iterator = entries.values().iterator();
+                while (snapshotNames > maxSnapshotNames && iterator.hasNext()) {
+                    Entry eldest = iterator.next();
+                    if (eldest != entry) {
+                        dropNames(eldest);
+                    }
+                }
+            }
+        } finally {
+            entriesLock.unlock();
+        }
+        return names;
+    }
+
+    /**
+     * Drop the cached listing of a directory
+     *
+     * @param directory The directory
+     */
+    @Override
+    public void invalidate(Path directory) {
+        Path key = directory.normalize().toAbsolutePath();
+        entriesLock.lock();
+        try {
+            // Map.get would count as an access and refresh the entry's LRU position
+            for (Map.Entry<Path, Entry> cached : entries.entrySet()) {
+                if (cached.getKey().equals(key)) {
+                    cached.getValue().generation++;
+                    cached.getValue().files = null;
+                    dropNames(cached.getValue());
+                    return;
+                }
+            }
+        } finally {
+            entriesLock.unlock();
+        }
+    }
+
+    @EventListener
+    public void onFileChanged(FileChangedEvent event) {
+        Path parent = event.path().normalize().toAbsolutePath().getParent();
+        if (parent != null) {
+            invalidate(parent);
+        }
+    }
+
+    private void onChange(Path directory, Path child, WatchEvent.Kind<?> kind) {
+        logger.trace("{} {} in {}", kind.name(), child, directory);
+        invalidate(directory);
+    }
+
+    private int size() {
+        entriesLock.lock();
+        try {
+            return entries.size();
+        } finally {
+            entriesLock.unlock();
+        }
+    }
+
+    private void evictEldest() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            dropNames(eldest);
+            eldest.close();
+        }
+    }
+
+    /**
+     * Called with the entries lock held
+     */
+    private void dropNames(Entry entry) {
+        if (entry.names != null) {
+            snapshotNames -= entry.names.length;
+            entry.names = null;
+        }
+    }
+
+    private static final class Entry {
+        private final Path directory;
+        private final ReentrantLock lock = new ReentrantLock();
+        private List<FileInfo> files;
+        private long loadedAt;
+        private String[] names;
+        private long namesLoadedAt;
+        private long generation;
+        private DirectoryWatchService.Registration registration;
+        private boolean closed;
+
+        private Entry(Path directory) {
+            this.directory = directory;
+        }
+
+        private void watch(DirectoryWatchService watchService, DirectoryWatchService.DirectoryListener listener) {
+            lock.lock();
+            try {
+                if (registration != null || closed) {
+                    return;
+                }
+                try {
+                    registration = watchService.watch(directory, listener);
+                } catch (IOException e) {
+                    // The TTL still bounds how stale the listing can get
+                    logger.debug("Cannot watch {}, relying on the TTL", directory, e);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void close() {
+            lock.lock();
+            try {
+                closed = true;
+                if (registration != null) {
+                    registration.close();
+                    registration = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -12,4 +12,19 @@ public interface PathValidationService {
     Path validateAndSanitizePath(String pathString) throws IOException;
 
     List<Path> getAllowedDirectories();
+
+    Snapshot snapshot();
+
+    List<Path> reload(List<String> allowedDirectories);
+
+    /**
+     * The allowed directories at one point in time, unaffected by later reloads
+     */
+    interface Snapshot {
+        /**
+         * @param path The path to validate
+         * @return true if the path is within one of the directories of the snapshot
+         */
+        boolean isPathAllowed(Path path);
+    }
 }
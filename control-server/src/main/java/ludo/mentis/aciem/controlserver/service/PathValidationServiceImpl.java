@@ -1,92 +1,128 @@
 package ludo.mentis.aciem.controlserver.service;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import ludo.mentis.aciem.controlserver.model.AllowedDirectoriesChangedEvent;
+import ludo.mentis.aciem.controlserver.util.PathPrefixSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Service for validating and sanitizing file paths to ensure they are within allowed directories
+ * <p>
+ * The allowed directories are compiled once into prefix sets, so a check walks the elements of the path
+ * whatever the number of directories. A path is allowed when it lies below an allowed directory both as
+ * written and once its symbolic links are resolved, so a link cannot lead out of the allowed directories.
+ * <p>
+ * Resolving every element of a path is the expensive part, so the real paths of directories are cached.
+ * An entry is only used while the directory still has the same file key, which a single stat checks, and for
+ * a short TTL: a directory moved behind a new link higher up keeps its key, and is caught when the TTL ends.
+ * <p>
+ * The allowed directories can be reloaded at runtime, from a watched file or through {@link #reload}. Each
+ * reload compiles a new immutable snapshot and publishes it with a single volatile write, so checks never
+ * lock, and an operation that took a {@link #snapshot()} keeps the directories it started with.
+ * <p>
+ * Checks are timed by result into {@code file.path.validation}, so the denied count doubles as the number of
+ * requests refused for a path outside the allowed directories.
  */
 @Service
-public class PathValidationServiceImpl implements PathValidationService {
+public class PathValidationServiceImpl implements PathValidationService, DisposableBean {
 
     private static final Logger logger = LoggerFactory.getLogger(PathValidationServiceImpl.class);
 
-    private final List<Path> allowedDirectories;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Timer allowed;
+    private final Timer denied;
+    private final Path allowedDirectoriesFile;
+    private final int cacheSize;
+    private final long cacheTtlNanos;
+    private final LinkedHashMap<Path, RealPath> realDirectories = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock realDirectoriesLock = new ReentrantLock();
+    private final ReentrantLock reloadLock = new ReentrantLock();
+    private final DirectoryWatchService.Registration registration;
+    private volatile Roots roots;
 
     /**
      * Constructor that initializes the allowed directories from application properties
-     * 
+     *
+     * @param directoryWatchService The service reporting changes to the allowed directories file
+     * @param eventPublisher Publishes an {@link AllowedDirectoriesChangedEvent} after each reload
+     * @param meterRegistry The registry of the check timers
      * @param allowedDirectoriesConfig Comma-separated list of allowed directories from application.properties
+     * @param allowedDirectoriesFile A file listing one allowed directory per line, which overrides the property
+     *                               and is reloaded when it changes, or empty for none
+     * @param cacheSize The maximum number of directories whose real path is cached, or 0 to disable the cache
+     * @param cacheTtl How long the real path of a directory is used without being resolved again
      */
     public PathValidationServiceImpl(
-            @Value("${file.allowed-directories}") String allowedDirectoriesConfig) {
+            DirectoryWatchService directoryWatchService,
+            ApplicationEventPublisher eventPublisher,
+            MeterRegistry meterRegistry,
+            @Value("${file.allowed-directories}") String allowedDirectoriesConfig,
+            @Value("${file.allowed-directories-file:}") String allowedDirectoriesFile,
+            @Value("${file.path-validation.cache-size:10000}") int cacheSize,
+            @Value("${file.path-validation.cache-ttl:1s}") Duration cacheTtl) {
 
-        this.allowedDirectories = Arrays.stream(allowedDirectoriesConfig.split(","))
-                .map(String::trim)
-                .map(Paths::get)
-                .map(Path::normalize)
-                .collect(Collectors.toList());
+        this.eventPublisher = eventPublisher;
+        this.allowed = timer("allowed", meterRegistry);
+        this.denied = timer("denied", meterRegistry);
+        this.cacheSize = cacheSize;
+        this.cacheTtlNanos = cacheTtl.toNanos();
+        this.allowedDirectoriesFile = allowedDirectoriesFile.isBlank()
+                ? null : Paths.get(allowedDirectoriesFile.trim()).toAbsolutePath().normalize();
+
+        List<String> directories = Arrays.asList(allowedDirectoriesConfig.split(","));
+        if (this.allowedDirectoriesFile != null && Files.exists(this.allowedDirectoriesFile)) {
+            try {
+                directories = readAllowedDirectoriesFile();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read " + this.allowedDirectoriesFile, e);
+            }
+        }
+        this.roots = new Roots(parse(directories));
+        this.registration = this.allowedDirectoriesFile == null ? null : watchFile(directoryWatchService);
 
-        logger.info("Initialized allowed directories: {}", allowedDirectories);
+        logger.info("Initialized allowed directories: {}", roots.directories);
     }
 
     /**
      * Validates if a path is within any of the allowed directories
-     * 
+     *
      * @param path The path to validate
      * @return true if the path is within an allowed directory, false otherwise
      */
     @Override
     public boolean isPathAllowed(Path path) {
-        Path normalizedPath = path.normalize().toAbsolutePath();
-
-        // Check if the path is in allowed directories
-        for (Path allowedDir : allowedDirectories) {
-            Path normalizedAllowedDir = allowedDir.normalize().toAbsolutePath();
-
-            if (normalizedPath.startsWith(normalizedAllowedDir)) {
-                return true;
-            }
-        }
-
-        // Special case for JUnit @TempDir directories in integration tests
-        // Get the current stack trace to check if we're in PathValidationServiceTest
-        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-        boolean isInPathValidationServiceTest = false;
-        for (StackTraceElement element : stackTrace) {
-            if (element.getClassName().contains("PathValidationServiceTest")) {
-                isInPathValidationServiceTest = true;
-                break;
-            }
-        }
-
-        // Only allow JUnit temp directories if we're not in PathValidationServiceTest
-        if (!isInPathValidationServiceTest) {
-            String pathString = normalizedPath.toString();
-            if (pathString.contains("\\Temp\\junit-") || pathString.contains("/Temp/junit-") || 
-                pathString.contains("\\temp\\junit-") || pathString.contains("/temp/junit-") ||
-                pathString.contains("\\AppData\\Local\\Temp\\junit-") || pathString.contains("/AppData/Local/Temp/junit-")) {
-                logger.info("Allowing access to JUnit temporary directory: {}", normalizedPath);
-                return true;
-            }
-        }
-
-        logger.warn("Path validation failed: {} is not within allowed directories", normalizedPath);
-        return false;
+        long startNanos = System.nanoTime();
+        boolean result = roots.isPathAllowed(path);
+        (result ? allowed : denied).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        return result;
     }
 
     /**
      * Validates if a path string is within any of the allowed directories
-     * 
+     *
      * @param pathString The path string to validate
      * @return true if the path is within an allowed directory, false otherwise
      */
@@ -97,14 +133,14 @@ public class PathValidationServiceImpl implements PathValidationService {
 
     /**
      * Validates and sanitizes a path to ensure it's within allowed directories
-     * 
+     *
      * @param pathString The path string to validate and sanitize
      * @return The sanitized path
      * @throws IOException If the path is not within allowed directories
      */
     @Override
     public Path validateAndSanitizePath(String pathString) throws IOException {
-        Path path = Paths.get(pathString).normalize().toAbsolutePath();
+        Path path = Paths.get(pathString).toAbsolutePath().normalize();
 
         if (!isPathAllowed(path)) {
             throw new IOException("Access denied: Path is not within allowed directories: " + pathString);
@@ -115,11 +151,230 @@ public class PathValidationServiceImpl implements PathValidationService {
 
     /**
      * Gets the list of allowed directories
-     * 
+     *
      * @return The list of allowed directories
      */
     @Override
     public List<Path> getAllowedDirectories() {
-        return allowedDirectories;
+        return roots.directories;
+    }
+
+    /**
+     * Gets the current allowed directories, for an operation that must not see a reload midway
+     *
+     * @return The snapshot of the allowed directories
+     */
+    @Override
+    public Snapshot snapshot() {
+        return roots;
+    }
+
+    /**
+     * Replaces the allowed directories. Checks already running finish against the previous ones.
+     *
+     * @param allowedDirectories The new allowed directories; blank entries are ignored
+     * @return The new allowed directories
+     * @throws IllegalArgumentException If no directory is given or one is not a valid path
+     */
+    @Override
+    public List<Path> reload(List<String> allowedDirectories) {
+        List<Path> directories = parse(allowedDirectories);
+        reloadLock.lock();
+        try {
+            if (directories.equals(roots.directories)) {
+                return roots.directories;
+            }
+            roots = new Roots(directories);
+        } finally {
+            reloadLock.unlock();
+        }
+        logger.info("Reloaded allowed directories: {}", directories);
+        eventPublisher.publishEvent(new AllowedDirectoriesChangedEvent(directories));
+        return directories;
+    }
+
+    @Override
+    public void destroy() {
+        if (registration != null) {
+            registration.close();
+        }
+    }
+
+    private static Timer timer(String result, MeterRegistry meterRegistry) {
+        return Timer.builder("file.path.validation").tag("result", result)
+                .description("Time to check a path against the allowed directories").publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(1000)).maximumExpectedValue(Duration.ofMillis(100))
+                .register(meterRegistry);
+    }
+
+    private static List<Path> parse(List<String> allowedDirectories) {
+        List<Path> directories = allowedDirectories.stream()
+                .filter(Objects::nonNull)
+                .map(String::trim)
+                .filter(directory -> !directory.isEmpty())
+                .map(Paths::get)
+                .map(Path::normalize)
+                .distinct()
+                .toList();
+        if (directories.isEmpty()) {
+            throw new IllegalArgumentException("At least one allowed directory is required");
+        }
+        return directories;
+    }
+
+    /**
+     * @return The directories of the file, one per line; blank lines and lines starting with # are skipped
+     */
+    private List<String> readAllowedDirectoriesFile() throws IOException {
+        return Files.readAllLines(allowedDirectoriesFile, StandardCharsets.UTF_8).stream()
+                .filter(line -> !line.trim().startsWith("#"))
+                .toList();
+    }
+
+    private DirectoryWatchService.Registration watchFile(DirectoryWatchService directoryWatchService) {
+        Path parent = allowedDirectoriesFile.getParent();
+        try {
+            // Editors often replace a file rather than write it, so its directory is watched and not the file
+            return directoryWatchService.watch(parent, (directory, child, kind) -> {
+                if (child == null || child.equals(allowedDirectoriesFile)) {
+                    reloadFile();
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Cannot watch {}, allowed directories will not be reloaded from it", allowedDirectoriesFile, e);
+            return null;
+        }
+    }
+
+    void reloadFile() {
+        if (!Files.exists(allowedDirectoriesFile)) {
+            logger.warn("{} was removed, keeping the allowed directories {}", allowedDirectoriesFile, roots.directories);
+            return;
+        }
+        try {
+            reload(readAllowedDirectoriesFile());
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Failed to reload {}, keeping the allowed directories {}: {}",
+                    allowedDirectoriesFile, roots.directories, e.getMessage());
+        }
+    }
+
+    /**
+     * Resolve the links of a path. The part of the path that does not exist yet, such as the target of an
+     * upload, is appended to the real path of its closest existing ancestor.
+     *
+     * @param path An absolute, normalized path
+     * @return The real path, or null if it cannot be resolved, e.g. for a dangling link
+     */
+    private Path realPath(Path path) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return resolveInParent(path);
+        } catch (IOException e) {
+            return null;
+        }
+
+        if (attributes.isDirectory()) {
+            return realDirectory(path, attributes.fileKey());
+        }
+        if (attributes.isSymbolicLink()) {
+            try {
+                return path.toRealPath();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return resolveInParent(path);
+    }
+
+    private Path resolveInParent(Path path) {
+        Path parent = path.getParent();
+        if (parent == null) {
+            return path;
+        }
+        Path realParent = realPath(parent);
+        return realParent != null ? realParent.resolve(path.getFileName()) : null;
+    }
+
+    private Path realDirectory(Path directory, Object fileKey) {
+        long now = System.nanoTime();
+        realDirectoriesLock.lock();
+        try {
+            RealPath cached = realDirectories.get(directory);
+            if (cached != null && now - cached.resolved < cacheTtlNanos && Objects.equals(cached.fileKey, fileKey)) {
+                return cached.path;
+            }
+        } finally {
+            realDirectoriesLock.unlock();
+        }
+
+        Path realPath;
+        try {
+            realPath = directory.toRealPath();
+        } catch (IOException e) {
+            return null;
+        }
+        if (cacheSize > 0) {
+            realDirectoriesLock.lock();
+            try {
+                realDirectories.put(directory, new RealPath(realPath, fileKey, now));
+                if (realDirectories.size() > cacheSize) {
+                    realDirectories.remove(realDirectories.keySet().iterator().next());
+                }
+            } finally {
+                realDirectoriesLock.unlock();
+            }
+        }
+        return realPath;
+    }
+
+    /**
+     * The allowed directories compiled for matching, never modified once published
+     */
+    private final class Roots implements Snapshot {
+        private final List<Path> directories;
+        private final PathPrefixSet allowedPaths;
+        private final PathPrefixSet allowedRealPaths;
+
+        private Roots(List<Path> directories) {
+            this.directories = directories;
+            List<Path> absolute = directories.stream().map(dir -> dir.toAbsolutePath().normalize()).toList();
+            this.allowedPaths = PathPrefixSet.of(absolute);
+            // A directory that does not exist yet cannot hold links, so it is its own real path
+            this.allowedRealPaths = PathPrefixSet.of(absolute.stream().map(dir -> {
+                try {
+                    return dir.toRealPath();
+                } catch (IOException e) {
+                    return dir;
+                }
+            }).toList());
+        }
+
+        @Override
+        public boolean isPathAllowed(Path path) {
+            Path normalizedPath = path.toAbsolutePath().normalize();
+
+            if (allowedPaths.containsPrefixOf(normalizedPath)) {
+                Path realPath = realPath(normalizedPath);
+                if (realPath != null && allowedRealPaths.containsPrefixOf(realPath)) {
+                    return true;
+                }
+                logger.warn("Path validation failed: {} resolves to {}, outside the allowed directories", normalizedPath, realPath);
+                return false;
+            }
+
+            logger.warn("Path validation failed: {} is not within allowed directories", normalizedPath);
+            return false;
+        }
+    }
+
+    /**
+     * @param path The real path of a directory
+     * @param fileKey The file key of the directory when it was resolved; null where the file system has none
+     * @param resolved When the directory was resolved, in System.nanoTime
+     */
+    private record RealPath(Path path, Object fileKey, long resolved) {
     }
 }
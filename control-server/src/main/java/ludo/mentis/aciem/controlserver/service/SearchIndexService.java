@@ -0,0 +1,15 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.model.SearchType;
+
+import java.io.IOException;
+import java.util.List;
+
+public interface SearchIndexService {
+    List<FileInfo> search(SearchType type, String query, int limit);
+
+    boolean isReady();
+
+    void rebuild() throws IOException;
+}
@@ -0,0 +1,672 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import ludo.mentis.aciem.controlserver.model.AllowedDirectoriesChangedEvent;
+import ludo.mentis.aciem.controlserver.model.FileChangedEvent;
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.model.SearchType;
+import ludo.mentis.aciem.controlserver.util.IndexSegment;
+import ludo.mentis.aciem.controlserver.util.SearchQuery;
+import ludo.mentis.aciem.controlserver.util.TreeFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Service that keeps a persistent filename index of everything below the allowed directories.
+ * <p>
+ * The index is a generation of immutable {@link IndexSegment} files. A rebuild walks the allowed directories
+ * with the {@link TreeWalkService}, writes the segments in parallel as the walk fills them, and swaps the new
+ * generation in once complete, so queries are answered from the previous one meanwhile. The last generation
+ * is loaded at startup and serves queries until the startup rebuild replaces it.
+ * <p>
+ * Between rebuilds, every indexed directory is watched through the {@link DirectoryWatchService}. Created
+ * entries are kept in memory and deleted ones are hidden by tombstones, until a rebuild that started after
+ * the change makes them part of the segments. Each result is read from disk before it is returned, so an
+ * entry whose change was missed, for instance once the watch limit of the operating system is reached,
+ * is never reported with stale attributes and disappears at the next rebuild.
+ */
+@Service
+public class SearchIndexServiceImpl implements SearchIndexService, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(SearchIndexServiceImpl.class);
+    private static final String MANIFEST = "CURRENT";
+    private static final String GENERATION_PREFIX = "generation-";
+    private static final TreeFilter ALL = TreeFilter.of(null, null, null, null, null, null, null);
+
+    private final PathValidationService pathValidationService;
+    private final TreeWalkService treeWalkService;
+    private final DirectoryWatchService directoryWatchService;
+    private final boolean enabled;
+    private final Path indexDirectory;
+    private final int segmentSize;
+    private final Duration rebuildInterval;
+    private final int writerThreads;
+    private final Timer rebuildTimer;
+    private final Map<SearchType, Timer> queryTimers = new EnumMap<>(SearchType.class);
+    private final ScheduledExecutorService rebuilds;
+    private final ExecutorService updates;
+    private final ExecutorService writers;
+    private final Map<Path, DirectoryWatchService.Registration> watches = new ConcurrentHashMap<>();
+    private final Map<String, LiveEntry> live = new ConcurrentHashMap<>();
+    private final Map<String, Long> deleted = new ConcurrentHashMap<>();
+    private final AtomicBoolean rebuildRequested = new AtomicBoolean();
+    private volatile Index index;
+    private volatile boolean watchLimitReached;
+
+    /**
+     * Constructor that initializes the index settings from application properties
+     *
+     * @param pathValidationService The service providing the allowed directories
+     * @param treeWalkService The service walking the allowed directories on a rebuild
+     * @param directoryWatchService The service reporting changes between rebuilds
+     * @param meterRegistry The registry of the rebuild and query timers
+     * @param enabled Whether the index is built at startup
+     * @param indexDirectory The directory holding the index generations
+     * @param segmentSize The maximum number of entries of a segment
+     * @param rebuildInterval How often the index is rebuilt from scratch, or zero to only rebuild at startup
+     */
+    public SearchIndexServiceImpl(PathValidationService pathValidationService,
+                                  TreeWalkService treeWalkService,
+                                  DirectoryWatchService directoryWatchService,
+                                  MeterRegistry meterRegistry,
+                                  @Value("${file.search.enabled:true}") boolean enabled,
+                                  @Value("${file.search.index-dir:${java.io.tmpdir}/control-server/search-index}") String indexDirectory,
+                                  @Value("${file.search.segment-size:1000000}") int segmentSize,
+                                  @Value("${file.search.rebuild-interval:6h}") Duration rebuildInterval) {
+        this.pathValidationService = pathValidationService;
+        this.treeWalkService = treeWalkService;
+        this.directoryWatchService = directoryWatchService;
+        this.enabled = enabled;
+        this.indexDirectory = Path.of(indexDirectory).toAbsolutePath().normalize();
+        this.segmentSize = segmentSize;
+        this.rebuildInterval = rebuildInterval;
+        this.writerThreads = Runtime.getRuntime().availableProcessors();
+
+        this.rebuildTimer = Timer.builder("file.search.rebuild")
+                .description("Time to rebuild the filename search index").register(meterRegistry);
+        for (SearchType type : SearchType.values()) {
+            queryTimers.put(type, Timer.builder("file.search.query").tag("type", type.name().toLowerCase(Locale.ROOT))
+                    .description("Filename search latency").register(meterRegistry));
+        }
+        Gauge.builder("file.search.entries", this, SearchIndexServiceImpl::entries)
+                .description("Entries in the filename search index").register(meterRegistry);
+
+        this.rebuilds = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "search-index-rebuild"));
+        this.updates = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "search-index-updates"));
+        AtomicInteger writerCount = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(writerThreads,
+                runnable -> daemon(runnable, "search-index-writer-" + writerCount.getAndIncrement()));
+    }
+
+    /**
+     * Load the last index generation and rebuild it in the background, then schedule the periodic rebuilds
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            logger.info("Filename search index disabled");
+            return;
+        }
+        rebuilds.execute(() -> {
+            loadPersisted();
+            rebuildQuietly();
+        });
+        if (!rebuildInterval.isZero()) {
+            long interval = rebuildInterval.toMillis();
+            rebuilds.scheduleWithFixedDelay(this::rebuildQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Find the files whose name matches a query, ordered by name ignoring case
+     *
+     * @param type How the query is matched
+     * @param query The query text or glob pattern
+     * @param limit The maximum number of files returned
+     * @return The matching files, named by their full path
+     * @throws IllegalStateException If the index has not been built yet
+     * @throws IllegalArgumentException If the query is empty or the pattern is malformed
+     */
+    @Override
+    public List<FileInfo> search(SearchType type, String query, int limit) {
+        Index current = index;
+        if (current == null) {
+            throw new IllegalStateException("Search index is not ready");
+        }
+        SearchQuery compiled = SearchQuery.of(type, query);
+
+        long start = System.nanoTime();
+        // Entries below a directory removed from the allowed ones are still indexed until the rebuild
+        PathValidationService.Snapshot allowed = pathValidationService.snapshot();
+        List<String> roots = roots().stream().map(Path::toString).toList();
+        Predicate<String> visible = path -> isUnder(roots, path) && !isDeleted(path);
+        List<IndexSegment.Entry> candidates = current.segments().parallelStream()
+                .flatMap(segment -> segment.search(compiled, limit, visible).stream())
+                .collect(Collectors.toCollection(ArrayList::new));
+        for (LiveEntry entry : live.values()) {
+            if (compiled.matches(entry.entry()) && visible.test(entry.entry().path())) {
+                candidates.add(entry.entry());
+            }
+        }
+        candidates.sort(IndexSegment.ORDER);
+
+        // An entry may be both in a segment and in memory, and a file missed by the watches may be gone
+        List<FileInfo> files = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (IndexSegment.Entry entry : candidates) {
+            if (files.size() >= limit) {
+                break;
+            }
+            if (seen.add(entry.path()) && allowed.isPathAllowed(Path.of(entry.path()))) {
+                FileInfo file = stat(entry);
+                if (file != null) {
+                    files.add(file);
+                }
+            }
+        }
+        queryTimers.get(type).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return files;
+    }
+
+    /**
+     * @return True once an index generation has been loaded or built
+     */
+    @Override
+    public boolean isReady() {
+        return index != null;
+    }
+
+    /**
+     * Rebuild the index from a walk of the allowed directories and swap it in
+     *
+     * @throws IOException If the index cannot be written, or an allowed directory cannot be read
+     */
+    @Override
+    public synchronized void rebuild() throws IOException {
+        long started = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        Path generation = indexDirectory.resolve(GENERATION_PREFIX + started);
+        Files.createDirectories(generation);
+        watchLimitReached = false;
+
+        SegmentBuilder builder = new SegmentBuilder(generation);
+        List<IndexSegment> segments;
+        try {
+            for (Path root : roots()) {
+                if (!Files.isDirectory(root)) {
+                    logger.warn("Allowed directory {} does not exist and is not indexed", root);
+                    continue;
+                }
+                String rootPath = root.toString();
+                watch(root);
+                treeWalkService.walk(root, ALL, file -> {
+                    IndexSegment.Entry entry = toEntry(rootPath, file.name(), file.directory());
+                    if (isIndexPath(entry.path())) {
+                        return;
+                    }
+                    builder.add(entry);
+                    if (file.directory()) {
+                        watch(Path.of(entry.path()));
+                    }
+                });
+            }
+            segments = builder.finish();
+            writeManifest(generation);
+        } catch (IOException | RuntimeException e) {
+            builder.abandon();
+            deleteGeneration(generation);
+            throw e;
+        }
+
+        install(new Index(segments, generation), started);
+        rebuildTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        logger.info("Search index rebuilt: {} entries in {} segments in {} ms", entries(), segments.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    @EventListener
+    public void onFileChanged(FileChangedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        long at = System.currentTimeMillis();
+        Path path = event.path().normalize().toAbsolutePath();
+        updates.execute(() -> added(path, at, false));
+    }
+
+    @EventListener
+    public void onAllowedDirectoriesChanged(AllowedDirectoriesChangedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        // Entries below a removed directory stay indexed until the rebuild, hidden from searches and no longer updated
+        List<Path> roots = roots();
+        watches.entrySet().removeIf(watch -> {
+            if (roots.stream().noneMatch(watch.getKey()::startsWith)) {
+                watch.getValue().close();
+                return true;
+            }
+            return false;
+        });
+        requestRebuild();
+    }
+
+    @Override
+    public void destroy() {
+        rebuilds.shutdownNow();
+        updates.shutdownNow();
+        writers.shutdownNow();
+        watches.values().forEach(DirectoryWatchService.Registration::close);
+        watches.clear();
+    }
+
+    /**
+     * Load the generation named by the manifest, unless the allowed directories changed since it was built
+     *
+     * @return True if a generation was loaded
+     */
+    boolean loadPersisted() {
+        Path manifest = indexDirectory.resolve(MANIFEST);
+        if (!Files.exists(manifest)) {
+            return false;
+        }
+        try {
+            // generation=<directory>, then one root=<path> line per allowed directory
+            List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+            String name = lines.isEmpty() ? "" : lines.get(0).substring(lines.get(0).indexOf('=') + 1);
+            List<String> roots = lines.stream().skip(1).map(line -> line.substring(line.indexOf('=') + 1)).toList();
+            if (!name.startsWith(GENERATION_PREFIX) || !roots.equals(roots().stream().map(Path::toString).toList())) {
+                logger.info("Search index was built for other directories, rebuilding it");
+                return false;
+            }
+
+            Path generation = indexDirectory.resolve(name);
+            List<IndexSegment> segments = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(generation, "*.idx")) {
+                for (Path file : files) {
+                    segments.add(IndexSegment.open(file));
+                }
+            }
+            install(new Index(segments, generation), 0);
+            deleteOtherGenerations(generation);
+            logger.info("Loaded search index {} with {} entries", generation, entries());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot load the search index, rebuilding it", e);
+            return false;
+        }
+    }
+
+    private void rebuildQuietly() {
+        try {
+            rebuild();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to rebuild the search index", e);
+        }
+    }
+
+    private void requestRebuild() {
+        if (rebuildRequested.compareAndSet(false, true)) {
+            rebuilds.execute(() -> {
+                rebuildRequested.set(false);
+                rebuildQuietly();
+            });
+        }
+    }
+
+    private void install(Index next, long coveredBefore) {
+        Index previous = index;
+        index = next;
+        // Changes reported before the walk started are part of the new segments
+        live.values().removeIf(entry -> entry.since() < coveredBefore);
+        deleted.values().removeIf(since -> since < coveredBefore);
+        if (previous != null && !previous.generation().equals(next.generation())) {
+            deleteGeneration(previous.generation());
+        }
+    }
+
+    private void writeManifest(Path generation) throws IOException {
+        StringBuilder manifest = new StringBuilder("generation=").append(generation.getFileName()).append('\n');
+        for (Path root : roots()) {
+            manifest.append("root=").append(root).append('\n');
+        }
+        Path temp = indexDirectory.resolve(MANIFEST + ".tmp");
+        Files.writeString(temp, manifest, StandardCharsets.UTF_8);
+        Files.move(temp, indexDirectory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void deleteOtherGenerations(Path current) throws IOException {
+        try (DirectoryStream<Path> generations = Files.newDirectoryStream(indexDirectory, GENERATION_PREFIX + "*")) {
+            for (Path generation : generations) {
+                if (!generation.equals(current)) {
+                    deleteGeneration(generation);
+                }
+            }
+        }
+    }
+
+    private static void deleteGeneration(Path generation) {
+        try (Stream<Path> files = Files.walk(generation)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            // Segments still mapped cannot be deleted on every platform; they go with the next load
+            logger.debug("Cannot delete search index generation {}", generation, e);
+        }
+    }
+
+    /**
+     * @return The absolute allowed directories, without those nested in another one
+     */
+    private List<Path> roots() {
+        List<Path> directories = pathValidationService.getAllowedDirectories().stream()
+                .map(directory -> directory.toAbsolutePath().normalize())
+                .distinct()
+                .toList();
+        return directories.stream()
+                .filter(directory -> directories.stream().noneMatch(other -> !other.equals(directory) && directory.startsWith(other)))
+                .toList();
+    }
+
+    private void watch(Path directory) {
+        if (watchLimitReached) {
+            return;
+        }
+        watches.computeIfAbsent(directory, dir -> {
+            try {
+                return directoryWatchService.watch(dir, this::onChange);
+            } catch (IOException e) {
+                // Typically the operating system limit on watches
+                watchLimitReached = true;
+                logger.warn("Cannot watch {}, further changes are only indexed by the next rebuild: {}", dir, e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    private void onChange(Path directory, Path child, WatchEvent.Kind<?> kind) {
+        // Runs on the watch dispatch thread, which must not walk new directories itself
+        long at = System.currentTimeMillis();
+        updates.execute(() -> {
+            if (child == null) {
+                if (Files.isDirectory(directory)) {
+                    rescan(directory, at);
+                } else {
+                    removed(directory, at);
+                }
+            } else if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                added(child, at, true);
+            } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                removed(child, at);
+            }
+        });
+    }
+
+    private void added(Path path, long at, boolean descend) {
+        String key = path.toString();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            // Already gone again
+            return;
+        }
+        if (isIndexPath(key) || path.getParent() == null) {
+            return;
+        }
+
+        deleted.remove(key);
+        live.put(key, new LiveEntry(new IndexSegment.Entry(path.getParent().toString(), path.getFileName().toString(),
+                attributes.isDirectory()), at));
+        if (attributes.isDirectory() && descend) {
+            // A directory moved in brings its whole tree along
+            watch(path);
+            try {
+                treeWalkService.walk(path, ALL, file -> {
+                    IndexSegment.Entry entry = toEntry(key, file.name(), file.directory());
+                    deleted.remove(entry.path());
+                    live.put(entry.path(), new LiveEntry(entry, at));
+                    if (file.directory()) {
+                        watch(Path.of(entry.path()));
+                    }
+                });
+            } catch (IOException e) {
+                logger.debug("Cannot index new directory {}", path, e);
+            }
+        }
+
+        if (live.size() > segmentSize) {
+            requestRebuild();
+        }
+    }
+
+    private void removed(Path path, long at) {
+        String key = path.toString();
+        String prefix = key + File.separator;
+        deleted.put(key, at);
+        live.keySet().removeIf(entry -> entry.equals(key) || entry.startsWith(prefix));
+        watches.entrySet().removeIf(watch -> {
+            if (watch.getKey().startsWith(path)) {
+                watch.getValue().close();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void rescan(Path directory, long at) {
+        // Events were lost: index every child again, walking the directories that were not watched yet
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+            for (Path child : children) {
+                added(child, at, !watches.containsKey(child));
+            }
+        } catch (IOException e) {
+            logger.debug("Cannot rescan {}", directory, e);
+        }
+    }
+
+    private boolean isDeleted(String path) {
+        if (deleted.isEmpty()) {
+            return false;
+        }
+        // A deleted directory hides everything below it
+        for (String current = path; ; ) {
+            if (deleted.containsKey(current)) {
+                return true;
+            }
+            int separator = current.lastIndexOf(File.separatorChar);
+            if (separator <= 0) {
+                return false;
+            }
+            current = current.substring(0, separator);
+        }
+    }
+
+    private static boolean isUnder(List<String> roots, String path) {
+        for (String root : roots) {
+            if (path.startsWith(root) && (path.length() == root.length() || root.endsWith(File.separator)
+                    || path.charAt(root.length()) == File.separatorChar)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isIndexPath(String path) {
+        String index = indexDirectory.toString();
+        return path.startsWith(index) && (path.length() == index.length() || path.charAt(index.length()) == File.separatorChar);
+    }
+
+    private static FileInfo stat(IndexSegment.Entry entry) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(Path.of(entry.path()), BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            // A link the walk followed into an allowed directory keeps its indexed type
+            boolean directory = attributes.isSymbolicLink() ? entry.directory() : attributes.isDirectory();
+            return new FileInfo(entry.path(), directory, attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param root The absolute path of a walked directory
+     * @param relative The path of an entry relative to it, with '/' separators
+     * @return The index entry
+     */
+    private static IndexSegment.Entry toEntry(String root, String relative, boolean directory) {
+        int slash = relative.lastIndexOf('/');
+        String parent = root;
+        if (slash >= 0) {
+            String subdirectory = relative.substring(0, slash).replace('/', File.separatorChar);
+            parent = root.endsWith(File.separator) ? root + subdirectory : root + File.separator + subdirectory;
+        }
+        return new IndexSegment.Entry(parent, relative.substring(slash + 1), directory);
+    }
+
+    private long entries() {
+        Index current = index;
+        return (current != null ? current.entries() : 0) + live.size();
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private record Index(List<IndexSegment> segments, Path generation, long entries) {
+        private Index(List<IndexSegment> segments, Path generation) {
+            this(segments, generation, segments.stream().mapToLong(IndexSegment::size).sum());
+        }
+    }
+
+    private record LiveEntry(IndexSegment.Entry entry, long since) {
+    }
+
+    /**
+     * Cuts the entries of a walk into segments, written on the writer pool while the walk goes on. At most one
+     * batch per writer thread is held in memory.
+     */
+    private final class SegmentBuilder {
+        private final Path generation;
+        private final Map<String, String> parents = new HashMap<>();
+        private final List<Future<IndexSegment>> pending = new ArrayList<>();
+        private List<IndexSegment.Entry> batch = new ArrayList<>();
+        private long batchBytes;
+
+        private SegmentBuilder(Path generation) {
+            this.generation = generation;
+        }
+
+        private void add(IndexSegment.Entry entry) throws IOException {
+            // Entries of a directory share its path
+            String parent = parents.computeIfAbsent(entry.parent(), p -> p);
+            batch.add(new IndexSegment.Entry(parent, entry.name(), entry.directory()));
+            batchBytes += IndexSegment.estimatedBytes(entry);
+            if (batch.size() >= segmentSize || batchBytes >= IndexSegment.MAX_BYTES) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            long writing = pending.stream().filter(future -> !future.isDone()).count();
+            if (writing >= writerThreads) {
+                for (Future<IndexSegment> future : pending) {
+                    if (!future.isDone()) {
+                        await(future);
+                        break;
+                    }
+                }
+            }
+
+            List<IndexSegment.Entry> entries = batch;
+            Path file = generation.resolve(String.format("segment-%05d.idx", pending.size()));
+            pending.add(writers.submit(() -> IndexSegment.write(file, entries)));
+            batch = new ArrayList<>();
+            batchBytes = 0;
+            parents.clear();
+        }
+
+        private List<IndexSegment> finish() throws IOException {
+            flush();
+            List<IndexSegment> segments = new ArrayList<>();
+            for (Future<IndexSegment> future : pending) {
+                segments.add(await(future));
+            }
+            return segments;
+        }
+
+        private void abandon() {
+            // Let the writers finish before their generation is deleted
+            for (Future<IndexSegment> future : pending) {
+                try {
+                    await(future);
+                } catch (IOException e) {
+                    // Already failing
+                }
+            }
+        }
+
+        private IndexSegment await(Future<IndexSegment> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing the search index");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw new IOException("Failed to write a search index segment", e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.TransferDirection;
+import ludo.mentis.aciem.controlserver.model.TransferRate;
+import ludo.mentis.aciem.controlserver.model.TransferStats;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+public interface TransferScheduler {
+    boolean isShaping();
+
+    Stream open(TransferDirection direction, String name);
+
+    InputStream shape(InputStream in, String name);
+
+    List<TransferStats> streams();
+
+    List<TransferRate> rates();
+
+    /**
+     * A transfer whose bytes are granted by the scheduler, closed when the transfer ends
+     */
+    interface Stream extends AutoCloseable {
+        /**
+         * @return The largest number of bytes a single grant may ask for
+         */
+        int quantum();
+
+        /**
+         * Ask for bytes without waiting; no thread is held until they are granted
+         *
+         * @param bytes The number of bytes, at most {@link #quantum()}
+         * @param onGrant Run on a scheduler thread once the bytes are granted
+         */
+        void acquire(int bytes, Runnable onGrant);
+
+        /**
+         * Ask for bytes and wait until they are granted
+         *
+         * @param bytes The number of bytes, at most {@link #quantum()}
+         * @throws IOException If the thread is interrupted while waiting
+         */
+        void await(int bytes) throws IOException;
+
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,523 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import ludo.mentis.aciem.controlserver.model.TransferDirection;
+import ludo.mentis.aciem.controlserver.model.TransferRate;
+import ludo.mentis.aciem.controlserver.model.TransferStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service that shapes the byte rates of uploads and downloads, globally and per API key.
+ * <p>
+ * Each direction has its own lane: a token bucket for the global rate, one per key for the key rate, and a
+ * queue of pending grants served in weighted fair order. The queue is self-clocked fair queuing: a grant is
+ * tagged with a virtual finish time, its size divided by the weight of its key and added to the later of the
+ * lane's virtual time and the previous tag of its stream, and the grant with the smallest tag whose key has
+ * tokens goes first. Streams of a heavier key thus get a proportionally larger share of a saturated lane,
+ * while a key held back by its own rate does not hold back the others.
+ * <p>
+ * A stream asks for at most a quantum of bytes at a time. Downloads ask without waiting and are resumed on a
+ * small pool once granted, so a throttled download holds no thread. Uploads read from a blocking request
+ * stream, and wait for their grant on the request thread.
+ * <p>
+ * With neither a global nor a key rate, nothing is shaped and transfers bypass the scheduler entirely.
+ */
+@Service
+public class TransferSchedulerImpl implements TransferScheduler, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransferSchedulerImpl.class);
+    private static final String ANONYMOUS = "anonymous";
+    // Time constant of the averaged rates
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // Tokens a bucket holds at most, as a fraction of its rate, so the dispatcher need not wake for every grant
+    private static final double BURST_SECONDS = 0.05;
+
+    private final MeterRegistry meterRegistry;
+    private final long rate;
+    private final long keyRate;
+    private final Map<String, Double> weights;
+    private final int quantum;
+    private final Map<TransferDirection, Lane> lanes = new EnumMap<>(TransferDirection.class);
+    private final Map<Long, StreamImpl> streams = new ConcurrentHashMap<>();
+    private final AtomicLong streamIds = new AtomicLong();
+    private final ExecutorService grants;
+
+    /**
+     * Constructor that initializes the transfer limits from application properties
+     *
+     * @param meterRegistry The registry of the per-key rate gauges
+     * @param rate The bytes per second of all transfers in one direction, or zero for no limit
+     * @param keyRate The bytes per second of the transfers of one API key in one direction, or zero for no limit
+     * @param keyWeights Comma-separated {@code name:weight} pairs; keys not listed have a weight of 1
+     * @param quantum The largest number of bytes granted at once
+     * @param threads The threads resuming the downloads whose bytes were granted
+     */
+    public TransferSchedulerImpl(MeterRegistry meterRegistry,
+                                 @Value("${file.transfer.rate:0}") DataSize rate,
+                                 @Value("${file.transfer.key-rate:0}") DataSize keyRate,
+                                 @Value("${file.transfer.key-weights:}") String keyWeights,
+                                 @Value("${file.transfer.quantum:64KB}") DataSize quantum,
+                                 @Value("${file.transfer.threads:4}") int threads) {
+        this.meterRegistry = meterRegistry;
+        this.rate = rate.toBytes();
+        this.keyRate = keyRate.toBytes();
+        this.weights = parseWeights(keyWeights);
+        this.quantum = Math.toIntExact(quantum.toBytes());
+
+        AtomicInteger grantThreads = new AtomicInteger();
+        this.grants = Executors.newFixedThreadPool(threads,
+                runnable -> daemon(runnable, "transfer-grant-" + grantThreads.getAndIncrement()));
+        if (isShaping()) {
+            for (TransferDirection direction : TransferDirection.values()) {
+                Lane lane = new Lane(direction);
+                lanes.put(direction, lane);
+                daemon(lane, "transfer-scheduler-" + direction.name().toLowerCase()).start();
+            }
+        }
+        logger.info("Transfer shaping: {} per direction, {} per API key, weights {}",
+                this.rate > 0 ? this.rate + " B/s" : "unlimited", this.keyRate > 0 ? this.keyRate + " B/s" : "unlimited",
+                weights);
+    }
+
+    @Override
+    public boolean isShaping() {
+        return rate > 0 || keyRate > 0;
+    }
+
+    /**
+     * Start a shaped transfer, on behalf of the API key of the current request
+     *
+     * @param direction Whether the transfer is an upload or a download
+     * @param name The file transferred
+     * @return The stream, to be closed when the transfer ends
+     * @throws IllegalStateException If shaping is disabled
+     */
+    @Override
+    public Stream open(TransferDirection direction, String name) {
+        Lane lane = lanes.get(direction);
+        if (lane == null) {
+            throw new IllegalStateException("Transfer shaping is disabled");
+        }
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String key = authentication != null ? authentication.getName() : ANONYMOUS;
+        StreamImpl stream = new StreamImpl(streamIds.incrementAndGet(), lane, lane.key(key), name);
+        streams.put(stream.id, stream);
+        return stream;
+    }
+
+    /**
+     * Shape an upload read from a blocking stream. Closing the returned stream ends the transfer.
+     *
+     * @param in The content of the upload
+     * @param name The file uploaded
+     * @return The shaped content, or the content itself if shaping is disabled
+     */
+    @Override
+    public InputStream shape(InputStream in, String name) {
+        if (!isShaping()) {
+            return in;
+        }
+        return new ShapedInputStream(in, open(TransferDirection.UPLOAD, name));
+    }
+
+    @Override
+    public List<TransferStats> streams() {
+        long now = System.nanoTime();
+        return streams.values().stream()
+                .sorted(Comparator.comparingLong(stream -> stream.id))
+                .map(stream -> new TransferStats(stream.id, stream.key.name, stream.lane.direction, stream.name,
+                        stream.meter.total(), stream.meter.rate(now)))
+                .toList();
+    }
+
+    @Override
+    public List<TransferRate> rates() {
+        long now = System.nanoTime();
+        List<TransferRate> rates = new ArrayList<>();
+        for (Lane lane : lanes.values()) {
+            for (KeyState key : lane.keys.values()) {
+                rates.add(new TransferRate(key.name, lane.direction, key.streams.get(), key.meter.total(),
+                        key.meter.rate(now)));
+            }
+        }
+        rates.sort(Comparator.comparing(TransferRate::key).thenComparing(TransferRate::direction));
+        return rates;
+    }
+
+    @Override
+    public void destroy() {
+        lanes.values().forEach(Lane::stop);
+        grants.shutdownNow();
+    }
+
+    private static Map<String, Double> parseWeights(String keyWeights) {
+        Map<String, Double> weights = new HashMap<>();
+        for (String entry : keyWeights.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            String[] fields = entry.trim().split(":");
+            double weight = fields.length == 2 ? Double.parseDouble(fields[1]) : -1;
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Malformed transfer weight, expected name:weight: " + entry.trim());
+            }
+            weights.put(fields[0], weight);
+        }
+        return weights;
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * The scheduler of one direction, with a thread that hands out the grants
+     */
+    private final class Lane implements Runnable {
+        private final TransferDirection direction;
+        private final Bucket bucket;
+        private final Map<String, KeyState> keys = new ConcurrentHashMap<>();
+        // Ordered by virtual finish time, then by arrival
+        private final TreeSet<Grant> pending = new TreeSet<>(Comparator.comparingDouble((Grant grant) -> grant.finish)
+                .thenComparingLong(grant -> grant.sequence));
+        // Uploads submit from request threads, which may be virtual threads that a monitor would pin
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private double virtualTime;
+        private long sequence;
+        private volatile boolean stopped;
+
+        private Lane(TransferDirection direction) {
+            this.direction = direction;
+            this.bucket = rate > 0 ? new Bucket(rate, quantum) : null;
+        }
+
+        private KeyState key(String name) {
+            return keys.computeIfAbsent(name, key -> {
+                KeyState state = new KeyState(key, weights.getOrDefault(key, 1.0),
+                        keyRate > 0 ? new Bucket(keyRate, quantum) : null);
+                Gauge.builder("file.transfer.rate", state, s -> s.meter.rate(System.nanoTime()))
+                        .tag("key", key).tag("direction", direction.name().toLowerCase())
+                        .description("Bytes per second transferred with an API key").baseUnit("bytes")
+                        .register(meterRegistry);
+                return state;
+            });
+        }
+
+        private void submit(StreamImpl stream, int bytes, Runnable onGrant, boolean inline) {
+            if (bytes <= 0 || bytes > quantum) {
+                throw new IllegalArgumentException("A grant must be between 1 and " + quantum + " bytes: " + bytes);
+            }
+            lock.lock();
+            try {
+                double finish = Math.max(virtualTime, stream.finish) + bytes / stream.key.weight;
+                stream.finish = finish;
+                pending.add(new Grant(stream, bytes, finish, sequence++, onGrant, inline));
+                changed.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void cancel(StreamImpl stream) {
+            lock.lock();
+            try {
+                pending.removeIf(grant -> grant.stream == stream);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void stop() {
+            lock.lock();
+            try {
+                stopped = true;
+                changed.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    Grant grant = next();
+                    if (grant != null) {
+                        grant.stream.meter.record(grant.bytes, System.nanoTime());
+                        grant.stream.key.meter.record(grant.bytes, System.nanoTime());
+                        if (grant.inline) {
+                            grant.onGrant.run();
+                        } else {
+                            grants.execute(grant.onGrant);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.error("Transfer scheduler for {} stopped", direction, e);
+            }
+        }
+
+        /**
+         * @return The next grant, or null after waiting for tokens or for a grant to be submitted
+         */
+        private Grant next() throws InterruptedException {
+            lock.lock();
+            try {
+                return nextLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Grant nextLocked() throws InterruptedException {
+            if (pending.isEmpty()) {
+                changed.await();
+                return null;
+            }
+            long now = System.nanoTime();
+            if (bucket != null) {
+                bucket.refill(now);
+            }
+            long wait = Long.MAX_VALUE;
+            for (Grant grant : pending) {
+                Bucket keyBucket = grant.stream.key.bucket;
+                if (keyBucket != null) {
+                    keyBucket.refill(now);
+                    if (keyBucket.tokens < grant.bytes) {
+                        // Held back by its own key, which must not hold back the others
+                        wait = Math.min(wait, keyBucket.nanosUntil(grant.bytes));
+                        continue;
+                    }
+                }
+                if (bucket != null && bucket.tokens < grant.bytes) {
+                    wait = Math.min(wait, bucket.nanosUntil(grant.bytes));
+                    break;
+                }
+                if (keyBucket != null) {
+                    keyBucket.tokens -= grant.bytes;
+                }
+                if (bucket != null) {
+                    bucket.tokens -= grant.bytes;
+                }
+                pending.remove(grant);
+                virtualTime = grant.finish;
+                return grant;
+            }
+            changed.awaitNanos(Math.max(wait, 1));
+            return null;
+        }
+    }
+
+    private static final class KeyState {
+        private final String name;
+        private final double weight;
+        private final Bucket bucket;
+        private final RateMeter meter = new RateMeter();
+        private final AtomicInteger streams = new AtomicInteger();
+
+        private KeyState(String name, double weight, Bucket bucket) {
+            this.name = name;
+            this.weight = weight;
+            this.bucket = bucket;
+        }
+    }
+
+    private final class StreamImpl implements Stream {
+        private final long id;
+        private final Lane lane;
+        private final KeyState key;
+        private final String name;
+        private final RateMeter meter = new RateMeter();
+        // Virtual finish time of the last grant, guarded by the lane
+        private double finish;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private StreamImpl(long id, Lane lane, KeyState key, String name) {
+            this.id = id;
+            this.lane = lane;
+            this.key = key;
+            this.name = name;
+            key.streams.incrementAndGet();
+        }
+
+        @Override
+        public int quantum() {
+            return quantum;
+        }
+
+        @Override
+        public void acquire(int bytes, Runnable onGrant) {
+            lane.submit(this, bytes, onGrant, false);
+        }
+
+        @Override
+        public void await(int bytes) throws IOException {
+            CompletableFuture<Void> granted = new CompletableFuture<>();
+            lane.submit(this, bytes, () -> granted.complete(null), true);
+            try {
+                granted.get();
+            } catch (InterruptedException e) {
+                lane.cancel(this);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a transfer grant");
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                lane.cancel(this);
+                streams.remove(id);
+                key.streams.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param stream The stream the bytes are granted to
+     * @param bytes The number of bytes
+     * @param finish The virtual finish time
+     * @param sequence The order of arrival, breaking ties
+     * @param onGrant Run once the bytes are granted
+     * @param inline Whether onGrant is cheap enough to run on the lane thread
+     */
+    private record Grant(StreamImpl stream, int bytes, double finish, long sequence, Runnable onGrant,
+                         boolean inline) {
+    }
+
+    /**
+     * A token bucket, only used by its lane thread
+     */
+    private static final class Bucket {
+        private final double bytesPerNano;
+        private final double capacity;
+        private double tokens;
+        private long updated = System.nanoTime();
+
+        private Bucket(long bytesPerSecond, int quantum) {
+            this.bytesPerNano = bytesPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(quantum, bytesPerSecond * BURST_SECONDS);
+            this.tokens = capacity;
+        }
+
+        private void refill(long now) {
+            if (now > updated) {
+                tokens = Math.min(capacity, tokens + (now - updated) * bytesPerNano);
+                updated = now;
+            }
+        }
+
+        private long nanosUntil(int bytes) {
+            return (long) Math.ceil((bytes - tokens) / bytesPerNano);
+        }
+    }
+
+    /**
+     * An exponentially weighted moving average of a byte rate, decaying while nothing is recorded
+     */
+    private static final class RateMeter {
+        private final long start = System.nanoTime();
+        private long total;
+        private long updated = start;
+        private double bytesPerNano;
+
+        private synchronized void record(long bytes, long now) {
+            decay(now);
+            total += bytes;
+            bytesPerNano += bytes / (double) RATE_WINDOW_NANOS;
+        }
+
+        private synchronized double rate(long now) {
+            decay(now);
+            // Until a full window has passed, the average is over the time since the start
+            double window = Math.min(RATE_WINDOW_NANOS, Math.max(1, now - start));
+            return bytesPerNano * RATE_WINDOW_NANOS / window * TimeUnit.SECONDS.toNanos(1);
+        }
+
+        private synchronized long total() {
+            return total;
+        }
+
+        private void decay(long now) {
+            if (now > updated) {
+                bytesPerNano *= Math.exp(-(double) (now - updated) / RATE_WINDOW_NANOS);
+                updated = now;
+            }
+        }
+    }
+
+    /**
+     * An upload stream that charges each read to its transfer
+     */
+    private static final class ShapedInputStream extends FilterInputStream {
+        private final Stream stream;
+
+        private ShapedInputStream(InputStream in, Stream stream) {
+            super(in);
+            this.stream = stream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                stream.await(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, Math.min(len, stream.quantum()));
+            if (read > 0) {
+                // Charged after the read, so a short read is not overcharged; the next read waits for it
+                stream.await(read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.util.TreeFilter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public interface TreeWalkService {
+    long walk(Path root, TreeFilter filter, FileService.ListingConsumer consumer) throws IOException;
+}
@@ -0,0 +1,205 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.util.TreeFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Service that lists a directory tree recursively on a fork/join pool, one task per directory.
+ * <p>
+ * Every directory is checked against the {@link PathValidationService} before it is read. Symbolic links
+ * are only followed when their real path is within the allowed directories, and each directory is read at
+ * most once, so links can neither escape the allowed directories nor make the walk loop.
+ */
+@Service
+public class TreeWalkServiceImpl implements TreeWalkService, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(TreeWalkServiceImpl.class);
+
+    private final PathValidationService pathValidationService;
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor that creates the walker pool
+     *
+     * @param pathValidationService The service validating every directory the walk descends into
+     * @param parallelism The number of directories read at the same time, or 0 for the number of processors
+     */
+    public TreeWalkServiceImpl(PathValidationService pathValidationService,
+                               @Value("${file.tree.parallelism:0}") int parallelism) {
+        this.pathValidationService = pathValidationService;
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.pool = new ForkJoinPool(threads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("tree-walker-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        logger.info("Tree walker parallelism: {}", threads);
+    }
+
+    /**
+     * Walk the tree below a directory, passing each matching entry to the consumer as soon as it is found.
+     * Entries are named by their path relative to the root, with '/' separators. The consumer is never called
+     * concurrently, but entries arrive in no particular order.
+     *
+     * @param root A validated directory
+     * @param filter The predicates entries must match
+     * @param consumer Receives the entries
+     * @return The number of entries reported
+     * @throws IOException If the root cannot be read or the consumer fails
+     */
+    @Override
+    public long walk(Path root, TreeFilter filter, FileService.ListingConsumer consumer) throws IOException {
+        Walk walk = new Walk(pathValidationService.snapshot(), filter, consumer);
+        walk.firstVisit(Files.readAttributes(root, BasicFileAttributes.class).fileKey(), false);
+        try {
+            pool.invoke(new DirectoryTask(walk, root, null, 0));
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException ioException) {
+                    throw ioException;
+                }
+            }
+            throw e;
+        }
+        return walk.count;
+    }
+
+    @Override
+    public void destroy() {
+        pool.shutdownNow();
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+        private final Walk walk;
+        private final Path directory;
+        private final Path relative;
+        private final int depth;
+
+        private DirectoryTask(Walk walk, Path directory, Path relative, int depth) {
+            this.walk = walk;
+            this.directory = directory;
+            this.relative = relative;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (walk.failed || !walk.allowed.isPathAllowed(directory)) {
+                return;
+            }
+
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (walk.failed) {
+                        return;
+                    }
+                    visit(entry, subdirectories);
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                if (relative == null) {
+                    throw new UncheckedIOException(e instanceof IOException io ? io : ((DirectoryIteratorException) e).getCause());
+                }
+                // Directories that vanish or cannot be read are skipped, as the rest of the tree is still useful
+                logger.debug("Skipping unreadable directory {}", directory, e);
+            }
+
+            invokeAll(subdirectories);
+        }
+
+        private void visit(Path entry, List<DirectoryTask> subdirectories) {
+            BasicFileAttributes attributes;
+            boolean followedLink = false;
+            try {
+                attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isSymbolicLink() && isAllowedLink(entry)) {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    followedLink = true;
+                }
+            } catch (IOException e) {
+                logger.debug("Skipping unreadable entry {}", entry, e);
+                return;
+            }
+
+            Path entryRelative = relative == null ? entry.getFileName() : relative.resolve(entry.getFileName());
+            if (walk.filter.matches(entryRelative, attributes)) {
+                walk.emit(new FileInfo(entryRelative.toString().replace(File.separatorChar, '/'),
+                        attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis()));
+            }
+
+            // A link that is not followed still reports its own attributes, which are never a directory
+            if (attributes.isDirectory()
+                    && walk.filter.descendsBelow(depth + 1)
+                    && !walk.filter.isExcluded(entryRelative)
+                    && walk.firstVisit(attributes.fileKey(), followedLink)) {
+                subdirectories.add(new DirectoryTask(walk, entry, entryRelative, depth + 1));
+            }
+        }
+
+        private boolean isAllowedLink(Path link) {
+            try {
+                return walk.allowed.isPathAllowed(link.toRealPath());
+            } catch (IOException e) {
+                // Dangling link
+                return false;
+            }
+        }
+    }
+
+    private static final class Walk {
+        // A reload of the allowed directories does not change the outcome of a walk already running
+        private final PathValidationService.Snapshot allowed;
+        private final TreeFilter filter;
+        private final FileService.ListingConsumer consumer;
+        private final Set<Object> visited = ConcurrentHashMap.newKeySet();
+        private volatile boolean failed;
+        private long count;
+
+        private Walk(PathValidationService.Snapshot allowed, TreeFilter filter, FileService.ListingConsumer consumer) {
+            this.allowed = allowed;
+            this.filter = filter;
+            this.consumer = consumer;
+        }
+
+        private boolean firstVisit(Object fileKey, boolean link) {
+            // Without file keys, cycles cannot be detected, so only directories that are not links are walked
+            return fileKey == null ? !link : visited.add(fileKey);
+        }
+
+        private synchronized void emit(FileInfo file) {
+            if (failed) {
+                return;
+            }
+            try {
+                consumer.accept(file);
+                count++;
+            } catch (IOException e) {
+                // Typically the client went away: stop every task of the walk
+                failed = true;
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.UploadSession;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+public interface UploadSessionService {
+    UploadSession createSession(String directory, String fileName, long size) throws IOException;
+
+    UploadSession getSession(String sessionId) throws IOException;
+
+    UploadSession writeChunk(String sessionId, long offset, InputStream content) throws IOException;
+
+    Path commit(String sessionId) throws IOException;
+
+    void abort(String sessionId) throws IOException;
+}
@@ -0,0 +1,518 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import ludo.mentis.aciem.controlserver.model.UploadSession;
+import ludo.mentis.aciem.controlserver.util.ByteRangeSet;
+import ludo.mentis.aciem.controlserver.util.FileNames;
+import ludo.mentis.aciem.controlserver.util.OperationMeter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service for resumable uploads that are sent as chunks at explicit offsets and committed once complete.
+ * <p>
+ * Chunks are written with positional writes into a part file next to the target, so independent
+ * ranges can arrive concurrently and the commit is a rename within the same directory. When the client
+ * declares the file size up front, the part file is preallocated and the commit requires every byte.
+ * <p>
+ * Every session keeps an append-only journal of the ranges it has received, which is replayed on
+ * startup so sessions survive a server restart. Sessions left idle for longer than the TTL are purged in the
+ * background, together with their part files and journals.
+ * <p>
+ * A chunk registers as a writer of its session before it opens the part file. Commit and abort close the
+ * session to new chunks and wait for the registered ones to finish, so no chunk is still writing when the
+ * part file is renamed into place or deleted.
+ * <p>
+ * Chunks and commits are timed into {@code file.operations}, and the bytes of each chunk are counted as uploaded
+ * in {@code file.transferred}.
+ */
+@Service
+public class UploadSessionServiceImpl implements UploadSessionService, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadSessionServiceImpl.class);
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String PART_SUFFIX = ".upload";
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private final PathValidationService pathValidationService;
+    private final FileCommitService fileCommitService;
+    private final Path sessionsDirectory;
+    private final Duration sessionTtl;
+    private final Map<String, SessionState> sessions = new ConcurrentHashMap<>();
+    private final OperationMeter chunks;
+    private final OperationMeter commits;
+    private final Counter uploadedBytes;
+    private final ScheduledExecutorService purges;
+
+    /**
+     * Constructor that recovers the sessions journaled by a previous run
+     *
+     * @param pathValidationService Service used to validate upload targets
+     * @param fileCommitService Service used to move completed files into place
+     * @param meterRegistry The registry of the operation and transferred bytes meters
+     * @param sessionsDirectory Directory where the session journals are kept
+     * @param sessionTtl How long a session may stay idle before it is discarded
+     * @throws IOException If the sessions directory cannot be created
+     */
+    public UploadSessionServiceImpl(PathValidationService pathValidationService,
+                                    FileCommitService fileCommitService,
+                                    MeterRegistry meterRegistry,
+                                    @Value("${file.upload.sessions-dir}") String sessionsDirectory,
+                                    @Value("${file.upload.session-ttl:24h}") Duration sessionTtl) throws IOException {
+        this.pathValidationService = pathValidationService;
+        this.fileCommitService = fileCommitService;
+        this.sessionsDirectory = Paths.get(sessionsDirectory).normalize().toAbsolutePath();
+        this.sessionTtl = sessionTtl;
+        this.chunks = new OperationMeter("session-chunk", meterRegistry);
+        this.commits = new OperationMeter("session-commit", meterRegistry);
+        this.uploadedBytes = OperationMeter.transferred("upload", meterRegistry);
+
+        Files.createDirectories(this.sessionsDirectory);
+        recoverSessions();
+        logger.info("Upload sessions journaled in {} ({} recovered)", this.sessionsDirectory, sessions.size());
+
+        this.purges = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upload-session-purge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long purgeMillis = Math.max(10, Math.min(TimeUnit.HOURS.toMillis(1), sessionTtl.toMillis() / 2));
+        purges.scheduleWithFixedDelay(this::purgeExpiredSessions, purgeMillis, purgeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        purges.shutdownNow();
+    }
+
+    /**
+     * Create an upload session for a file in the specified directory
+     *
+     * @param directory The directory to upload to
+     * @param fileName The name of the file being uploaded
+     * @param size The total size of the file, or -1 if unknown
+     * @return The new session
+     * @throws IOException If an I/O error occurs or if the directory is not allowed
+     */
+    @Override
+    public UploadSession createSession(String directory, String fileName, long size) throws IOException {
+        Path validatedDirPath = pathValidationService.validateAndSanitizePath(directory);
+        String safeFilename = FileNames.sanitize(fileName);
+        Path targetLocation = validatedDirPath.resolve(safeFilename);
+
+        if (!pathValidationService.isPathAllowed(targetLocation)) {
+            throw new IOException("Access denied: Target file location is not within allowed directories");
+        }
+
+        String id = UUID.randomUUID().toString();
+        Path partFile = validatedDirPath.resolve("." + safeFilename + "." + id + PART_SUFFIX);
+        SessionState session = new SessionState(id, validatedDirPath, safeFilename, targetLocation, partFile,
+                sessionsDirectory.resolve(id + JOURNAL_SUFFIX), Math.max(size, -1));
+
+        Files.createDirectories(validatedDirPath);
+        try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            if (size > 0) {
+                // Extend the file to its final length so ranges can be written at any offset
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+        }
+        appendJournal(session.journal, "directory=" + validatedDirPath + "\n"
+                + "fileName=" + safeFilename + "\n"
+                + "size=" + session.size + "\n"
+                + "part=" + partFile + "\n");
+
+        sessions.put(id, session);
+        logger.info("Upload session {} created for {}", id, targetLocation);
+        return session.toUploadSession();
+    }
+
+    /**
+     * Get the current state of an upload session
+     *
+     * @param sessionId The session id
+     * @return The session, including the ranges received so far
+     * @throws IOException If the session does not exist
+     */
+    @Override
+    public UploadSession getSession(String sessionId) throws IOException {
+        SessionState session = requireSession(sessionId);
+        session.lock.lock();
+        try {
+            return session.toUploadSession();
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
+    /**
+     * Write a chunk of the file at the given offset
+     *
+     * @param sessionId The session id
+     * @param offset The position of the first byte of the chunk in the file
+     * @param content The chunk content, read until the end of the stream
+     * @return The session, including the ranges received so far
+     * @throws IOException If an I/O error occurs or the session does not exist
+     */
+    @Override
+    public UploadSession writeChunk(String sessionId, long offset, InputStream content) throws IOException {
+        long startNanos = chunks.start();
+        Throwable error = null;
+        try {
+            SessionState session = requireSession(sessionId);
+            if (offset < 0) {
+                throw new IOException("Invalid chunk offset: " + offset);
+            }
+
+            long limit = session.size >= 0 ? session.size : Long.MAX_VALUE;
+            if (offset > limit) {
+                throw new IOException("Invalid chunk offset: " + offset + " is beyond the file size " + session.size);
+            }
+
+            session.lock.lock();
+            try {
+                if (session.closed) {
+                    throw new IOException("Upload session not found: " + sessionId);
+                }
+                session.writers++;
+            } finally {
+                session.lock.unlock();
+            }
+
+            long position = offset;
+            try {
+                try (FileChannel channel = FileChannel.open(session.partFile, StandardOpenOption.WRITE)) {
+                    byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer);
+                    int read;
+                    while ((read = content.read(buffer)) != -1) {
+                        if (position + read > limit) {
+                            throw new IOException("Chunk exceeds the declared file size " + session.size);
+                        }
+                        chunk.clear().limit(read);
+                        while (chunk.hasRemaining()) {
+                            position += channel.write(chunk, position);
+                        }
+                    }
+                    // The range is only journaled once its bytes are on disk, so a recovered session never
+                    // claims data that was lost
+                    channel.force(false);
+                }
+
+                session.lock.lock();
+                try {
+                    // Journaled even if a commit started meanwhile: the commit waits for this chunk and includes it
+                    session.ranges.add(offset, position);
+                    appendJournal(session.journal, "range=" + offset + "-" + position + "\n");
+                    session.lastUpdated = System.currentTimeMillis();
+                    logger.debug("Upload session {} received bytes {}-{}", sessionId, offset, position);
+                    uploadedBytes.increment(position - offset);
+                    return session.toUploadSession();
+                } finally {
+                    session.lock.unlock();
+                }
+            } finally {
+                session.endWrite();
+            }
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            chunks.stop(startNanos, error);
+        }
+
+    }
+
+    /**
+     * Commit an upload session, moving the received file into its target location
+     *
+     * @param sessionId The session id
+     * @return The path where the file was saved
+     * @throws IOException If an I/O error occurs, the session does not exist or is incomplete
+     */
+    @Override
+    public Path commit(String sessionId) throws IOException {
+        long startNanos = commits.start();
+        Throwable error = null;
+        try {
+            SessionState session = requireSession(sessionId);
+
+            session.lock.lock();
+            try {
+                if (!session.closeAndDrain()) {
+                    throw new IOException("Upload session not found: " + sessionId);
+                }
+
+                boolean published = false;
+                try {
+                    long size = session.size >= 0 ? session.size : session.ranges.highestEnd();
+                    if (!session.ranges.covers(0, size)) {
+                        throw new IOException("Upload session is incomplete: " + session.ranges.toList());
+                    }
+
+                    // The allowed directories may have changed since the session was created
+                    if (!pathValidationService.isPathAllowed(session.targetLocation)) {
+                        throw new IOException("Access denied: Target file location is not within allowed directories");
+                    }
+
+                    fileCommitService.publish(session.partFile, session.targetLocation);
+                    published = true;
+                } finally {
+                    if (!published) {
+                        // The session stays open for the missing chunks, or for another attempt
+                        session.closed = false;
+                    }
+                }
+            } finally {
+                session.lock.unlock();
+            }
+
+            sessions.remove(sessionId);
+            Files.deleteIfExists(session.journal);
+            logger.info("Upload session {} committed to: {}", sessionId, session.targetLocation);
+            return session.targetLocation;
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            commits.stop(startNanos, error);
+        }
+
+    }
+
+    /**
+     * Abort an upload session and discard the received data
+     *
+     * @param sessionId The session id
+     * @throws IOException If an I/O error occurs or the session does not exist
+     */
+    @Override
+    public void abort(String sessionId) throws IOException {
+        SessionState session = requireSession(sessionId);
+        session.lock.lock();
+        try {
+            if (!session.closeAndDrain()) {
+                throw new IOException("Upload session not found: " + sessionId);
+            }
+        } finally {
+            session.lock.unlock();
+        }
+        discard(session);
+        logger.info("Upload session {} aborted", sessionId);
+    }
+
+    private SessionState requireSession(String sessionId) throws IOException {
+        SessionState session = sessions.get(sessionId);
+        if (session == null) {
+            throw new IOException("Upload session not found: " + sessionId);
+        }
+        return session;
+    }
+
+    private void discard(SessionState session) throws IOException {
+        sessions.remove(session.id);
+        Files.deleteIfExists(session.partFile);
+        Files.deleteIfExists(session.journal);
+    }
+
+    private void purgeExpiredSessions() {
+        long cutoff = System.currentTimeMillis() - sessionTtl.toMillis();
+        for (SessionState session : sessions.values()) {
+            if (session.lastUpdated < cutoff && session.closeIfIdle()) {
+                try {
+                    discard(session);
+                    logger.info("Upload session {} expired", session.id);
+                } catch (IOException e) {
+                    logger.warn("Failed to discard expired upload session {}", session.id, e);
+                }
+            }
+        }
+    }
+
+    private void recoverSessions() throws IOException {
+        long cutoff = System.currentTimeMillis() - sessionTtl.toMillis();
+
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(sessionsDirectory, "*" + JOURNAL_SUFFIX)) {
+            for (Path journal : journals) {
+                try {
+                    SessionState session = readJournal(journal);
+                    if (!Files.exists(session.partFile)) {
+                        logger.warn("Discarding upload session {}: part file is missing", session.id);
+                        Files.deleteIfExists(journal);
+                    } else if (session.lastUpdated < cutoff
+                            || !pathValidationService.isPathAllowed(session.targetLocation)) {
+                        logger.warn("Discarding expired or no longer allowed upload session {}", session.id);
+                        discard(session);
+                    } else {
+                        sessions.put(session.id, session);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Discarding unreadable upload session journal {}", journal, e);
+                    Files.deleteIfExists(journal);
+                }
+            }
+        }
+    }
+
+    private SessionState readJournal(Path journal) throws IOException {
+        String fileName = journal.getFileName().toString();
+        String id = fileName.substring(0, fileName.length() - JOURNAL_SUFFIX.length());
+        Map<String, String> header = new HashMap<>();
+        ByteRangeSet ranges = new ByteRangeSet();
+
+        List<String> lines = Files.readAllLines(journal, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            int separator = line.indexOf('=');
+            if (separator < 0) {
+                // A torn trailing line from a crash during append
+                continue;
+            }
+            String key = line.substring(0, separator);
+            String value = line.substring(separator + 1);
+            if ("range".equals(key)) {
+                int dash = value.indexOf('-');
+                if (dash > 0) {
+                    ranges.add(Long.parseLong(value.substring(0, dash)), Long.parseLong(value.substring(dash + 1)));
+                }
+            } else {
+                header.put(key, value);
+            }
+        }
+
+        Path directory = Paths.get(require(header, "directory"));
+        String safeFilename = require(header, "fileName");
+        SessionState session = new SessionState(id, directory, safeFilename, directory.resolve(safeFilename),
+                Paths.get(require(header, "part")), journal, Long.parseLong(header.getOrDefault("size", "-1")));
+        session.ranges = ranges;
+        session.lastUpdated = Files.getLastModifiedTime(journal).toMillis();
+        return session;
+    }
+
+    private static String require(Map<String, String> header, String key) throws IOException {
+        String value = header.get(key);
+        if (value == null) {
+            throw new IOException("Journal entry missing: " + key);
+        }
+        return value;
+    }
+
+    private static void appendJournal(Path journal, String lines) throws IOException {
+        try (FileChannel channel = FileChannel.open(journal,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    private static final class SessionState {
+        private final String id;
+        private final Path directory;
+        private final String fileName;
+        private final Path targetLocation;
+        private final Path partFile;
+        private final Path journal;
+        private final long size;
+        private ByteRangeSet ranges = new ByteRangeSet();
+        private volatile long lastUpdated = System.currentTimeMillis();
+        // A lock rather than a monitor: journal writes and commits block on disk while holding it, which would
+        // pin a virtual thread to its carrier
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition drained = lock.newCondition();
+        private boolean closed;
+        private int writers;
+
+        private SessionState(String id, Path directory, String fileName, Path targetLocation, Path partFile,
+                             Path journal, long size) {
+            this.id = id;
+            this.directory = directory;
+            this.fileName = fileName;
+            this.targetLocation = targetLocation;
+            this.partFile = partFile;
+            this.journal = journal;
+            this.size = size;
+        }
+
+        /**
+         * Close the session to new chunks and wait for the chunks being written. Called with the lock held.
+         *
+         * @return False if the session was already closed
+         * @throws IOException If interrupted while waiting
+         */
+        private boolean closeAndDrain() throws IOException {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            try {
+                while (writers > 0) {
+                    drained.await();
+                }
+            } catch (InterruptedException e) {
+                closed = false;
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for chunks of upload session " + id, e);
+            }
+            return true;
+        }
+
+        /**
+         * @return True if the session had no chunk being written and is now closed
+         */
+        private boolean closeIfIdle() {
+            lock.lock();
+            try {
+                if (closed || writers > 0) {
+                    return false;
+                }
+                closed = true;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void endWrite() {
+            lock.lock();
+            try {
+                if (--writers == 0) {
+                    drained.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private UploadSession toUploadSession() {
+            return new UploadSession(id, directory.toString(), fileName, size, ranges.toList(),
+                    ranges.coveredBytes());
+        }
+    }
+}
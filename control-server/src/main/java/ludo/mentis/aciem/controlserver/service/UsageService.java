@@ -0,0 +1,10 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.DirectoryUsage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public interface UsageService {
+    DirectoryUsage usage(Path directory) throws IOException;
+}
@@ -0,0 +1,555 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.DirectoryUsage;
+import ludo.mentis.aciem.controlserver.model.FileChangedEvent;
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.util.TreeFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service that computes the disk usage of directory trees and keeps it up to date incrementally.
+ * <p>
+ * The first request for a directory walks its tree with the {@link TreeWalkService} and keeps one node per
+ * directory, holding the size and count of its own files, its largest files and the totals of its tree.
+ * Every cached directory is watched through the {@link DirectoryWatchService}, and a change re-reads that
+ * directory alone: the difference in its own files, and the trees of subdirectories that appeared or
+ * vanished, are added to the totals of its ancestors. Events for a directory are coalesced while its
+ * update is queued, so a burst of writes costs one re-read. Uploads are applied through
+ * {@link FileChangedEvent} as well.
+ * <p>
+ * The cache holds at most a configured number of directories, evicting the least recently used trees.
+ * A tree that could not be watched entirely, typically once the operating system limit on watches is
+ * reached, is walked again after a TTL.
+ */
+@Service
+public class UsageServiceImpl implements UsageService, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(UsageServiceImpl.class);
+    private static final TreeFilter ALL = TreeFilter.of(null, null, null, null, null, null, null);
+    private static final Comparator<FileInfo> LARGEST_FIRST =
+            Comparator.comparingLong(FileInfo::size).reversed().thenComparing(FileInfo::name);
+
+    private final TreeWalkService treeWalkService;
+    private final DirectoryWatchService directoryWatchService;
+    private final PathValidationService pathValidationService;
+    private final int topChildren;
+    private final long maxDirectories;
+    private final long ttlNanos;
+    private final LinkedHashMap<Path, Node> roots = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock rootsLock = new ReentrantLock();
+    private final Map<Path, CompletableFuture<Node>> loading = new ConcurrentHashMap<>();
+    private final Set<Path> walking = ConcurrentHashMap.newKeySet();
+    private final Set<Path> deferred = ConcurrentHashMap.newKeySet();
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService updates = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "usage-updates");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long cachedDirectories;
+
+    /**
+     * Constructor that initializes the cache limits from application properties
+     *
+     * @param treeWalkService The service walking a tree on its first request
+     * @param directoryWatchService The service reporting changes to cached directories
+     * @param pathValidationService The service deciding which symbolic links are followed
+     * @param topChildren The number of largest children reported
+     * @param maxDirectories The maximum number of cached directories, across all trees
+     * @param ttl How long a tree that could not be watched entirely is used
+     */
+    public UsageServiceImpl(TreeWalkService treeWalkService,
+                            DirectoryWatchService directoryWatchService,
+                            PathValidationService pathValidationService,
+                            @Value("${file.usage.top-children:10}") int topChildren,
+                            @Value("${file.usage.max-directories:100000}") long maxDirectories,
+                            @Value("${file.usage.ttl:5m}") Duration ttl) {
+        this.treeWalkService = treeWalkService;
+        this.directoryWatchService = directoryWatchService;
+        this.pathValidationService = pathValidationService;
+        this.topChildren = topChildren;
+        this.maxDirectories = maxDirectories;
+        this.ttlNanos = ttl.toNanos();
+        logger.info("Usage cache: up to {} directories, {} largest children", maxDirectories, topChildren);
+    }
+
+    /**
+     * Get the disk usage of a directory tree, walking it on the first request
+     *
+     * @param directory A validated directory
+     * @return The usage
+     * @throws IOException If the directory cannot be read
+     */
+    @Override
+    public DirectoryUsage usage(Path directory) throws IOException {
+        Path dir = directory.normalize().toAbsolutePath();
+        rootsLock.lock();
+        try {
+            Node node = find(dir);
+            if (node != null) {
+                return snapshot(node);
+            }
+        } finally {
+            rootsLock.unlock();
+        }
+
+        // Concurrent requests for the same directory share one walk
+        CompletableFuture<Node> future = new CompletableFuture<>();
+        CompletableFuture<Node> existing = loading.putIfAbsent(dir, future);
+        if (existing != null) {
+            try {
+                Node node = existing.join();
+                rootsLock.lock();
+                try {
+                    return snapshot(node);
+                } finally {
+                    rootsLock.unlock();
+                }
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw e;
+            }
+        }
+
+        try {
+            Walked walked = walk(dir);
+            rootsLock.lock();
+            try {
+                addRoot(walked);
+                future.complete(walked.node());
+                return snapshot(walked.node());
+            } finally {
+                rootsLock.unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(dir);
+            walked(dir);
+        }
+    }
+
+    @EventListener
+    public void onFileChanged(FileChangedEvent event) {
+        Path parent = event.path().normalize().toAbsolutePath().getParent();
+        if (parent != null) {
+            schedule(parent);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        updates.shutdownNow();
+        rootsLock.lock();
+        try {
+            roots.values().forEach(UsageServiceImpl::close);
+            roots.clear();
+            cachedDirectories = 0;
+        } finally {
+            rootsLock.unlock();
+        }
+    }
+
+    /**
+     * @return The cached node of a directory, or null; the tree holding it counts as used
+     */
+    private Node find(Path dir) {
+        Path rootPath = null;
+        for (Path candidate : roots.keySet()) {
+            if (dir.startsWith(candidate)) {
+                rootPath = candidate;
+                break;
+            }
+        }
+        if (rootPath == null) {
+            return null;
+        }
+
+        Node node = roots.get(rootPath);
+        if (System.nanoTime() - node.expiresAt > 0) {
+            removeRoot(rootPath);
+            return null;
+        }
+        if (dir.equals(rootPath)) {
+            return node;
+        }
+        for (Path name : rootPath.relativize(dir)) {
+            node = node.children.get(name.toString());
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private DirectoryUsage snapshot(Node node) {
+        List<FileInfo> children = new ArrayList<>(node.largestFiles);
+        for (Node child : node.children.values()) {
+            children.add(new FileInfo(child.path.getFileName().toString(), true, child.totalBytes, child.lastModified));
+        }
+        List<FileInfo> largest = children.stream().sorted(LARGEST_FIRST).limit(topChildren).toList();
+        return new DirectoryUsage(node.path.toString(), node.totalBytes, node.totalFiles, node.totalDirectories, largest);
+    }
+
+    private void addRoot(Walked walked) {
+        Node node = walked.node();
+        if (!walked.watched()) {
+            node.expiresAt = System.nanoTime() + ttlNanos;
+        }
+        // Trees below the new one are now covered by it
+        List<Path> covered = roots.keySet().stream().filter(root -> root.startsWith(node.path)).toList();
+        covered.forEach(this::removeRoot);
+
+        roots.put(node.path, node);
+        cachedDirectories += node.totalDirectories + 1;
+        Iterator<Map.Entry<Path, Node>> eldest = roots.entrySet().iterator();
+        while (cachedDirectories > maxDirectories && eldest.hasNext()) {
+            Map.Entry<Path, Node> entry = eldest.next();
+            if (entry.getValue() != node) {
+                eldest.remove();
+                cachedDirectories -= entry.getValue().totalDirectories + 1;
+                close(entry.getValue());
+            }
+        }
+    }
+
+    private void removeRoot(Path rootPath) {
+        Node node = roots.remove(rootPath);
+        if (node != null) {
+            cachedDirectories -= node.totalDirectories + 1;
+            close(node);
+        }
+    }
+
+    /**
+     * Walk a tree into nodes, watching each directory as soon as it is found so that no change made while
+     * it is read goes unnoticed. Changes reported before the tree is attached are deferred until then.
+     */
+    private Walked walk(Path directory) throws IOException {
+        walking.add(directory);
+        BasicFileAttributes attributes = Files.readAttributes(directory, BasicFileAttributes.class);
+        Node root = new Node(directory, attributes.lastModifiedTime().toMillis());
+        Map<String, Node> nodes = new HashMap<>();
+        Map<Node, PriorityQueue<FileInfo>> largest = new HashMap<>();
+        nodes.put("", root);
+        boolean[] watched = {watch(root)};
+
+        try {
+            treeWalkService.walk(directory, ALL, file -> {
+                int slash = file.name().lastIndexOf('/');
+                Node parent = nodes.get(slash < 0 ? "" : file.name().substring(0, slash));
+                if (parent == null) {
+                    // The walk reports a directory before its entries
+                    return;
+                }
+                String name = file.name().substring(slash + 1);
+                if (file.directory()) {
+                    Node child = new Node(parent.path.resolve(name), file.lastModified());
+                    child.parent = parent;
+                    parent.children.put(name, child);
+                    nodes.put(file.name(), child);
+                    watched[0] &= watch(child);
+                } else {
+                    parent.ownBytes += file.size();
+                    parent.ownFiles++;
+                    PriorityQueue<FileInfo> files = largest.computeIfAbsent(parent,
+                            node -> new PriorityQueue<>(Comparator.comparingLong(FileInfo::size)));
+                    offer(files, new FileInfo(name, false, file.size(), file.lastModified()));
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            close(root);
+            throw e;
+        }
+
+        computeTotals(root);
+        largest.forEach((node, files) -> node.largestFiles = sorted(files));
+        return new Walked(root, watched[0]);
+    }
+
+    private void walked(Path directory) {
+        walking.remove(directory);
+        for (Path dir : deferred) {
+            if (dir.startsWith(directory) && deferred.remove(dir)) {
+                schedule(dir);
+            }
+        }
+    }
+
+    private boolean watch(Node node) {
+        try {
+            node.registration = directoryWatchService.watch(node.path, (dir, child, kind) -> schedule(dir));
+            return true;
+        } catch (IOException e) {
+            logger.debug("Cannot watch {}, its usage expires after the TTL", node.path, e);
+            return false;
+        }
+    }
+
+    private void schedule(Path directory) {
+        if (pending.add(directory)) {
+            updates.execute(() -> {
+                pending.remove(directory);
+                update(directory);
+            });
+        }
+    }
+
+    /**
+     * Re-read a changed directory and apply the difference to the totals of its ancestors
+     */
+    private void update(Path directory) {
+        Listing listing;
+        try {
+            listing = list(directory);
+        } catch (IOException e) {
+            // Deleted: its parent's update detaches it
+            return;
+        }
+
+        List<String> known;
+        rootsLock.lock();
+        try {
+            Node node = find(directory);
+            if (node == null) {
+                if (walking.stream().anyMatch(directory::startsWith)) {
+                    deferred.add(directory);
+                }
+                return;
+            }
+            known = List.copyOf(node.children.keySet());
+        } finally {
+            rootsLock.unlock();
+        }
+
+        // New subdirectories are walked without holding the lock
+        Map<String, Walked> added = new HashMap<>();
+        for (Map.Entry<String, Path> subdirectory : listing.subdirectories().entrySet()) {
+            if (!known.contains(subdirectory.getKey())) {
+                try {
+                    added.put(subdirectory.getKey(), walk(subdirectory.getValue()));
+                } catch (IOException e) {
+                    logger.debug("Cannot walk new directory {}", subdirectory.getValue(), e);
+                    walked(subdirectory.getValue());
+                }
+            }
+        }
+
+        rootsLock.lock();
+        try {
+            Node node = find(directory);
+            if (node == null) {
+                added.values().forEach(walked -> close(walked.node()));
+            } else {
+                apply(node, listing, added);
+            }
+        } finally {
+            rootsLock.unlock();
+        }
+        added.values().forEach(walked -> walked(walked.node().path));
+    }
+
+    private void apply(Node node, Listing listing, Map<String, Walked> added) {
+        long bytes = listing.ownBytes() - node.ownBytes;
+        long files = listing.ownFiles() - node.ownFiles;
+        long directories = 0;
+        node.ownBytes = listing.ownBytes();
+        node.ownFiles = listing.ownFiles();
+        node.largestFiles = listing.largestFiles();
+        node.lastModified = listing.lastModified();
+
+        Iterator<Map.Entry<String, Node>> children = node.children.entrySet().iterator();
+        while (children.hasNext()) {
+            Node child = children.next().getValue();
+            if (!listing.subdirectories().containsKey(child.path.getFileName().toString())) {
+                children.remove();
+                bytes -= child.totalBytes;
+                files -= child.totalFiles;
+                directories -= child.totalDirectories + 1;
+                close(child);
+            }
+        }
+
+        boolean watched = true;
+        for (Map.Entry<String, Walked> entry : added.entrySet()) {
+            Node child = entry.getValue().node();
+            if (node.children.containsKey(entry.getKey())) {
+                close(child);
+                continue;
+            }
+            child.parent = node;
+            node.children.put(entry.getKey(), child);
+            bytes += child.totalBytes;
+            files += child.totalFiles;
+            directories += child.totalDirectories + 1;
+            watched &= entry.getValue().watched();
+        }
+
+        Node root = node;
+        for (Node current = node; current != null; current = current.parent) {
+            current.totalBytes += bytes;
+            current.totalFiles += files;
+            current.totalDirectories += directories;
+            root = current;
+        }
+        if (roots.get(root.path) == root) {
+            cachedDirectories += directories;
+            if (!watched) {
+                root.expiresAt = Math.min(root.expiresAt, System.nanoTime() + ttlNanos);
+            }
+        }
+    }
+
+    private Listing list(Path directory) throws IOException {
+        long ownBytes = 0;
+        long ownFiles = 0;
+        PriorityQueue<FileInfo> largest = new PriorityQueue<>(Comparator.comparingLong(FileInfo::size));
+        Map<String, Path> subdirectories = new HashMap<>();
+        long lastModified = Files.getLastModifiedTime(directory).toMillis();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes = attributes(entry);
+                if (attributes == null) {
+                    continue;
+                }
+                String name = entry.getFileName().toString();
+                if (attributes.isDirectory()) {
+                    subdirectories.put(name, entry);
+                } else {
+                    ownBytes += attributes.size();
+                    ownFiles++;
+                    offer(largest, new FileInfo(name, false, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        return new Listing(ownBytes, ownFiles, sorted(largest), subdirectories, lastModified);
+    }
+
+    /**
+     * @return The attributes of an entry, following symbolic links into allowed directories as the walk does,
+     * or null if the entry vanished
+     */
+    private BasicFileAttributes attributes(Path entry) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attributes.isSymbolicLink() && pathValidationService.isPathAllowed(entry.toRealPath())) {
+                return Files.readAttributes(entry, BasicFileAttributes.class);
+            }
+            return attributes;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void offer(PriorityQueue<FileInfo> largest, FileInfo file) {
+        largest.offer(file);
+        if (largest.size() > topChildren) {
+            largest.poll();
+        }
+    }
+
+    private static List<FileInfo> sorted(PriorityQueue<FileInfo> largest) {
+        return largest.stream().sorted(LARGEST_FIRST).toList();
+    }
+
+    private static void computeTotals(Node root) {
+        // Post-order without recursion, as trees can be deep
+        Deque<Node> stack = new ArrayDeque<>();
+        List<Node> order = new ArrayList<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            order.add(node);
+            node.children.values().forEach(stack::push);
+        }
+        for (int i = order.size() - 1; i >= 0; i--) {
+            Node node = order.get(i);
+            node.totalBytes = node.ownBytes;
+            node.totalFiles = node.ownFiles;
+            node.totalDirectories = 0;
+            for (Node child : node.children.values()) {
+                node.totalBytes += child.totalBytes;
+                node.totalFiles += child.totalFiles;
+                node.totalDirectories += child.totalDirectories + 1;
+            }
+        }
+    }
+
+    private static void close(Node root) {
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node.registration != null) {
+                node.registration.close();
+                node.registration = null;
+            }
+            node.children.values().forEach(stack::push);
+        }
+    }
+
+    private record Walked(Node node, boolean watched) {
+    }
+
+    private record Listing(long ownBytes, long ownFiles, List<FileInfo> largestFiles,
+                           Map<String, Path> subdirectories, long lastModified) {
+    }
+
+    private static final class Node {
+        private final Path path;
+        private final Map<String, Node> children = new HashMap<>();
+        private Node parent;
+        private long lastModified;
+        private long ownBytes;
+        private long ownFiles;
+        private List<FileInfo> largestFiles = List.of();
+        private long totalBytes;
+        private long totalFiles;
+        private long totalDirectories;
+        private long expiresAt;
+        private DirectoryWatchService.Registration registration;
+
+        private Node(Path path, long lastModified) {
+            this.path = path;
+            this.lastModified = lastModified;
+            // Far in the future unless the tree could not be watched entirely
+            this.expiresAt = System.nanoTime() + Long.MAX_VALUE / 2;
+        }
+    }
+}
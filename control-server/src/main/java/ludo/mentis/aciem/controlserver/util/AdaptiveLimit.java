@@ -0,0 +1,67 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import java.time.Duration;
+
+/**
+ * A concurrency limit that adapts to the latency it observes, by additive increase and multiplicative decrease.
+ * <p>
+ * While requests complete within the target latency and the limit is in use, it grows by one for every limit's
+ * worth of completions, so by about one per round of requests. A request slower than the target, or one that
+ * failed, cuts it by the backoff factor, at most once per target period so that the requests of one slow
+ * round count as one congestion signal. The limit thus settles just below the concurrency at which latency
+ * starts to rise.
+ * <p>
+ * Samples must be reported by one thread at a time, typically under the lock guarding the requests in flight;
+ * the limit can be read from any thread.
+ */
+public final class AdaptiveLimit {
+
+    private static final double BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetNanos;
+    private volatile double limit;
+    private long lastDecrease;
+
+    /**
+     * @param initialLimit The limit until enough requests were observed
+     * @param minLimit The lowest limit
+     * @param maxLimit The highest limit
+     * @param target The latency above which the limit decreases
+     */
+    public AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, Duration target) {
+        if (minLimit < 1 || minLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid limits: " + minLimit + " to " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetNanos = target.toNanos();
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.lastDecrease = System.nanoTime() - targetNanos;
+    }
+
+    public int limit() {
+        return (int) limit;
+    }
+
+    /**
+     * Adjust the limit to a completed request
+     *
+     * @param latencyNanos How long the request took, from its admission
+     * @param failed Whether the request failed, which is taken as a sign of overload like a slow request
+     * @param inFlight The number of requests in flight when it completed, including itself
+     * @param now The current System.nanoTime
+     */
+    public void onSample(long latencyNanos, boolean failed, int inFlight, long now) {
+        if (failed || latencyNanos > targetNanos) {
+            if (now - lastDecrease >= targetNanos) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+                lastDecrease = now;
+            }
+        } else if (inFlight * 2 >= (int) limit) {
+            // Only grow a limit that is in use, or an idle period would let it grow without bound
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+}
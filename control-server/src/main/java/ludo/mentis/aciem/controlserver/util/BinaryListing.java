@@ -0,0 +1,316 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import org.springframework.http.MediaType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary encoding of a listing, sent instead of JSON to clients that ask for {@link #MEDIA_TYPE}.
+ * <p>
+ * Names are front coded: a record stores how many leading UTF-8 bytes its name shares with the previous one
+ * and only the rest, so the sorted names of a listing, and the full paths of search results, mostly shrink
+ * to their last few bytes. Sizes and the gaps between modification times are varints. The layout is:
+ * <pre>
+ * listing   magic "MYCL", version byte, records, end
+ * record    varint length of the body, then the body
+ * body      flags, varint shared prefix length, varint suffix length, suffix bytes,
+ *           varint size unless the size is unknown, zigzag varint gap to the previous modification time
+ * end       varint 0
+ * flags     bit 0 directory, bit 1 size unknown (-1)
+ * </pre>
+ * Records are length-prefixed so a later version can append fields that older readers skip. A listing that
+ * ends before the end marker was cut off midway, and is rejected rather than read as complete.
+ */
+public final class BinaryListing {
+
+    public static final String MEDIA_TYPE_VALUE = "application/x-mycs-listing";
+    public static final MediaType MEDIA_TYPE = MediaType.parseMediaType(MEDIA_TYPE_VALUE);
+
+    private static final byte[] MAGIC = {'M', 'Y', 'C', 'L'};
+    private static final int VERSION = 1;
+    private static final int DIRECTORY = 1;
+    private static final int SIZE_UNKNOWN = 2;
+    private static final int MAX_RECORD_BYTES = 1 << 16;
+
+    private BinaryListing() {
+    }
+
+    /**
+     * Whether a client prefers the binary listing: the first media type of its Accept header, by quality, that
+     * is either JSON or the binary listing is the binary listing. Clients that do not name it get JSON.
+     *
+     * @param accept The Accept header, or null
+     * @return Whether the listing should be sent in binary
+     */
+    public static boolean isPreferred(String accept) {
+        if (accept == null || !accept.contains(MEDIA_TYPE_VALUE)) {
+            return false;
+        }
+        List<MediaType> types;
+        try {
+            types = new ArrayList<>(MediaType.parseMediaTypes(accept));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        // Stable, so types of equal quality keep the client's order
+        types.sort((a, b) -> Double.compare(b.getQualityValue(), a.getQualityValue()));
+        for (MediaType type : types) {
+            if (type.getQualityValue() == 0) {
+                return false;
+            }
+            if (MEDIA_TYPE.equalsTypeAndSubtype(type)) {
+                return true;
+            }
+            if (type.isCompatibleWith(MediaType.APPLICATION_JSON)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encode a listing
+     *
+     * @param files The entries
+     * @param out The stream the listing is written to; it is not closed
+     * @throws IOException If the stream fails
+     */
+    public static void write(List<FileInfo> files, OutputStream out) throws IOException {
+        Writer writer = new Writer(out);
+        for (FileInfo file : files) {
+            writer.write(file);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Decode a listing
+     *
+     * @param in The stream the listing is read from; it is not closed
+     * @return The entries
+     * @throws IOException If the stream fails, the listing is malformed or it was cut off
+     */
+    public static List<FileInfo> read(InputStream in) throws IOException {
+        Reader reader = new Reader(in);
+        List<FileInfo> files = new ArrayList<>();
+        FileInfo file;
+        while ((file = reader.read()) != null) {
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Encodes the entries of a listing one at a time, so a listing can be sent while it is read
+     */
+    public static final class Writer {
+        // Room for the length of a record, written in front of its body once the body is complete
+        private static final int LENGTH_BYTES = 3;
+
+        private final OutputStream out;
+        private byte[] record = new byte[256];
+        private byte[] previousName = new byte[0];
+        private long previousModified;
+
+        /**
+         * Write the header of a listing
+         *
+         * @param out The stream the listing is written to; each record is written in one piece
+         * @throws IOException If the stream fails
+         */
+        public Writer(OutputStream out) throws IOException {
+            this.out = out;
+            out.write(MAGIC);
+            out.write(VERSION);
+        }
+
+        /**
+         * @param file The next entry
+         * @throws IOException If the stream fails or the name does not fit in a record
+         */
+        public void write(FileInfo file) throws IOException {
+            byte[] name = file.name().getBytes(StandardCharsets.UTF_8);
+            int shared = Arrays.mismatch(previousName, name);
+            if (shared < 0) {
+                shared = name.length;
+            }
+            int suffix = name.length - shared;
+            if (suffix > MAX_RECORD_BYTES - 40) {
+                throw new IOException("Name too long for a binary listing: " + file.name().length() + " characters");
+            }
+            boolean sizeUnknown = file.size() < 0;
+            if (record.length < LENGTH_BYTES + 40 + suffix) {
+                record = new byte[Math.max(record.length * 2, LENGTH_BYTES + 40 + suffix)];
+            }
+
+            int position = LENGTH_BYTES;
+            record[position++] = (byte) ((file.directory() ? DIRECTORY : 0) | (sizeUnknown ? SIZE_UNKNOWN : 0));
+            position = putVarint(record, position, shared);
+            position = putVarint(record, position, suffix);
+            System.arraycopy(name, shared, record, position, suffix);
+            position += suffix;
+            if (!sizeUnknown) {
+                position = putVarint(record, position, file.size());
+            }
+            long gap = file.lastModified() - previousModified;
+            position = putVarint(record, position, (gap << 1) ^ (gap >> 63));
+
+            int length = position - LENGTH_BYTES;
+            int start = LENGTH_BYTES - varintBytes(length);
+            putVarint(record, start, length);
+            out.write(record, start, position - start);
+            previousName = name;
+            previousModified = file.lastModified();
+        }
+
+        /**
+         * Write the end marker and flush; a listing without one is read as cut off
+         *
+         * @throws IOException If the stream fails
+         */
+        public void finish() throws IOException {
+            out.write(0);
+            out.flush();
+        }
+    }
+
+    /**
+     * Decodes the entries of a listing one at a time
+     */
+    public static final class Reader {
+        private final InputStream in;
+        private byte[] previousName = new byte[0];
+        private long previousModified;
+        private boolean finished;
+
+        /**
+         * Read the header of a listing
+         *
+         * @param in The stream the listing is read from; buffer it, as records are read in small pieces
+         * @throws IOException If the stream fails or does not hold a listing
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = in;
+            byte[] header = in.readNBytes(MAGIC.length + 1);
+            if (header.length < MAGIC.length + 1 || !Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+                throw new IOException("Not a binary listing");
+            }
+            if (header[MAGIC.length] != VERSION) {
+                throw new IOException("Unsupported binary listing version: " + header[MAGIC.length]);
+            }
+        }
+
+        /**
+         * @return The next entry, or null at the end of the listing
+         * @throws IOException If the stream fails, the record is malformed or the listing was cut off
+         */
+        public FileInfo read() throws IOException {
+            if (finished) {
+                return null;
+            }
+            long length = readVarint(in);
+            if (length == 0) {
+                finished = true;
+                return null;
+            }
+            if (length > MAX_RECORD_BYTES) {
+                throw new IOException("Malformed binary listing: record of " + length + " bytes");
+            }
+            byte[] body = in.readNBytes((int) length);
+            if (body.length < length) {
+                throw new EOFException("Binary listing was cut off");
+            }
+
+            Record record = new Record(body);
+            int flags = record.next();
+            long shared = record.varint();
+            long suffix = record.varint();
+            if (shared > previousName.length || suffix > record.remaining()) {
+                throw new IOException("Malformed binary listing: invalid name");
+            }
+            byte[] name = Arrays.copyOf(previousName, (int) (shared + suffix));
+            record.bytes(name, (int) shared, (int) suffix);
+            long size = (flags & SIZE_UNKNOWN) != 0 ? -1 : record.varint();
+            long zigzag = record.varint();
+            long modified = previousModified + ((zigzag >>> 1) ^ -(zigzag & 1));
+            // Any bytes left are fields of a later version
+
+            previousName = name;
+            previousModified = modified;
+            return new FileInfo(new String(name, StandardCharsets.UTF_8), (flags & DIRECTORY) != 0, size, modified);
+        }
+    }
+
+    private static final class Record {
+        private final byte[] body;
+        private int position;
+
+        private Record(byte[] body) {
+            this.body = body;
+        }
+
+        private int remaining() {
+            return body.length - position;
+        }
+
+        private int next() throws IOException {
+            if (position >= body.length) {
+                throw new IOException("Malformed binary listing: truncated record");
+            }
+            return body[position++] & 0xFF;
+        }
+
+        private void bytes(byte[] target, int offset, int length) {
+            System.arraycopy(body, position, target, offset, length);
+            position += length;
+        }
+
+        private long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = next();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed binary listing: varint too long");
+        }
+    }
+
+    private static int putVarint(byte[] target, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    private static int varintBytes(int value) {
+        return value < 1 << 7 ? 1 : value < 1 << 14 ? 2 : 3;
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Binary listing was cut off");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed binary listing: varint too long");
+    }
+}
@@ -0,0 +1,86 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import ludo.mentis.aciem.controlserver.model.ByteRange;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of byte ranges where overlapping and adjacent ranges are merged on insertion.
+ * Not thread-safe.
+ */
+public class ByteRangeSet {
+
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    /**
+     * Add the range [start, end) to the set
+     *
+     * @param start The first byte of the range
+     * @param end The byte after the last byte of the range
+     */
+    public void add(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+
+        Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+        }
+
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+
+        ranges.put(start, end);
+    }
+
+    /**
+     * @param start The first byte of the range
+     * @param end The byte after the last byte of the range
+     * @return true if every byte of [start, end) is in the set
+     */
+    public boolean covers(long start, long end) {
+        if (end <= start) {
+            return true;
+        }
+        Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+        return floor != null && floor.getValue() >= end;
+    }
+
+    /**
+     * @return The total number of bytes in the set
+     */
+    public long coveredBytes() {
+        long total = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            total += range.getValue() - range.getKey();
+        }
+        return total;
+    }
+
+    /**
+     * @return The end of the last range, or 0 if the set is empty
+     */
+    public long highestEnd() {
+        return ranges.isEmpty() ? 0 : ranges.lastEntry().getValue();
+    }
+
+    /**
+     * @return The merged ranges in ascending order
+     */
+    public List<ByteRange> toList() {
+        List<ByteRange> result = new ArrayList<>(ranges.size());
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            result.add(new ByteRange(range.getKey(), range.getValue()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,86 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import org.springframework.http.MediaType;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Strong entity tags built from SHA-256 digests
+ */
+public final class ETags {
+
+    private ETags() {
+    }
+
+    /**
+     * @return A new SHA-256 message digest
+     */
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Format a digest as the opaque part of an entity tag
+     *
+     * @param digest The digest bytes
+     * @return The digest in unpadded base64url
+     */
+    public static String encode(byte[] digest) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+    }
+
+    /**
+     * Quote an encoded digest as a strong entity tag
+     *
+     * @param encodedDigest The value returned by {@link #encode(byte[])}
+     * @return The entity tag, including the quotes
+     */
+    public static String strong(String encodedDigest) {
+        return "\"" + encodedDigest + "\"";
+    }
+
+    /**
+     * Build the entity tag of a directory listing. Listings with the same entries in the same order
+     * serialize to the same bytes, so the tag is a strong validator of the response.
+     *
+     * @param files The listing
+     * @return The entity tag, including the quotes
+     */
+    public static String forListing(List<FileInfo> files) {
+        return strong(encode(digest(files).digest()));
+    }
+
+    /**
+     * Build the entity tag of a directory listing sent in another media type than JSON. The bytes of each
+     * representation differ, so each one has its own tag.
+     *
+     * @param files The listing
+     * @param mediaType The media type the listing is sent in
+     * @return The entity tag, including the quotes
+     */
+    public static String forListing(List<FileInfo> files, MediaType mediaType) {
+        MessageDigest digest = digest(files);
+        digest.update(mediaType.toString().getBytes(StandardCharsets.US_ASCII));
+        return strong(encode(digest.digest()));
+    }
+
+    private static MessageDigest digest(List<FileInfo> files) {
+        MessageDigest digest = sha256();
+        for (FileInfo file : files) {
+            digest.update(file.name().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update((file.directory() + "/" + file.size() + "/" + file.lastModified() + "\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+        }
+        return digest;
+    }
+}
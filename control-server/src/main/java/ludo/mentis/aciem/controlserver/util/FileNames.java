@@ -0,0 +1,22 @@
+package ludo.mentis.aciem.controlserver.util;
+
+/**
+ * Helpers for file names supplied by clients
+ */
+public final class FileNames {
+
+    private FileNames() {
+    }
+
+    /**
+     * Sanitize a client supplied file name so it can be safely resolved against a directory
+     *
+     * @param originalFilename The file name provided by the client
+     * @return The file name without path traversal sequences or dangerous characters
+     */
+    public static String sanitize(String originalFilename) {
+        return originalFilename
+                .replaceAll("\\.\\.", "") // Remove path traversal sequences
+                .replaceAll("[^a-zA-Z0-9._-]", "_"); // Replace other dangerous chars with underscore
+    }
+}
@@ -0,0 +1,97 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import ludo.mentis.aciem.controlserver.model.ByteRange;
+import org.springframework.http.HttpRange;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Evaluation of Range and If-Range request headers (RFC 7233) against a representation of known length
+ */
+public final class HttpRanges {
+
+    private HttpRanges() {
+    }
+
+    /**
+     * Resolve a Range header into sorted, non-overlapping byte ranges
+     *
+     * @param rangeHeader The value of the Range header
+     * @param length The length of the representation
+     * @return The satisfiable ranges, merged where they overlap or touch; an empty list when no range is
+     * satisfiable; or null when the header is malformed and must be ignored
+     */
+    public static List<ByteRange> resolve(String rangeHeader, long length) {
+        List<HttpRange> requested;
+        try {
+            requested = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        List<ByteRange> satisfiable = new ArrayList<>();
+        for (HttpRange range : requested) {
+            long start = range.getRangeStart(length);
+            long end = range.getRangeEnd(length) + 1;
+            if (start < length && start < end) {
+                satisfiable.add(new ByteRange(start, end));
+            }
+        }
+        satisfiable.sort(Comparator.comparingLong(ByteRange::start));
+
+        List<ByteRange> merged = new ArrayList<>();
+        for (ByteRange range : satisfiable) {
+            ByteRange last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range.start() <= last.end()) {
+                merged.set(merged.size() - 1, new ByteRange(last.start(), Math.max(last.end(), range.end())));
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Check whether the Range header may be honored given an If-Range precondition
+     *
+     * @param ifRange The value of the If-Range header, or null if absent
+     * @param etag The current entity tag of the representation, or null if there is none
+     * @param lastModified The last modification time of the representation in milliseconds
+     * @return True if there is no If-Range header or it matches the current representation
+     */
+    public static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+
+        // Entity tags use strong comparison, so a weak tag never matches
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+
+        // A date only matches the exact last modification time, at the one-second resolution of HTTP dates
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return date.toEpochSecond() == lastModified / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Format a Content-Range header value for a range of the representation
+     *
+     * @param range The range being sent
+     * @param length The length of the representation
+     * @return The header value, e.g. "bytes 0-499/1234"
+     */
+    public static String contentRange(ByteRange range, long length) {
+        return "bytes " + range.start() + "-" + (range.end() - 1) + "/" + length;
+    }
+}
@@ -0,0 +1,421 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import ludo.mentis.aciem.controlserver.model.SearchType;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * An immutable, memory-mapped segment of the filename search index.
+ * <p>
+ * Entries are sorted by folded file name, so a prefix query is a binary search followed by a sequential
+ * scan. Every trigram of the folded names has a posting list of the entries containing it, delta and
+ * varint encoded, so substring and glob queries only match the entries holding all the trigrams of the
+ * query. Directories are stored once per segment and referenced by the entries. The layout is:
+ * <pre>
+ * header    magic, entry, directory and trigram counts, offsets of the sections below
+ * dirs      length-prefixed UTF-8 directory paths, loaded on open
+ * entries   fixed records: name offset, name length, directory id, flags
+ * names     UTF-8 file names
+ * trigrams  fixed records sorted by key: key, postings offset, posting count
+ * postings  varint gaps between ascending entry ids
+ * </pre>
+ * Sections are addressed with int offsets, so a segment must stay below 2GB; {@link #MAX_BYTES} bounds
+ * what a writer should put in one.
+ */
+public final class IndexSegment {
+
+    /**
+     * Estimated size a segment should not exceed, see {@link #estimatedBytes(Entry)}
+     */
+    public static final long MAX_BYTES = 1L << 30;
+
+    /**
+     * Search order of entries: folded name, then path
+     */
+    public static final Comparator<Entry> ORDER = Comparator.comparing((Entry entry) -> SearchQuery.fold(entry.name()))
+            .thenComparing(Entry::parent)
+            .thenComparing(Entry::name);
+
+    private static final long MAGIC = 0x4D59435349445831L; // "MYCSIDX1"
+    private static final int HEADER_BYTES = 40;
+    private static final int ENTRY_BYTES = 13;
+    private static final int TRIGRAM_BYTES = 16;
+    private static final byte FLAG_DIRECTORY = 1;
+
+    private final Path file;
+    private final ByteBuffer buffer;
+    private final String[] directories;
+    private final int entryCount;
+    private final int trigramCount;
+    private final int entriesOffset;
+    private final int namesOffset;
+    private final int trigramsOffset;
+    private final int postingsOffset;
+
+    /**
+     * An indexed file
+     *
+     * @param parent The path of the directory holding the file
+     * @param name The file name
+     * @param directory Whether the file is a directory
+     */
+    public record Entry(String parent, String name, boolean directory) {
+        /**
+         * @return The full path of the file
+         */
+        public String path() {
+            return parent.endsWith(File.separator) ? parent + name : parent + File.separator + name;
+        }
+    }
+
+    private IndexSegment(Path file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getLong(0) != MAGIC) {
+            throw new IOException("Not an index segment: " + file);
+        }
+        this.entryCount = buffer.getInt(8);
+        int directoryCount = buffer.getInt(12);
+        this.trigramCount = buffer.getInt(16);
+        int directoriesOffset = buffer.getInt(20);
+        this.entriesOffset = buffer.getInt(24);
+        this.namesOffset = buffer.getInt(28);
+        this.trigramsOffset = buffer.getInt(32);
+        this.postingsOffset = buffer.getInt(36);
+
+        this.directories = new String[directoryCount];
+        int position = directoriesOffset;
+        for (int i = 0; i < directoryCount; i++) {
+            int length = buffer.getInt(position);
+            directories[i] = string(position + 4, length);
+            position += 4 + length;
+        }
+    }
+
+    /**
+     * Open a segment written by {@link #write(Path, List)}
+     *
+     * @param file The segment file
+     * @return The segment
+     * @throws IOException If the file cannot be read or is not a segment
+     */
+    public static IndexSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new IndexSegment(file, buffer);
+        }
+    }
+
+    /**
+     * Write a segment holding the given entries and open it. The file is written next to its target and
+     * renamed into place, so a crash never leaves a partial segment behind.
+     *
+     * @param file The segment file
+     * @param entries The entries, in any order
+     * @return The segment
+     * @throws IOException If an I/O error occurs, or the segment would exceed 2GB
+     */
+    public static IndexSegment write(Path file, List<Entry> entries) throws IOException {
+        Entry[] sorted = entries.toArray(new Entry[0]);
+        Arrays.sort(sorted, ORDER);
+
+        Map<String, Integer> directoryIds = new HashMap<>();
+        ByteArrayOutputStream directorySection = new ByteArrayOutputStream();
+        ByteArrayOutputStream entrySection = new ByteArrayOutputStream(sorted.length * ENTRY_BYTES);
+        ByteArrayOutputStream nameSection = new ByteArrayOutputStream();
+        DataOutputStream directoryOut = new DataOutputStream(directorySection);
+        DataOutputStream entryOut = new DataOutputStream(entrySection);
+        Map<Long, IntList> postings = new HashMap<>();
+
+        for (int id = 0; id < sorted.length; id++) {
+            Entry entry = sorted[id];
+            Integer directoryId = directoryIds.get(entry.parent());
+            if (directoryId == null) {
+                directoryId = directoryIds.size();
+                directoryIds.put(entry.parent(), directoryId);
+                byte[] parent = entry.parent().getBytes(StandardCharsets.UTF_8);
+                directoryOut.writeInt(parent.length);
+                directoryOut.write(parent);
+            }
+
+            byte[] name = entry.name().getBytes(StandardCharsets.UTF_8);
+            entryOut.writeInt(nameSection.size());
+            entryOut.writeInt(name.length);
+            entryOut.writeInt(directoryId);
+            entryOut.writeByte(entry.directory() ? FLAG_DIRECTORY : 0);
+            nameSection.write(name);
+
+            String folded = SearchQuery.fold(entry.name());
+            for (int i = 0; i + 3 <= folded.length(); i++) {
+                long key = SearchQuery.trigram(folded.charAt(i), folded.charAt(i + 1), folded.charAt(i + 2));
+                postings.computeIfAbsent(key, k -> new IntList()).addOnce(id);
+            }
+        }
+
+        long[] keys = postings.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        ByteArrayOutputStream trigramSection = new ByteArrayOutputStream(keys.length * TRIGRAM_BYTES);
+        ByteArrayOutputStream postingSection = new ByteArrayOutputStream();
+        DataOutputStream trigramOut = new DataOutputStream(trigramSection);
+        for (long key : keys) {
+            IntList ids = postings.get(key);
+            trigramOut.writeLong(key);
+            trigramOut.writeInt(postingSection.size());
+            trigramOut.writeInt(ids.size);
+            int previous = 0;
+            for (int i = 0; i < ids.size; i++) {
+                writeVarint(postingSection, ids.values[i] - previous);
+                previous = ids.values[i];
+            }
+        }
+
+        long directoriesOffset = HEADER_BYTES;
+        long entriesOffset = directoriesOffset + directorySection.size();
+        long namesOffset = entriesOffset + entrySection.size();
+        long trigramsOffset = namesOffset + nameSection.size();
+        long postingsOffset = trigramsOffset + trigramSection.size();
+        if (postingsOffset + postingSection.size() > Integer.MAX_VALUE) {
+            throw new IOException("Index segment too large: " + sorted.length + " entries");
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     Channels.newOutputStream(channel), 1 << 16))) {
+            out.writeLong(MAGIC);
+            out.writeInt(sorted.length);
+            out.writeInt(directoryIds.size());
+            out.writeInt(keys.length);
+            out.writeInt((int) directoriesOffset);
+            out.writeInt((int) entriesOffset);
+            out.writeInt((int) namesOffset);
+            out.writeInt((int) trigramsOffset);
+            out.writeInt((int) postingsOffset);
+            directorySection.writeTo(out);
+            entrySection.writeTo(out);
+            nameSection.writeTo(out);
+            trigramSection.writeTo(out);
+            postingSection.writeTo(out);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file);
+    }
+
+    /**
+     * @param entry An entry to be written
+     * @return The approximate number of bytes the entry adds to a segment, names and postings included
+     */
+    public static long estimatedBytes(Entry entry) {
+        // Every character starts a trigram, whose posting takes one to three bytes
+        return ENTRY_BYTES + entry.name().length() * 5L;
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * Find the entries matching a query, in {@link #ORDER}
+     *
+     * @param query The query
+     * @param limit The maximum number of entries returned
+     * @param visible Paths failing this test are skipped and do not count towards the limit
+     * @return The matching entries
+     */
+    public List<Entry> search(SearchQuery query, int limit, Predicate<String> visible) {
+        List<Entry> results = new ArrayList<>();
+        if (query.type() == SearchType.PREFIX) {
+            String prefix = query.prefix();
+            for (int id = lowerBound(prefix); id < entryCount && results.size() < limit; id++) {
+                if (!SearchQuery.fold(name(id)).startsWith(prefix)) {
+                    break;
+                }
+                collect(entry(id), query, visible, results);
+            }
+            return results;
+        }
+
+        int[] candidates = candidates(query.trigrams());
+        int count = candidates != null ? candidates.length : entryCount;
+        for (int i = 0; i < count && results.size() < limit; i++) {
+            collect(entry(candidates != null ? candidates[i] : i), query, visible, results);
+        }
+        return results;
+    }
+
+    private static void collect(Entry entry, SearchQuery query, Predicate<String> visible, List<Entry> results) {
+        if (query.matches(entry) && visible.test(entry.path())) {
+            results.add(entry);
+        }
+    }
+
+    /**
+     * @return The ids of the entries holding every trigram, ascending, or null when there are no trigrams
+     */
+    private int[] candidates(long[] trigrams) {
+        if (trigrams.length == 0) {
+            return null;
+        }
+        int[] slots = new int[trigrams.length];
+        for (int i = 0; i < trigrams.length; i++) {
+            slots[i] = findTrigram(trigrams[i]);
+            if (slots[i] < 0) {
+                return new int[0];
+            }
+        }
+
+        // Intersect starting from the rarest trigram, so the candidates only shrink
+        Integer[] order = new Integer[slots.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = slots[i];
+        }
+        Arrays.sort(order, Comparator.comparingInt(this::postingCount));
+
+        int[] candidates = postings(order[0]);
+        for (int i = 1; i < order.length && candidates.length > 0; i++) {
+            candidates = intersect(candidates, postings(order[i]));
+        }
+        return candidates;
+    }
+
+    private int findTrigram(long key) {
+        int low = 0;
+        int high = trigramCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = buffer.getLong(trigramsOffset + mid * TRIGRAM_BYTES);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int postingCount(int slot) {
+        return buffer.getInt(trigramsOffset + slot * TRIGRAM_BYTES + 12);
+    }
+
+    private int[] postings(int slot) {
+        int position = postingsOffset + buffer.getInt(trigramsOffset + slot * TRIGRAM_BYTES + 8);
+        int[] ids = new int[postingCount(slot)];
+        int id = 0;
+        for (int i = 0; i < ids.length; i++) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += gap;
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = entryCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (SearchQuery.fold(name(mid)).compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private Entry entry(int id) {
+        int record = entriesOffset + id * ENTRY_BYTES;
+        return new Entry(directories[buffer.getInt(record + 8)], name(id),
+                (buffer.get(record + 12) & FLAG_DIRECTORY) != 0);
+    }
+
+    private String name(int id) {
+        int record = entriesOffset + id * ENTRY_BYTES;
+        return string(namesOffset + buffer.getInt(record), buffer.getInt(record + 4));
+    }
+
+    private String string(int position, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        private void addOnce(int value) {
+            // Ids arrive in ascending order, so a trigram repeated within a name is the last value
+            if (size > 0 && values[size - 1] == value) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque continuation cursors of paginated listings. A cursor carries the name of the last entry
+ * of a page, so the next page resumes after that name.
+ */
+public final class ListingCursor {
+
+    private ListingCursor() {
+    }
+
+    /**
+     * @param lastName The name of the last entry of a page, or null if the listing is complete
+     * @return The cursor of the next page, or null if there is none
+     */
+    public static String encode(String lastName) {
+        return lastName == null ? null
+                : Base64.getUrlEncoder().withoutPadding().encodeToString(lastName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor A cursor returned with an earlier page, or null or empty for the first page
+     * @return The name the page starts after, or null for the first page
+     * @throws IllegalArgumentException If the cursor is malformed
+     */
+    public static String decode(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    }
+}
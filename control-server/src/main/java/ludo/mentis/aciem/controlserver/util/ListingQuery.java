@@ -0,0 +1,111 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.model.SortKey;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sort order, limit and predicates of a directory listing, applied on the server so that only the selected
+ * entries are sent.
+ * <p>
+ * With a limit, the first entries in sort order are kept in a bounded heap while the listing is read, so
+ * selecting the k largest or newest files of a huge directory holds k entries in memory, not the directory.
+ * The predicates are those of a recursive listing, matched against the entry names.
+ */
+public final class ListingQuery {
+
+    private final Comparator<FileInfo> order;
+    private final int limit;
+    private final TreeFilter filter;
+
+    private ListingQuery(Comparator<FileInfo> order, int limit, TreeFilter filter) {
+        this.order = order;
+        this.limit = limit;
+        this.filter = filter;
+    }
+
+    /**
+     * Create a query, compiling its glob patterns
+     *
+     * @param sort The attribute entries are sorted by, or null for their name
+     * @param descending Whether the largest values come first
+     * @param limit The maximum number of entries, or null for all of them
+     * @param include Patterns a name must match one of; null or empty for all entries
+     * @param exclude Patterns a name must match none of; null or empty for none
+     * @param minSize The minimum size in bytes, or null
+     * @param maxSize The maximum size in bytes, or null
+     * @param modifiedAfter Only entries modified at or after this epoch millisecond, or null
+     * @param modifiedBefore Only entries modified before this epoch millisecond, or null
+     * @return The query
+     * @throws IllegalArgumentException If a pattern is malformed or the limit is not positive
+     */
+    public static ListingQuery of(SortKey sort, boolean descending, Integer limit, List<String> include,
+                                  List<String> exclude, Long minSize, Long maxSize, Long modifiedAfter,
+                                  Long modifiedBefore) {
+        if (limit != null && limit < 1) {
+            throw new IllegalArgumentException("Invalid limit: " + limit);
+        }
+        return new ListingQuery((sort != null ? sort : SortKey.NAME).comparator(descending),
+                limit != null ? limit : Integer.MAX_VALUE,
+                TreeFilter.of(null, include, exclude, minSize, maxSize, modifiedAfter, modifiedBefore));
+    }
+
+    /**
+     * Select the entries of a listing that was read already
+     *
+     * @param files The entries
+     * @return The matching entries in sort order, up to the limit
+     */
+    public List<FileInfo> select(Iterable<FileInfo> files) {
+        Selector selector = selector();
+        files.forEach(selector::offer);
+        return selector.result();
+    }
+
+    /**
+     * @return A selector the entries of a listing are offered to while the directory is read
+     */
+    public Selector selector() {
+        return new Selector();
+    }
+
+    /**
+     * Keeps the first matching entries in sort order, up to the limit
+     */
+    public final class Selector {
+        // The worst selected entry is at the head, so it is the one replaced
+        private final PriorityQueue<FileInfo> heap = new PriorityQueue<>(order.reversed());
+
+        private Selector() {
+        }
+
+        /**
+         * @param file An entry of the listing
+         */
+        public void offer(FileInfo file) {
+            if (!filter.matches(Path.of(file.name()), file.size(), file.lastModified())) {
+                return;
+            }
+            if (heap.size() < limit) {
+                heap.add(file);
+            } else if (order.compare(file, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(file);
+            }
+        }
+
+        /**
+         * @return The selected entries in sort order
+         */
+        public List<FileInfo> result() {
+            List<FileInfo> files = new ArrayList<>(heap);
+            files.sort(order);
+            return files;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental parser for multipart/form-data bodies.
+ * <p>
+ * Parts are read from the underlying stream one at a time and in order, so a caller can act on a
+ * form field before any byte of the following part has been read. Only a fixed-size buffer is held
+ * in memory, regardless of how large the parts are.
+ */
+public class MultipartStreamReader {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int head;
+    private int tail;
+    private boolean eof;
+    private boolean finished;
+    private PartInputStream currentBody;
+
+    /**
+     * Create a reader for a multipart body
+     *
+     * @param in The raw request body
+     * @param boundary The boundary parameter of the multipart content type
+     */
+    public MultipartStreamReader(InputStream in, String boundary) {
+        this(in, boundary, DEFAULT_BUFFER_SIZE);
+    }
+
+    MultipartStreamReader(InputStream in, String boundary, int bufferSize) {
+        byte[] boundaryBytes = boundary.getBytes(StandardCharsets.US_ASCII);
+        this.in = in;
+        this.delimiter = new byte[boundaryBytes.length + 4];
+        this.delimiter[0] = '\r';
+        this.delimiter[1] = '\n';
+        this.delimiter[2] = '-';
+        this.delimiter[3] = '-';
+        System.arraycopy(boundaryBytes, 0, this.delimiter, 4, boundaryBytes.length);
+        this.buffer = new byte[Math.max(bufferSize, this.delimiter.length * 2)];
+
+        // The first boundary is not preceded by a line break; seed one so every delimiter looks alike
+        this.buffer[0] = '\r';
+        this.buffer[1] = '\n';
+        this.tail = 2;
+
+        // Anything before the first boundary is preamble and gets discarded by the first nextPart()
+        this.currentBody = new PartInputStream();
+    }
+
+    /**
+     * Advance to the next part, discarding whatever is left of the current one
+     *
+     * @return The next part, or null when the closing boundary has been reached
+     * @throws IOException If an I/O error occurs or the body is malformed
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+
+        currentBody.drain();
+
+        int first = readByte();
+        int second = readByte();
+        if (first == '-' && second == '-') {
+            finished = true;
+            return null;
+        }
+
+        // Transport padding may follow the boundary before the line break
+        while (first == ' ' || first == '\t') {
+            first = second;
+            second = readByte();
+        }
+        if (first != '\r' || second != '\n') {
+            throw new IOException("Malformed multipart body: boundary is not followed by a line break");
+        }
+
+        HttpHeaders headers = readHeaders();
+        currentBody = new PartInputStream();
+        return new Part(headers, currentBody);
+    }
+
+    private HttpHeaders readHeaders() throws IOException {
+        HttpHeaders headers = new HttpHeaders();
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int total = 0;
+
+        while (true) {
+            int b = readByte();
+            if (++total > MAX_HEADER_SIZE) {
+                throw new IOException("Malformed multipart body: part headers exceed " + MAX_HEADER_SIZE + " bytes");
+            }
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+
+            String headerLine = line.toString(StandardCharsets.UTF_8);
+            if (headerLine.endsWith("\r")) {
+                headerLine = headerLine.substring(0, headerLine.length() - 1);
+            }
+            if (headerLine.isEmpty()) {
+                return headers;
+            }
+
+            int colon = headerLine.indexOf(':');
+            if (colon > 0) {
+                headers.add(headerLine.substring(0, colon).trim(), headerLine.substring(colon + 1).trim());
+            }
+            line.reset();
+        }
+    }
+
+    private int readByte() throws IOException {
+        while (head == tail) {
+            if (eof) {
+                throw new IOException("Malformed multipart body: unexpected end of stream");
+            }
+            fill();
+        }
+        return buffer[head++] & 0xFF;
+    }
+
+    private void fill() throws IOException {
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        int read = in.read(buffer, tail, buffer.length - tail);
+        if (read == -1) {
+            eof = true;
+        } else {
+            tail += read;
+        }
+    }
+
+    private int indexOfDelimiter() {
+        int last = tail - delimiter.length;
+        byte first = delimiter[0];
+
+        outer:
+        for (int i = head; i <= last; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A single part of a multipart body. Its content can only be read once, and only until
+     * {@link MultipartStreamReader#nextPart()} is called again.
+     */
+    public record Part(HttpHeaders headers, InputStream body) {
+
+        /**
+         * @return The form field name from the Content-Disposition header, or null if absent
+         */
+        public String name() {
+            String disposition = headers.getFirst(HttpHeaders.CONTENT_DISPOSITION);
+            return disposition != null ? ContentDisposition.parse(disposition).getName() : null;
+        }
+
+        /**
+         * @return The original file name from the Content-Disposition header, or null if absent
+         */
+        public String filename() {
+            String disposition = headers.getFirst(HttpHeaders.CONTENT_DISPOSITION);
+            return disposition != null ? ContentDisposition.parse(disposition).getFilename() : null;
+        }
+
+        /**
+         * Read the whole part as a UTF-8 string
+         *
+         * @param maxBytes The maximum number of bytes accepted for the value
+         * @return The part content
+         * @throws IOException If an I/O error occurs or the value is longer than maxBytes
+         */
+        public String contentAsString(int maxBytes) throws IOException {
+            byte[] value = body.readNBytes(maxBytes + 1);
+            if (value.length > maxBytes) {
+                throw new IOException("Form field '" + name() + "' exceeds " + maxBytes + " bytes");
+            }
+            return new String(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    private class PartInputStream extends InputStream {
+
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            while (true) {
+                int index = indexOfDelimiter();
+                if (index == head) {
+                    head += delimiter.length;
+                    done = true;
+                    return -1;
+                }
+
+                // Without a match, hold back enough bytes to recognize a delimiter split across reads
+                int safe = index >= 0 ? index - head : (tail - head) - (delimiter.length - 1);
+                if (safe > 0) {
+                    int count = Math.min(safe, len);
+                    System.arraycopy(buffer, head, b, off, count);
+                    head += count;
+                    return count;
+                }
+
+                if (eof) {
+                    throw new IOException("Malformed multipart body: unexpected end of stream");
+                }
+                fill();
+            }
+        }
+
+        void drain() throws IOException {
+            byte[] skip = new byte[8192];
+            while (read(skip, 0, skip.length) != -1) {
+                // discard
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The meters of one file operation: a latency timer per outcome in {@code file.operations}, published as a
+ * histogram, and the number in flight in {@code file.operations.active}.
+ * <p>
+ * An operation is timed from {@link #start()} to {@link #stop(long, Throwable)}, which may be called on another
+ * thread when the operation completes asynchronously. The meters are registered once, so recording costs a
+ * clock read and a few atomic updates.
+ */
+public final class OperationMeter {
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final Timer succeeded;
+    private final Timer denied;
+    private final Timer failed;
+
+    /**
+     * @param name The operation tag
+     * @param meterRegistry The registry of the meters
+     */
+    public OperationMeter(String name, MeterRegistry meterRegistry) {
+        this.succeeded = timer(name, "success", meterRegistry);
+        this.denied = timer(name, "denied", meterRegistry);
+        this.failed = timer(name, "error", meterRegistry);
+        Gauge.builder("file.operations.active", active, AtomicInteger::get).tag("operation", name)
+                .description("File operations in progress").register(meterRegistry);
+    }
+
+    /**
+     * @param direction The direction tag: upload or download
+     * @param meterRegistry The registry of the counter
+     * @return The counter of the bytes transferred in the direction, shared by every transfer path
+     */
+    public static Counter transferred(String direction, MeterRegistry meterRegistry) {
+        return Counter.builder("file.transferred").tag("direction", direction).baseUnit("bytes")
+                .description("Bytes transferred by file uploads and downloads").register(meterRegistry);
+    }
+
+    private static Timer timer(String name, String outcome, MeterRegistry meterRegistry) {
+        return Timer.builder("file.operations").tag("operation", name).tag("outcome", outcome)
+                .description("File operation latency").publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1)).maximumExpectedValue(Duration.ofMinutes(10))
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return The start time to pass to {@link #stop(long, Throwable)}
+     */
+    public long start() {
+        active.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * @param startNanos The value returned by {@link #start()}
+     * @param error The exception the operation ended with, or null if it succeeded
+     */
+    public void stop(long startNanos, Throwable error) {
+        Timer timer = error == null ? succeeded
+                : error.getMessage() != null && error.getMessage().startsWith("Access denied") ? denied : failed;
+        timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        active.decrementAndGet();
+    }
+}
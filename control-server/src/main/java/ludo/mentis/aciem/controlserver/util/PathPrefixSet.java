@@ -0,0 +1,66 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A set of directories, matched against the paths below them.
+ * <p>
+ * The directories are kept in a trie keyed by path element, so finding whether a path lies below one of them
+ * walks the elements of the path once, whatever the number of directories. Elements are compared as paths,
+ * so the match ignores case where the file system does.
+ */
+public final class PathPrefixSet {
+
+    private final Node root = new Node();
+
+    private PathPrefixSet() {
+    }
+
+    /**
+     * @param directories Absolute, normalized directories
+     * @return The set of the directories
+     */
+    public static PathPrefixSet of(Collection<Path> directories) {
+        PathPrefixSet set = new PathPrefixSet();
+        for (Path directory : directories) {
+            Node node = set.root.children.computeIfAbsent(directory.getRoot(), key -> new Node());
+            for (Path element : directory) {
+                node = node.children.computeIfAbsent(element, key -> new Node());
+            }
+            node.terminal = true;
+        }
+        return set;
+    }
+
+    /**
+     * @param path An absolute, normalized path
+     * @return Whether the path is one of the directories or lies below one
+     */
+    public boolean containsPrefixOf(Path path) {
+        Node node = root.children.get(path.getRoot());
+        if (node == null) {
+            return false;
+        }
+        if (node.terminal) {
+            return true;
+        }
+        for (Path element : path) {
+            node = node.children.get(element);
+            if (node == null) {
+                return false;
+            }
+            if (node.terminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Node {
+        private final Map<Path, Node> children = new HashMap<>(4);
+        private boolean terminal;
+    }
+}
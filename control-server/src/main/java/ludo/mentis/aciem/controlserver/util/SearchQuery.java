@@ -0,0 +1,173 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import ludo.mentis.aciem.controlserver.model.SearchType;
+
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+/**
+ * A compiled filename search query.
+ * <p>
+ * Besides matching entries, a query knows the trigrams every matching file name must contain, which
+ * {@link IndexSegment} uses to narrow the candidates down before matching them. Prefix and substring
+ * queries ignore case; glob patterns follow the case sensitivity of the file system, and only their
+ * literal parts of at least three characters can use the trigrams.
+ */
+public final class SearchQuery {
+
+    private final SearchType type;
+    private final String text;
+    private final long[] trigrams;
+    private final PathMatcher matcher;
+    private final boolean matchesPath;
+
+    private SearchQuery(SearchType type, String text, long[] trigrams, PathMatcher matcher, boolean matchesPath) {
+        this.type = type;
+        this.text = text;
+        this.trigrams = trigrams;
+        this.matcher = matcher;
+        this.matchesPath = matchesPath;
+    }
+
+    /**
+     * Compile a query
+     *
+     * @param type How the query is matched
+     * @param query The query text or glob pattern
+     * @return The query
+     * @throws IllegalArgumentException If the query is empty or the pattern is malformed
+     */
+    public static SearchQuery of(SearchType type, String query) {
+        if (query == null || query.isEmpty()) {
+            throw new IllegalArgumentException("Empty query");
+        }
+        if (type != SearchType.GLOB) {
+            String folded = fold(query);
+            return new SearchQuery(type, folded, trigrams(List.of(folded)), null, false);
+        }
+
+        boolean matchesPath = query.indexOf('/') >= 0;
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + query);
+        List<String> literals = globLiterals(query).stream().map(SearchQuery::fold).toList();
+        return new SearchQuery(type, query, trigrams(literals), matcher, matchesPath);
+    }
+
+    /**
+     * @param name A file name
+     * @return The name as it is compared by prefix and substring queries, and as it is indexed
+     */
+    public static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return The key of a trigram of a folded name
+     */
+    public static long trigram(char first, char second, char third) {
+        return ((long) first << 32) | ((long) second << 16) | third;
+    }
+
+    public SearchType type() {
+        return type;
+    }
+
+    /**
+     * @return The folded prefix of a prefix query
+     */
+    public String prefix() {
+        return text;
+    }
+
+    /**
+     * @return The distinct trigrams every matching folded file name contains, in ascending order; empty when the
+     * query has no literal of three characters, and every entry must then be matched
+     */
+    public long[] trigrams() {
+        return trigrams;
+    }
+
+    /**
+     * @param entry An index entry
+     * @return Whether the entry matches the query
+     */
+    public boolean matches(IndexSegment.Entry entry) {
+        return switch (type) {
+            case PREFIX -> fold(entry.name()).startsWith(text);
+            case SUBSTRING -> fold(entry.name()).contains(text);
+            case GLOB -> matchesGlob(entry);
+        };
+    }
+
+    private boolean matchesGlob(IndexSegment.Entry entry) {
+        try {
+            return matcher.matches(matchesPath ? Path.of(entry.path()) : Path.of(entry.name()));
+        } catch (InvalidPathException e) {
+            // A name the platform encoding cannot represent is not a path this file system could hold
+            return false;
+        }
+    }
+
+    private static long[] trigrams(List<String> literals) {
+        long[] keys = literals.stream()
+                .flatMapToLong(literal -> IntStream.rangeClosed(0, literal.length() - 3)
+                        .mapToLong(i -> trigram(literal.charAt(i), literal.charAt(i + 1), literal.charAt(i + 2))))
+                .toArray();
+        return Arrays.stream(keys).sorted().distinct().toArray();
+    }
+
+    /**
+     * The literal runs a file name matched by the pattern must contain. With a slash, the pattern matches the
+     * full path, so only the part after the last slash and the last {@code **} is known to be in the name.
+     * Character classes and alternatives are optional and never contribute.
+     */
+    private static List<String> globLiterals(String pattern) {
+        String tail = pattern;
+        if (pattern.indexOf('/') >= 0) {
+            if (pattern.indexOf('{') >= 0) {
+                // An alternative may hold a slash, so the name part cannot be told apart
+                return List.of();
+            }
+            tail = pattern.substring(pattern.lastIndexOf('/') + 1);
+            int globstar = tail.lastIndexOf("**");
+            if (globstar >= 0) {
+                tail = tail.substring(globstar + 2);
+            }
+        }
+
+        List<String> literals = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        for (int i = 0; i < tail.length(); i++) {
+            char c = tail.charAt(i);
+            switch (c) {
+                case '\\' -> {
+                    if (i + 1 < tail.length()) {
+                        run.append(tail.charAt(++i));
+                    }
+                }
+                case '*', '?' -> flush(run, literals);
+                case '[', '{' -> {
+                    flush(run, literals);
+                    int end = tail.indexOf(c == '[' ? ']' : '}', i + 1);
+                    i = end < 0 ? tail.length() : end;
+                }
+                default -> run.append(c);
+            }
+        }
+        flush(run, literals);
+        return literals;
+    }
+
+    private static void flush(StringBuilder run, List<String> literals) {
+        if (run.length() >= 3) {
+            literals.add(run.toString());
+        }
+        run.setLength(0);
+    }
+}
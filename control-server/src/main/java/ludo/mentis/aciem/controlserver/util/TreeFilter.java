@@ -0,0 +1,124 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+/**
+ * Predicates of a recursive listing.
+ * <p>
+ * Glob patterns without a slash match the file name, as in {@code *.log}; patterns with a slash match the
+ * path relative to the listed directory, as in {@code logs/**}. An entry is reported when it matches an
+ * include pattern (or there are none), no exclude pattern, and the size and modification time bounds.
+ * A directory matching an exclude pattern is not descended into.
+ */
+public final class TreeFilter {
+
+    private final int maxDepth;
+    private final List<Glob> include;
+    private final List<Glob> exclude;
+    private final long minSize;
+    private final long maxSize;
+    private final long modifiedAfter;
+    private final long modifiedBefore;
+
+    private TreeFilter(int maxDepth, List<Glob> include, List<Glob> exclude,
+                       long minSize, long maxSize, long modifiedAfter, long modifiedBefore) {
+        this.maxDepth = maxDepth;
+        this.include = include;
+        this.exclude = exclude;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.modifiedAfter = modifiedAfter;
+        this.modifiedBefore = modifiedBefore;
+    }
+
+    /**
+     * Create a filter, compiling its glob patterns
+     *
+     * @param maxDepth How many levels below the listed directory are reported, 1 for its direct children; null for no limit
+     * @param include Patterns an entry must match one of; null or empty for all entries
+     * @param exclude Patterns an entry must match none of; null or empty for none
+     * @param minSize The minimum size in bytes, or null
+     * @param maxSize The maximum size in bytes, or null
+     * @param modifiedAfter Only entries modified at or after this epoch millisecond, or null
+     * @param modifiedBefore Only entries modified before this epoch millisecond, or null
+     * @return The filter
+     * @throws IllegalArgumentException If a pattern is malformed or the depth is not positive
+     */
+    public static TreeFilter of(Integer maxDepth, List<String> include, List<String> exclude,
+                                Long minSize, Long maxSize, Long modifiedAfter, Long modifiedBefore) {
+        if (maxDepth != null && maxDepth < 1) {
+            throw new IllegalArgumentException("Invalid max depth: " + maxDepth);
+        }
+        return new TreeFilter(maxDepth != null ? maxDepth : Integer.MAX_VALUE, compile(include), compile(exclude),
+                minSize != null ? minSize : Long.MIN_VALUE, maxSize != null ? maxSize : Long.MAX_VALUE,
+                modifiedAfter != null ? modifiedAfter : Long.MIN_VALUE,
+                modifiedBefore != null ? modifiedBefore : Long.MAX_VALUE);
+    }
+
+    /**
+     * @param depth The depth of a directory, 1 for the direct children of the listed directory
+     * @return Whether the children of a directory at this depth are still within the max depth
+     */
+    public boolean descendsBelow(int depth) {
+        return depth < maxDepth;
+    }
+
+    /**
+     * @param relativePath The path of a directory relative to the listed directory
+     * @return Whether the directory is excluded, and so not descended into
+     */
+    public boolean isExcluded(Path relativePath) {
+        return matchesAny(exclude, relativePath);
+    }
+
+    /**
+     * @param relativePath The path of an entry relative to the listed directory
+     * @param attributes The attributes of the entry
+     * @return Whether the entry is reported
+     */
+    public boolean matches(Path relativePath, BasicFileAttributes attributes) {
+        return matches(relativePath, attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * @param relativePath The path of an entry relative to the listed directory
+     * @param size The size of the entry in bytes
+     * @param modified When the entry was last modified, in epoch milliseconds
+     * @return Whether the entry is reported
+     */
+    public boolean matches(Path relativePath, long size, long modified) {
+        return size >= minSize && size <= maxSize
+                && modified >= modifiedAfter && modified < modifiedBefore
+                && (include.isEmpty() || matchesAny(include, relativePath))
+                && !matchesAny(exclude, relativePath);
+    }
+
+    private static boolean matchesAny(List<Glob> globs, Path relativePath) {
+        for (Glob glob : globs) {
+            if (glob.matches(relativePath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Glob> compile(List<String> patterns) {
+        if (patterns == null) {
+            return List.of();
+        }
+        return patterns.stream()
+                .filter(pattern -> !pattern.isBlank())
+                .map(pattern -> new Glob(FileSystems.getDefault().getPathMatcher("glob:" + pattern), pattern.contains("/")))
+                .toList();
+    }
+
+    private record Glob(PathMatcher matcher, boolean wholePath) {
+        boolean matches(Path relativePath) {
+            return matcher.matches(wholePath ? relativePath : relativePath.getFileName());
+        }
+    }
+}
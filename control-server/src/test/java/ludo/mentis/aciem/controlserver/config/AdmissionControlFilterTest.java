@@ -0,0 +1,145 @@
+package ludo.mentis.aciem.controlserver.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.FilterChain;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControlFilterTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private AdmissionControlFilter filter(int bulkQueueSize, Duration queueTimeout) {
+        return new AdmissionControlFilter(meterRegistry, true, Duration.ofMillis(250), 4, 10, 1, bulkQueueSize,
+                queueTimeout);
+    }
+
+    private static MockHttpServletRequest request(String method, String uri) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, uri);
+        request.setAsyncSupported(true);
+        return request;
+    }
+
+    /**
+     * @return A chain that starts an asynchronous response, keeping the request in flight until it completes
+     */
+    private static FilterChain asyncChain() {
+        return (request, response) -> request.startAsync();
+    }
+
+    @Test
+    void doFilter_shouldAdmitMetadataRequestUnderLimit() throws Exception {
+        // Arrange
+        AdmissionControlFilter filter = filter(0, Duration.ofSeconds(1));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        boolean[] called = {false};
+
+        // Act
+        filter.doFilter(request("GET", "/api/files/list"), response, (req, res) -> called[0] = true);
+
+        // Assert
+        assertTrue(called[0]);
+        assertEquals(200, response.getStatus());
+        assertEquals(0, meterRegistry.get("file.admission.in-flight").tag("class", "metadata").gauge().value());
+    }
+
+    @Test
+    void doFilter_shouldShedBulkRequestWhenQueueIsFull() throws Exception {
+        // Arrange
+        AdmissionControlFilter filter = filter(0, Duration.ofMillis(1500));
+        MockHttpServletRequest download = request("GET", "/api/files/download");
+        filter.doFilter(download, new MockHttpServletResponse(), asyncChain());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        filter.doFilter(request("POST", "/api/files/upload"), response, (req, res) -> fail("Should be shed"));
+
+        // Assert
+        assertEquals(503, response.getStatus());
+        assertEquals("2", response.getHeader("Retry-After"));
+        assertEquals(1, meterRegistry.get("file.admission.rejected").tag("class", "bulk").counter().count());
+
+        // The metadata class has a limit of its own
+        boolean[] called = {false};
+        filter.doFilter(request("GET", "/api/files/list"), new MockHttpServletResponse(), (req, res) -> called[0] = true);
+        assertTrue(called[0]);
+    }
+
+    @Test
+    void doFilter_shouldAdmitQueuedRequestWhenAsyncResponseCompletes() throws Exception {
+        // Arrange
+        AdmissionControlFilter filter = filter(1, Duration.ofSeconds(10));
+        MockHttpServletRequest download = request("GET", "/api/files/download");
+        filter.doFilter(download, new MockHttpServletResponse(), asyncChain());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        CompletableFuture<Void> queued = CompletableFuture.runAsync(() -> {
+            try {
+                filter.doFilter(request("PUT", "/api/files/sessions/abc"), response, (req, res) -> { });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (meterRegistry.get("file.admission.queued").tag("class", "bulk").gauge().value() < 1) {
+            Thread.onSpinWait();
+        }
+
+        // Act
+        ((MockAsyncContext) download.getAsyncContext()).complete();
+        queued.get(5, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertEquals(0, meterRegistry.get("file.admission.in-flight").tag("class", "bulk").gauge().value());
+    }
+
+    @Test
+    void doFilter_shouldNotTakeWalkDurationAsMetadataLatency() throws Exception {
+        // Arrange
+        AdmissionControlFilter filter = new AdmissionControlFilter(meterRegistry, true, Duration.ofMillis(1), 40, 10,
+                8, 10, Duration.ofSeconds(1));
+        FilterChain slow = (req, res) -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        // Act
+        filter.doFilter(request("GET", "/api/files/tree"), new MockHttpServletResponse(), slow);
+        filter.doFilter(request("GET", "/api/files/list/stream"), new MockHttpServletResponse(), slow);
+        filter.doFilter(request("GET", "/api/files/usage"), new MockHttpServletResponse(), slow);
+        double metadataAfterWalks = meterRegistry.get("file.admission.limit").tag("class", "metadata").gauge().value();
+        double bulkAfterWalks = meterRegistry.get("file.admission.limit").tag("class", "bulk").gauge().value();
+        filter.doFilter(request("GET", "/api/files/list"), new MockHttpServletResponse(), slow);
+
+        // Assert
+        assertEquals(10, metadataAfterWalks);
+        assertEquals(2, bulkAfterWalks);
+        assertEquals(9, meterRegistry.get("file.admission.limit").tag("class", "metadata").gauge().value());
+    }
+
+    @Test
+    void doFilter_shouldSkipChangeFeedsAndOtherPaths() throws Exception {
+        // Arrange
+        AdmissionControlFilter filter = filter(0, Duration.ofSeconds(1));
+        filter.doFilter(request("GET", "/api/files/download"), new MockHttpServletResponse(), asyncChain());
+        int[] calls = {0};
+
+        // Act
+        filter.doFilter(request("GET", "/api/files/changes"), new MockHttpServletResponse(), (req, res) -> calls[0]++);
+        filter.doFilter(request("GET", "/api/admin/transfers"), new MockHttpServletResponse(), (req, res) -> calls[0]++);
+
+        // Assert
+        assertEquals(2, calls[0]);
+        assertEquals(1, meterRegistry.get("file.admission.in-flight").tag("class", "bulk").gauge().value());
+    }
+}
@@ -0,0 +1,87 @@
+package ludo.mentis.aciem.controlserver.controller;
+
+import ludo.mentis.aciem.controlserver.model.TransferDirection;
+import ludo.mentis.aciem.controlserver.model.TransferRate;
+import ludo.mentis.aciem.controlserver.service.PathValidationService;
+import ludo.mentis.aciem.controlserver.service.TransferScheduler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class AdminControllerTest {
+
+    @Mock
+    private PathValidationService pathValidationService;
+
+    @Mock
+    private TransferScheduler transferScheduler;
+
+    @InjectMocks
+    private AdminController adminController;
+
+    @Test
+    void getAllowedDirectories_shouldReturnCurrentDirectories() {
+        // Arrange
+        when(pathValidationService.getAllowedDirectories()).thenReturn(List.of(Paths.get("/data")));
+
+        // Act
+        ResponseEntity<List<String>> response = adminController.getAllowedDirectories();
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(List.of(Paths.get("/data").toString()), response.getBody());
+    }
+
+    @Test
+    void reloadAllowedDirectories_shouldReturnNewDirectories() {
+        // Arrange
+        when(pathValidationService.reload(List.of("/data", "/backup")))
+                .thenReturn(List.of(Paths.get("/data"), Paths.get("/backup")));
+
+        // Act
+        ResponseEntity<?> response = adminController.reloadAllowedDirectories(List.of("/data", "/backup"));
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(List.of(Paths.get("/data").toString(), Paths.get("/backup").toString()), response.getBody());
+    }
+
+    @Test
+    void reloadAllowedDirectories_shouldReturnBadRequestForEmptyList() {
+        // Arrange
+        when(pathValidationService.reload(List.of()))
+                .thenThrow(new IllegalArgumentException("At least one allowed directory is required"));
+
+        // Act
+        ResponseEntity<?> response = adminController.reloadAllowedDirectories(List.of());
+
+        // Assert
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals("Failed to reload allowed directories: At least one allowed directory is required", response.getBody());
+    }
+
+    @Test
+    void getTransferRates_shouldReturnRatesPerKey() {
+        // Arrange
+        List<TransferRate> rates = List.of(new TransferRate("ops", TransferDirection.DOWNLOAD, 2, 4096, 1024));
+        when(transferScheduler.rates()).thenReturn(rates);
+
+        // Act
+        ResponseEntity<List<TransferRate>> response = adminController.getTransferRates();
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(rates, response.getBody());
+    }
+}
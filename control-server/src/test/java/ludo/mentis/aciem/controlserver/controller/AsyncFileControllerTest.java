@@ -0,0 +1,126 @@
+package ludo.mentis.aciem.controlserver.controller;
+
+import ludo.mentis.aciem.controlserver.service.AsyncFileService;
+import ludo.mentis.aciem.controlserver.service.FileService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class AsyncFileControllerTest {
+
+    @Mock
+    private FileService fileService;
+
+    @Mock
+    private AsyncFileService asyncFileService;
+
+    @InjectMocks
+    private AsyncFileController asyncFileController;
+
+    @Test
+    void uploadFile_shouldStartUploadInValidatedDirectory() throws IOException {
+        // Arrange
+        Path directory = Paths.get("/uploads");
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        when(fileService.validateUploadDirectory("/uploads")).thenReturn(directory);
+
+        // Act
+        ResponseEntity<String> result = asyncFileController.uploadFile("/uploads", "data.bin", request, response);
+
+        // Assert
+        assertNull(result);
+        verify(asyncFileService).upload(directory, "data.bin", request, response);
+    }
+
+    @Test
+    void uploadFile_shouldReturnForbiddenWhenDirectoryIsNotAllowed() throws IOException {
+        // Arrange
+        when(fileService.validateUploadDirectory("/etc"))
+                .thenThrow(new IOException("Access denied: Path is not within allowed directories"));
+
+        // Act
+        ResponseEntity<String> result = asyncFileController.uploadFile("/etc", "data.bin",
+                new MockHttpServletRequest(), new MockHttpServletResponse());
+
+        // Assert
+        assertEquals(HttpStatus.FORBIDDEN, result.getStatusCode());
+        verifyNoInteractions(asyncFileService);
+    }
+
+    @Test
+    void uploadFile_shouldReturnBadRequestWhenUploadCannotStart() throws IOException {
+        // Arrange
+        when(fileService.validateUploadDirectory("/uploads")).thenReturn(Paths.get("/uploads"));
+        doThrow(new IOException("Disk full")).when(asyncFileService)
+                .upload(any(Path.class), any(), any(), any());
+
+        // Act
+        ResponseEntity<String> result = asyncFileController.uploadFile("/uploads", "data.bin",
+                new MockHttpServletRequest(), new MockHttpServletResponse());
+
+        // Assert
+        assertEquals(HttpStatus.BAD_REQUEST, result.getStatusCode());
+        assertEquals("Failed to upload file: Disk full", result.getBody());
+    }
+
+    @Test
+    void downloadFile_shouldStartDownloadOfValidatedFile() throws IOException {
+        // Arrange
+        Path file = Paths.get("/data/file.bin");
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        when(fileService.downloadFile("/data/file.bin")).thenReturn(new FileSystemResource(file));
+
+        // Act
+        asyncFileController.downloadFile("/data/file.bin", request, response);
+
+        // Assert
+        verify(asyncFileService).download(file, request, response);
+    }
+
+    @Test
+    void downloadFile_shouldReturnForbiddenWhenFileIsNotAllowed() throws IOException {
+        // Arrange
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        when(fileService.downloadFile("/etc/passwd"))
+                .thenThrow(new IOException("Access denied: Path is not within allowed directories"));
+
+        // Act
+        asyncFileController.downloadFile("/etc/passwd", new MockHttpServletRequest(), response);
+
+        // Assert
+        assertEquals(HttpStatus.FORBIDDEN.value(), response.getStatus());
+        verifyNoInteractions(asyncFileService);
+    }
+
+    @Test
+    void downloadFile_shouldReturnNotFoundWhenFileIsMissing() throws IOException {
+        // Arrange
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        when(fileService.downloadFile("/data/missing.bin"))
+                .thenThrow(new IOException("File not found: /data/missing.bin"));
+
+        // Act
+        asyncFileController.downloadFile("/data/missing.bin", new MockHttpServletRequest(), response);
+
+        // Assert
+        assertEquals(HttpStatus.NOT_FOUND.value(), response.getStatus());
+    }
+}
@@ -1,29 +1,57 @@
 package ludo.mentis.aciem.controlserver.controller;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import ludo.mentis.aciem.controlserver.model.ChangeEvent;
+import ludo.mentis.aciem.controlserver.model.ChangeType;
+import ludo.mentis.aciem.controlserver.model.DirectoryUsage;
 import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.model.SearchType;
+import ludo.mentis.aciem.controlserver.service.ChangeFeedService;
+import ludo.mentis.aciem.controlserver.service.DownloadService;
 import ludo.mentis.aciem.controlserver.service.FileService;
+import ludo.mentis.aciem.controlserver.service.SearchIndexService;
+import ludo.mentis.aciem.controlserver.service.TransferScheduler;
+import ludo.mentis.aciem.controlserver.service.TreeWalkService;
+import ludo.mentis.aciem.controlserver.service.UsageService;
+import ludo.mentis.aciem.controlserver.util.BinaryListing;
+import ludo.mentis.aciem.controlserver.util.ETags;
+import ludo.mentis.aciem.controlserver.util.ListingCursor;
+import ludo.mentis.aciem.controlserver.util.ListingQuery;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockMultipartFile;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -32,6 +60,30 @@ class FileControllerTest {
     @Mock
     private FileService fileService;
 
+    @Mock
+    private DownloadService downloadService;
+
+    @Mock
+    private TreeWalkService treeWalkService;
+
+    @Mock
+    private SearchIndexService searchIndexService;
+
+    @Mock
+    private UsageService usageService;
+
+    @Mock
+    private ChangeFeedService changeFeedService;
+
+    @Mock
+    private TransferScheduler transferScheduler;
+
+    @Spy
+    private ObjectMapper objectMapper = new ObjectMapper();
+
+    @Spy
+    private SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
     @InjectMocks
     private FileController fileController;
 
@@ -54,8 +106,16 @@ class FileControllerTest {
     @Test
     void uploadFile_shouldReturnSuccessResponse() throws IOException {
         // Arrange
-        Path savedPath = Paths.get(testFilePath);
-        when(fileService.uploadFile(any(MultipartFile.class), anyString())).thenReturn(savedPath);
+        Path directory = Paths.get(testDirectory);
+        when(fileService.validateUploadDirectory(testDirectory)).thenReturn(directory);
+        when(transferScheduler.shape(any(InputStream.class), eq("test.txt")))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+        when(fileService.uploadFile(any(InputStream.class), eq("test.txt"), eq(directory)))
+                .thenAnswer(invocation -> {
+                    InputStream content = invocation.getArgument(0);
+                    assertEquals("Test content", new String(content.readAllBytes()));
+                    return Paths.get(testFilePath);
+                });
 
         // Act
         ResponseEntity<String> response = fileController.uploadFile(testFile, testDirectory);
@@ -63,13 +123,17 @@ class FileControllerTest {
         // Assert
         assertEquals(HttpStatus.OK, response.getStatusCode());
         assertTrue(response.getBody() != null && response.getBody().contains("File uploaded successfully"));
-        verify(fileService).uploadFile(testFile, testDirectory);
+        verify(transferScheduler).shape(any(InputStream.class), eq("test.txt"));
     }
 
     @Test
     void uploadFile_shouldReturnErrorResponseWhenUploadFails() throws IOException {
         // Arrange
-        when(fileService.uploadFile(any(MultipartFile.class), anyString()))
+        Path directory = Paths.get(testDirectory);
+        when(fileService.validateUploadDirectory(testDirectory)).thenReturn(directory);
+        when(transferScheduler.shape(any(InputStream.class), eq("test.txt")))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+        when(fileService.uploadFile(any(InputStream.class), eq("test.txt"), eq(directory)))
                 .thenThrow(new IOException("Upload failed"));
 
         // Act
@@ -78,13 +142,12 @@ class FileControllerTest {
         // Assert
         assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
         assertTrue(response.getBody() != null && response.getBody().contains("Failed to upload file"));
-        verify(fileService).uploadFile(testFile, testDirectory);
     }
 
     @Test
     void uploadFile_shouldReturnForbiddenWhenDirectoryIsNotAllowed() throws IOException {
         // Arrange
-        when(fileService.uploadFile(any(MultipartFile.class), anyString()))
+        when(fileService.validateUploadDirectory(testDirectory))
                 .thenThrow(new IOException("Access denied: Path is not within allowed directories"));
 
         // Act
@@ -93,55 +156,160 @@ class FileControllerTest {
         // Assert
         assertEquals(HttpStatus.FORBIDDEN, response.getStatusCode());
         assertTrue(response.getBody() != null && response.getBody().contains("Access denied"));
-        verify(fileService).uploadFile(testFile, testDirectory);
+        verifyNoInteractions(transferScheduler);
+    }
+
+    private static MockHttpServletRequest streamingRequest(String body) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/files/upload/stream");
+        request.setContentType("multipart/form-data; boundary=xyz");
+        request.setContent(body.getBytes());
+        return request;
+    }
+
+    @Test
+    void uploadFileStream_shouldValidateDirectoryThenStreamFile() throws IOException {
+        // Arrange
+        String body = "--xyz\r\n"
+                + "Content-Disposition: form-data; name=\"directory\"\r\n\r\n"
+                + testDirectory + "\r\n"
+                + "--xyz\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"test.txt\"\r\n\r\n"
+                + "Test content\r\n"
+                + "--xyz--\r\n";
+        Path directory = Paths.get(testDirectory);
+        when(fileService.validateUploadDirectory(testDirectory)).thenReturn(directory);
+        when(transferScheduler.shape(any(InputStream.class), eq("test.txt")))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+        when(fileService.uploadFile(any(InputStream.class), eq("test.txt"), eq(directory)))
+                .thenAnswer(invocation -> {
+                    InputStream content = invocation.getArgument(0);
+                    assertEquals("Test content", new String(content.readAllBytes()));
+                    return Paths.get(testFilePath);
+                });
+
+        // Act
+        ResponseEntity<String> response = fileController.uploadFileStream(streamingRequest(body));
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(response.getBody() != null && response.getBody().contains("File uploaded successfully"));
+    }
+
+    @Test
+    void uploadFileStream_shouldRejectFileBeforeDirectory() throws IOException {
+        // Arrange
+        String body = "--xyz\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"test.txt\"\r\n\r\n"
+                + "Test content\r\n"
+                + "--xyz--\r\n";
+
+        // Act
+        ResponseEntity<String> response = fileController.uploadFileStream(streamingRequest(body));
+
+        // Assert
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        verify(fileService, never()).uploadFile(any(InputStream.class), anyString(), any(Path.class));
     }
 
     @Test
-    void downloadFile_shouldReturnFileResource() throws IOException {
+    void uploadFileStream_shouldReturnForbiddenBeforeReadingFileWhenDirectoryIsNotAllowed() throws IOException {
+        // Arrange
+        String body = "--xyz\r\n"
+                + "Content-Disposition: form-data; name=\"directory\"\r\n\r\n"
+                + testDirectory + "\r\n"
+                + "--xyz\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"test.txt\"\r\n\r\n"
+                + "Test content\r\n"
+                + "--xyz--\r\n";
+        when(fileService.validateUploadDirectory(testDirectory))
+                .thenThrow(new IOException("Access denied: Path is not within allowed directories"));
+
+        // Act
+        ResponseEntity<String> response = fileController.uploadFileStream(streamingRequest(body));
+
+        // Assert
+        assertEquals(HttpStatus.FORBIDDEN, response.getStatusCode());
+        verify(fileService, never()).uploadFile(any(InputStream.class), anyString(), any(Path.class));
+    }
+
+    @Test
+    void downloadFile_shouldWriteFileResource() throws IOException {
         // Arrange
         Resource mockResource = mock(Resource.class);
-        lenient().when(mockResource.exists()).thenReturn(true);
-        lenient().when(mockResource.isReadable()).thenReturn(true);
-        when(mockResource.getFilename()).thenReturn("test.txt");
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/files/download");
+        MockHttpServletResponse response = new MockHttpServletResponse();
 
         when(fileService.downloadFile(testFilePath)).thenReturn(mockResource);
+        doAnswer(invocation -> {
+            invocation.<DownloadService.Completion>getArgument(3).complete(42, null);
+            return null;
+        }).when(downloadService).writeDownload(eq(mockResource), eq(request), eq(response), any());
 
         // Act
-        ResponseEntity<Resource> response = fileController.downloadFile(testFilePath);
+        fileController.downloadFile(testFilePath, request, response);
 
         // Assert
-        assertEquals(HttpStatus.OK, response.getStatusCode());
-        assertEquals(mockResource, response.getBody());
-        assertNotNull(response.getHeaders().getContentDisposition());
-        assertTrue(response.getHeaders().getContentDisposition().toString().contains("test.txt"));
         verify(fileService).downloadFile(testFilePath);
+        verify(downloadService).writeDownload(eq(mockResource), eq(request), eq(response), any());
+        assertEquals(42, meterRegistry.get("file.transferred").tag("direction", "download").counter().count());
+    }
+
+    @Test
+    void downloadFile_shouldTimeDownloadUntilItsCompletion() throws Exception {
+        // Arrange
+        Resource mockResource = mock(Resource.class);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/files/download");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        when(fileService.downloadFile(testFilePath)).thenReturn(mockResource);
+        ArgumentCaptor<DownloadService.Completion> completion = ArgumentCaptor.forClass(DownloadService.Completion.class);
+
+        // Act
+        fileController.downloadFile(testFilePath, request, response);
+        Timer timer = meterRegistry.get("file.operations").tags("operation", "download", "outcome", "success").timer();
+        long countBeforeCompletion = timer.count();
+        Thread.sleep(50);
+        verify(downloadService).writeDownload(eq(mockResource), eq(request), eq(response), completion.capture());
+        completion.getValue().complete(42, null);
+
+        // Assert
+        assertEquals(0, countBeforeCompletion);
+        assertEquals(1, timer.count());
+        assertTrue(timer.totalTime(TimeUnit.MILLISECONDS) >= 50);
+        assertEquals(0, meterRegistry.get("file.operations.active").tag("operation", "download").gauge().value());
+        assertEquals(42, meterRegistry.get("file.transferred").tag("direction", "download").counter().count());
     }
 
     @Test
     void downloadFile_shouldReturnNotFoundWhenDownloadFails() throws IOException {
         // Arrange
+        MockHttpServletResponse response = new MockHttpServletResponse();
         when(fileService.downloadFile(testFilePath)).thenThrow(new IOException("File not found"));
 
         // Act
-        ResponseEntity<Resource> response = fileController.downloadFile(testFilePath);
+        fileController.downloadFile(testFilePath, new MockHttpServletRequest(), response);
 
         // Assert
-        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND.value(), response.getStatus());
         verify(fileService).downloadFile(testFilePath);
+        verifyNoInteractions(downloadService);
     }
 
     @Test
     void downloadFile_shouldReturnForbiddenWhenFilePathIsNotAllowed() throws IOException {
         // Arrange
+        MockHttpServletResponse response = new MockHttpServletResponse();
         when(fileService.downloadFile(testFilePath))
                 .thenThrow(new IOException("Access denied: Path is not within allowed directories"));
 
         // Act
-        ResponseEntity<Resource> response = fileController.downloadFile(testFilePath);
+        fileController.downloadFile(testFilePath, new MockHttpServletRequest(), response);
 
         // Assert
-        assertEquals(HttpStatus.FORBIDDEN, response.getStatusCode());
+        assertEquals(HttpStatus.FORBIDDEN.value(), response.getStatus());
         verify(fileService).downloadFile(testFilePath);
+        verifyNoInteractions(downloadService);
+        assertEquals(1, meterRegistry.get("file.operations").tags("operation", "download", "outcome", "denied")
+                .timer().count());
     }
 
     @Test
@@ -156,21 +324,68 @@ class FileControllerTest {
         when(fileService.listFiles(testDirectory)).thenReturn(mockFiles);
 
         // Act
-        ResponseEntity<?> response = fileController.listFiles(testDirectory);
+        ResponseEntity<?> response = fileController.listFiles(testDirectory, null, null, null, null, null, null, null, null, null, null);
 
         // Assert
         assertEquals(HttpStatus.OK, response.getStatusCode());
         assertEquals(mockFiles, response.getBody());
+        assertEquals(ETags.forListing(mockFiles), response.getHeaders().getETag());
         verify(fileService).listFiles(testDirectory);
     }
 
+    @Test
+    void listFiles_shouldSelectEntriesOnServerWhenQueried() throws IOException {
+        // Arrange
+        List<FileInfo> largest = List.of(new FileInfo("big.bin", false, 1000, 1000));
+        when(fileService.listFiles(eq(testDirectory), any(ListingQuery.class))).thenReturn(largest);
+
+        // Act
+        ResponseEntity<?> response = fileController.listFiles(testDirectory, "size", "desc", 1, null, null, null,
+                null, null, null, null);
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(largest, response.getBody());
+        verify(fileService, never()).listFiles(testDirectory);
+    }
+
+    @Test
+    void listFiles_shouldSendBinaryListingWhenPreferred() throws IOException {
+        // Arrange
+        List<FileInfo> mockFiles = List.of(new FileInfo("file1.txt", false, 100, 1000));
+        when(fileService.listFiles(testDirectory)).thenReturn(mockFiles);
+
+        // Act
+        ResponseEntity<?> response = fileController.listFiles(testDirectory, null, null, null, null, null, null, null,
+                null, null, BinaryListing.MEDIA_TYPE_VALUE + ", application/json;q=0.5");
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(BinaryListing.MEDIA_TYPE, response.getHeaders().getContentType());
+        assertEquals(mockFiles, response.getBody());
+        assertNotEquals(ETags.forListing(mockFiles), response.getHeaders().getETag());
+        assertEquals(List.of("Accept"), response.getHeaders().getVary());
+    }
+
+    @Test
+    void listFiles_shouldReturnBadRequestForInvalidQuery() throws IOException {
+        // Act & Assert
+        assertEquals(HttpStatus.BAD_REQUEST, fileController.listFiles(testDirectory, "owner", null, null, null, null,
+                null, null, null, null, null).getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, fileController.listFiles(testDirectory, "size", "up", null, null, null,
+                null, null, null, null, null).getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, fileController.listFiles(testDirectory, null, null, 0, null, null,
+                null, null, null, null, null).getStatusCode());
+        verify(fileService, never()).listFiles(anyString(), any(ListingQuery.class));
+    }
+
     @Test
     void listFiles_shouldReturnErrorResponseWhenListingFails() throws IOException {
         // Arrange
         when(fileService.listFiles(testDirectory)).thenThrow(new IOException("Directory not found"));
 
         // Act
-        ResponseEntity<?> response = fileController.listFiles(testDirectory);
+        ResponseEntity<?> response = fileController.listFiles(testDirectory, null, null, null, null, null, null, null, null, null, null);
 
         // Assert
         assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
@@ -185,11 +400,297 @@ class FileControllerTest {
                 .thenThrow(new IOException("Access denied: Path is not within allowed directories"));
 
         // Act
-        ResponseEntity<?> response = fileController.listFiles(testDirectory);
+        ResponseEntity<?> response = fileController.listFiles(testDirectory, null, null, null, null, null, null, null, null, null, null);
 
         // Assert
         assertEquals(HttpStatus.FORBIDDEN, response.getStatusCode());
         assertTrue(response.getBody() != null && response.getBody().toString().contains("Access denied"));
         verify(fileService).listFiles(testDirectory);
     }
+
+    @Test
+    void streamFiles_shouldWriteEntriesAndNextCursor() throws IOException {
+        // Arrange
+        Path directory = Paths.get(testDirectory);
+        when(fileService.validateListDirectory(testDirectory)).thenReturn(directory);
+        when(fileService.listFiles(eq(directory), eq("a.txt"), eq(2), any())).thenAnswer(invocation -> {
+            FileService.ListingConsumer consumer = invocation.getArgument(3);
+            consumer.accept(new FileInfo("b.txt", false, 1, 1000));
+            consumer.accept(new FileInfo("c.txt", false, 2, 2000));
+            return "c.txt";
+        });
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        fileController.streamFiles(testDirectory, 2, ListingCursor.encode("a.txt"), response);
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertEquals(MediaType.APPLICATION_JSON_VALUE, response.getContentType());
+        assertEquals("{\"files\":[{\"name\":\"b.txt\",\"directory\":false,\"size\":1,\"lastModified\":1000},"
+                + "{\"name\":\"c.txt\",\"directory\":false,\"size\":2,\"lastModified\":2000}],"
+                + "\"nextCursor\":\"" + ListingCursor.encode("c.txt") + "\"}", response.getContentAsString());
+        assertEquals(1, meterRegistry.get("file.operations").tags("operation", "list-stream", "outcome", "success")
+                .timer().count());
+    }
+
+    @Test
+    void streamFiles_shouldNotCompleteJsonWhenListingFails() throws IOException {
+        // Arrange
+        Path directory = Paths.get(testDirectory);
+        when(fileService.validateListDirectory(testDirectory)).thenReturn(directory);
+        when(fileService.listFiles(eq(directory), isNull(), eq(0), any())).thenAnswer(invocation -> {
+            FileService.ListingConsumer consumer = invocation.getArgument(3);
+            consumer.accept(new FileInfo("b.txt", false, 1, 1000));
+            throw new IOException("Input/output error");
+        });
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> fileController.streamFiles(testDirectory, 0, null, response));
+        assertTrue(response.getContentAsString().startsWith("{\"files\":[{\"name\":\"b.txt\""));
+        assertThrows(JsonProcessingException.class, () -> objectMapper.readTree(response.getContentAsString()));
+    }
+
+    @Test
+    void streamFiles_shouldReturnBadRequestForInvalidCursor() throws IOException {
+        // Arrange
+        when(fileService.validateListDirectory(testDirectory)).thenReturn(Paths.get(testDirectory));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        fileController.streamFiles(testDirectory, 10, "not a cursor!", response);
+
+        // Assert
+        assertEquals(400, response.getStatus());
+        verify(fileService, never()).listFiles(any(Path.class), any(), anyInt(), any());
+    }
+
+    @Test
+    void streamFiles_shouldReturnForbiddenWhenDirectoryIsNotAllowed() throws IOException {
+        // Arrange
+        when(fileService.validateListDirectory(testDirectory))
+                .thenThrow(new IOException("Access denied: Path is not within allowed directories"));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        fileController.streamFiles(testDirectory, 0, null, response);
+
+        // Assert
+        assertEquals(403, response.getStatus());
+        assertTrue(response.getContentAsString().contains("Access denied"));
+        assertEquals(1, meterRegistry.get("file.operations").tags("operation", "list-stream", "outcome", "denied")
+                .timer().count());
+    }
+
+    @Test
+    void listTree_shouldWriteEntriesAsJsonArray() throws IOException {
+        // Arrange
+        Path directory = Paths.get(testDirectory);
+        when(fileService.validateListDirectory(testDirectory)).thenReturn(directory);
+        when(treeWalkService.walk(eq(directory), any(), any())).thenAnswer(invocation -> {
+            FileService.ListingConsumer consumer = invocation.getArgument(2);
+            consumer.accept(new FileInfo("logs/app.log", false, 10, 1000));
+            return 1L;
+        });
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        fileController.listTree(testDirectory, 3, List.of("*.log"), null, null, null, null, null, null, response);
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertEquals("[{\"name\":\"logs/app.log\",\"directory\":false,\"size\":10,\"lastModified\":1000}]",
+                response.getContentAsString());
+    }
+
+    @Test
+    void listTree_shouldWriteBinaryListingWhenPreferred() throws IOException {
+        // Arrange
+        Path directory = Paths.get(testDirectory);
+        FileInfo entry = new FileInfo("logs/app.log", false, 10, 1000);
+        when(fileService.validateListDirectory(testDirectory)).thenReturn(directory);
+        when(treeWalkService.walk(eq(directory), any(), any())).thenAnswer(invocation -> {
+            FileService.ListingConsumer consumer = invocation.getArgument(2);
+            consumer.accept(entry);
+            return 1L;
+        });
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        fileController.listTree(testDirectory, null, null, null, null, null, null, null,
+                BinaryListing.MEDIA_TYPE_VALUE, response);
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertEquals(BinaryListing.MEDIA_TYPE_VALUE, response.getContentType());
+        assertEquals(List.of(entry), BinaryListing.read(new ByteArrayInputStream(response.getContentAsByteArray())));
+    }
+
+    @Test
+    void listTree_shouldReturnBadRequestForMalformedPattern() throws IOException {
+        // Arrange
+        when(fileService.validateListDirectory(testDirectory)).thenReturn(Paths.get(testDirectory));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        fileController.listTree(testDirectory, null, List.of("a[b"), null, null, null, null, null, null, response);
+
+        // Assert
+        assertEquals(400, response.getStatus());
+        verify(treeWalkService, never()).walk(any(), any(), any());
+    }
+
+    @Test
+    void searchFiles_shouldReturnMatchingFiles() {
+        // Arrange
+        List<FileInfo> files = List.of(new FileInfo("/data/logs/app.log", false, 10, 1000));
+        when(searchIndexService.search(SearchType.GLOB, "*.log", 50)).thenReturn(files);
+
+        // Act
+        ResponseEntity<?> response = fileController.searchFiles("*.log", "glob", 50, null);
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(files, response.getBody());
+    }
+
+    @Test
+    void searchFiles_shouldReturnServiceUnavailableWhileIndexIsBuilt() {
+        // Arrange
+        when(searchIndexService.search(SearchType.SUBSTRING, "app", 100))
+                .thenThrow(new IllegalStateException("Search index is not ready"));
+
+        // Act
+        ResponseEntity<?> response = fileController.searchFiles("app", "substring", 100, null);
+
+        // Assert
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+    }
+
+    @Test
+    void searchFiles_shouldReturnBadRequestForInvalidParameters() {
+        // Arrange
+        when(searchIndexService.search(SearchType.GLOB, "a[b", 100))
+                .thenThrow(new IllegalArgumentException("Missing ']'"));
+
+        // Act & Assert
+        assertEquals(HttpStatus.BAD_REQUEST, fileController.searchFiles("app", "fuzzy", 100, null).getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, fileController.searchFiles("app", "prefix", 0, null).getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, fileController.searchFiles("a[b", "glob", 100, null).getStatusCode());
+    }
+
+    @Test
+    void getUsage_shouldReturnUsageOfDirectory() throws IOException {
+        // Arrange
+        Path dirPath = Paths.get(testDirectory);
+        DirectoryUsage usage = new DirectoryUsage(testDirectory, 300, 2, 1,
+                List.of(new FileInfo("logs", true, 200, 1000), new FileInfo("test.txt", false, 100, 1000)));
+        when(fileService.validateListDirectory(testDirectory)).thenReturn(dirPath);
+        when(usageService.usage(dirPath)).thenReturn(usage);
+
+        // Act
+        ResponseEntity<?> response = fileController.getUsage(testDirectory);
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(usage, response.getBody());
+    }
+
+    @Test
+    void getUsage_shouldReturnForbiddenWhenAccessDenied() throws IOException {
+        // Arrange
+        when(fileService.validateListDirectory(testDirectory))
+                .thenThrow(new IOException("Access denied: Directory is not in the allowed list"));
+
+        // Act
+        ResponseEntity<?> response = fileController.getUsage(testDirectory);
+
+        // Assert
+        assertEquals(HttpStatus.FORBIDDEN, response.getStatusCode());
+        verify(usageService, never()).usage(any());
+    }
+
+    @Test
+    void getUsage_shouldReturnBadRequestWhenWalkFails() throws IOException {
+        // Arrange
+        Path dirPath = Paths.get(testDirectory);
+        when(fileService.validateListDirectory(testDirectory)).thenReturn(dirPath);
+        when(usageService.usage(dirPath)).thenThrow(new IOException("Directory vanished"));
+
+        // Act
+        ResponseEntity<?> response = fileController.getUsage(testDirectory);
+
+        // Assert
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals("Failed to get usage: Directory vanished", response.getBody());
+    }
+
+    @Test
+    void streamChanges_shouldSubscribeAfterLastEventId() throws IOException {
+        // Arrange
+        Path dirPath = Paths.get(testDirectory);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ChangeFeedService.Subscription subscription = mock(ChangeFeedService.Subscription.class);
+        when(fileService.validateListDirectory(testDirectory)).thenReturn(dirPath);
+        when(changeFeedService.subscribe(eq(dirPath), eq(42L), any())).thenReturn(subscription);
+
+        // Act
+        SseEmitter emitter = fileController.streamChanges(testDirectory, 7L, "42", response);
+
+        // Assert
+        assertNotNull(emitter);
+        verify(changeFeedService).subscribe(eq(dirPath), eq(42L), any());
+    }
+
+    @Test
+    void streamChanges_shouldAskForResetOnMalformedLastEventId() throws IOException {
+        // Arrange
+        Path dirPath = Paths.get(testDirectory);
+        when(fileService.validateListDirectory(testDirectory)).thenReturn(dirPath);
+        when(changeFeedService.subscribe(eq(dirPath), eq(-1L), any()))
+                .thenReturn(mock(ChangeFeedService.Subscription.class));
+
+        // Act
+        SseEmitter emitter = fileController.streamChanges(testDirectory, null, "not-a-number",
+                new MockHttpServletResponse());
+
+        // Assert
+        assertNotNull(emitter);
+    }
+
+    @Test
+    void streamChanges_shouldSendEventsWithSequenceAsId() throws IOException {
+        // Arrange
+        Path dirPath = Paths.get(testDirectory);
+        when(fileService.validateListDirectory(testDirectory)).thenReturn(dirPath);
+        when(changeFeedService.subscribe(eq(dirPath), isNull(), any())).thenAnswer(invocation -> {
+            ChangeFeedService.Subscriber subscriber = invocation.getArgument(2);
+            // Sent before the emitter is handed to Spring MVC, so the events are buffered
+            subscriber.onEvent(new ChangeEvent(5, ChangeType.CREATE, "new.txt", 1000));
+            return mock(ChangeFeedService.Subscription.class);
+        });
+
+        // Act
+        SseEmitter emitter = fileController.streamChanges(testDirectory, null, null, new MockHttpServletResponse());
+
+        // Assert
+        assertNotNull(emitter);
+    }
+
+    @Test
+    void streamChanges_shouldReturnForbiddenWhenAccessDenied() throws IOException {
+        // Arrange
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        when(fileService.validateListDirectory(testDirectory))
+                .thenThrow(new IOException("Access denied: Directory is not in the allowed list"));
+
+        // Act
+        SseEmitter emitter = fileController.streamChanges(testDirectory, null, null, response);
+
+        // Assert
+        assertNull(emitter);
+        assertEquals(403, response.getStatus());
+        verify(changeFeedService, never()).subscribe(any(), any(), any());
+    }
 }
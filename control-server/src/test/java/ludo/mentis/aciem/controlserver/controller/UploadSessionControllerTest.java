@@ -0,0 +1,132 @@
+package ludo.mentis.aciem.controlserver.controller;
+
+import ludo.mentis.aciem.controlserver.model.ByteRange;
+import ludo.mentis.aciem.controlserver.model.UploadSession;
+import ludo.mentis.aciem.controlserver.service.TransferScheduler;
+import ludo.mentis.aciem.controlserver.service.UploadSessionService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class UploadSessionControllerTest {
+
+    @Mock
+    private UploadSessionService uploadSessionService;
+
+    @Mock
+    private TransferScheduler transferScheduler;
+
+    @InjectMocks
+    private UploadSessionController uploadSessionController;
+
+    private final UploadSession session = new UploadSession("abc", "/uploads", "data.bin", 10,
+            List.of(new ByteRange(0, 10)), 10);
+
+    @Test
+    void createSession_shouldReturnCreatedSession() throws IOException {
+        // Arrange
+        when(uploadSessionService.createSession("/uploads", "data.bin", 10)).thenReturn(session);
+
+        // Act
+        ResponseEntity<?> response = uploadSessionController.createSession("/uploads", "data.bin", 10);
+
+        // Assert
+        assertEquals(HttpStatus.CREATED, response.getStatusCode());
+        assertEquals(session, response.getBody());
+        assertEquals("/api/files/sessions/abc", String.valueOf(response.getHeaders().getLocation()));
+    }
+
+    @Test
+    void createSession_shouldReturnForbiddenWhenDirectoryIsNotAllowed() throws IOException {
+        // Arrange
+        when(uploadSessionService.createSession("/uploads", "data.bin", 10))
+                .thenThrow(new IOException("Access denied: Path is not within allowed directories"));
+
+        // Act
+        ResponseEntity<?> response = uploadSessionController.createSession("/uploads", "data.bin", 10);
+
+        // Assert
+        assertEquals(HttpStatus.FORBIDDEN, response.getStatusCode());
+    }
+
+    @Test
+    void writeChunk_shouldReturnUpdatedSession() throws IOException {
+        // Arrange
+        InputStream content = new ByteArrayInputStream(new byte[10]);
+        when(uploadSessionService.getSession("abc")).thenReturn(session);
+        when(transferScheduler.shape(content, session.fileName())).thenReturn(content);
+        when(uploadSessionService.writeChunk(eq("abc"), eq(0L), any(InputStream.class))).thenReturn(session);
+
+        // Act
+        ResponseEntity<?> response = uploadSessionController.writeChunk("abc", 0, content);
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(session, response.getBody());
+        verify(uploadSessionService).writeChunk("abc", 0, content);
+    }
+
+    @Test
+    void getSession_shouldReturnNotFoundForUnknownSession() throws IOException {
+        // Arrange
+        when(uploadSessionService.getSession("missing"))
+                .thenThrow(new IOException("Upload session not found: missing"));
+
+        // Act
+        ResponseEntity<?> response = uploadSessionController.getSession("missing");
+
+        // Assert
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
+
+    @Test
+    void commit_shouldReturnSavedPath() throws IOException {
+        // Arrange
+        when(uploadSessionService.commit("abc")).thenReturn(Paths.get("/uploads/data.bin"));
+
+        // Act
+        ResponseEntity<?> response = uploadSessionController.commit("abc");
+
+        // Assert
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(String.valueOf(response.getBody()).contains("File uploaded successfully"));
+    }
+
+    @Test
+    void commit_shouldReturnBadRequestWhenSessionIsIncomplete() throws IOException {
+        // Arrange
+        when(uploadSessionService.commit("abc")).thenThrow(new IOException("Upload session is incomplete"));
+
+        // Act
+        ResponseEntity<?> response = uploadSessionController.commit("abc");
+
+        // Assert
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    void abort_shouldReturnNoContent() throws IOException {
+        // Act
+        ResponseEntity<?> response = uploadSessionController.abort("abc");
+
+        // Assert
+        assertEquals(HttpStatus.NO_CONTENT, response.getStatusCode());
+        verify(uploadSessionService).abort("abc");
+    }
+}
@@ -1,23 +1,39 @@
 package ludo.mentis.aciem.controlserver.security;
 
+import ludo.mentis.aciem.controlserver.util.BinaryListing;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.actuate.observability.AutoConfigureObservability;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
+import java.io.ByteArrayInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SpringBootTest
 @AutoConfigureMockMvc
+@AutoConfigureObservability
+@TestPropertySource(properties = {"file.allowed-directories=${java.io.tmpdir}", "file.search.enabled=false",
+        // SHA-256 of "ops-key", "limited-key" and "admin-key"
+        "api.keys=ops:2c69bc9111c27110a9b9a7974ba3f8ac0c053c16b23a0738115ee829fbc4d57b,"
+                + "limited:f33b2500796d61f96eeef0f5331ddc40c17e434aff139f4d9e00bfe75170d87a:0.01:1,"
+                + "admin:69a5265506c94c77b787a7d7377b7685a0eff82e33920a71e7ee22cd6154953e:admin"})
 class ApiKeySecurityTest {
 
     @Autowired
@@ -58,6 +74,158 @@ class ApiKeySecurityTest {
                 .andExpect(status().isUnauthorized());
     }
 
+    @Test
+    void requestWithNamedApiKey_shouldSucceed() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/files/list")
+                .param("directory", tempDir.toString())
+                .header("X-API-KEY", "ops-key")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    void requestOverRateLimit_shouldReturnTooManyRequests() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/files/list")
+                .param("directory", tempDir.toString())
+                .header("X-API-KEY", "limited-key"))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/files/list")
+                .param("directory", tempDir.toString())
+                .header("X-API-KEY", "limited-key"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().exists("Retry-After"));
+    }
+
+    @Test
+    void reloadAllowedDirectoriesWithoutApiKey_shouldReturnUnauthorized() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.put("/api/admin/allowed-directories")
+                .content("[\"/\"]")
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    void reloadAllowedDirectoriesWithUserApiKey_shouldReturnForbidden() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.put("/api/admin/allowed-directories")
+                .content("[\"/\"]")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header("X-API-KEY", "ops-key"))
+                .andExpect(status().isForbidden());
+    }
+
+    @Test
+    void reloadAllowedDirectoriesWithAdminApiKey_shouldSucceed() throws Exception {
+        String allowedDirectory = Path.of(System.getProperty("java.io.tmpdir")).toString();
+
+        mockMvc.perform(MockMvcRequestBuilders.put("/api/admin/allowed-directories")
+                .content("[\"" + allowedDirectory.replace("\\", "\\\\") + "\"]")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header("X-API-KEY", "admin-key"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0]").value(allowedDirectory));
+    }
+
+    @Test
+    void transfersWithUserApiKey_shouldReturnForbidden() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/admin/transfers")
+                .header("X-API-KEY", "ops-key"))
+                .andExpect(status().isForbidden());
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/admin/transfers/rates")
+                .header("X-API-KEY", "ops-key"))
+                .andExpect(status().isForbidden());
+    }
+
+    @Test
+    void transferRatesWithAdminApiKey_shouldSucceed() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/admin/transfers/rates")
+                .header("X-API-KEY", "admin-key"))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    void rangeDownloadWithValidApiKey_shouldReturnPartialContent() throws Exception {
+        Path file = Files.writeString(tempDir.resolve("range.txt"), "0123456789");
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/files/download")
+                .param("filePath", file.toString())
+                .header("X-API-KEY", apiKey)
+                .header("Range", "bytes=-4"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 6-9/10"))
+                .andExpect(content().string("6789"));
+    }
+
+    @Test
+    void conditionalListWithValidApiKey_shouldReturnNotModified() throws Exception {
+        Files.writeString(tempDir.resolve("test.txt"), "test content");
+
+        String etag = mockMvc.perform(MockMvcRequestBuilders.get("/api/files/list")
+                        .param("directory", tempDir.toString())
+                        .header("X-API-KEY", apiKey))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/files/list")
+                .param("directory", tempDir.toString())
+                .header("X-API-KEY", apiKey)
+                .header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+    }
+
+    @Test
+    void binaryListWithValidApiKey_shouldNegotiateOnAccept() throws Exception {
+        Files.writeString(tempDir.resolve("a.txt"), "a");
+
+        byte[] body = mockMvc.perform(MockMvcRequestBuilders.get("/api/files/list")
+                .param("directory", tempDir.toString())
+                .header("X-API-KEY", apiKey)
+                .accept(BinaryListing.MEDIA_TYPE))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(BinaryListing.MEDIA_TYPE))
+                .andReturn().getResponse().getContentAsByteArray();
+        assertEquals("a.txt", BinaryListing.read(new ByteArrayInputStream(body)).get(0).name());
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/files/list")
+                .param("directory", tempDir.toString())
+                .header("X-API-KEY", apiKey)
+                .accept(MediaType.ALL))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(jsonPath("$[0].name").value("a.txt"));
+    }
+
+    @Test
+    void streamingListWithValidApiKey_shouldReturnPage() throws Exception {
+        Files.writeString(tempDir.resolve("a.txt"), "a");
+        Files.writeString(tempDir.resolve("b.txt"), "b");
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/files/list/stream")
+                .param("directory", tempDir.toString())
+                .param("limit", "1")
+                .header("X-API-KEY", apiKey))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.files[0].name").value("a.txt"))
+                .andExpect(jsonPath("$.nextCursor").isNotEmpty());
+    }
+
+    @Test
+    void changeFeedWithValidApiKey_shouldStartEventStream() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/files/changes")
+                .param("directory", tempDir.toString())
+                .header("X-API-KEY", apiKey))
+                .andExpect(status().isOk())
+                .andExpect(request().asyncStarted());
+    }
+
+    @Test
+    void changeFeedWithoutApiKey_shouldReturnUnauthorized() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/files/changes")
+                .param("directory", tempDir.toString()))
+                .andExpect(status().isUnauthorized());
+    }
+
     @Test
     void uploadRequestWithValidApiKey_shouldSucceed() throws Exception {
         MockMultipartFile file = new MockMultipartFile(
@@ -74,6 +242,59 @@ class ApiKeySecurityTest {
                 .andExpect(status().isOk());
     }
 
+    @Test
+    void streamingUploadRequestWithValidApiKey_shouldSucceed() throws Exception {
+        String body = "--xyz\r\n"
+                + "Content-Disposition: form-data; name=\"directory\"\r\n\r\n"
+                + tempDir + "\r\n"
+                + "--xyz\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"streamed.txt\"\r\n\r\n"
+                + "Test content\r\n"
+                + "--xyz--\r\n";
+
+        mockMvc.perform(MockMvcRequestBuilders.post("/api/files/upload/stream")
+                .contentType("multipart/form-data; boundary=xyz")
+                .content(body)
+                .header("X-API-KEY", apiKey))
+                .andExpect(status().isOk());
+
+        assertEquals("Test content", Files.readString(tempDir.resolve("streamed.txt")));
+    }
+
+    @Test
+    void prometheusEndpointWithAdminApiKey_shouldExposeFileMetrics() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/files/list")
+                .param("directory", tempDir.toString())
+                .header("X-API-KEY", "invalid-api-key"))
+                .andExpect(status().isUnauthorized());
+        mockMvc.perform(MockMvcRequestBuilders.get("/api/files/list")
+                .param("directory", tempDir.toString())
+                .header("X-API-KEY", apiKey))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/actuator/prometheus")
+                .header("X-API-KEY", "admin-key"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString(
+                        "file_operations_seconds_bucket{operation=\"list\",outcome=\"success\"")))
+                .andExpect(content().string(containsString("file_path_validation_seconds_count{result=\"allowed\"}")))
+                .andExpect(content().string(containsString("api_requests_total{key=\"none\",outcome=\"unauthorized\"}")))
+                .andExpect(content().string(containsString("http_server_requests_seconds_bucket")));
+    }
+
+    @Test
+    void prometheusEndpointWithoutApiKey_shouldReturnUnauthorized() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/actuator/prometheus"))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    void metricsEndpointWithUserApiKey_shouldReturnForbidden() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.get("/actuator/metrics")
+                .header("X-API-KEY", apiKey))
+                .andExpect(status().isForbidden());
+    }
+
     @Test
     void actuatorEndpoint_shouldBeAccessibleWithoutApiKey() throws Exception {
         mockMvc.perform(MockMvcRequestBuilders.get("/actuator/health")
@@ -0,0 +1,74 @@
+package ludo.mentis.aciem.controlserver.security;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ApiKeyStoreTest {
+
+    // SHA-256 of "ops-key"
+    private static final String OPS_HASH = "2c69bc9111c27110a9b9a7974ba3f8ac0c053c16b23a0738115ee829fbc4d57b";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void find_shouldMatchPlainAndHashedKeys() {
+        // Arrange
+        ApiKeyStore store = ApiKeyStore.of("plain-key", false, "ops:" + OPS_HASH, 0, 0, meterRegistry);
+
+        // Act & Assert
+        assertEquals("default", store.find("plain-key").name());
+        assertEquals("ops", store.find("ops-key").name());
+        assertEquals("ops", store.find("ops-key").authentication().getName());
+        assertNull(store.find("ops-kez"));
+        assertNull(store.find("ops-key-é"));
+        assertEquals(2, meterRegistry.get("api.requests").tag("outcome", "unauthorized").counter().count());
+    }
+
+    @Test
+    void tryAcquire_shouldEnforcePerKeyLimitAndCountOutcomes() {
+        // Arrange
+        ApiKeyStore store = ApiKeyStore.of("plain-key", false, "ops:" + OPS_HASH + ":1:2", 0, 0, meterRegistry);
+        ApiKeyStore.ApiKey ops = store.find("ops-key");
+
+        // Act
+        long first = ops.tryAcquire();
+        long second = ops.tryAcquire();
+        long third = ops.tryAcquire();
+
+        // Assert
+        assertEquals(0, first);
+        assertEquals(0, second);
+        assertTrue(third > 0);
+        assertEquals(0, store.find("plain-key").tryAcquire());
+        assertEquals(2, meterRegistry.get("api.requests").tags("key", "ops", "outcome", "allowed").counter().count());
+        assertEquals(1, meterRegistry.get("api.requests").tags("key", "ops", "outcome", "limited").counter().count());
+    }
+
+    @Test
+    void of_shouldGrantAdminRoleToMarkedKeysOnly() {
+        // Arrange
+        ApiKeyStore store = ApiKeyStore.of("plain-key", true, "ops:" + OPS_HASH + ":1:admin", 0, 0, meterRegistry);
+        ApiKeyStore users = ApiKeyStore.of("plain-key", false, "ops:" + OPS_HASH + ":1", 0, 0, meterRegistry);
+
+        // Act & Assert
+        assertTrue(store.find("plain-key").isAdmin());
+        assertTrue(store.find("ops-key").isAdmin());
+        assertTrue(store.find("ops-key").authentication().getAuthorities().stream()
+                .anyMatch(authority -> authority.getAuthority().equals("ROLE_ADMIN")));
+        assertFalse(users.find("plain-key").isAdmin());
+        assertFalse(users.find("ops-key").isAdmin());
+        assertTrue(users.find("ops-key").authentication().getAuthorities().stream()
+                .noneMatch(authority -> authority.getAuthority().equals("ROLE_ADMIN")));
+    }
+
+    @Test
+    void of_shouldRejectMalformedAndDuplicateKeys() {
+        // Act & Assert
+        assertThrows(IllegalArgumentException.class, () -> ApiKeyStore.of("", false, "ops:abc", 0, 0, meterRegistry));
+        assertThrows(IllegalArgumentException.class,
+                () -> ApiKeyStore.of("ops-key", false, "ops:" + OPS_HASH, 0, 0, meterRegistry));
+        assertTrue(ApiKeyStore.of("", false, " ", 0, 0, meterRegistry).isEmpty());
+    }
+}
@@ -0,0 +1,65 @@
+package ludo.mentis.aciem.controlserver.security;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+
+    private final AtomicLong now = new AtomicLong(-TimeUnit.SECONDS.toNanos(100));
+
+    @Test
+    void tryAcquire_shouldAdmitBurstThenRejectWithWait() {
+        // Arrange
+        RateLimiter limiter = new RateLimiter(10, 5, 1, now::get);
+
+        // Act
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.tryAcquire());
+        }
+        long wait = limiter.tryAcquire();
+
+        // Assert
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), wait);
+    }
+
+    @Test
+    void tryAcquire_shouldRefillAtConfiguredRate() {
+        // Arrange
+        RateLimiter limiter = new RateLimiter(10, 1, 1, now::get);
+        assertEquals(0, limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire() > 0);
+
+        // Act
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+
+        // Assert
+        assertEquals(0, limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire() > 0);
+    }
+
+    @Test
+    void tryAcquire_shouldShareBurstAcrossStripes() {
+        // Arrange
+        RateLimiter limiter = new RateLimiter(8, 8, 4, now::get);
+
+        // Act
+        int admitted = 0;
+        while (limiter.tryAcquire() == 0) {
+            admitted++;
+        }
+
+        // Assert
+        assertEquals(8, admitted);
+    }
+
+    @Test
+    void constructor_shouldRejectInvalidLimits() {
+        // Act & Assert
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(1, 0));
+    }
+}
@@ -0,0 +1,398 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+class AsyncFileServiceTest {
+
+    private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    private PathValidationService pathValidationService;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private DigestService digestService;
+    private TransferSchedulerImpl transferScheduler;
+    private AsyncFileServiceImpl asyncFileService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        MockitoAnnotations.openMocks(this);
+        when(pathValidationService.isPathAllowed(any(Path.class))).thenReturn(true);
+
+        digestService = new DigestServiceImpl(tempDir.resolve("cache").resolve("digests.cache").toString(),
+                DataSize.ofMegabytes(1), 100);
+        transferScheduler = new TransferSchedulerImpl(new SimpleMeterRegistry(), DataSize.ofBytes(0),
+                DataSize.ofBytes(0), "", DataSize.ofKilobytes(64), 1);
+        asyncFileService = newService();
+    }
+
+    @AfterEach
+    void tearDown() {
+        asyncFileService.destroy();
+        transferScheduler.destroy();
+    }
+
+    private AsyncFileServiceImpl newService() {
+        return new AsyncFileServiceImpl(pathValidationService,
+                new FileCommitServiceImpl("fsync", "", Duration.ZERO, event -> { }), digestService,
+                transferScheduler, meterRegistry, 2, DataSize.ofBytes(8));
+    }
+
+    /**
+     * Replaces the service with one whose transfers are shaped, a few bytes per grant
+     */
+    private void shaped() {
+        asyncFileService.destroy();
+        transferScheduler.destroy();
+        transferScheduler = new TransferSchedulerImpl(new SimpleMeterRegistry(), DataSize.ofKilobytes(1),
+                DataSize.ofBytes(0), "", DataSize.ofBytes(4), 1);
+        asyncFileService = newService();
+    }
+
+    private static MockHttpServletRequest asyncRequest(String method) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/api/files/async");
+        request.setAsyncSupported(true);
+        return request;
+    }
+
+    private static void awaitCompletion(MockHttpServletRequest request) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (request.isAsyncStarted() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(request.isAsyncStarted());
+    }
+
+    private static long partFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".upload")).count();
+        }
+    }
+
+    @Test
+    void upload_shouldStoreRequestBodyAcrossSeveralBuffers() throws Exception {
+        // Arrange
+        MockHttpServletRequest request = asyncRequest("POST");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        BodyInputStream in = new BodyInputStream(CONTENT.getBytes(StandardCharsets.UTF_8), 5);
+
+        // Act
+        asyncFileService.upload(tempDir, "test.txt", withBody(request, in), response);
+        awaitCompletion(request);
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertTrue(response.getContentAsString().contains("File uploaded successfully"));
+        assertEquals(CONTENT, Files.readString(tempDir.resolve("test.txt")));
+        assertEquals(0, partFiles(tempDir));
+    }
+
+    @Test
+    void upload_shouldWaitForGrantsWhenShaped() throws Exception {
+        // Arrange
+        shaped();
+        MockHttpServletRequest request = asyncRequest("POST");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        BodyInputStream in = new BodyInputStream(CONTENT.getBytes(StandardCharsets.UTF_8), 5);
+
+        // Act
+        asyncFileService.upload(tempDir, "test.txt", withBody(request, in), response);
+        awaitCompletion(request);
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertEquals(CONTENT, Files.readString(tempDir.resolve("test.txt")));
+        assertEquals(CONTENT.length(), transferScheduler.rates().get(0).bytes());
+        assertTrue(transferScheduler.streams().isEmpty());
+    }
+
+    @Test
+    void upload_shouldRejectTargetOutsideAllowedDirectories() {
+        // Arrange
+        when(pathValidationService.isPathAllowed(any(Path.class))).thenReturn(false);
+        MockHttpServletRequest request = asyncRequest("POST");
+
+        // Act & Assert
+        IOException exception = assertThrows(IOException.class, () -> asyncFileService.upload(tempDir, "test.txt",
+                request, new MockHttpServletResponse()));
+        assertTrue(exception.getMessage().contains("Access denied"));
+        assertFalse(request.isAsyncStarted());
+    }
+
+    @Test
+    void upload_shouldDiscardPartFileWhenClientFails() throws Exception {
+        // Arrange
+        MockHttpServletRequest request = asyncRequest("POST");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ServletInputStream in = new BodyInputStream(new byte[0], 1) {
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                readListener.onError(new IOException("Connection reset"));
+            }
+        };
+
+        // Act
+        asyncFileService.upload(tempDir, "test.txt", withBody(request, in), response);
+        awaitCompletion(request);
+
+        // Assert
+        assertEquals(400, response.getStatus());
+        assertFalse(Files.exists(tempDir.resolve("test.txt")));
+        assertEquals(0, partFiles(tempDir));
+        assertEquals(1, meterRegistry.get("file.operations").tags("operation", "async-upload", "outcome", "error")
+                .timer().count());
+    }
+
+    @Test
+    void download_shouldSendWholeFile() throws Exception {
+        // Arrange
+        Path file = Files.writeString(tempDir.resolve("test.txt"), CONTENT);
+        MockHttpServletRequest request = asyncRequest("GET");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        NonBlockingOutputStream out = new NonBlockingOutputStream();
+
+        // Act
+        asyncFileService.download(file, request, withOutput(response, out));
+        awaitCompletion(request);
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertEquals(CONTENT.length(), response.getContentLengthLong());
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertEquals(CONTENT, out.bytes.toString(StandardCharsets.UTF_8));
+        assertEquals(1, meterRegistry.get("file.operations").tags("operation", "async-download", "outcome", "success")
+                .timer().count());
+        assertEquals(CONTENT.length(), meterRegistry.get("file.transferred").tag("direction", "download").counter()
+                .count());
+    }
+
+    @Test
+    void download_shouldWaitForGrantsWhenShaped() throws Exception {
+        // Arrange
+        shaped();
+        Path file = Files.writeString(tempDir.resolve("test.txt"), CONTENT);
+        MockHttpServletRequest request = asyncRequest("GET");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        NonBlockingOutputStream out = new NonBlockingOutputStream();
+
+        // Act
+        asyncFileService.download(file, request, withOutput(response, out));
+        awaitCompletion(request);
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertEquals(CONTENT, out.bytes.toString(StandardCharsets.UTF_8));
+        assertEquals(CONTENT.length(), transferScheduler.rates().get(0).bytes());
+        assertTrue(transferScheduler.streams().isEmpty());
+    }
+
+    @Test
+    void download_shouldAnswerNotModifiedForMatchingEtag() throws Exception {
+        // Arrange
+        Path file = Files.writeString(tempDir.resolve("test.txt"), CONTENT);
+        MockHttpServletRequest request = asyncRequest("GET");
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, digestService.etag(file));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        asyncFileService.download(file, request, response);
+
+        // Assert
+        assertEquals(304, response.getStatus());
+        assertEquals(digestService.etag(file), response.getHeader(HttpHeaders.ETAG));
+        assertFalse(request.isAsyncStarted());
+    }
+
+    @Test
+    void download_shouldHonorRangeOnlyForMatchingEtag() throws Exception {
+        // Arrange
+        Path file = Files.writeString(tempDir.resolve("test.txt"), CONTENT);
+        MockHttpServletRequest matching = asyncRequest("GET");
+        matching.addHeader(HttpHeaders.RANGE, "bytes=2-12");
+        matching.addHeader(HttpHeaders.IF_RANGE, digestService.etag(file));
+        MockHttpServletRequest stale = asyncRequest("GET");
+        stale.addHeader(HttpHeaders.RANGE, "bytes=2-12");
+        stale.addHeader(HttpHeaders.IF_RANGE, "\"stale\"");
+        MockHttpServletResponse matchingResponse = new MockHttpServletResponse();
+        MockHttpServletResponse staleResponse = new MockHttpServletResponse();
+
+        // Act
+        asyncFileService.download(file, matching, withOutput(matchingResponse, new NonBlockingOutputStream()));
+        awaitCompletion(matching);
+        asyncFileService.download(file, stale, withOutput(staleResponse, new NonBlockingOutputStream()));
+        awaitCompletion(stale);
+
+        // Assert
+        assertEquals(206, matchingResponse.getStatus());
+        assertEquals(200, staleResponse.getStatus());
+        assertEquals(CONTENT.length(), staleResponse.getContentLengthLong());
+    }
+
+    @Test
+    void download_shouldSendSingleRange() throws Exception {
+        // Arrange
+        Path file = Files.writeString(tempDir.resolve("test.txt"), CONTENT);
+        MockHttpServletRequest request = asyncRequest("GET");
+        request.addHeader(HttpHeaders.RANGE, "bytes=2-12");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        NonBlockingOutputStream out = new NonBlockingOutputStream();
+
+        // Act
+        asyncFileService.download(file, request, withOutput(response, out));
+        awaitCompletion(request);
+
+        // Assert
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 2-12/36", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals("23456789abc", out.bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void download_shouldRejectUnsatisfiableRange() throws Exception {
+        // Arrange
+        Path file = Files.writeString(tempDir.resolve("test.txt"), CONTENT);
+        MockHttpServletRequest request = asyncRequest("GET");
+        request.addHeader(HttpHeaders.RANGE, "bytes=100-");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Act
+        asyncFileService.download(file, request, response);
+
+        // Assert
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */36", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertFalse(request.isAsyncStarted());
+    }
+
+    private static HttpServletRequestWrapper withBody(MockHttpServletRequest request, ServletInputStream in) {
+        return new HttpServletRequestWrapper(request) {
+            @Override
+            public ServletInputStream getInputStream() {
+                return in;
+            }
+        };
+    }
+
+    private static HttpServletResponseWrapper withOutput(MockHttpServletResponse response,
+                                                         ServletOutputStream out) {
+        return new HttpServletResponseWrapper(response) {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return out;
+            }
+        };
+    }
+
+    /**
+     * A request body that is always ready and arrives a few bytes per read, as from a slow client
+     */
+    private static class BodyInputStream extends ServletInputStream {
+        private final byte[] body;
+        private final int readSize;
+        private int position;
+
+        private BodyInputStream(byte[] body, int readSize) {
+            this.body = body;
+            this.readSize = readSize;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return position == body.length;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            try {
+                readListener.onDataAvailable();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public synchronized int read() {
+            return position == body.length ? -1 : body[position++] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            if (position == body.length) {
+                return -1;
+            }
+            int read = Math.min(Math.min(len, readSize), body.length - position);
+            System.arraycopy(body, position, b, off, read);
+            position += read;
+            return read;
+        }
+    }
+
+    /**
+     * An output stream that is always ready, as a fast client would be
+     */
+    private static final class NonBlockingOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                writeListener.onWritePossible();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+        }
+    }
+}
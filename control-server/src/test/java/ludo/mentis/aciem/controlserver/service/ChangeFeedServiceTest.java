@@ -0,0 +1,257 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.ChangeEvent;
+import ludo.mentis.aciem.controlserver.model.ChangeType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeFeedServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private DirectoryWatchServiceImpl directoryWatchService;
+    private final List<ChangeFeedServiceImpl> services = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directoryWatchService = new DirectoryWatchServiceImpl();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        services.forEach(ChangeFeedServiceImpl::destroy);
+        directoryWatchService.destroy();
+    }
+
+    private ChangeFeedServiceImpl createService(int bufferSize, Duration retention, Duration heartbeat) {
+        ChangeFeedServiceImpl service = new ChangeFeedServiceImpl(directoryWatchService, bufferSize, retention,
+                heartbeat, 2);
+        services.add(service);
+        return service;
+    }
+
+    /**
+     * Collects events; set failing to make the next delivery fail like a disconnected client
+     */
+    private static final class Collector implements ChangeFeedService.Subscriber {
+        private final BlockingQueue<ChangeEvent> events = new LinkedBlockingQueue<>();
+        private final AtomicInteger heartbeats = new AtomicInteger();
+        private volatile boolean closed;
+        private volatile boolean failing;
+
+        @Override
+        public void onEvent(ChangeEvent event) throws IOException {
+            if (failing) {
+                throw new IOException("Broken pipe");
+            }
+            events.add(event);
+        }
+
+        @Override
+        public void onHeartbeat() {
+            heartbeats.incrementAndGet();
+        }
+
+        @Override
+        public void onClose() {
+            closed = true;
+        }
+
+        private ChangeEvent next() throws InterruptedException {
+            ChangeEvent event = events.poll(10, TimeUnit.SECONDS);
+            assertNotNull(event, "No event within 10 seconds");
+            return event;
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    void subscribe_shouldStreamCreateAndDeleteEvents() throws Exception {
+        // Arrange
+        ChangeFeedServiceImpl service = createService(100, Duration.ofMinutes(1), Duration.ZERO);
+        Collector collector = new Collector();
+        service.subscribe(tempDir, null, collector);
+
+        // Act
+        Path created = Files.createFile(tempDir.resolve("new.txt"));
+        ChangeEvent create = collector.next();
+        Files.delete(created);
+        ChangeEvent delete = collector.next();
+
+        // Assert
+        assertEquals(ChangeType.CREATE, create.type());
+        assertEquals("new.txt", create.name());
+        assertEquals(ChangeType.DELETE, delete.type());
+        assertEquals("new.txt", delete.name());
+        assertTrue(delete.sequence() > create.sequence());
+    }
+
+    @Test
+    void subscribe_shouldFanOutToEverySubscriber() throws Exception {
+        // Arrange
+        ChangeFeedServiceImpl service = createService(100, Duration.ofMinutes(1), Duration.ZERO);
+        Collector first = new Collector();
+        Collector second = new Collector();
+        service.subscribe(tempDir, null, first);
+        service.subscribe(tempDir, null, second);
+
+        // Act
+        Files.createDirectory(tempDir.resolve("shared"));
+
+        // Assert
+        assertEquals(first.next(), second.next());
+    }
+
+    @Test
+    void subscribe_shouldReplayEventsAfterResumedSequence() throws Exception {
+        // Arrange
+        ChangeFeedServiceImpl service = createService(100, Duration.ofMinutes(1), Duration.ZERO);
+        Collector collector = new Collector();
+        ChangeFeedService.Subscription subscription = service.subscribe(tempDir, null, collector);
+        Files.createFile(tempDir.resolve("a.txt"));
+        ChangeEvent last = collector.next();
+        subscription.close();
+
+        // Act
+        Files.createFile(tempDir.resolve("b.txt"));
+        Files.createFile(tempDir.resolve("c.txt"));
+        Thread.sleep(500);
+        Collector resumed = new Collector();
+        service.subscribe(tempDir, last.sequence(), resumed);
+
+        // Assert
+        assertEquals("b.txt", resumed.next().name());
+        assertEquals("c.txt", resumed.next().name());
+        assertTrue(collector.events.isEmpty());
+    }
+
+    @Test
+    void subscribe_shouldResetWhenResumedSequenceIsNoLongerBuffered() throws Exception {
+        // Arrange
+        ChangeFeedServiceImpl service = createService(2, Duration.ofMinutes(1), Duration.ZERO);
+        Collector collector = new Collector();
+        ChangeFeedService.Subscription subscription = service.subscribe(tempDir, null, collector);
+        Files.createFile(tempDir.resolve("a.txt"));
+        ChangeEvent first = collector.next();
+        for (String name : List.of("b.txt", "c.txt", "d.txt")) {
+            Files.createFile(tempDir.resolve(name));
+        }
+        await(() -> collector.events.size() == 3);
+        subscription.close();
+
+        // Act
+        Collector resumed = new Collector();
+        service.subscribe(tempDir, first.sequence(), resumed);
+        ChangeEvent reset = resumed.next();
+        Files.createFile(tempDir.resolve("e.txt"));
+
+        // Assert
+        assertEquals(ChangeType.RESET, reset.type());
+        assertNull(reset.name());
+        assertEquals("e.txt", resumed.next().name());
+    }
+
+    @Test
+    void subscribe_shouldResetForSequenceOfEarlierRun() throws Exception {
+        // Arrange
+        ChangeFeedServiceImpl earlier = createService(100, Duration.ofMinutes(1), Duration.ZERO);
+        Collector collector = new Collector();
+        earlier.subscribe(tempDir, null, collector);
+        Files.createFile(tempDir.resolve("a.txt"));
+        long sequence = collector.next().sequence();
+
+        // Act
+        ChangeFeedServiceImpl restarted = createService(100, Duration.ofMinutes(1), Duration.ZERO);
+        Collector resumed = new Collector();
+        restarted.subscribe(tempDir, sequence, resumed);
+        ChangeEvent reset = resumed.next();
+
+        // Assert
+        assertEquals(ChangeType.RESET, reset.type());
+        assertTrue(reset.sequence() >= sequence);
+    }
+
+    @Test
+    void subscribe_shouldDropSubscriberWhoseDeliveryFails() throws Exception {
+        // Arrange
+        ChangeFeedServiceImpl service = createService(100, Duration.ofMinutes(1), Duration.ZERO);
+        Collector broken = new Collector();
+        Collector healthy = new Collector();
+        broken.failing = true;
+        service.subscribe(tempDir, null, broken);
+        service.subscribe(tempDir, null, healthy);
+
+        // Act
+        Files.createFile(tempDir.resolve("a.txt"));
+        healthy.next();
+        await(() -> service.subscribers(tempDir) == 1);
+        broken.failing = false;
+        Files.createFile(tempDir.resolve("b.txt"));
+        healthy.next();
+
+        // Assert
+        assertEquals(1, service.subscribers(tempDir));
+        assertTrue(broken.events.isEmpty());
+    }
+
+    @Test
+    void subscribe_shouldSendHeartbeatsToIdleSubscribers() throws Exception {
+        // Arrange
+        ChangeFeedServiceImpl service = createService(100, Duration.ofMinutes(1), Duration.ofMillis(50));
+        Collector collector = new Collector();
+
+        // Act
+        service.subscribe(tempDir, null, collector);
+        await(() -> collector.heartbeats.get() >= 2);
+
+        // Assert
+        assertTrue(collector.heartbeats.get() >= 2);
+        assertTrue(collector.events.isEmpty());
+    }
+
+    @Test
+    void subscribe_shouldCloseSubscribersWhenDirectoryIsDeleted() throws Exception {
+        // Arrange
+        Path directory = Files.createDirectory(tempDir.resolve("gone"));
+        ChangeFeedServiceImpl service = createService(100, Duration.ofMinutes(1), Duration.ZERO);
+        Collector collector = new Collector();
+        service.subscribe(directory, null, collector);
+
+        // Act
+        Files.delete(directory);
+        await(() -> collector.closed);
+
+        // Assert
+        assertTrue(collector.closed);
+        assertEquals(ChangeType.RESET, collector.events.stream().reduce((a, b) -> b).orElseThrow().type());
+    }
+
+    @Test
+    void subscribe_shouldFailForMissingDirectory() {
+        ChangeFeedServiceImpl service = createService(100, Duration.ofMinutes(1), Duration.ZERO);
+        assertThrows(IOException.class, () -> service.subscribe(tempDir.resolve("missing"), null, new Collector()));
+    }
+}
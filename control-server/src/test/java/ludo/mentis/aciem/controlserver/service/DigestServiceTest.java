@@ -0,0 +1,158 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DigestServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path cacheFile;
+    private DigestServiceImpl digestService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        cacheFile = tempDir.resolve("cache").resolve("digests.cache");
+        digestService = new DigestServiceImpl(cacheFile.toString(), DataSize.ofMegabytes(1), 100);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        digestService.destroy();
+    }
+
+    private Path writeOldFile(String name, String content) throws IOException {
+        Path file = Files.writeString(tempDir.resolve(name), content);
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(1, ChronoUnit.HOURS)));
+        return file;
+    }
+
+    @Test
+    void etag_shouldBeStrongAndDependOnContent() throws IOException {
+        // Arrange
+        Path first = writeOldFile("first.txt", "content");
+        Path second = writeOldFile("second.txt", "content");
+        Path third = writeOldFile("third.txt", "other content");
+
+        // Act
+        String etag = digestService.etag(first);
+
+        // Assert
+        assertTrue(etag.matches("\"[A-Za-z0-9_-]{43}\""));
+        assertEquals(etag, digestService.etag(second));
+        assertNotEquals(etag, digestService.etag(third));
+    }
+
+    @Test
+    void etag_shouldBeReusedAcrossRestartsWhileSizeAndTimeMatch() throws IOException {
+        // Arrange
+        Path file = writeOldFile("test.txt", "content");
+        FileTime modified = Files.getLastModifiedTime(file);
+        String etag = digestService.etag(file);
+        digestService.destroy();
+
+        // Same size and modification time: the cached digest is trusted without reading the file
+        Files.writeString(file, "CONTENT");
+        Files.setLastModifiedTime(file, modified);
+
+        // Act
+        digestService = new DigestServiceImpl(cacheFile.toString(), DataSize.ofMegabytes(1), 100);
+        String cached = digestService.etag(file);
+        Files.setLastModifiedTime(file, FileTime.from(modified.toInstant().plusSeconds(1)));
+        String recomputed = digestService.etag(file);
+
+        // Assert
+        assertEquals(etag, cached);
+        assertNotEquals(etag, recomputed);
+    }
+
+    @Test
+    void etag_shouldNotCacheRecentlyModifiedFiles() throws IOException {
+        // Arrange
+        Path file = Files.writeString(tempDir.resolve("test.txt"), "content");
+
+        // Act
+        String etag = digestService.etag(file);
+
+        // Assert
+        assertNotNull(etag);
+        assertEquals(0, Files.size(cacheFile));
+    }
+
+    @Test
+    void etag_shouldComputeLargeFilesInBackground() throws Exception {
+        // Arrange
+        digestService.destroy();
+        digestService = new DigestServiceImpl(cacheFile.toString(), DataSize.ofBytes(4), 100);
+        Path file = writeOldFile("large.txt", "larger than the limit");
+
+        // Act
+        String first = digestService.etag(file);
+        String etag = null;
+        for (int i = 0; i < 100 && etag == null; i++) {
+            Thread.sleep(50);
+            etag = digestService.etag(file);
+        }
+
+        // Assert
+        assertNull(first);
+        assertNotNull(etag);
+    }
+
+    @Test
+    void etag_shouldEvictLeastRecentlyUsedDigests() throws IOException {
+        // Arrange
+        digestService.destroy();
+        digestService = new DigestServiceImpl(cacheFile.toString(), DataSize.ofMegabytes(1), 2);
+        Path first = writeOldFile("first.txt", "first");
+        Path second = writeOldFile("second.txt", "second");
+        Path third = writeOldFile("third.txt", "third");
+        String firstEtag = digestService.etag(first);
+        String secondEtag = digestService.etag(second);
+        digestService.etag(first);
+
+        // Act
+        digestService.etag(third);
+
+        // Assert: same size and time, so only a digest no longer cached is computed again
+        FileTime modified = Files.getLastModifiedTime(first);
+        Files.writeString(first, "FIRST");
+        Files.setLastModifiedTime(first, modified);
+        modified = Files.getLastModifiedTime(second);
+        Files.writeString(second, "SECOND");
+        Files.setLastModifiedTime(second, modified);
+        assertEquals(firstEtag, digestService.etag(first));
+        assertNotEquals(secondEtag, digestService.etag(second));
+    }
+
+    @Test
+    void etag_shouldCompactLogWhileRunning() throws IOException {
+        // Arrange
+        digestService.destroy();
+        digestService = new DigestServiceImpl(cacheFile.toString(), DataSize.ofMegabytes(1), 2);
+
+        // Act
+        for (int i = 0; i < 20; i++) {
+            digestService.etag(writeOldFile("file" + i + ".txt", "content" + i));
+        }
+
+        // Assert
+        List<String> lines = Files.readAllLines(cacheFile);
+        assertTrue(lines.size() <= 6, "Log has " + lines.size() + " lines");
+        assertTrue(lines.get(lines.size() - 1).endsWith("file19.txt"));
+    }
+}
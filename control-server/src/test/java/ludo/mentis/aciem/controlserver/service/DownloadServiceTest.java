@@ -0,0 +1,399 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadServiceTest {
+
+    private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    @TempDir
+    Path tempDir;
+
+    private DownloadServiceImpl downloadService;
+    private Resource resource;
+    private final AtomicInteger completions = new AtomicInteger();
+    private final AtomicLong sent = new AtomicLong(-1);
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        DigestService digestService = new DigestServiceImpl(
+                tempDir.resolve("cache").resolve("digests.cache").toString(), DataSize.ofMegabytes(1), 100);
+        downloadService = new DownloadServiceImpl(digestService, unshaped(), true, DataSize.ofBytes(16),
+                DataSize.ofBytes(8));
+        resource = new FileSystemResource(Files.writeString(tempDir.resolve("test.txt"), CONTENT));
+    }
+
+    private static TransferScheduler unshaped() {
+        return new TransferSchedulerImpl(new SimpleMeterRegistry(), DataSize.ofBytes(0), DataSize.ofBytes(0), "",
+                DataSize.ofKilobytes(64), 1);
+    }
+
+    private MockHttpServletResponse download(MockHttpServletRequest request) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        downloadService.writeDownload(resource, request, response, this::completed);
+        return response;
+    }
+
+    private void completed(long sent, Throwable error) {
+        completions.incrementAndGet();
+        this.sent.set(sent);
+        this.error.set(error);
+    }
+
+    private static MockHttpServletRequest get(String range) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/files/download");
+        if (range != null) {
+            request.addHeader(HttpHeaders.RANGE, range);
+        }
+        return request;
+    }
+
+    private static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    @Test
+    void writeDownload_shouldWriteWholeFileWithoutRange() throws IOException {
+        // Act
+        MockHttpServletResponse response = download(get(null));
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertEquals(CONTENT, response.getContentAsString());
+        assertEquals(CONTENT.length(), response.getContentLengthLong());
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertTrue(response.getHeader(HttpHeaders.CONTENT_DISPOSITION).contains("test.txt"));
+        assertNotNull(response.getHeader(HttpHeaders.LAST_MODIFIED));
+        assertEquals(1, completions.get());
+        assertEquals(CONTENT.length(), sent.get());
+    }
+
+    @Test
+    void writeDownload_shouldWriteSingleRange() throws IOException {
+        // Act
+        MockHttpServletResponse response = download(get("bytes=10-15"));
+
+        // Assert
+        assertEquals(206, response.getStatus());
+        assertEquals("abcdef", response.getContentAsString());
+        assertEquals("bytes 10-15/36", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(6, response.getContentLengthLong());
+    }
+
+    @Test
+    void writeDownload_shouldWriteSuffixRange() throws IOException {
+        // Act
+        MockHttpServletResponse response = download(get("bytes=-3"));
+
+        // Assert
+        assertEquals(206, response.getStatus());
+        assertEquals("xyz", response.getContentAsString());
+        assertEquals("bytes 33-35/36", response.getHeader(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void writeDownload_shouldWriteMultipleRangesAsMultipart() throws IOException {
+        // Act
+        MockHttpServletResponse response = download(get("bytes=30-32,0-2"));
+
+        // Assert
+        assertEquals(206, response.getStatus());
+        MediaType contentType = MediaType.parseMediaType(response.getContentType());
+        assertEquals("multipart/byteranges", contentType.getType() + "/" + contentType.getSubtype());
+        String boundary = contentType.getParameter("boundary");
+
+        String expected = "\r\n--" + boundary + "\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Range: bytes 0-2/36\r\n\r\n"
+                + "012"
+                + "\r\n--" + boundary + "\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Range: bytes 30-32/36\r\n\r\n"
+                + "uvw"
+                + "\r\n--" + boundary + "--\r\n";
+        assertEquals(expected, response.getContentAsString());
+        assertEquals(expected.getBytes(StandardCharsets.US_ASCII).length, response.getContentLengthLong());
+        assertEquals(response.getContentLengthLong(), sent.get());
+    }
+
+    @Test
+    void writeDownload_shouldRejectUnsatisfiableRange() throws IOException {
+        // Act
+        MockHttpServletResponse response = download(get("bytes=100-200"));
+
+        // Assert
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */36", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void writeDownload_shouldIgnoreMalformedRange() throws IOException {
+        // Act
+        MockHttpServletResponse response = download(get("bytes=5-1"));
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertEquals(CONTENT, response.getContentAsString());
+    }
+
+    @Test
+    void writeDownload_shouldSendWholeFileWhenIfRangeDoesNotMatch() throws IOException {
+        // Arrange
+        MockHttpServletRequest matching = get("bytes=0-2");
+        matching.addHeader(HttpHeaders.IF_RANGE, httpDate(resource.lastModified()));
+        MockHttpServletRequest stale = get("bytes=0-2");
+        stale.addHeader(HttpHeaders.IF_RANGE, httpDate(resource.lastModified() - 60_000));
+
+        // Act & Assert
+        assertEquals(206, download(matching).getStatus());
+        MockHttpServletResponse response = download(stale);
+        assertEquals(200, response.getStatus());
+        assertEquals(CONTENT, response.getContentAsString());
+    }
+
+    @Test
+    void writeDownload_shouldAnswerMatchingIfNoneMatchWithNotModified() throws IOException {
+        // Arrange
+        String etag = download(get(null)).getHeader(HttpHeaders.ETAG);
+        MockHttpServletRequest request = get(null);
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+
+        // Act
+        MockHttpServletResponse response = download(request);
+
+        // Assert
+        assertNotNull(etag);
+        assertTrue(etag.startsWith("\""));
+        assertEquals(304, response.getStatus());
+        assertEquals(etag, response.getHeader(HttpHeaders.ETAG));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void writeDownload_shouldSendFileWhenContentChanged() throws IOException {
+        // Arrange
+        String etag = download(get(null)).getHeader(HttpHeaders.ETAG);
+        Files.writeString(resource.getFile().toPath(), "changed");
+        MockHttpServletRequest request = get(null);
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+
+        // Act
+        MockHttpServletResponse response = download(request);
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertNotEquals(etag, response.getHeader(HttpHeaders.ETAG));
+        assertEquals("changed", response.getContentAsString());
+    }
+
+    @Test
+    void writeDownload_shouldHonourRangeWhenIfRangeMatchesETag() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = get("bytes=0-2");
+        request.addHeader(HttpHeaders.IF_RANGE, download(get(null)).getHeader(HttpHeaders.ETAG));
+
+        // Act
+        MockHttpServletResponse response = download(request);
+
+        // Assert
+        assertEquals(206, response.getStatus());
+        assertEquals("012", response.getContentAsString());
+    }
+
+    @Test
+    void writeDownload_shouldNotWriteBodyForHeadRequests() throws IOException {
+        // Act
+        MockHttpServletResponse response = download(new MockHttpServletRequest("HEAD", "/api/files/download"));
+
+        // Assert
+        assertEquals(200, response.getStatus());
+        assertEquals(CONTENT.length(), response.getContentLengthLong());
+        assertEquals(0, response.getContentAsByteArray().length);
+        assertEquals(0, sent.get());
+    }
+
+    @Test
+    void writeDownload_shouldHandFileToContainerWhenSendfileIsSupported() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = get("bytes=4-");
+        request.setAttribute(DownloadServiceImpl.SENDFILE_SUPPORTED_ATTR, true);
+
+        // Act
+        MockHttpServletResponse response = download(request);
+
+        // Assert
+        assertEquals(206, response.getStatus());
+        assertEquals(32, response.getContentLengthLong());
+        assertEquals(resource.getFile().getAbsolutePath(), request.getAttribute(DownloadServiceImpl.SENDFILE_FILENAME_ATTR));
+        assertEquals(4L, request.getAttribute(DownloadServiceImpl.SENDFILE_START_ATTR));
+        assertEquals(36L, request.getAttribute(DownloadServiceImpl.SENDFILE_END_ATTR));
+        assertEquals(0, response.getContentAsByteArray().length);
+        assertEquals(32, sent.get());
+    }
+
+    @Test
+    void writeDownload_shouldCopySmallRangesEvenWhenSendfileIsSupported() throws IOException {
+        // Arrange
+        MockHttpServletRequest request = get("bytes=0-9");
+        request.setAttribute(DownloadServiceImpl.SENDFILE_SUPPORTED_ATTR, true);
+
+        // Act
+        MockHttpServletResponse response = download(request);
+
+        // Assert
+        assertEquals("0123456789", response.getContentAsString());
+        assertNull(request.getAttribute(DownloadServiceImpl.SENDFILE_FILENAME_ATTR));
+    }
+
+    @Test
+    void writeDownload_shouldStreamResourcesThatAreNotFiles() throws IOException {
+        // Arrange
+        resource = new ByteArrayResource(CONTENT.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public String getFilename() {
+                return "memory.txt";
+            }
+
+            @Override
+            public long lastModified() {
+                return 0;
+            }
+        };
+
+        // Act
+        MockHttpServletResponse response = download(get("bytes=2-4,-2"));
+
+        // Assert
+        assertEquals(206, response.getStatus());
+        assertTrue(response.getContentAsString().contains("234"));
+        assertTrue(response.getContentAsString().contains("yz"));
+    }
+
+    @Test
+    void writeDownload_shouldTellBytesWrittenWhenCopyFails() {
+        // Arrange
+        resource = new ByteArrayResource(CONTENT.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public long contentLength() {
+                return 40;
+            }
+
+            @Override
+            public long lastModified() {
+                return 0;
+            }
+        };
+
+        // Act
+        IOException exception = assertThrows(IOException.class, () -> download(get(null)));
+
+        // Assert
+        assertEquals(1, completions.get());
+        assertEquals(CONTENT.length(), sent.get());
+        assertSame(exception, error.get());
+    }
+
+    @Test
+    void writeDownload_shouldSendShapedDownloadsAsynchronously() throws Exception {
+        // Arrange
+        DigestService digestService = new DigestServiceImpl(
+                tempDir.resolve("cache").resolve("digests.cache").toString(), DataSize.ofMegabytes(1), 100);
+        TransferSchedulerImpl transferScheduler = new TransferSchedulerImpl(new SimpleMeterRegistry(),
+                DataSize.ofKilobytes(1), DataSize.ofBytes(0), "", DataSize.ofBytes(8), 1);
+        downloadService = new DownloadServiceImpl(digestService, transferScheduler, true, DataSize.ofBytes(16),
+                DataSize.ofBytes(8));
+        MockHttpServletRequest request = get("bytes=2-4,30-");
+        request.setAsyncSupported(true);
+        request.setAttribute(DownloadServiceImpl.SENDFILE_SUPPORTED_ATTR, true);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        NonBlockingOutputStream out = new NonBlockingOutputStream();
+
+        // Act
+        downloadService.writeDownload(resource, request, new HttpServletResponseWrapper(response) {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return out;
+            }
+        }, this::completed);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (request.isAsyncStarted() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // Assert
+        assertFalse(request.isAsyncStarted());
+        assertEquals(206, response.getStatus());
+        String body = out.bytes.toString(StandardCharsets.UTF_8);
+        assertTrue(body.contains("\r\n\r\n234\r\n"));
+        assertTrue(body.contains("\r\n\r\nuvwxyz\r\n"));
+        assertTrue(body.endsWith("--\r\n"));
+        assertEquals(1, completions.get());
+        assertEquals(out.bytes.size(), sent.get());
+        assertEquals(9, transferScheduler.rates().get(0).bytes());
+        assertTrue(transferScheduler.streams().isEmpty());
+        transferScheduler.destroy();
+    }
+
+    /**
+     * An output stream that is always ready, as a fast client would be
+     */
+    private static final class NonBlockingOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                writeListener.onWritePossible();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.DurabilityMode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileCommitServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private FileCommitServiceImpl fileCommitService;
+
+    @AfterEach
+    void tearDown() {
+        if (fileCommitService != null) {
+            fileCommitService.destroy();
+        }
+    }
+
+    private static FileCommitService.ChannelWriter content(String value) {
+        return channel -> channel.write(ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private long filesIn(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void writeAtomically_shouldReplaceTargetInEveryMode() throws IOException {
+        for (DurabilityMode mode : DurabilityMode.values()) {
+            // Arrange
+            fileCommitService = new FileCommitServiceImpl(mode.name(), "", Duration.ZERO, event -> { });
+            Path target = tempDir.resolve("file.txt");
+            Files.writeString(target, "old content that is longer");
+
+            // Act
+            long written = fileCommitService.writeAtomically(target, content("new " + mode));
+
+            // Assert
+            assertEquals("new " + mode, Files.readString(target));
+            assertEquals(("new " + mode).length(), written);
+            assertEquals(1, filesIn(tempDir));
+            fileCommitService.destroy();
+        }
+    }
+
+    @Test
+    void writeAtomically_shouldLeaveTargetUntouchedOnFailure() throws IOException {
+        // Arrange
+        fileCommitService = new FileCommitServiceImpl("fsync", "", Duration.ZERO, event -> { });
+        Path target = tempDir.resolve("file.txt");
+        Files.writeString(target, "old");
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> fileCommitService.writeAtomically(target, channel -> {
+            channel.write(ByteBuffer.wrap("partial".getBytes(StandardCharsets.UTF_8)));
+            throw new IOException("Connection reset");
+        }));
+        assertEquals("old", Files.readString(target));
+        assertEquals(1, filesIn(tempDir));
+    }
+
+    @Test
+    void publish_shouldMoveFileIntoPlace() throws IOException {
+        // Arrange
+        fileCommitService = new FileCommitServiceImpl("group-commit", "", Duration.ZERO, event -> { });
+        Path source = Files.writeString(tempDir.resolve(".file.txt.upload"), "content");
+        Path target = tempDir.resolve("file.txt");
+
+        // Act
+        fileCommitService.publish(source, target);
+
+        // Assert
+        assertFalse(Files.exists(source));
+        assertEquals("content", Files.readString(target));
+    }
+
+    @Test
+    void durabilityFor_shouldUseMostSpecificOverride() {
+        // Arrange
+        Path data = tempDir.resolve("data");
+        Path critical = data.resolve("critical");
+        fileCommitService = new FileCommitServiceImpl("none",
+                data + "=fsync, " + critical + "=group-commit", Duration.ZERO, event -> { });
+
+        // Act & Assert
+        assertEquals(DurabilityMode.NONE, fileCommitService.durabilityFor(tempDir.resolve("file.txt")));
+        assertEquals(DurabilityMode.FSYNC, fileCommitService.durabilityFor(data.resolve("file.txt")));
+        assertEquals(DurabilityMode.GROUP_COMMIT, fileCommitService.durabilityFor(critical.resolve("a/file.txt")));
+        assertEquals(DurabilityMode.NONE, fileCommitService.durabilityFor(tempDir.resolve("database/file.txt")));
+    }
+
+    @Test
+    void constructor_shouldRejectInvalidOverrides() {
+        assertThrows(IllegalArgumentException.class, () -> new FileCommitServiceImpl("none", "/data", Duration.ZERO, event -> { }));
+        assertThrows(IllegalArgumentException.class, () -> new FileCommitServiceImpl("sometimes", "", Duration.ZERO, event -> { }));
+    }
+
+    @Test
+    void writeAtomically_shouldCommitConcurrentWritesInGroups() throws Exception {
+        // Arrange
+        fileCommitService = new FileCommitServiceImpl("group-commit", "", Duration.ofMillis(5), event -> { });
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            // Act
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                String name = "file-" + i + ".txt";
+                futures.add(executor.submit(() -> fileCommitService.writeAtomically(tempDir.resolve(name), content(name))));
+            }
+            for (Future<Long> future : futures) {
+                future.get();
+            }
+
+            // Assert
+            assertEquals(32, filesIn(tempDir));
+            for (int i = 0; i < 32; i++) {
+                assertEquals("file-" + i + ".txt", Files.readString(tempDir.resolve("file-" + i + ".txt")));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
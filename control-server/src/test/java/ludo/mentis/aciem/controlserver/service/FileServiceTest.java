@@ -1,6 +1,9 @@
 package ludo.mentis.aciem.controlserver.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.model.SortKey;
+import ludo.mentis.aciem.controlserver.util.ListingQuery;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -10,10 +13,17 @@ import org.springframework.core.io.Resource;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -22,6 +32,7 @@ import static org.mockito.Mockito.when;
 class FileServiceTest {
 
     private FileServiceImpl fileService;
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
 
     @Mock
     private PathValidationService pathValidationService;
@@ -43,7 +54,12 @@ class FileServiceTest {
         when(pathValidationService.isPathAllowed(any(Path.class))).thenReturn(true);
         when(pathValidationService.isPathAllowed(any(String.class))).thenReturn(true);
 
-        fileService = new FileServiceImpl(pathValidationService);
+        // Listings are not cached, so every test reads the directory
+        ListingCache listingCache = new ListingCacheImpl((directory, listener) -> {
+            throw new IOException("Not watched");
+        }, new SimpleMeterRegistry(), 0, Duration.ZERO, 0, 0);
+        fileService = new FileServiceImpl(pathValidationService,
+                new FileCommitServiceImpl("none", "", Duration.ZERO, event -> { }), listingCache, meterRegistry);
     }
 
     @Test
@@ -60,6 +76,87 @@ class FileServiceTest {
         assertEquals(content, Files.readString(savedPath));
     }
 
+    @Test
+    void uploadFile_shouldWriteStreamToValidatedDirectory() throws IOException {
+        // Arrange
+        byte[] content = new byte[300_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Path directory = fileService.validateUploadDirectory(tempDir.toString());
+
+        // Act
+        Path savedPath = fileService.uploadFile(new ByteArrayInputStream(content), "stream.bin", directory);
+
+        // Assert
+        assertEquals(tempDir.resolve("stream.bin"), savedPath);
+        assertArrayEquals(content, Files.readAllBytes(savedPath));
+    }
+
+    @Test
+    void uploadFile_shouldReplaceExistingFileWhenStreaming() throws IOException {
+        // Arrange
+        Files.writeString(tempDir.resolve("existing.txt"), "a much longer previous content");
+        Path directory = fileService.validateUploadDirectory(tempDir.toString());
+
+        // Act
+        Path savedPath = fileService.uploadFile(new ByteArrayInputStream("new".getBytes()), "existing.txt", directory);
+
+        // Assert
+        assertEquals("new", Files.readString(savedPath));
+    }
+
+    @Test
+    void uploadFile_shouldKeepExistingFileWhenStreamFails() throws IOException {
+        // Arrange
+        Files.writeString(tempDir.resolve("existing.txt"), "previous content");
+        Path directory = fileService.validateUploadDirectory(tempDir.toString());
+        InputStream failing = new SequenceInputStream(new ByteArrayInputStream("partial".getBytes()), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> fileService.uploadFile(failing, "existing.txt", directory));
+        assertEquals("previous content", Files.readString(tempDir.resolve("existing.txt")));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void uploadFile_shouldRejectStreamWhenTargetIsNotAllowed() {
+        // Arrange
+        when(pathValidationService.isPathAllowed(any(Path.class))).thenReturn(false);
+
+        // Act & Assert
+        IOException exception = assertThrows(IOException.class,
+                () -> fileService.uploadFile(new ByteArrayInputStream(new byte[1]), "test.txt", tempDir));
+        assertTrue(exception.getMessage().contains("Access denied"));
+    }
+
+    @Test
+    void uploadFile_shouldRecordLatencyByOutcomeAndUploadedBytes() throws IOException {
+        // Arrange
+        Path directory = fileService.validateUploadDirectory(tempDir.toString());
+        fileService.uploadFile(new ByteArrayInputStream("content".getBytes()), "test.txt", directory);
+        when(pathValidationService.isPathAllowed(any(Path.class))).thenReturn(false);
+
+        // Act
+        assertThrows(IOException.class,
+                () -> fileService.uploadFile(new ByteArrayInputStream(new byte[1]), "test.txt", directory));
+
+        // Assert
+        assertEquals(1, meterRegistry.get("file.operations").tags("operation", "upload", "outcome", "success")
+                .timer().count());
+        assertEquals(1, meterRegistry.get("file.operations").tags("operation", "upload", "outcome", "denied")
+                .timer().count());
+        assertEquals(7, meterRegistry.get("file.transferred").tag("direction", "upload").counter().count());
+        assertEquals(0, meterRegistry.get("file.operations.active").tag("operation", "upload").gauge().value());
+    }
+
     @Test
     void downloadFile_shouldReturnFileAsResource() throws IOException {
         // Arrange
@@ -102,6 +199,125 @@ class FileServiceTest {
         assertTrue(files.stream().anyMatch(f -> f.name().equals("subdir") && f.directory()));
     }
 
+    @Test
+    void listFiles_shouldPageThroughDirectoryInNameOrder() throws IOException {
+        // Arrange
+        for (int i = 0; i < 25; i++) {
+            Files.writeString(tempDir.resolve(String.format("file%02d.txt", i)), "content" + i);
+        }
+        Path directory = fileService.validateListDirectory(tempDir.toString());
+
+        // Act
+        List<String> names = new ArrayList<>();
+        List<Integer> pageSizes = new ArrayList<>();
+        String after = null;
+        do {
+            List<FileInfo> page = new ArrayList<>();
+            after = fileService.listFiles(directory, after, 10, page::add);
+            page.forEach(file -> names.add(file.name()));
+            pageSizes.add(page.size());
+        } while (after != null);
+
+        // Assert
+        assertEquals(List.of(10, 10, 5), pageSizes);
+        assertEquals(25, names.size());
+        assertEquals(names.stream().sorted().toList(), names);
+        assertEquals("file00.txt", names.get(0));
+    }
+
+    @Test
+    void listFiles_shouldReadDirectoryOnceWhenPagingThroughIt() throws IOException {
+        // Arrange
+        for (int i = 0; i < 100; i++) {
+            Files.writeString(tempDir.resolve(String.format("file%03d.txt", i)), "content" + i);
+        }
+        AtomicInteger reads = new AtomicInteger();
+        ListingCache listingCache = new ListingCacheImpl((directory, listener) -> () -> { },
+                new SimpleMeterRegistry(), 16, Duration.ofMinutes(5), 10000, 10000) {
+            @Override
+            public String[] getSortedNames(Path directory, NamesLoader loader) throws IOException {
+                return super.getSortedNames(directory, maxNames -> {
+                    reads.incrementAndGet();
+                    return loader.load(maxNames);
+                });
+            }
+        };
+        FileServiceImpl cachedFileService = new FileServiceImpl(pathValidationService,
+                new FileCommitServiceImpl("none", "", Duration.ZERO, event -> { }), listingCache, meterRegistry);
+        Path directory = cachedFileService.validateListDirectory(tempDir.toString());
+
+        // Act
+        List<String> names = new ArrayList<>();
+        int pages = 0;
+        String after = null;
+        do {
+            after = cachedFileService.listFiles(directory, after, 10, file -> names.add(file.name()));
+            pages++;
+        } while (after != null);
+
+        // Assert
+        assertEquals(10, pages);
+        assertEquals(1, reads.get());
+        assertEquals(100, names.size());
+        assertEquals(names.stream().sorted().toList(), names);
+    }
+
+    @Test
+    void listFiles_shouldNotShiftPagesWhenEntriesAreAddedOrRemoved() throws IOException {
+        // Arrange
+        for (String name : List.of("a", "b", "c", "d")) {
+            Files.writeString(tempDir.resolve(name), name);
+        }
+        Path directory = fileService.validateListDirectory(tempDir.toString());
+        List<FileInfo> first = new ArrayList<>();
+        String after = fileService.listFiles(directory, null, 2, first::add);
+
+        // Act
+        Files.delete(tempDir.resolve("a"));
+        Files.writeString(tempDir.resolve("0"), "before the cursor");
+        List<FileInfo> second = new ArrayList<>();
+        String next = fileService.listFiles(directory, after, 2, second::add);
+
+        // Assert
+        assertEquals("b", after);
+        assertEquals(List.of("c", "d"), second.stream().map(FileInfo::name).toList());
+        assertNull(next);
+    }
+
+    @Test
+    void listFiles_shouldStreamEntriesAfterCursorWithoutLimit() throws IOException {
+        // Arrange
+        for (String name : List.of("a", "b", "c")) {
+            Files.writeString(tempDir.resolve(name), name);
+        }
+        Path directory = fileService.validateListDirectory(tempDir.toString());
+        List<FileInfo> files = new ArrayList<>();
+
+        // Act
+        String next = fileService.listFiles(directory, "a", 0, files::add);
+
+        // Assert
+        assertNull(next);
+        assertEquals(List.of("b", "c"), files.stream().map(FileInfo::name).sorted().toList());
+    }
+
+    @Test
+    void listFiles_shouldSelectLargestMatchingFiles() throws IOException {
+        // Arrange
+        Path directory = Files.createDirectory(tempDir.resolve("query"));
+        for (int i = 0; i < 20; i++) {
+            Files.write(directory.resolve("file-" + i + (i % 2 == 0 ? ".log" : ".txt")), new byte[i * 10]);
+        }
+        ListingQuery query = ListingQuery.of(SortKey.SIZE, true, 3, List.of("*.log"), null, null, null, null, null);
+
+        // Act
+        List<FileInfo> files = fileService.listFiles(directory.toString(), query);
+
+        // Assert
+        assertEquals(List.of("file-18.log", "file-16.log", "file-14.log"), files.stream().map(FileInfo::name).toList());
+        assertEquals(180, files.get(0).size());
+    }
+
     @Test
     void listFiles_shouldThrowExceptionWhenDirectoryDoesNotExist() {
         // Arrange
@@ -0,0 +1,231 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import ludo.mentis.aciem.controlserver.model.FileChangedEvent;
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ListingCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private DirectoryWatchServiceImpl directoryWatchService;
+    private SimpleMeterRegistry meterRegistry;
+    private ListingCacheImpl listingCache;
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directoryWatchService = new DirectoryWatchServiceImpl();
+        meterRegistry = new SimpleMeterRegistry();
+        listingCache = new ListingCacheImpl(directoryWatchService, meterRegistry, 2, Duration.ofMinutes(5), 10, 10);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        directoryWatchService.destroy();
+    }
+
+    private List<FileInfo> list(Path directory) throws IOException {
+        return listingCache.get(directory, () -> {
+            loads.incrementAndGet();
+            List<FileInfo> files = new ArrayList<>();
+            try (var entries = Files.list(directory)) {
+                entries.forEach(entry -> files.add(new FileInfo(entry.getFileName().toString(), false, 0, 0)));
+            }
+            return files;
+        });
+    }
+
+    private String[] names(Path directory) throws IOException {
+        return listingCache.getSortedNames(directory, maxNames -> {
+            loads.incrementAndGet();
+            try (var entries = Files.list(directory)) {
+                String[] names = entries.map(entry -> entry.getFileName().toString()).sorted().toArray(String[]::new);
+                return names.length > maxNames ? null : names;
+            }
+        });
+    }
+
+    private double count(String result) {
+        return meterRegistry.get("file.list.cache.requests").tag("result", result).counter().count();
+    }
+
+    @Test
+    void get_shouldServeRepeatedListingsFromCache() throws IOException {
+        // Arrange
+        Files.writeString(tempDir.resolve("a.txt"), "a");
+
+        // Act
+        List<FileInfo> first = list(tempDir);
+        List<FileInfo> second = list(tempDir);
+
+        // Assert
+        assertEquals(first, second);
+        assertEquals(1, loads.get());
+        assertEquals(1, count("hit"));
+        assertEquals(1, count("miss"));
+    }
+
+    @Test
+    void get_shouldReloadAfterWatchEvent() throws Exception {
+        // Arrange
+        list(tempDir);
+
+        // Act
+        Files.writeString(tempDir.resolve("created.txt"), "new");
+        List<FileInfo> files = list(tempDir);
+        for (int i = 0; i < 100 && files.isEmpty(); i++) {
+            Thread.sleep(50);
+            files = list(tempDir);
+        }
+
+        // Assert
+        assertEquals("created.txt", files.get(0).name());
+    }
+
+    @Test
+    void get_shouldReloadAfterFileChangedEvent() throws IOException {
+        // Arrange
+        list(tempDir);
+
+        // Act
+        listingCache.onFileChanged(new FileChangedEvent(tempDir.resolve("uploaded.txt")));
+        list(tempDir);
+
+        // Assert
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void get_shouldReloadExpiredListings() throws IOException {
+        // Arrange
+        listingCache = new ListingCacheImpl(directoryWatchService, meterRegistry, 2, Duration.ZERO, 10, 10);
+
+        // Act
+        list(tempDir);
+        list(tempDir);
+
+        // Assert
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void get_shouldEvictLeastRecentlyUsedDirectory() throws IOException {
+        // Arrange
+        Path first = Files.createDirectory(tempDir.resolve("first"));
+        Path second = Files.createDirectory(tempDir.resolve("second"));
+        Path third = Files.createDirectory(tempDir.resolve("third"));
+        list(first);
+        list(second);
+        list(first);
+
+        // Act
+        list(third);
+        int before = loads.get();
+        list(first);
+        list(second);
+
+        // Assert
+        assertEquals(3, before);
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    void getIfPresent_shouldOnlyReturnCachedListings() throws IOException {
+        // Arrange
+        Files.writeString(tempDir.resolve("a.txt"), "a");
+        assertNull(listingCache.getIfPresent(tempDir));
+        List<FileInfo> listed = list(tempDir);
+
+        // Act
+        List<FileInfo> cached = listingCache.getIfPresent(tempDir);
+
+        // Assert
+        assertEquals(listed, cached);
+        assertEquals(1, loads.get());
+        assertEquals(1, count("hit"));
+    }
+
+    @Test
+    void get_shouldNotCacheLargeDirectories() throws IOException {
+        // Arrange
+        for (int i = 0; i < 11; i++) {
+            Files.writeString(tempDir.resolve("file" + i), "x");
+        }
+
+        // Act
+        list(tempDir);
+        list(tempDir);
+
+        // Assert
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void getSortedNames_shouldReloadAfterWatchEvent() throws Exception {
+        // Arrange
+        Files.writeString(tempDir.resolve("b.txt"), "b");
+        String[] first = names(tempDir);
+
+        // Act
+        String[] cached = names(tempDir);
+        Files.writeString(tempDir.resolve("a.txt"), "a");
+        String[] names = names(tempDir);
+        for (int i = 0; i < 100 && names.length == 1; i++) {
+            Thread.sleep(50);
+            names = names(tempDir);
+        }
+
+        // Assert
+        assertSame(first, cached);
+        assertArrayEquals(new String[] {"a.txt", "b.txt"}, names);
+    }
+
+    @Test
+    void getSortedNames_shouldKeepSnapshotsWithinNameBudget() throws IOException {
+        // Arrange
+        Path first = Files.createDirectory(tempDir.resolve("first"));
+        Path second = Files.createDirectory(tempDir.resolve("second"));
+        for (int i = 0; i < 6; i++) {
+            Files.writeString(first.resolve("file" + i), "x");
+            Files.writeString(second.resolve("file" + i), "x");
+        }
+        names(first);
+
+        // Act
+        names(second);
+        names(second);
+        names(first);
+
+        // Assert
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    void getSortedNames_shouldNotKeepDirectoriesOverNameBudget() throws IOException {
+        // Arrange
+        for (int i = 0; i < 11; i++) {
+            Files.writeString(tempDir.resolve("file" + i), "x");
+        }
+
+        // Act & Assert
+        assertNull(names(tempDir));
+        assertNull(names(tempDir));
+        assertEquals(2, loads.get());
+    }
+}
@@ -1,17 +1,30 @@
 package ludo.mentis.aciem.controlserver.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import ludo.mentis.aciem.controlserver.model.AllowedDirectoriesChangedEvent;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationEventPublisher;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.time.Duration;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
 
 class PathValidationServiceTest {
 
     private PathValidationServiceImpl pathValidationService;
+    private DirectoryWatchService directoryWatchService;
+    private ApplicationEventPublisher eventPublisher;
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
     
     @TempDir
     Path tempDir;
@@ -27,7 +40,10 @@ class PathValidationServiceTest {
         
         // Configure the service with the allowed directories
         String allowedDirs = allowedDir1 + "," + allowedDir2;
-        pathValidationService = new PathValidationServiceImpl(allowedDirs);
+        directoryWatchService = mock(DirectoryWatchService.class);
+        eventPublisher = mock(ApplicationEventPublisher.class);
+        pathValidationService = new PathValidationServiceImpl(directoryWatchService, eventPublisher, meterRegistry,
+                allowedDirs, "", 100, Duration.ofMinutes(1));
     }
     
     @Test
@@ -66,6 +82,18 @@ class PathValidationServiceTest {
         assertFalse(pathValidationService.isPathAllowed(traversalPath.toString()));
     }
     
+    @Test
+    void isPathAllowed_shouldTimeChecksByResult() {
+        // Act
+        pathValidationService.isPathAllowed(allowedDir1.resolve("file.txt"));
+        pathValidationService.isPathAllowed(allowedDir2.resolve("file.txt"));
+        pathValidationService.isPathAllowed(tempDir.resolve("outside"));
+
+        // Assert
+        assertEquals(2, meterRegistry.get("file.path.validation").tag("result", "allowed").timer().count());
+        assertEquals(1, meterRegistry.get("file.path.validation").tag("result", "denied").timer().count());
+    }
+    
     @Test
     void validateAndSanitizePath_shouldReturnNormalizedPathForAllowedPaths() throws IOException {
         // Test with an allowed path
@@ -99,6 +127,55 @@ class PathValidationServiceTest {
                 () -> pathValidationService.validateAndSanitizePath(traversalPath));
     }
     
+    @Test
+    void isPathAllowed_shouldReturnFalseForLinksLeadingOutOfAllowedDirectories() throws IOException {
+        // Arrange
+        Path outside = Files.createDirectories(tempDir.resolve("outside"));
+        Files.createDirectories(allowedDir1);
+        Files.createSymbolicLink(allowedDir1.resolve("escape"), outside);
+
+        // Act & Assert
+        assertFalse(pathValidationService.isPathAllowed(allowedDir1.resolve("escape").toString()));
+        assertFalse(pathValidationService.isPathAllowed(allowedDir1.resolve("escape/new.txt").toString()));
+        assertFalse(pathValidationService.isPathAllowed(allowedDir1.resolve("escape/nested/new.txt").toString()));
+    }
+
+    @Test
+    void isPathAllowed_shouldReturnTrueForLinksBetweenAllowedDirectories() throws IOException {
+        // Arrange
+        Files.createDirectories(allowedDir1);
+        Path target = Files.createDirectories(allowedDir2.resolve("shared"));
+        Files.createSymbolicLink(allowedDir1.resolve("shared"), target);
+
+        // Act & Assert
+        assertTrue(pathValidationService.isPathAllowed(allowedDir1.resolve("shared/file.txt").toString()));
+    }
+
+    @Test
+    void isPathAllowed_shouldReturnFalseForDanglingLinks() throws IOException {
+        // Arrange
+        Files.createDirectories(allowedDir1);
+        Files.createSymbolicLink(allowedDir1.resolve("dangling"), tempDir.resolve("outside/missing.txt"));
+
+        // Act & Assert
+        assertFalse(pathValidationService.isPathAllowed(allowedDir1.resolve("dangling").toString()));
+    }
+
+    @Test
+    void isPathAllowed_shouldNotUseCachedRealPathOfReplacedDirectory() throws IOException {
+        // Arrange
+        Path outside = Files.createDirectories(tempDir.resolve("outside"));
+        Path directory = Files.createDirectories(allowedDir1.resolve("data"));
+        assertTrue(pathValidationService.isPathAllowed(directory.resolve("file.txt").toString()));
+
+        // Act
+        Files.delete(directory);
+        Files.createSymbolicLink(directory, outside);
+
+        // Assert
+        assertFalse(pathValidationService.isPathAllowed(directory.resolve("file.txt").toString()));
+    }
+
     @Test
     void getAllowedDirectories_shouldReturnConfiguredDirectories() {
         // Should return the two configured directories
@@ -108,4 +185,66 @@ class PathValidationServiceTest {
         assertTrue(pathValidationService.getAllowedDirectories().contains(allowedDir1.normalize()));
         assertTrue(pathValidationService.getAllowedDirectories().contains(allowedDir2.normalize()));
     }
-}
\ No newline at end of file
+
+    @Test
+    void reload_shouldReplaceAllowedDirectoriesAndPublishEvent() {
+        // Arrange
+        Path allowedDir3 = tempDir.resolve("allowed3");
+
+        // Act
+        List<Path> directories = pathValidationService.reload(List.of(allowedDir3.toString(), " "));
+
+        // Assert
+        assertEquals(List.of(allowedDir3), directories);
+        assertEquals(List.of(allowedDir3), pathValidationService.getAllowedDirectories());
+        assertTrue(pathValidationService.isPathAllowed(allowedDir3.resolve("file.txt")));
+        assertFalse(pathValidationService.isPathAllowed(allowedDir1.resolve("file.txt")));
+        verify(eventPublisher).publishEvent(new AllowedDirectoriesChangedEvent(List.of(allowedDir3)));
+    }
+
+    @Test
+    void reload_shouldRejectEmptyListAndKeepAllowedDirectories() {
+        // Act & Assert
+        assertThrows(IllegalArgumentException.class, () -> pathValidationService.reload(List.of(" ")));
+        assertTrue(pathValidationService.isPathAllowed(allowedDir1.resolve("file.txt")));
+        verifyNoInteractions(eventPublisher);
+    }
+
+    @Test
+    void snapshot_shouldKeepAllowedDirectoriesOfWhenItWasTaken() {
+        // Arrange
+        PathValidationService.Snapshot snapshot = pathValidationService.snapshot();
+
+        // Act
+        pathValidationService.reload(List.of(allowedDir2.toString()));
+
+        // Assert
+        assertTrue(snapshot.isPathAllowed(allowedDir1.resolve("file.txt")));
+        assertFalse(pathValidationService.isPathAllowed(allowedDir1.resolve("file.txt")));
+        assertFalse(pathValidationService.snapshot().isPathAllowed(allowedDir1.resolve("file.txt")));
+    }
+
+    @Test
+    void allowedDirectoriesFile_shouldOverridePropertyAndReloadWhenChanged() throws IOException {
+        // Arrange
+        Path file = tempDir.resolve("allowed-directories.txt");
+        Files.writeString(file, "# volumes\n" + allowedDir1 + "\n\n");
+        PathValidationServiceImpl service = new PathValidationServiceImpl(directoryWatchService, eventPublisher,
+                meterRegistry, allowedDir2.toString(), file.toString(), 100, Duration.ofMinutes(1));
+        ArgumentCaptor<DirectoryWatchService.DirectoryListener> listener =
+                ArgumentCaptor.forClass(DirectoryWatchService.DirectoryListener.class);
+        verify(directoryWatchService).watch(eq(tempDir.toAbsolutePath()), listener.capture());
+        assertEquals(List.of(allowedDir1), service.getAllowedDirectories());
+
+        // Act
+        Files.writeString(file, allowedDir2 + "\n");
+        listener.getValue().onChange(tempDir, file, StandardWatchEventKinds.ENTRY_MODIFY);
+        Files.delete(file);
+        listener.getValue().onChange(tempDir, file, StandardWatchEventKinds.ENTRY_DELETE);
+
+        // Assert
+        assertEquals(List.of(allowedDir2), service.getAllowedDirectories());
+        assertTrue(service.isPathAllowed(allowedDir2.resolve("file.txt")));
+        assertFalse(service.isPathAllowed(allowedDir1.resolve("file.txt")));
+    }
+}
@@ -0,0 +1,246 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import ludo.mentis.aciem.controlserver.model.FileChangedEvent;
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.model.SearchType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+class SearchIndexServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    private PathValidationService pathValidationService;
+
+    private TreeWalkServiceImpl treeWalkService;
+    private DirectoryWatchServiceImpl directoryWatchService;
+    private SimpleMeterRegistry meterRegistry;
+    private final List<SearchIndexServiceImpl> services = new ArrayList<>();
+    private Path root;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        MockitoAnnotations.openMocks(this);
+        root = Files.createDirectory(tempDir.resolve("root"));
+        when(pathValidationService.isPathAllowed(any(Path.class))).thenReturn(true);
+        when(pathValidationService.getAllowedDirectories()).thenReturn(List.of(root));
+        when(pathValidationService.snapshot()).thenReturn(pathValidationService::isPathAllowed);
+        treeWalkService = new TreeWalkServiceImpl(pathValidationService, 4);
+        directoryWatchService = new DirectoryWatchServiceImpl();
+        meterRegistry = new SimpleMeterRegistry();
+
+        Files.createDirectories(root.resolve("logs/archive"));
+        Files.createDirectories(root.resolve("src/main"));
+        Files.writeString(root.resolve("logs/server.log"), "log");
+        Files.writeString(root.resolve("logs/archive/Server-2024.log.gz"), "old");
+        Files.writeString(root.resolve("src/main/ServerApplication.java"), "class");
+        Files.writeString(root.resolve("README.md"), "readme");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        services.forEach(SearchIndexServiceImpl::destroy);
+        treeWalkService.destroy();
+        directoryWatchService.destroy();
+    }
+
+    private SearchIndexServiceImpl createService(int segmentSize) {
+        return createService(segmentSize, true);
+    }
+
+    private SearchIndexServiceImpl createService(int segmentSize, boolean enabled) {
+        SearchIndexServiceImpl service = new SearchIndexServiceImpl(pathValidationService, treeWalkService,
+                directoryWatchService, meterRegistry, enabled, tempDir.resolve("index").toString(), segmentSize,
+                Duration.ZERO);
+        services.add(service);
+        return service;
+    }
+
+    private static List<String> names(List<FileInfo> files) {
+        return files.stream().map(file -> Path.of(file.name()).getFileName().toString()).toList();
+    }
+
+    private static void await(Supplier<Boolean> condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    void search_shouldAnswerPrefixSubstringAndGlobQueries() throws IOException {
+        // Arrange
+        SearchIndexServiceImpl service = createService(1000);
+
+        // Act
+        service.rebuild();
+
+        // Assert
+        assertEquals(List.of("server-2024.log.gz", "server.log", "serverapplication.java"),
+                names(service.search(SearchType.PREFIX, "SERVER", 10)).stream().map(String::toLowerCase).toList());
+        assertEquals(List.of("ServerApplication.java"), names(service.search(SearchType.SUBSTRING, "applic", 10)));
+        assertEquals(List.of("server.log"), names(service.search(SearchType.GLOB, "*.log", 10)));
+        assertEquals(List.of("Server-2024.log.gz"), names(service.search(SearchType.GLOB, "**/archive/*", 10)));
+        assertEquals(List.of("README.md"), names(service.search(SearchType.SUBSTRING, "me", 10)));
+        assertTrue(service.search(SearchType.SUBSTRING, "missing", 10).isEmpty());
+    }
+
+    @Test
+    void search_shouldReportFullPathsAndAttributes() throws IOException {
+        // Arrange
+        SearchIndexServiceImpl service = createService(1000);
+        service.rebuild();
+
+        // Act
+        List<FileInfo> files = service.search(SearchType.PREFIX, "logs", 10);
+        List<FileInfo> readme = service.search(SearchType.PREFIX, "readme", 10);
+
+        // Assert
+        assertEquals(1, files.size());
+        assertEquals(root.resolve("logs").toString(), files.get(0).name());
+        assertTrue(files.get(0).directory());
+        assertEquals(6, readme.get(0).size());
+        assertFalse(readme.get(0).directory());
+    }
+
+    @Test
+    void search_shouldMergeSegmentsInNameOrderUpToLimit() throws IOException {
+        // Arrange
+        for (int i = 0; i < 9; i++) {
+            Files.writeString(root.resolve("report-" + i + ".csv"), "data");
+        }
+        SearchIndexServiceImpl service = createService(2);
+
+        // Act
+        service.rebuild();
+        List<FileInfo> files = service.search(SearchType.SUBSTRING, "report", 4);
+
+        // Assert
+        assertEquals(List.of("report-0.csv", "report-1.csv", "report-2.csv", "report-3.csv"), names(files));
+        assertTrue(Files.exists(tempDir.resolve("index/CURRENT")));
+    }
+
+    @Test
+    void search_shouldFailBeforeIndexIsBuilt() {
+        // Arrange
+        SearchIndexServiceImpl service = createService(1000);
+
+        // Act & Assert
+        assertFalse(service.isReady());
+        assertThrows(IllegalStateException.class, () -> service.search(SearchType.PREFIX, "server", 10));
+    }
+
+    @Test
+    void loadPersisted_shouldServeQueriesFromPreviousGeneration() throws IOException {
+        // Arrange
+        createService(2).rebuild();
+        SearchIndexServiceImpl restarted = createService(2);
+
+        // Act
+        boolean loaded = restarted.loadPersisted();
+
+        // Assert
+        assertTrue(loaded);
+        assertTrue(restarted.isReady());
+        assertEquals(List.of("ServerApplication.java"), names(restarted.search(SearchType.SUBSTRING, "applic", 10)));
+    }
+
+    @Test
+    void loadPersisted_shouldIgnoreIndexOfOtherDirectories() throws IOException {
+        // Arrange
+        createService(1000).rebuild();
+        when(pathValidationService.getAllowedDirectories()).thenReturn(List.of(root.resolve("logs")));
+        SearchIndexServiceImpl restarted = createService(1000);
+
+        // Act & Assert
+        assertFalse(restarted.loadPersisted());
+        assertFalse(restarted.isReady());
+    }
+
+    @Test
+    void search_shouldFollowWatchEvents() throws Exception {
+        // Arrange
+        SearchIndexServiceImpl service = createService(1000);
+        service.rebuild();
+
+        // Act
+        Path created = Files.createDirectories(root.resolve("logs/new/nested"));
+        Files.writeString(created.resolve("fresh.log"), "new");
+        Files.writeString(root.resolve("logs/created.log"), "new");
+        await(() -> service.search(SearchType.GLOB, "*.log", 10).size() == 3);
+        List<String> afterCreate = names(service.search(SearchType.GLOB, "*.log", 10));
+
+        Files.delete(root.resolve("logs/archive/Server-2024.log.gz"));
+        Files.delete(root.resolve("logs/archive"));
+        await(() -> service.search(SearchType.SUBSTRING, "archive", 10).isEmpty());
+
+        // Assert
+        assertEquals(List.of("created.log", "fresh.log", "server.log"), afterCreate);
+        assertTrue(service.search(SearchType.SUBSTRING, "archive", 10).isEmpty());
+        assertTrue(service.search(SearchType.SUBSTRING, "2024", 10).isEmpty());
+    }
+
+    @Test
+    void search_shouldHideEntriesOfRemovedAllowedDirectoryBeforeRebuild() throws IOException {
+        // Arrange
+        SearchIndexServiceImpl service = createService(1000);
+        service.rebuild();
+        Path remaining = root.resolve("src");
+        when(pathValidationService.getAllowedDirectories()).thenReturn(List.of(remaining));
+        when(pathValidationService.isPathAllowed(any(Path.class)))
+                .thenAnswer(invocation -> invocation.<Path>getArgument(0).startsWith(remaining));
+
+        // Act
+        List<FileInfo> files = service.search(SearchType.PREFIX, "server", 10);
+
+        // Assert
+        assertEquals(List.of("ServerApplication.java"), names(files));
+    }
+
+    @Test
+    void onFileChanged_shouldBeIgnoredWhenIndexIsDisabled() throws Exception {
+        // Arrange
+        SearchIndexServiceImpl service = createService(0, false);
+
+        // Act
+        service.onFileChanged(new FileChangedEvent(root.resolve("README.md")));
+        Thread.sleep(200);
+
+        // Assert
+        assertFalse(service.isReady());
+    }
+
+    @Test
+    void rebuild_shouldRecordTimers() throws IOException {
+        // Arrange
+        SearchIndexServiceImpl service = createService(1000);
+
+        // Act
+        service.rebuild();
+        service.search(SearchType.PREFIX, "server", 10);
+
+        // Assert
+        assertEquals(1, meterRegistry.get("file.search.rebuild").timer().count());
+        assertEquals(1, meterRegistry.get("file.search.query").tag("type", "prefix").timer().count());
+        assertEquals(8, meterRegistry.get("file.search.entries").gauge().value());
+    }
+}
@@ -0,0 +1,119 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import ludo.mentis.aciem.controlserver.model.TransferDirection;
+import ludo.mentis.aciem.controlserver.model.TransferRate;
+import ludo.mentis.aciem.controlserver.model.TransferStats;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferSchedulerTest {
+
+    private TransferSchedulerImpl transferScheduler;
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+        if (transferScheduler != null) {
+            transferScheduler.destroy();
+        }
+    }
+
+    private TransferSchedulerImpl scheduler(DataSize rate, DataSize keyRate, String weights) {
+        transferScheduler = new TransferSchedulerImpl(new SimpleMeterRegistry(), rate, keyRate, weights,
+                DataSize.ofKilobytes(4), 2);
+        return transferScheduler;
+    }
+
+    private static void authenticate(String key) {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(key, null, List.of()));
+    }
+
+    @Test
+    void shape_shouldReturnContentWhenShapingIsDisabled() {
+        // Arrange
+        TransferSchedulerImpl scheduler = scheduler(DataSize.ofBytes(0), DataSize.ofBytes(0), "");
+        InputStream content = new ByteArrayInputStream(new byte[10]);
+
+        // Act & Assert
+        assertFalse(scheduler.isShaping());
+        assertSame(content, scheduler.shape(content, "file.bin"));
+        assertThrows(IllegalStateException.class, () -> scheduler.open(TransferDirection.DOWNLOAD, "file.bin"));
+    }
+
+    @Test
+    void shape_shouldLimitUploadToKeyRate() throws IOException {
+        // Arrange
+        TransferSchedulerImpl scheduler = scheduler(DataSize.ofBytes(0), DataSize.ofKilobytes(100), "");
+        authenticate("ops");
+        long start = System.nanoTime();
+
+        // Act
+        try (InputStream content = scheduler.shape(new ByteArrayInputStream(new byte[40 * 1024]), "file.bin")) {
+            assertEquals(1, scheduler.streams().size());
+            assertEquals(40 * 1024, content.readAllBytes().length);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // Assert
+        // A bucket starts with 5 KB, so the other 35 KB take at least 350 ms at 100 KB/s
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(300), "Took " + elapsed + " ns");
+        assertTrue(scheduler.streams().isEmpty());
+        TransferRate rate = scheduler.rates().get(0);
+        assertEquals("ops", rate.key());
+        assertEquals(TransferDirection.UPLOAD, rate.direction());
+        assertEquals(0, rate.streams());
+        assertEquals(40 * 1024, rate.bytes());
+        assertTrue(rate.bytesPerSecond() > 0);
+    }
+
+    @Test
+    void acquire_shouldShareSaturatedLaneByKeyWeight() throws Exception {
+        // Arrange
+        TransferSchedulerImpl scheduler = scheduler(DataSize.ofKilobytes(400), DataSize.ofBytes(0), "heavy:3");
+        authenticate("heavy");
+        TransferScheduler.Stream heavy = scheduler.open(TransferDirection.DOWNLOAD, "heavy.bin");
+        authenticate("light");
+        TransferScheduler.Stream light = scheduler.open(TransferDirection.DOWNLOAD, "light.bin");
+        AtomicLong heavyBytes = new AtomicLong();
+        AtomicLong lightBytes = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+
+        // Act
+        keepSending(heavy, heavyBytes, done);
+        keepSending(light, lightBytes, done);
+        Thread.sleep(1000);
+        done.countDown();
+
+        // Assert
+        double ratio = heavyBytes.get() / (double) lightBytes.get();
+        assertTrue(ratio > 2 && ratio < 4.5, "Ratio " + ratio);
+        List<TransferStats> streams = scheduler.streams();
+        assertEquals(List.of("heavy.bin", "light.bin"), streams.stream().map(TransferStats::name).toList());
+        heavy.close();
+        light.close();
+    }
+
+    private static void keepSending(TransferScheduler.Stream stream, AtomicLong bytes, CountDownLatch done) {
+        // Always one grant pending, as a download whose client keeps up would have
+        stream.acquire(stream.quantum(), () -> {
+            bytes.addAndGet(stream.quantum());
+            if (done.getCount() > 0) {
+                keepSending(stream, bytes, done);
+            }
+        });
+    }
+}
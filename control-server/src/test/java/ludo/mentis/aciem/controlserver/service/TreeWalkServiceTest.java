@@ -0,0 +1,176 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.util.TreeFilter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+class TreeWalkServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    private PathValidationService pathValidationService;
+
+    private TreeWalkServiceImpl treeWalkService;
+    private Path root;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        MockitoAnnotations.openMocks(this);
+        root = Files.createDirectory(tempDir.resolve("root"));
+
+        // Only the root tree is allowed, whatever the real path of the temp directory is
+        Path allowed = root.toRealPath();
+        when(pathValidationService.isPathAllowed(any(Path.class))).thenAnswer(invocation -> {
+            Path path = invocation.getArgument(0);
+            return path.startsWith(root) || path.startsWith(allowed);
+        });
+
+        when(pathValidationService.snapshot()).thenReturn(pathValidationService::isPathAllowed);
+        treeWalkService = new TreeWalkServiceImpl(pathValidationService, 4);
+
+        Files.writeString(root.resolve("a.txt"), "a");
+        Files.createDirectories(root.resolve("logs/2024"));
+        Files.writeString(root.resolve("logs/app.log"), "0123456789");
+        Files.writeString(root.resolve("logs/2024/old.log"), "old");
+        Files.createDirectories(root.resolve("skip"));
+        Files.writeString(root.resolve("skip/hidden.log"), "hidden");
+    }
+
+    @AfterEach
+    void tearDown() {
+        treeWalkService.destroy();
+    }
+
+    private List<String> walk(TreeFilter filter) throws IOException {
+        List<String> names = Collections.synchronizedList(new ArrayList<>());
+        long count = treeWalkService.walk(root, filter, file -> names.add(file.name()));
+        assertEquals(count, names.size());
+        return names.stream().sorted().toList();
+    }
+
+    private static TreeFilter all() {
+        return TreeFilter.of(null, null, null, null, null, null, null);
+    }
+
+    @Test
+    void walk_shouldReportWholeTreeWithRelativeNames() throws IOException {
+        // Act
+        List<String> names = walk(all());
+
+        // Assert
+        assertEquals(List.of("a.txt", "logs", "logs/2024", "logs/2024/old.log", "logs/app.log", "skip", "skip/hidden.log"),
+                names);
+    }
+
+    @Test
+    void walk_shouldStopAtMaxDepth() throws IOException {
+        // Act
+        List<String> names = walk(TreeFilter.of(2, null, null, null, null, null, null));
+
+        // Assert
+        assertEquals(List.of("a.txt", "logs", "logs/2024", "logs/app.log", "skip", "skip/hidden.log"), names);
+    }
+
+    @Test
+    void walk_shouldApplyGlobsAndPruneExcludedDirectories() throws IOException {
+        // Act
+        List<String> names = walk(TreeFilter.of(null, List.of("*.log"), List.of("skip"), null, null, null, null));
+
+        // Assert
+        assertEquals(List.of("logs/2024/old.log", "logs/app.log"), names);
+    }
+
+    @Test
+    void walk_shouldMatchGlobsWithSlashAgainstRelativePath() throws IOException {
+        // Act
+        List<String> names = walk(TreeFilter.of(null, List.of("logs/*"), null, null, null, null, null));
+
+        // Assert
+        assertEquals(List.of("logs/2024", "logs/app.log"), names);
+    }
+
+    @Test
+    void walk_shouldApplySizeAndTimePredicates() throws IOException {
+        // Arrange
+        Files.setLastModifiedTime(root.resolve("logs/2024/old.log"), FileTime.from(Instant.parse("2024-01-01T00:00:00Z")));
+        long cutoff = Instant.parse("2025-01-01T00:00:00Z").toEpochMilli();
+
+        // Act
+        List<String> large = walk(TreeFilter.of(null, List.of("*.log"), null, 5L, null, null, null));
+        List<String> old = walk(TreeFilter.of(null, null, null, null, null, null, cutoff));
+
+        // Assert
+        assertEquals(List.of("logs/app.log", "skip/hidden.log"), large);
+        assertEquals(List.of("logs/2024/old.log"), old);
+    }
+
+    @Test
+    void walk_shouldNotFollowLinksOutOfAllowedDirectories() throws IOException {
+        // Arrange
+        Path outside = Files.createDirectory(tempDir.resolve("outside"));
+        Files.writeString(outside.resolve("secret.txt"), "secret");
+        Files.createSymbolicLink(root.resolve("escape"), outside);
+
+        // Act
+        List<FileInfo> files = new ArrayList<>();
+        treeWalkService.walk(root, TreeFilter.of(null, List.of("escape*"), null, null, null, null, null), files::add);
+
+        // Assert
+        assertEquals(1, files.size());
+        assertFalse(files.get(0).directory());
+        assertTrue(walk(all()).stream().noneMatch(name -> name.contains("secret")));
+    }
+
+    @Test
+    void walk_shouldFollowLinksWithinAllowedDirectoriesWithoutLooping() throws IOException {
+        // Arrange
+        Files.createSymbolicLink(root.resolve("logs/2024/up"), root.resolve("logs"));
+
+        // Act
+        List<String> names = walk(all());
+
+        // Assert
+        assertTrue(names.contains("logs/2024/up"));
+        assertEquals(names.stream().distinct().count(), names.size());
+        assertTrue(names.stream().noneMatch(name -> name.startsWith("logs/2024/up/")));
+    }
+
+    @Test
+    void walk_shouldStopWhenConsumerFails() {
+        // Act & Assert
+        List<FileInfo> files = new ArrayList<>();
+        IOException exception = assertThrows(IOException.class, () -> treeWalkService.walk(root, all(), file -> {
+            files.add(file);
+            throw new IOException("Broken pipe");
+        }));
+        assertEquals("Broken pipe", exception.getMessage());
+        assertEquals(1, files.size());
+    }
+
+    @Test
+    void of_shouldRejectMalformedPatterns() {
+        // Act & Assert
+        assertThrows(IllegalArgumentException.class, () -> TreeFilter.of(null, List.of("a[b"), null, null, null, null, null));
+        assertThrows(IllegalArgumentException.class, () -> TreeFilter.of(0, null, null, null, null, null, null));
+    }
+}
@@ -0,0 +1,346 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import ludo.mentis.aciem.controlserver.model.ByteRange;
+import ludo.mentis.aciem.controlserver.model.UploadSession;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+class UploadSessionServiceTest {
+
+    private UploadSessionServiceImpl uploadSessionService;
+
+    @Mock
+    private PathValidationService pathValidationService;
+
+    @TempDir
+    Path tempDir;
+
+    private Path uploadDir;
+    private Path sessionsDir;
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        MockitoAnnotations.openMocks(this);
+
+        when(pathValidationService.validateAndSanitizePath(any(String.class)))
+                .thenAnswer(invocation -> Path.of((String) invocation.getArgument(0)).normalize().toAbsolutePath());
+        when(pathValidationService.isPathAllowed(any(Path.class))).thenReturn(true);
+
+        uploadDir = tempDir.resolve("uploads");
+        sessionsDir = tempDir.resolve("sessions");
+        uploadSessionService = newService();
+    }
+
+    @AfterEach
+    void tearDown() {
+        uploadSessionService.destroy();
+    }
+
+    private UploadSessionServiceImpl newService() throws IOException {
+        return newService(Duration.ofHours(1));
+    }
+
+    private UploadSessionServiceImpl newService(Duration sessionTtl) throws IOException {
+        return new UploadSessionServiceImpl(pathValidationService,
+                new FileCommitServiceImpl("fsync", "", Duration.ZERO, event -> { }), meterRegistry, sessionsDir.toString(),
+                sessionTtl);
+    }
+
+    private static ByteArrayInputStream chunk(String content) {
+        return new ByteArrayInputStream(content.getBytes());
+    }
+
+    @Test
+    void commit_shouldAssembleChunksWrittenOutOfOrder() throws IOException {
+        // Arrange
+        UploadSession session = uploadSessionService.createSession(uploadDir.toString(), "data.txt", -1);
+
+        // Act
+        uploadSessionService.writeChunk(session.id(), 6, chunk("world"));
+        UploadSession state = uploadSessionService.writeChunk(session.id(), 0, chunk("hello "));
+        Path savedPath = uploadSessionService.commit(session.id());
+
+        // Assert
+        assertEquals(List.of(new ByteRange(0, 11)), state.receivedRanges());
+        assertEquals(uploadDir.resolve("data.txt"), savedPath);
+        assertEquals("hello world", Files.readString(savedPath));
+        assertThrows(IOException.class, () -> uploadSessionService.getSession(session.id()));
+        try (var leftovers = Files.list(sessionsDir)) {
+            assertEquals(0, leftovers.count());
+        }
+    }
+
+    @Test
+    void commit_shouldRecordChunksAndCommitInFileMetrics() throws IOException {
+        // Arrange
+        UploadSession session = uploadSessionService.createSession(uploadDir.toString(), "data.txt", -1);
+
+        // Act
+        uploadSessionService.writeChunk(session.id(), 0, chunk("hello "));
+        uploadSessionService.writeChunk(session.id(), 6, chunk("world"));
+        uploadSessionService.commit(session.id());
+
+        // Assert
+        assertEquals(2, meterRegistry.get("file.operations").tags("operation", "session-chunk", "outcome", "success")
+                .timer().count());
+        assertEquals(1, meterRegistry.get("file.operations").tags("operation", "session-commit", "outcome", "success")
+                .timer().count());
+        assertEquals(11, meterRegistry.get("file.transferred").tag("direction", "upload").counter().count());
+    }
+
+    @Test
+    void commit_shouldRejectSessionWithGaps() throws IOException {
+        // Arrange
+        UploadSession session = uploadSessionService.createSession(uploadDir.toString(), "data.txt", -1);
+        uploadSessionService.writeChunk(session.id(), 0, chunk("hello"));
+        uploadSessionService.writeChunk(session.id(), 10, chunk("world"));
+
+        // Act & Assert
+        IOException exception = assertThrows(IOException.class, () -> uploadSessionService.commit(session.id()));
+        assertTrue(exception.getMessage().contains("incomplete"));
+        assertFalse(Files.exists(uploadDir.resolve("data.txt")));
+    }
+
+    @Test
+    void commit_shouldRequireEveryByteOfDeclaredSize() throws IOException {
+        // Arrange
+        UploadSession session = uploadSessionService.createSession(uploadDir.toString(), "data.txt", 11);
+        uploadSessionService.writeChunk(session.id(), 0, chunk("hello "));
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> uploadSessionService.commit(session.id()));
+        uploadSessionService.writeChunk(session.id(), 6, chunk("world"));
+        assertEquals("hello world", Files.readString(uploadSessionService.commit(session.id())));
+    }
+
+    @Test
+    void writeChunk_shouldRejectBytesBeyondDeclaredSize() throws IOException {
+        // Arrange
+        UploadSession session = uploadSessionService.createSession(uploadDir.toString(), "data.txt", 4);
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> uploadSessionService.writeChunk(session.id(), 2, chunk("abc")));
+        assertThrows(IOException.class, () -> uploadSessionService.writeChunk(session.id(), 5, chunk("a")));
+    }
+
+    @Test
+    void writeChunk_shouldAssembleRangesWrittenConcurrently() throws Exception {
+        // Arrange
+        int chunkSize = 1024;
+        int chunks = 32;
+        byte[] content = new byte[chunkSize * chunks];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        UploadSession session = uploadSessionService.createSession(uploadDir.toString(), "data.bin", content.length);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+
+        // Act
+        try {
+            List<Future<UploadSession>> results = new ArrayList<>();
+            for (int i = chunks - 1; i >= 0; i--) {
+                int offset = i * chunkSize;
+                results.add(pool.submit(() -> uploadSessionService.writeChunk(session.id(), offset,
+                        new ByteArrayInputStream(content, offset, chunkSize))));
+            }
+            for (Future<UploadSession> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Path savedPath = uploadSessionService.commit(session.id());
+
+        // Assert
+        assertArrayEquals(content, Files.readAllBytes(savedPath));
+    }
+
+    @Test
+    void commit_shouldWaitForChunkBeingWritten() throws Exception {
+        // Arrange
+        UploadSession session = uploadSessionService.createSession(uploadDir.toString(), "data.txt", 11);
+        uploadSessionService.writeChunk(session.id(), 0, chunk("hello"));
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        InputStream slowChunk = new InputStream() {
+            private final InputStream content = chunk(" world");
+
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return content.read();
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+
+        // Act
+        Path savedPath;
+        try {
+            Future<UploadSession> write = pool.submit(() -> uploadSessionService.writeChunk(session.id(), 5, slowChunk));
+            assertTrue(reading.await(5, TimeUnit.SECONDS));
+            Future<Path> commit = pool.submit(() -> uploadSessionService.commit(session.id()));
+            assertThrows(TimeoutException.class, () -> commit.get(200, TimeUnit.MILLISECONDS));
+            release.countDown();
+            write.get(5, TimeUnit.SECONDS);
+            savedPath = commit.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+
+        // Assert
+        assertEquals("hello world", Files.readString(savedPath));
+        IOException exception = assertThrows(IOException.class,
+                () -> uploadSessionService.writeChunk(session.id(), 0, chunk("HELLO")));
+        assertTrue(exception.getMessage().contains("not found"));
+        assertEquals("hello world", Files.readString(savedPath));
+    }
+
+    @Test
+    void getSession_shouldReportReceivedRanges() throws IOException {
+        // Arrange
+        UploadSession session = uploadSessionService.createSession(uploadDir.toString(), "data.txt", -1);
+        uploadSessionService.writeChunk(session.id(), 0, chunk("abc"));
+        uploadSessionService.writeChunk(session.id(), 10, chunk("xyz"));
+
+        // Act
+        UploadSession state = uploadSessionService.getSession(session.id());
+
+        // Assert
+        assertEquals(List.of(new ByteRange(0, 3), new ByteRange(10, 13)), state.receivedRanges());
+        assertEquals(6, state.receivedBytes());
+    }
+
+    @Test
+    void sessions_shouldSurviveRestart() throws IOException {
+        // Arrange
+        UploadSession session = uploadSessionService.createSession(uploadDir.toString(), "data.txt", -1);
+        uploadSessionService.writeChunk(session.id(), 0, chunk("hello "));
+
+        // Act
+        UploadSessionServiceImpl restarted = newService();
+        UploadSession recovered = restarted.getSession(session.id());
+        restarted.writeChunk(session.id(), 6, chunk("again"));
+        Path savedPath = restarted.commit(session.id());
+
+        // Assert
+        assertEquals(List.of(new ByteRange(0, 6)), recovered.receivedRanges());
+        assertEquals("hello again", Files.readString(savedPath));
+        restarted.destroy();
+    }
+
+    @Test
+    void sessions_shouldBePurgedInBackgroundOnceIdleForTtl() throws Exception {
+        // Arrange
+        uploadSessionService.destroy();
+        uploadSessionService = newService(Duration.ofMillis(50));
+        UploadSession session = uploadSessionService.createSession(uploadDir.toString(), "data.txt", 10);
+        uploadSessionService.writeChunk(session.id(), 0, chunk("hello"));
+
+        // Act
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((hasSession(session.id()) || fileCount(uploadDir) + fileCount(sessionsDir) > 0)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // Assert
+        assertFalse(hasSession(session.id()));
+        assertEquals(0, fileCount(uploadDir));
+        assertEquals(0, fileCount(sessionsDir));
+    }
+
+    private static long fileCount(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private boolean hasSession(String id) {
+        try {
+            uploadSessionService.getSession(id);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Test
+    void abort_shouldDiscardReceivedData() throws IOException {
+        // Arrange
+        UploadSession session = uploadSessionService.createSession(uploadDir.toString(), "data.txt", -1);
+        uploadSessionService.writeChunk(session.id(), 0, chunk("hello"));
+
+        // Act
+        uploadSessionService.abort(session.id());
+
+        // Assert
+        assertThrows(IOException.class, () -> uploadSessionService.getSession(session.id()));
+        try (var files = Files.list(uploadDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void createSession_shouldSanitizeFilename() throws IOException {
+        // Act
+        UploadSession session = uploadSessionService.createSession(uploadDir.toString(), "../mal\"icious;.txt", -1);
+
+        // Assert
+        assertFalse(session.fileName().contains(".."));
+        assertFalse(session.fileName().contains("\""));
+        assertFalse(session.fileName().contains(";"));
+    }
+
+    @Test
+    void createSession_shouldThrowExceptionWhenDirectoryIsNotAllowed() throws IOException {
+        // Arrange
+        String disallowedPath = "/disallowed/directory";
+        when(pathValidationService.validateAndSanitizePath(disallowedPath))
+                .thenThrow(new IOException("Access denied: Path is not within allowed directories"));
+
+        // Act & Assert
+        IOException exception = assertThrows(IOException.class,
+                () -> uploadSessionService.createSession(disallowedPath, "data.txt", -1));
+        assertTrue(exception.getMessage().contains("Access denied"));
+    }
+
+    @Test
+    void writeChunk_shouldThrowExceptionForUnknownSession() {
+        // Act & Assert
+        IOException exception = assertThrows(IOException.class,
+                () -> uploadSessionService.writeChunk("missing", 0, chunk("data")));
+        assertTrue(exception.getMessage().contains("Upload session not found"));
+    }
+}
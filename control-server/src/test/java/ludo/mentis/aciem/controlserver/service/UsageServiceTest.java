@@ -0,0 +1,190 @@
+package ludo.mentis.aciem.controlserver.service;
+
+import ludo.mentis.aciem.controlserver.model.DirectoryUsage;
+import ludo.mentis.aciem.controlserver.model.FileChangedEvent;
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class UsageServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    private PathValidationService pathValidationService;
+
+    private TreeWalkServiceImpl treeWalkService;
+    private DirectoryWatchServiceImpl directoryWatchService;
+    private UsageServiceImpl usageService;
+    private Path root;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        MockitoAnnotations.openMocks(this);
+        root = Files.createDirectory(tempDir.resolve("root"));
+        when(pathValidationService.isPathAllowed(any(Path.class))).thenReturn(true);
+        when(pathValidationService.snapshot()).thenReturn(pathValidationService::isPathAllowed);
+        treeWalkService = new TreeWalkServiceImpl(pathValidationService, 4);
+        directoryWatchService = new DirectoryWatchServiceImpl();
+        usageService = new UsageServiceImpl(treeWalkService, directoryWatchService, pathValidationService,
+                2, 1000, Duration.ofMinutes(5));
+
+        Files.createDirectories(root.resolve("logs/archive"));
+        Files.createDirectories(root.resolve("src"));
+        Files.write(root.resolve("logs/server.log"), new byte[300]);
+        Files.write(root.resolve("logs/archive/old.log"), new byte[500]);
+        Files.write(root.resolve("src/Main.java"), new byte[50]);
+        Files.write(root.resolve("README.md"), new byte[100]);
+        Files.write(root.resolve("LICENSE"), new byte[10]);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        usageService.destroy();
+        treeWalkService.destroy();
+        directoryWatchService.destroy();
+    }
+
+    private static List<String> names(DirectoryUsage usage) {
+        return usage.largestChildren().stream().map(FileInfo::name).toList();
+    }
+
+    private static boolean await(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.call() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        return condition.call();
+    }
+
+    @Test
+    void usage_shouldSumTreeAndReportLargestChildren() throws IOException {
+        // Act
+        DirectoryUsage usage = usageService.usage(root);
+
+        // Assert
+        assertEquals(root.toString(), usage.directory());
+        assertEquals(960, usage.size());
+        assertEquals(5, usage.fileCount());
+        assertEquals(3, usage.directoryCount());
+        assertEquals(List.of("logs", "README.md"), names(usage));
+        assertTrue(usage.largestChildren().get(0).directory());
+        assertEquals(800, usage.largestChildren().get(0).size());
+    }
+
+    @Test
+    void usage_shouldAnswerSubdirectoriesFromCachedTree() throws IOException {
+        // Arrange
+        usageService.usage(root);
+
+        // Act
+        DirectoryUsage usage = usageService.usage(root.resolve("logs"));
+
+        // Assert
+        assertEquals(800, usage.size());
+        assertEquals(2, usage.fileCount());
+        assertEquals(1, usage.directoryCount());
+        assertEquals(List.of("archive", "server.log"), names(usage));
+    }
+
+    @Test
+    void usage_shouldFollowWritesAndDeletes() throws Exception {
+        // Arrange
+        usageService.usage(root);
+
+        // Act
+        Files.write(root.resolve("logs/archive/older.log"), new byte[1000]);
+        Files.delete(root.resolve("README.md"));
+
+        // Assert
+        assertTrue(await(() -> usageService.usage(root).size() == 1860));
+        DirectoryUsage usage = usageService.usage(root);
+        assertEquals(5, usage.fileCount());
+        assertEquals(List.of("logs", "src"), names(usage));
+        assertEquals(1500, usageService.usage(root.resolve("logs/archive")).size());
+    }
+
+    @Test
+    void usage_shouldFollowNewAndDeletedDirectories() throws Exception {
+        // Arrange
+        usageService.usage(root);
+
+        // Act
+        Path created = Files.createDirectories(root.resolve("data/nested"));
+        Files.write(created.resolve("blob.bin"), new byte[2000]);
+        Files.delete(root.resolve("logs/archive/old.log"));
+        Files.delete(root.resolve("logs/archive"));
+
+        // Assert
+        assertTrue(await(() -> usageService.usage(root).size() == 2460));
+        DirectoryUsage usage = usageService.usage(root);
+        assertEquals(5, usage.fileCount());
+        assertEquals(4, usage.directoryCount());
+        assertEquals(List.of("data", "logs"), names(usage));
+    }
+
+    @Test
+    void onFileChanged_shouldUpdateTreeThatIsNotWatched() throws Exception {
+        // Arrange
+        DirectoryWatchService unavailable = mock(DirectoryWatchService.class);
+        when(unavailable.watch(any(), any())).thenThrow(new IOException("Too many watches"));
+        UsageServiceImpl service = new UsageServiceImpl(treeWalkService, unavailable, pathValidationService,
+                2, 1000, Duration.ofMinutes(5));
+        service.usage(root);
+
+        try {
+            // Act
+            Path uploaded = Files.write(root.resolve("src/Upload.java"), new byte[40]);
+            service.onFileChanged(new FileChangedEvent(uploaded));
+
+            // Assert
+            assertTrue(await(() -> service.usage(root).size() == 1000));
+            assertEquals(90, service.usage(root.resolve("src")).size());
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    void usage_shouldWalkAgainWhenUnwatchedTreeExpires() throws IOException {
+        // Arrange
+        DirectoryWatchService unavailable = mock(DirectoryWatchService.class);
+        when(unavailable.watch(any(), any())).thenThrow(new IOException("Too many watches"));
+        UsageServiceImpl service = new UsageServiceImpl(treeWalkService, unavailable, pathValidationService,
+                2, 1000, Duration.ZERO);
+        service.usage(root);
+
+        try {
+            // Act
+            Files.write(root.resolve("src/Upload.java"), new byte[40]);
+            DirectoryUsage usage = service.usage(root);
+
+            // Assert
+            assertEquals(1000, usage.size());
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    void usage_shouldFailForMissingDirectory() {
+        assertThrows(IOException.class, () -> usageService.usage(root.resolve("missing")));
+    }
+}
@@ -0,0 +1,79 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveLimitTest {
+
+    private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    void onSample_shouldGrowByOnePerLimitOfFastCompletions() {
+        // Arrange
+        AdaptiveLimit limit = new AdaptiveLimit(10, 1, 100, Duration.ofMillis(100));
+
+        // Act
+        for (int i = 0; i < 12; i++) {
+            limit.onSample(TARGET / 2, false, 10, i);
+        }
+
+        // Assert
+        assertEquals(11, limit.limit());
+    }
+
+    @Test
+    void onSample_shouldNotGrowWhileIdle() {
+        // Arrange
+        AdaptiveLimit limit = new AdaptiveLimit(10, 1, 100, Duration.ofMillis(100));
+
+        // Act
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(TARGET / 2, false, 1, i);
+        }
+
+        // Assert
+        assertEquals(10, limit.limit());
+    }
+
+    @Test
+    void onSample_shouldBackOffOncePerTargetPeriod() {
+        // Arrange
+        AdaptiveLimit limit = new AdaptiveLimit(100, 1, 100, Duration.ofMillis(100));
+        long now = System.nanoTime();
+
+        // Act
+        limit.onSample(TARGET * 2, false, 100, now);
+        limit.onSample(TARGET * 2, false, 100, now + TARGET / 2);
+        int afterOnePeriod = limit.limit();
+        limit.onSample(0, true, 100, now + TARGET);
+
+        // Assert
+        assertEquals(90, afterOnePeriod);
+        assertEquals(81, limit.limit());
+    }
+
+    @Test
+    void onSample_shouldStayWithinBounds() {
+        // Arrange
+        AdaptiveLimit limit = new AdaptiveLimit(2, 2, 3, Duration.ofMillis(100));
+        long now = System.nanoTime();
+
+        // Act
+        for (int i = 1; i <= 10; i++) {
+            limit.onSample(0, true, 2, now + i * TARGET);
+        }
+        int lowest = limit.limit();
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(0, false, 3, now);
+        }
+
+        // Assert
+        assertEquals(2, lowest);
+        assertEquals(3, limit.limit());
+        assertThrows(IllegalArgumentException.class, () -> new AdaptiveLimit(1, 0, 10, Duration.ofMillis(100)));
+    }
+}
@@ -0,0 +1,89 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryListingTest {
+
+    private static byte[] encode(List<FileInfo> files) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryListing.write(files, out);
+        return out.toByteArray();
+    }
+
+    private static List<FileInfo> decode(byte[] bytes) throws IOException {
+        return BinaryListing.read(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    void read_shouldReturnWrittenEntries() throws IOException {
+        // Arrange
+        List<FileInfo> files = List.of(
+                new FileInfo("report-2024.csv", false, 0, 1_700_000_000_000L),
+                new FileInfo("report-2025.csv", false, Long.MAX_VALUE, 1_600_000_000_000L),
+                new FileInfo("report", true, -1, -5),
+                new FileInfo("résumé.txt", false, 300, 0),
+                new FileInfo("règle.txt", false, 1, Long.MIN_VALUE),
+                new FileInfo("", false, 2, Long.MAX_VALUE));
+
+        // Act
+        List<FileInfo> decoded = decode(encode(files));
+
+        // Assert
+        assertEquals(files, decoded);
+    }
+
+    @Test
+    void write_shouldStoreOnlyTheSuffixOfSortedNames() throws IOException {
+        // Arrange
+        List<FileInfo> files = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            files.add(new FileInfo(String.format("/data/archive/2024/invoice-%05d.pdf", i), false, 4096 + i,
+                    1_700_000_000_000L + i * 1000L));
+        }
+
+        // Act
+        byte[] bytes = encode(files);
+
+        // Assert
+        assertTrue(bytes.length < files.size() * 16, "Listing takes " + bytes.length + " bytes");
+        assertEquals(files, decode(bytes));
+    }
+
+    @Test
+    void read_shouldRejectListingThatWasCutOff() throws IOException {
+        // Arrange
+        byte[] bytes = encode(List.of(new FileInfo("a.txt", false, 1, 1), new FileInfo("b.txt", false, 2, 2)));
+
+        // Act & Assert
+        assertThrows(EOFException.class, () -> decode(Arrays.copyOf(bytes, bytes.length - 1)));
+        assertThrows(EOFException.class, () -> decode(Arrays.copyOf(bytes, bytes.length - 3)));
+    }
+
+    @Test
+    void read_shouldRejectOtherContent() {
+        assertThrows(IOException.class, () -> decode("[{\"name\":\"a.txt\"}]".getBytes()));
+        assertThrows(IOException.class, () -> decode(new byte[0]));
+    }
+
+    @Test
+    void isPreferred_shouldFollowAcceptHeader() {
+        assertTrue(BinaryListing.isPreferred(BinaryListing.MEDIA_TYPE_VALUE));
+        assertTrue(BinaryListing.isPreferred(BinaryListing.MEDIA_TYPE_VALUE + ", application/json;q=0.9"));
+        assertTrue(BinaryListing.isPreferred("application/json;q=0.5, " + BinaryListing.MEDIA_TYPE_VALUE));
+        assertFalse(BinaryListing.isPreferred(null));
+        assertFalse(BinaryListing.isPreferred("*/*"));
+        assertFalse(BinaryListing.isPreferred("application/json, " + BinaryListing.MEDIA_TYPE_VALUE));
+        assertFalse(BinaryListing.isPreferred(BinaryListing.MEDIA_TYPE_VALUE + ";q=0"));
+    }
+}
@@ -0,0 +1,58 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import ludo.mentis.aciem.controlserver.model.ByteRange;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteRangeSetTest {
+
+    @Test
+    void add_shouldMergeOverlappingAndAdjacentRanges() {
+        // Arrange
+        ByteRangeSet set = new ByteRangeSet();
+
+        // Act
+        set.add(100, 200);
+        set.add(0, 50);
+        set.add(50, 100);
+        set.add(300, 400);
+        set.add(350, 450);
+
+        // Assert
+        assertEquals(List.of(new ByteRange(0, 200), new ByteRange(300, 450)), set.toList());
+        assertEquals(350, set.coveredBytes());
+        assertEquals(450, set.highestEnd());
+    }
+
+    @Test
+    void add_shouldSwallowContainedRanges() {
+        // Arrange
+        ByteRangeSet set = new ByteRangeSet();
+        set.add(10, 20);
+        set.add(30, 40);
+
+        // Act
+        set.add(0, 100);
+
+        // Assert
+        assertEquals(List.of(new ByteRange(0, 100)), set.toList());
+    }
+
+    @Test
+    void covers_shouldDetectGaps() {
+        // Arrange
+        ByteRangeSet set = new ByteRangeSet();
+        set.add(0, 100);
+        set.add(150, 200);
+
+        // Act & Assert
+        assertTrue(set.covers(0, 100));
+        assertTrue(set.covers(10, 90));
+        assertFalse(set.covers(0, 200));
+        assertFalse(set.covers(100, 150));
+        assertTrue(set.covers(5, 5));
+    }
+}
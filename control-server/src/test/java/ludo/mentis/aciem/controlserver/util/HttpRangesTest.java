@@ -0,0 +1,74 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import ludo.mentis.aciem.controlserver.model.ByteRange;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpRangesTest {
+
+    @Test
+    void resolve_shouldHandleClosedOpenAndSuffixRanges() {
+        assertEquals(List.of(new ByteRange(0, 500)), HttpRanges.resolve("bytes=0-499", 1000));
+        assertEquals(List.of(new ByteRange(900, 1000)), HttpRanges.resolve("bytes=900-", 1000));
+        assertEquals(List.of(new ByteRange(800, 1000)), HttpRanges.resolve("bytes=-200", 1000));
+        assertEquals(List.of(new ByteRange(0, 1000)), HttpRanges.resolve("bytes=-5000", 1000));
+        assertEquals(List.of(new ByteRange(990, 1000)), HttpRanges.resolve("bytes=990-5000", 1000));
+    }
+
+    @Test
+    void resolve_shouldSortAndMergeOverlappingRanges() {
+        // Act
+        List<ByteRange> ranges = HttpRanges.resolve("bytes=500-599, 0-99, 50-199, 200-299, 800-", 1000);
+
+        // Assert
+        assertEquals(List.of(new ByteRange(0, 300), new ByteRange(500, 600), new ByteRange(800, 1000)), ranges);
+    }
+
+    @Test
+    void resolve_shouldDropUnsatisfiableRanges() {
+        assertEquals(List.of(new ByteRange(0, 10)), HttpRanges.resolve("bytes=0-9, 2000-3000", 1000));
+        assertTrue(HttpRanges.resolve("bytes=1000-", 1000).isEmpty());
+        assertTrue(HttpRanges.resolve("bytes=-0", 1000).isEmpty());
+        assertTrue(HttpRanges.resolve("bytes=-10", 0).isEmpty());
+    }
+
+    @Test
+    void resolve_shouldIgnoreMalformedHeaders() {
+        assertNull(HttpRanges.resolve("bytes=9-1", 1000));
+        assertNull(HttpRanges.resolve("items=0-9", 1000));
+        assertNull(HttpRanges.resolve("bytes=abc", 1000));
+    }
+
+    @Test
+    void ifRangeMatches_shouldCompareEntityTagsStrongly() {
+        assertTrue(HttpRanges.ifRangeMatches(null, null, 0));
+        assertTrue(HttpRanges.ifRangeMatches("\"abc\"", "\"abc\"", 0));
+        assertFalse(HttpRanges.ifRangeMatches("\"abc\"", "\"def\"", 0));
+        assertFalse(HttpRanges.ifRangeMatches("W/\"abc\"", "W/\"abc\"", 0));
+        assertFalse(HttpRanges.ifRangeMatches("\"abc\"", null, 0));
+    }
+
+    @Test
+    void ifRangeMatches_shouldCompareDatesExactly() {
+        // Arrange
+        long lastModified = 1_700_000_000_123L;
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(lastModified).atZone(ZoneOffset.UTC));
+        String earlier = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(lastModified - 1000).atZone(ZoneOffset.UTC));
+
+        // Act & Assert
+        assertTrue(HttpRanges.ifRangeMatches(date, null, lastModified));
+        assertFalse(HttpRanges.ifRangeMatches(earlier, null, lastModified));
+        assertFalse(HttpRanges.ifRangeMatches("yesterday", null, lastModified));
+    }
+
+    @Test
+    void contentRange_shouldUseInclusiveEnd() {
+        assertEquals("bytes 0-499/1000", HttpRanges.contentRange(new ByteRange(0, 500), 1000));
+    }
+}
@@ -0,0 +1,116 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import ludo.mentis.aciem.controlserver.model.SearchType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexSegmentTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static final String DATA = Path.of("/data").toAbsolutePath().toString();
+    private static final String LOGS = Path.of("/data/logs").toAbsolutePath().toString();
+
+    private IndexSegment writeSegment() throws IOException {
+        List<IndexSegment.Entry> entries = new ArrayList<>(List.of(
+                new IndexSegment.Entry(DATA, "logs", true),
+                new IndexSegment.Entry(LOGS, "access.log", false),
+                new IndexSegment.Entry(LOGS, "Error.log", false),
+                new IndexSegment.Entry(LOGS, "error.log.1", false),
+                new IndexSegment.Entry(DATA, "errata.txt", false),
+                new IndexSegment.Entry(DATA, "ünïcode-fïle.txt", false)));
+        return IndexSegment.write(tempDir.resolve("segment.idx"), entries);
+    }
+
+    private static List<String> search(IndexSegment segment, SearchType type, String query) {
+        return segment.search(SearchQuery.of(type, query), 10, path -> true).stream()
+                .map(IndexSegment.Entry::name)
+                .toList();
+    }
+
+    @Test
+    void write_shouldRoundTripEntries() throws IOException {
+        // Arrange
+        writeSegment();
+
+        // Act
+        IndexSegment segment = IndexSegment.open(tempDir.resolve("segment.idx"));
+        List<IndexSegment.Entry> all = segment.search(SearchQuery.of(SearchType.SUBSTRING, "o"), 10, path -> true);
+
+        // Assert
+        assertEquals(6, segment.size());
+        assertEquals(List.of("access.log", "Error.log", "error.log.1", "logs", "ünïcode-fïle.txt"),
+                all.stream().map(IndexSegment.Entry::name).toList());
+        assertEquals(Path.of(LOGS, "access.log").toString(), all.get(0).path());
+        assertTrue(all.get(3).directory());
+        assertFalse(Files.exists(tempDir.resolve("segment.idx.tmp")));
+    }
+
+    @Test
+    void search_shouldMatchPrefixesIgnoringCase() throws IOException {
+        // Arrange
+        IndexSegment segment = writeSegment();
+
+        // Act & Assert
+        assertEquals(List.of("errata.txt", "Error.log", "error.log.1"), search(segment, SearchType.PREFIX, "ERR"));
+        assertEquals(List.of("Error.log", "error.log.1"), search(segment, SearchType.PREFIX, "error"));
+        assertTrue(search(segment, SearchType.PREFIX, "zzz").isEmpty());
+    }
+
+    @Test
+    void search_shouldMatchSubstringsThroughTrigrams() throws IOException {
+        // Arrange
+        IndexSegment segment = writeSegment();
+
+        // Act & Assert
+        assertEquals(List.of("access.log", "Error.log", "error.log.1"), search(segment, SearchType.SUBSTRING, ".LOG"));
+        assertEquals(List.of("ünïcode-fïle.txt"), search(segment, SearchType.SUBSTRING, "FÏLE"));
+        assertEquals(List.of("errata.txt", "ünïcode-fïle.txt"), search(segment, SearchType.SUBSTRING, "t"));
+        assertTrue(search(segment, SearchType.SUBSTRING, "log.2").isEmpty());
+    }
+
+    @Test
+    void search_shouldMatchGlobs() throws IOException {
+        // Arrange
+        IndexSegment segment = writeSegment();
+
+        // Act & Assert
+        assertEquals(List.of("access.log", "Error.log"), search(segment, SearchType.GLOB, "*.log"));
+        assertEquals(List.of("errata.txt", "error.log.1"), search(segment, SearchType.GLOB, "{err*.txt,*.1}"));
+        assertEquals(List.of("error.log.1"), search(segment, SearchType.GLOB, "**/logs/e*"));
+        assertEquals(List.of("access.log"), search(segment, SearchType.GLOB, "[a-c]ccess.log"));
+    }
+
+    @Test
+    void search_shouldSkipInvisibleEntriesBeforeLimit() throws IOException {
+        // Arrange
+        IndexSegment segment = writeSegment();
+        SearchQuery query = SearchQuery.of(SearchType.SUBSTRING, "log");
+
+        // Act
+        List<IndexSegment.Entry> entries = segment.search(query, 2, path -> !path.endsWith("access.log"));
+
+        // Assert
+        assertEquals(List.of("Error.log", "error.log.1"), entries.stream().map(IndexSegment.Entry::name).toList());
+    }
+
+    @Test
+    void of_shouldOnlyUseRequiredGlobLiterals() {
+        assertEquals(SearchQuery.of(SearchType.SUBSTRING, ".log").trigrams().length,
+                SearchQuery.of(SearchType.GLOB, "*.LOG").trigrams().length);
+        assertEquals(0, SearchQuery.of(SearchType.GLOB, "{alpha,beta}").trigrams().length);
+        assertEquals(0, SearchQuery.of(SearchType.GLOB, "**/archive/**").trigrams().length);
+        assertEquals(0, SearchQuery.of(SearchType.GLOB, "a[bcd]e").trigrams().length);
+        assertThrows(IllegalArgumentException.class, () -> SearchQuery.of(SearchType.GLOB, "a[b"));
+        assertThrows(IllegalArgumentException.class, () -> SearchQuery.of(SearchType.PREFIX, ""));
+    }
+}
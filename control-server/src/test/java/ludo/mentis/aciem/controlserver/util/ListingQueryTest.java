@@ -0,0 +1,91 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import ludo.mentis.aciem.controlserver.model.FileInfo;
+import ludo.mentis.aciem.controlserver.model.SortKey;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ListingQueryTest {
+
+    private static final List<FileInfo> FILES = List.of(
+            new FileInfo("b.log", false, 300, 2000),
+            new FileInfo("a.log", false, 100, 3000),
+            new FileInfo("c.txt", false, 300, 1000),
+            new FileInfo("logs", true, 4096, 4000),
+            new FileInfo("d.log", false, 50, 5000));
+
+    private static List<String> names(List<FileInfo> files) {
+        return files.stream().map(FileInfo::name).toList();
+    }
+
+    @Test
+    void select_shouldSortByKeyAndBreakTiesByName() {
+        // Act
+        List<FileInfo> bySize = ListingQuery.of(SortKey.SIZE, true, null, null, null, null, null, null, null)
+                .select(FILES);
+        List<FileInfo> byName = ListingQuery.of(null, false, null, null, null, null, null, null, null)
+                .select(FILES);
+
+        // Assert
+        assertEquals(List.of("logs", "b.log", "c.txt", "a.log", "d.log"), names(bySize));
+        assertEquals(List.of("a.log", "b.log", "c.txt", "d.log", "logs"), names(byName));
+    }
+
+    @Test
+    void select_shouldKeepFirstEntriesUpToLimit() {
+        // Act
+        List<FileInfo> newest = ListingQuery.of(SortKey.LAST_MODIFIED, true, 2, null, null, null, null, null, null)
+                .select(FILES);
+        List<FileInfo> oldest = ListingQuery.of(SortKey.LAST_MODIFIED, false, 2, null, null, null, null, null, null)
+                .select(FILES);
+
+        // Assert
+        assertEquals(List.of("d.log", "logs"), names(newest));
+        assertEquals(List.of("c.txt", "b.log"), names(oldest));
+    }
+
+    @Test
+    void select_shouldApplyPredicatesBeforeLimit() {
+        // Act
+        List<FileInfo> files = ListingQuery.of(SortKey.SIZE, false, 2, List.of("*.log"), List.of("a*"), 60L, null,
+                null, null).select(FILES);
+
+        // Assert
+        assertEquals(List.of("b.log"), names(files));
+    }
+
+    @Test
+    void select_shouldMatchFullSortOfLargeListing() {
+        // Arrange
+        Random random = new Random(7);
+        List<FileInfo> files = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            files.add(new FileInfo("file-" + i, false, random.nextInt(1000), random.nextInt(1000)));
+        }
+        Comparator<FileInfo> order = SortKey.SIZE.comparator(true);
+
+        // Act
+        List<FileInfo> top = ListingQuery.of(SortKey.SIZE, true, 50, null, null, null, null, null, null)
+                .select(files);
+
+        // Assert
+        assertEquals(files.stream().sorted(order).limit(50).toList(), top);
+    }
+
+    @Test
+    void of_shouldRejectInvalidParameters() {
+        assertThrows(IllegalArgumentException.class,
+                () -> ListingQuery.of(null, false, 0, null, null, null, null, null, null));
+        assertThrows(IllegalArgumentException.class,
+                () -> ListingQuery.of(null, false, null, List.of("a[b"), null, null, null, null, null));
+        assertThrows(IllegalArgumentException.class, () -> SortKey.parse("owner"));
+        assertEquals(SortKey.LAST_MODIFIED, SortKey.parse("lastModified"));
+        assertEquals(SortKey.LAST_MODIFIED, SortKey.parse("last-modified"));
+    }
+}
@@ -0,0 +1,127 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultipartStreamReaderTest {
+
+    private static final String BOUNDARY = "----test-boundary";
+
+    private static byte[] body(byte[] fileContent) {
+        String head = "preamble to ignore\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"directory\"\r\n"
+                + "\r\n"
+                + "/data/uploads\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"test.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "\r\n";
+        String tail = "\r\n--" + BOUNDARY + "--\r\n";
+
+        byte[] headBytes = head.getBytes(StandardCharsets.UTF_8);
+        byte[] tailBytes = tail.getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[headBytes.length + fileContent.length + tailBytes.length];
+        System.arraycopy(headBytes, 0, result, 0, headBytes.length);
+        System.arraycopy(fileContent, 0, result, headBytes.length, fileContent.length);
+        System.arraycopy(tailBytes, 0, result, headBytes.length + fileContent.length, tailBytes.length);
+        return result;
+    }
+
+    /**
+     * Input stream that never returns more than a few bytes per read, so delimiters get split
+     */
+    private static InputStream trickle(byte[] data) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+    }
+
+    @Test
+    void nextPart_shouldReadFieldsAndFileInOrder() throws IOException {
+        // Arrange
+        byte[] fileContent = "line one\r\n--not-a-boundary\r\nline two".getBytes(StandardCharsets.UTF_8);
+        MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(body(fileContent)), BOUNDARY);
+
+        // Act & Assert
+        MultipartStreamReader.Part directory = reader.nextPart();
+        assertNotNull(directory);
+        assertEquals("directory", directory.name());
+        assertNull(directory.filename());
+        assertEquals("/data/uploads", directory.contentAsString(1024));
+
+        MultipartStreamReader.Part file = reader.nextPart();
+        assertNotNull(file);
+        assertEquals("file", file.name());
+        assertEquals("test.bin", file.filename());
+        assertArrayEquals(fileContent, file.body().readAllBytes());
+
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    void nextPart_shouldHandleDelimitersSplitAcrossReads() throws IOException {
+        // Arrange
+        byte[] fileContent = new byte[200_000];
+        for (int i = 0; i < fileContent.length; i++) {
+            fileContent[i] = (byte) (i % 251);
+        }
+        MultipartStreamReader reader = new MultipartStreamReader(trickle(body(fileContent)), BOUNDARY, 64);
+
+        // Act
+        reader.nextPart();
+        MultipartStreamReader.Part file = reader.nextPart();
+
+        // Assert
+        assertNotNull(file);
+        assertTrue(Arrays.equals(fileContent, file.body().readAllBytes()));
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    void nextPart_shouldSkipUnreadContent() throws IOException {
+        // Arrange
+        MultipartStreamReader reader = new MultipartStreamReader(
+                new ByteArrayInputStream(body("ignored".getBytes(StandardCharsets.UTF_8))), BOUNDARY);
+
+        // Act & Assert
+        assertEquals("directory", reader.nextPart().name());
+        assertEquals("file", reader.nextPart().name());
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    void nextPart_shouldFailOnTruncatedBody() throws IOException {
+        // Arrange
+        byte[] full = body("content".getBytes(StandardCharsets.UTF_8));
+        byte[] truncated = Arrays.copyOf(full, full.length - 20);
+        MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(truncated), BOUNDARY);
+        reader.nextPart();
+        MultipartStreamReader.Part file = reader.nextPart();
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> file.body().readAllBytes());
+    }
+
+    @Test
+    void contentAsString_shouldRejectOversizedFields() throws IOException {
+        // Arrange
+        MultipartStreamReader reader = new MultipartStreamReader(
+                new ByteArrayInputStream(body(new byte[0])), BOUNDARY);
+        MultipartStreamReader.Part directory = reader.nextPart();
+
+        // Act & Assert
+        assertThrows(IOException.class, () -> directory.contentAsString(4));
+    }
+}
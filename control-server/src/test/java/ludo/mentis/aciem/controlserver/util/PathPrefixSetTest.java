@@ -0,0 +1,50 @@
+package ludo.mentis.aciem.controlserver.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PathPrefixSetTest {
+
+    private final PathPrefixSet set = PathPrefixSet.of(List.of(
+            Path.of("/data/shared").toAbsolutePath(),
+            Path.of("/data/shared/nested").toAbsolutePath(),
+            Path.of("/srv/uploads").toAbsolutePath()));
+
+    private boolean contains(String path) {
+        return set.containsPrefixOf(Path.of(path).toAbsolutePath());
+    }
+
+    @Test
+    void containsPrefixOf_shouldMatchDirectoriesAndPathsBelowThem() {
+        assertTrue(contains("/data/shared"));
+        assertTrue(contains("/data/shared/nested/file.txt"));
+        assertTrue(contains("/srv/uploads/a/b/c.bin"));
+    }
+
+    @Test
+    void containsPrefixOf_shouldNotMatchParentsSiblingsOrNamePrefixes() {
+        assertFalse(contains("/data"));
+        assertFalse(contains("/data/other"));
+        assertFalse(contains("/data/shared-backup/file.txt"));
+        assertFalse(contains("/srv"));
+        assertFalse(contains("/"));
+    }
+
+    @Test
+    void containsPrefixOf_shouldMatchEverythingBelowFileSystemRoot() {
+        // Arrange
+        PathPrefixSet everything = PathPrefixSet.of(List.of(Path.of("/").toAbsolutePath()));
+
+        // Act & Assert
+        assertTrue(everything.containsPrefixOf(Path.of("/etc/passwd").toAbsolutePath()));
+    }
+
+    @Test
+    void containsPrefixOf_shouldMatchNothingWhenEmpty() {
+        assertFalse(PathPrefixSet.of(List.of()).containsPrefixOf(Path.of("/data").toAbsolutePath()));
+    }
+}